@@ -4,8 +4,11 @@ import com.google.inject.AbstractModule;
 import com.google.inject.Guice;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
+import com.lockmarker.admin.DeadLetterReplayTask;
 import com.lockmarker.admin.ServiceShutdownTask;
 import com.lockmarker.api.application.MessagingDispatcher;
+import com.lockmarker.api.application.log.LogDispatcher;
+import com.lockmarker.api.application.memory.InMemoryDispatcher;
 import com.lockmarker.api.application.rabbitmq.RabbitMQDispatcher;
 import com.lockmarker.config.MessagingConfiguration;
 import com.lockmarker.health.TemplateHealthCheck;
@@ -14,6 +17,7 @@ import com.yammer.dropwizard.Service;
 import com.yammer.dropwizard.config.Environment;
 
 public class LockMarkerService extends Service<MessagingConfiguration> {
+    private final MessagingDispatcher dispatcher;
 
     public static void main(String[] args) throws Exception {
         Injector injector = Guice.createInjector(new AbstractModule() {
@@ -28,6 +32,12 @@ public class LockMarkerService extends Service<MessagingConfiguration> {
                 if ((dispatcherClassName != null)
                         && (dispatcherClassName.indexOf("Rabbit") != -1)) {
                     dispatcherClass = RabbitMQDispatcher.class;
+                } else if ((dispatcherClassName != null)
+                        && (dispatcherClassName.indexOf("Memory") != -1)) {
+                    dispatcherClass = InMemoryDispatcher.class;
+                } else if ((dispatcherClassName != null)
+                        && (dispatcherClassName.indexOf("Log") != -1)) {
+                    dispatcherClass = LogDispatcher.class;
                 }
                 bind(MessagingDispatcher.class).to(dispatcherClass);
             }
@@ -38,6 +48,7 @@ public class LockMarkerService extends Service<MessagingConfiguration> {
     @Inject
     private LockMarkerService(MessagingDispatcher dispatcher) {
         super("LockMarker Service");
+        this.dispatcher = dispatcher;
     }
 
     @Override
@@ -46,8 +57,10 @@ public class LockMarkerService extends Service<MessagingConfiguration> {
         try {
             final String template = configuration.getTemplate();
             environment.addHealthCheck(new TemplateHealthCheck(template));
-            environment.addResource(new LockMarkerResource());
+            dispatcher.loadConfiguration(configuration);
+            environment.addResource(new LockMarkerResource(dispatcher));
             environment.addTask(new ServiceShutdownTask());
+            environment.addTask(new DeadLetterReplayTask(dispatcher));
         } catch (Exception e) {
             e.printStackTrace();
         }
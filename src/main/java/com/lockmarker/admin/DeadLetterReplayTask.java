@@ -0,0 +1,50 @@
+package com.lockmarker.admin;
+
+import java.io.PrintWriter;
+import com.google.common.collect.ImmutableMultimap;
+import com.lockmarker.api.application.MessagingDispatcher;
+import com.yammer.dropwizard.tasks.Task;
+
+/**
+ * Perform an administrative task to replay the dead letters of a subscriber.
+ * <p/>
+ * Parameters: subscriberId (required), max (default 1000) and rate in
+ * messages per second (default 100). The replay runs in the background.
+ */
+public class DeadLetterReplayTask extends Task {
+    private static final long DEFAULT_MAX = 1000;
+    private static final int DEFAULT_RATE = 100;
+    private final MessagingDispatcher dispatcher;
+
+    /**
+     * Create a new {@link DeadLetterReplayTask}.
+     *
+     * @param dispatcher    the dispatcher owning the dead-letter queues
+     */
+    public DeadLetterReplayTask(MessagingDispatcher dispatcher) {
+        super("replay-dead-letters");
+        this.dispatcher = dispatcher;
+    }
+
+    @Override
+    public void execute(ImmutableMultimap<String, String> parameters, PrintWriter output) {
+        String subscriberId = first(parameters, "subscriberId");
+        if (subscriberId == null) {
+            output.println("Missing parameter subscriberId.");
+            return;
+        }
+        String max = first(parameters, "max");
+        String rate = first(parameters, "rate");
+        long maxMessages = max == null ? DEFAULT_MAX : Long.parseLong(max);
+        int ratePerSecond = rate == null ? DEFAULT_RATE : Integer.parseInt(rate);
+
+        dispatcher.replayDeadLetters(subscriberId, maxMessages, ratePerSecond);
+        output.println("Replaying up to " + maxMessages + " dead letters of Subscriber "
+                + subscriberId + " at " + ratePerSecond + " messages/s.");
+        output.flush();
+    }
+
+    private static String first(ImmutableMultimap<String, String> parameters, String name) {
+        return parameters.get(name).isEmpty() ? null : parameters.get(name).iterator().next();
+    }
+}
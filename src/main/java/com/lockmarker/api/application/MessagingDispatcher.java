@@ -1,9 +1,13 @@
 package com.lockmarker.api.application;
 
 import java.util.Collection;
+import java.util.List;
+
+import com.google.common.util.concurrent.ListenableFuture;
 
 import com.lockmarker.api.application.model.Subscriber;
 import com.lockmarker.api.application.model.Message;
+import com.lockmarker.api.application.policy.DeliveryPolicy;
 import com.lockmarker.config.MessagingConfiguration;
 
 /**
@@ -22,12 +26,28 @@ public interface MessagingDispatcher {
     public void deleteTopic(String tenantId, String name);
     
     public String sendMessage(String tenantId, String topicName, String message);
+    public ListenableFuture<String> sendMessageAsync(String tenantId, String topicName, String message);   // completes on broker confirm
+    public String sendMessage(String tenantId, String topicName, String message, String idempotencyKey);
+    public String sendMessage(String tenantId, String topicName, byte[] body, String contentType, String idempotencyKey);
+    public ListenableFuture<String> sendMessageAsync(String tenantId, String topicName, byte[] body, String contentType,
+            String idempotencyKey);   // body is not copied; a repeated key completes with the first message ID
+    public List<String> sendMessages(String tenantId, String topicName, List<String> messages);          // IDs in input order
     public Message pullMessage(String tenantId, String topicName);     // only for P2P message polling
+    public List<Message> pullMessages(String tenantId, String topicName, int max);
+    public List<Message> pullMessages(String tenantId, String topicName, int max, long waitMillis);   // long-poll
+    public List<Message> pullMessages(String tenantId, String topicName, int max, long waitMillis,
+            long visibilityMillis);   // leased, not acked, until deleted or the timeout requeues them
+    public boolean extendLease(String tenantId, String topicName, String messageId, long visibilityMillis);
+    public Message getMessage(String tenantId, String topicName, String messageId);    // null if not found or deleted; NotImplementedException if not supported
     public boolean deleteMessage(String tenantId, String topicName, String messageId);
     
     public Subscriber createSubscriber(String subscriberName, String endpoint, Collection<String> topics);
+    public Subscriber createSubscriber(String subscriberName, String endpoint, Collection<String> topics,
+            DeliveryPolicy deliveryPolicy);
     public Subscriber getSubscriberInfo(String subscriberId);
     public boolean deleteSubscriber(String subscriberId);
     public Collection<String> subscribeTopic(String subscriberId, Collection<String> topics);
     public Collection<String> unsubscribeTopic(String subscriberId, Collection<String> topics);
+    public List<Message> getDeadLetters(String subscriberId, int max);                                   // peek, nothing removed
+    public ListenableFuture<Long> replayDeadLetters(String subscriberId, long max, int ratePerSecond);   // completes with count replayed
 }
@@ -0,0 +1,12 @@
+package com.lockmarker.api.application.id;
+
+/**
+ * Creates message IDs. Implementations must be safe to call from any number
+ * of threads.
+ */
+public interface IdGenerator {
+	/**
+	 * @return a new ID, never the same as an earlier one
+	 */
+	String nextId();
+}
@@ -0,0 +1,30 @@
+package com.lockmarker.api.application.id;
+
+/**
+ * Creates the configured IdGenerator
+ */
+public final class IdGenerators {
+	public static final String	TIME_ORDERED	= "time-ordered";
+	public static final String	UUID				= "uuid";
+
+	private IdGenerators() {
+	}
+
+	/**
+	 * @param name
+	 *           TIME_ORDERED or UUID
+	 * @param node
+	 *           the node tag of time-ordered IDs, negative to derive one
+	 * @throws IllegalArgumentException
+	 *            if the name is unknown
+	 */
+	public static IdGenerator create(String name, int node) {
+		if (UUID.equals(name)) {
+			return new UuidGenerator();
+		}
+		if (!TIME_ORDERED.equals(name)) {
+			throw new IllegalArgumentException("Unknown message ID generator: " + name);
+		}
+		return new TimeOrderedIdGenerator(node < 0 ? TimeOrderedIdGenerator.defaultNode() : node);
+	}
+}
@@ -0,0 +1,165 @@
+package com.lockmarker.api.application.id;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Time-ordered 63-bit IDs tagged with the node that made them.
+ *
+ * An ID is, from the high bits down, 41 bits of milliseconds since 2012-01-01,
+ * 10 bits of node and 12 bits of sequence within the millisecond. IDs of one
+ * node are strictly increasing; IDs of different nodes are ordered by time
+ * to the millisecond. The string form is 13 characters of Crockford base32,
+ * which sorts the same way as the numbers.
+ *
+ * The clock and sequence are kept in one AtomicLong updated by CAS, so
+ * callers never block. When the sequence of a millisecond runs out, or the
+ * clock steps back, IDs carry on from the last millisecond used instead of
+ * waiting for the clock.
+ */
+public class TimeOrderedIdGenerator implements IdGenerator {
+	public static final long	EPOCH				= 1325376000000L;	// 2012-01-01T00:00:00Z
+	public static final int		NODE_BITS		= 10;
+	public static final int		SEQUENCE_BITS	= 12;
+	public static final int		MAX_NODE			= (1 << NODE_BITS) - 1;
+	public static final int		ENCODED_LENGTH	= 13;
+	private static final char[]	ALPHABET			= "0123456789ABCDEFGHJKMNPQRSTVWXYZ".toCharArray();
+	private static final int[]		DECODE			= new int[128];
+	private final int					node;
+	// milliseconds since the epoch << SEQUENCE_BITS | sequence, of the last ID
+	private final AtomicLong		last;
+
+	static {
+		Arrays.fill(DECODE, -1);
+		for (int i = 0; i < ALPHABET.length; i++) {
+			DECODE[ALPHABET[i]] = i;
+			DECODE[Character.toLowerCase(ALPHABET[i])] = i;
+		}
+	}
+
+	/**
+	 * @param node
+	 *           the tag of this node, 0 to MAX_NODE, unique among the nodes
+	 *           publishing to the same broker
+	 */
+	public TimeOrderedIdGenerator(int node) {
+		if (node < 0 || node > MAX_NODE) {
+			throw new IllegalArgumentException("node must be between 0 and " + MAX_NODE);
+		}
+		this.node = node;
+		this.last = new AtomicLong();
+	}
+
+	@Override
+	public String nextId() {
+		return encode(nextLong());
+	}
+
+	/**
+	 * @return a new ID in its binary form
+	 */
+	public long nextLong() {
+		long next;
+		while (true) {
+			long previous = last.get();
+			long now = (System.currentTimeMillis() - EPOCH) << SEQUENCE_BITS;
+			// a full sequence carries into the millisecond bits
+			next = now > previous ? now : previous + 1;
+			if (last.compareAndSet(previous, next)) {
+				break;
+			}
+		}
+		long millis = next >>> SEQUENCE_BITS;
+		long sequence = next & ((1 << SEQUENCE_BITS) - 1);
+		return (millis << (NODE_BITS + SEQUENCE_BITS)) | ((long) node << SEQUENCE_BITS) | sequence;
+	}
+
+	public int getNode() {
+		return node;
+	}
+
+	/**
+	 * @return the time an ID was made, in milliseconds since 1970
+	 */
+	public static long timestampOf(long id) {
+		return (id >>> (NODE_BITS + SEQUENCE_BITS)) + EPOCH;
+	}
+
+	public static int nodeOf(long id) {
+		return (int) (id >>> SEQUENCE_BITS) & MAX_NODE;
+	}
+
+	/**
+	 * @return the fixed-width base32 form of an ID
+	 */
+	public static String encode(long id) {
+		char[] chars = new char[ENCODED_LENGTH];
+		for (int i = ENCODED_LENGTH - 1; i >= 0; i--) {
+			chars[i] = ALPHABET[(int) (id & 31)];
+			id >>>= 5;
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *            if the string is not an encoded ID
+	 */
+	public static long decode(String encoded) {
+		if (encoded == null || encoded.length() != ENCODED_LENGTH) {
+			throw new IllegalArgumentException("Not an encoded ID: " + encoded);
+		}
+		long id = 0;
+		for (int i = 0; i < ENCODED_LENGTH; i++) {
+			char c = encoded.charAt(i);
+			int value = c < DECODE.length ? DECODE[c] : -1;
+			if (value < 0 || (i == 0 && value > 7)) {
+				throw new IllegalArgumentException("Not an encoded ID: " + encoded);
+			}
+			id = (id << 5) | value;
+		}
+		return id;
+	}
+
+	/**
+	 * @return the 8 byte big-endian form of an ID, which sorts as unsigned bytes
+	 */
+	public static byte[] toBytes(long id) {
+		byte[] bytes = new byte[8];
+		for (int i = 7; i >= 0; i--) {
+			bytes[i] = (byte) id;
+			id >>>= 8;
+		}
+		return bytes;
+	}
+
+	public static long fromBytes(byte[] bytes) {
+		if (bytes.length != 8) {
+			throw new IllegalArgumentException("An ID has 8 bytes, not " + bytes.length);
+		}
+		long id = 0;
+		for (int i = 0; i < 8; i++) {
+			id = (id << 8) | (bytes[i] & 0xff);
+		}
+		return id;
+	}
+
+	/**
+	 * A node tag for hosts that are not given one, taken from the host address
+	 * and the process ID. Two processes may still get the same tag, so set the
+	 * node explicitly when several publish to one broker.
+	 */
+	public static int defaultNode() {
+		int hash;
+		try {
+			hash = InetAddress.getLocalHost().getHostAddress().hashCode();
+		} catch (Exception e) {
+			hash = 0;
+		}
+		// the JVM name is pid@host
+		hash = 31 * hash + ManagementFactory.getRuntimeMXBean().getName().hashCode();
+		return (hash ^ (hash >>> 16)) & MAX_NODE;
+	}
+}
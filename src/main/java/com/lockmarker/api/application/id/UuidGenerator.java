@@ -0,0 +1,14 @@
+package com.lockmarker.api.application.id;
+
+import java.util.UUID;
+
+/**
+ * Random UUIDs, the IDs used before time-ordered IDs. They are not ordered
+ * and are drawn from SecureRandom.
+ */
+public class UuidGenerator implements IdGenerator {
+	@Override
+	public String nextId() {
+		return UUID.randomUUID().toString();
+	}
+}
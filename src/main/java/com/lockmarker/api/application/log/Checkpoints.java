@@ -0,0 +1,52 @@
+package com.lockmarker.api.application.log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * Reads and writes the small properties files the log dispatcher keeps its
+ * offsets and metadata in. A file is written to a temporary file first and
+ * renamed over the old one, so a crash leaves either the old or the new one.
+ */
+public final class Checkpoints {
+	private Checkpoints() {
+	}
+
+	public static void write(File file, Properties properties) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			properties.store(out, null);
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			// some platforms do not rename over an existing file
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Could not replace checkpoint " + file);
+			}
+		}
+	}
+
+	/**
+	 * @return the properties of the file, empty if there is none
+	 */
+	public static Properties read(File file) throws IOException {
+		Properties properties = new Properties();
+		if (!file.exists()) {
+			return properties;
+		}
+		FileInputStream in = new FileInputStream(file);
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+		return properties;
+	}
+}
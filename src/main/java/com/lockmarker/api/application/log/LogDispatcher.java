@@ -0,0 +1,272 @@
+package com.lockmarker.api.application.log;
+
+import com.lockmarker.api.application.memory.SequencedTopic;
+import com.lockmarker.api.application.memory.TopicDispatcher;
+import com.lockmarker.api.application.memory.TopicSubscriber;
+import com.lockmarker.api.exceptions.InternalErrorException;
+import com.lockmarker.config.LogConfiguration;
+import com.lockmarker.config.MessagingConfiguration;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.yammer.dropwizard.logging.Log;
+
+/**
+ * A MessagingDispatcher that keeps topics as append-only logs of
+ * memory-mapped segment files on local disk, for single-node installs that
+ * should not need a broker.
+ *
+ * The data directory holds one directory per topic under topics/, with its
+ * segments and a topic.properties of its tenant and P2P offset, and one
+ * properties file per subscriber under subscribers/, with its name, endpoint
+ * and the offset it has reached in every topic. Offsets are checkpointed
+ * periodically and whenever subscriptions change; after a restart pullers
+ * and subscribers resume from their last checkpoint, so messages read since
+ * then are delivered again. Dead letters are kept in memory only.
+ *
+ * A background thread forces appended records to disk, writes the
+ * checkpoints and deletes segments out of retention.
+ */
+public class LogDispatcher extends TopicDispatcher {
+	private static final Log				LOG							= Log.forClass(LogDispatcher.class);
+	private static final String			TOPIC_FILE					= "topic.properties";
+	private static final String			CHECKPOINT_SUFFIX			= ".properties";
+	private static final String			OFFSET_PREFIX				= "offset.";
+	private String								DATA_DIR						= "data/log";
+	private int									SEGMENT_BYTES				= 64 * 1024 * 1024;
+	private long								RETENTION_MILLIS			= 7L * 24 * 60 * 60 * 1000;
+	private long								RETENTION_BYTES			= 0;
+	private long								RETENTION_CHECK_INTERVAL	= 60000;
+	private long								FLUSH_INTERVAL				= 1000;
+	private long								CHECKPOINT_INTERVAL		= 5000;
+	private File								topicsDir;
+	private File								subscribersDir;
+	private ScheduledExecutorService		maintenance;
+	// serializes checkpoint writes with the deletes of what they describe
+	private final Object						checkpointLock				= new Object();
+
+	/**
+	 * This constructor is needed for Guice dependency injection. Nothing is
+	 * opened until the caller calls loadConfiguration()
+	 */
+	public LogDispatcher() {
+	}
+
+	@Override
+	public void loadConfiguration(MessagingConfiguration configuration) {
+		LogConfiguration config = configuration.getLogConfiguration();
+		DATA_DIR = config.getDataDir();
+		SEGMENT_BYTES = config.getSegmentBytes();
+		RETENTION_MILLIS = config.getRetentionMillis();
+		RETENTION_BYTES = config.getRetentionBytes();
+		RETENTION_CHECK_INTERVAL = config.getRetentionCheckInterval();
+		FLUSH_INTERVAL = config.getFlushInterval();
+		CHECKPOINT_INTERVAL = config.getCheckpointInterval();
+		// feeding, circuit breaking and message IDs work as with RabbitMQ
+		loadSharedConfiguration(configuration.getRabbitMQConfiguration(), config.getFeedThreads(),
+				config.getMaxDeadLetters(), config.getDeliveryBatchSize());
+		init();
+		open();
+	}
+
+	private void open() {
+		this.topicsDir = new File(DATA_DIR, "topics");
+		this.subscribersDir = new File(DATA_DIR, "subscribers");
+		if ((!topicsDir.isDirectory() && !topicsDir.mkdirs())
+				|| (!subscribersDir.isDirectory() && !subscribersDir.mkdirs())) {
+			throw new InternalErrorException("Could not create data directory " + DATA_DIR);
+		}
+		try {
+			for (File dir : topicsDir.listFiles()) {
+				if (dir.isDirectory()) {
+					Properties properties = Checkpoints.read(new File(dir, TOPIC_FILE));
+					SequencedTopic topic = openTopic(dir, properties.getProperty("tenant"),
+							Long.parseLong(properties.getProperty("p2pOffset", "0")));
+					topics.put(topic.getName(), topic);
+				}
+			}
+			for (File file : subscribersDir.listFiles()) {
+				if (file.getName().endsWith(CHECKPOINT_SUFFIX)) {
+					restoreSubscriber(file);
+				}
+			}
+		} catch (IOException e) {
+			LOG.error(e, "Error opening logs in " + DATA_DIR);
+			throw new InternalErrorException("Error starting messaging service.");
+		}
+
+		this.maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "log-maintenance");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		if (FLUSH_INTERVAL > 0) {
+			maintenance.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					flush();
+				}
+			}, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+		maintenance.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				checkpoint();
+			}
+		}, CHECKPOINT_INTERVAL, CHECKPOINT_INTERVAL, TimeUnit.MILLISECONDS);
+		maintenance.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				retain();
+			}
+		}, RETENTION_CHECK_INTERVAL, RETENTION_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+
+		LOG.debug("Opened " + topics.size() + " topic logs and " + subscribers.size() + " subscribers in " + DATA_DIR);
+	}
+
+	private TopicLog openTopic(File dir, String tenantId, long p2pOffset) throws IOException {
+		return new TopicLog(dir, tenantId, dir.getName(), p2pOffset, SEGMENT_BYTES, FLUSH_INTERVAL == 0,
+				newSentKeys(), getOverrun());
+	}
+
+	private void restoreSubscriber(File file) throws IOException {
+		Properties properties = Checkpoints.read(file);
+		String name = file.getName();
+		String subscriberId = name.substring(0, name.length() - CHECKPOINT_SUFFIX.length());
+		if (properties.getProperty("endpoint") == null) {
+			LOG.error("Skipping Subscriber " + subscriberId + ", its checkpoint has no endpoint.");
+			return;
+		}
+		TopicSubscriber subscriber = newSubscriber(subscriberId, properties.getProperty("subscriberName"),
+				properties.getProperty("endpoint"), Integer.parseInt(properties.getProperty("batchSize", "1")));
+		for (String key : properties.stringPropertyNames()) {
+			if (!key.startsWith(OFFSET_PREFIX)) {
+				continue;
+			}
+			SequencedTopic topic = topics.get(key.substring(OFFSET_PREFIX.length()));
+			if (topic == null) {
+				continue;
+			}
+			long offset = Long.parseLong(properties.getProperty(key));
+			subscriber.subscribe(topic, Math.min(offset, topic.getTail()));
+		}
+		subscriber.wake();
+	}
+
+	@Override
+	protected SequencedTopic newTopic(String tenantId, String topicName) {
+		if (topicName.length() == 0 || topicName.startsWith(".") || topicName.indexOf('/') >= 0
+				|| topicName.indexOf('\\') >= 0) {
+			throw new IllegalArgumentException("topic name " + topicName + " is not a valid directory name");
+		}
+		try {
+			TopicLog topic = openTopic(new File(topicsDir, topicName), tenantId, 0);
+			writeTopic(topic);
+			return topic;
+		} catch (IOException e) {
+			LOG.error(e, "Error creating topic: {}", topicName);
+			throw new InternalErrorException("Error creating topic" + topicName);
+		}
+	}
+
+	@Override
+	protected void topicDeleted(SequencedTopic topic) {
+		synchronized (checkpointLock) {
+			((TopicLog) topic).delete();
+		}
+	}
+
+	@Override
+	protected void subscriberChanged(TopicSubscriber subscriber) {
+		synchronized (checkpointLock) {
+			if (subscribers.get(subscriber.getId()) != subscriber) {
+				return;
+			}
+			try {
+				writeSubscriber(subscriber);
+			} catch (IOException e) {
+				LOG.error(e, "Error saving Subscriber " + subscriber.getId());
+				throw new InternalErrorException("Error saving Subscriber " + subscriber.getId());
+			}
+		}
+	}
+
+	@Override
+	protected void subscriberDeleted(TopicSubscriber subscriber) {
+		synchronized (checkpointLock) {
+			new File(subscribersDir, subscriber.getId() + CHECKPOINT_SUFFIX).delete();
+		}
+	}
+
+	private void writeTopic(TopicLog topic) throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty("tenant", topic.getTenantId());
+		properties.setProperty("p2pOffset", Long.toString(topic.getP2pCursor()));
+		Checkpoints.write(new File(topic.getDir(), TOPIC_FILE), properties);
+	}
+
+	private void writeSubscriber(TopicSubscriber subscriber) throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty("subscriberName", subscriber.getName());
+		properties.setProperty("endpoint", subscriber.getEndpoint());
+		properties.setProperty("batchSize", Integer.toString(subscriber.getBatchSize()));
+		for (Map.Entry<String, Long> cursor : subscriber.getCursors().entrySet()) {
+			properties.setProperty(OFFSET_PREFIX + cursor.getKey(), cursor.getValue().toString());
+		}
+		Checkpoints.write(new File(subscribersDir, subscriber.getId() + CHECKPOINT_SUFFIX), properties);
+	}
+
+	private void flush() {
+		for (SequencedTopic topic : topics.values()) {
+			try {
+				((TopicLog) topic).flush();
+			} catch (Exception e) {
+				LOG.error(e, "Error flushing Topic " + topic.getName());
+			}
+		}
+	}
+
+	private void checkpoint() {
+		synchronized (checkpointLock) {
+			for (SequencedTopic topic : topics.values()) {
+				try {
+					if (topics.get(topic.getName()) == topic) {
+						writeTopic((TopicLog) topic);
+					}
+				} catch (Exception e) {
+					LOG.error(e, "Error checkpointing Topic " + topic.getName());
+				}
+			}
+			for (TopicSubscriber subscriber : subscribers.values()) {
+				try {
+					if (subscribers.get(subscriber.getId()) == subscriber) {
+						writeSubscriber(subscriber);
+					}
+				} catch (Exception e) {
+					LOG.error(e, "Error checkpointing Subscriber " + subscriber.getId());
+				}
+			}
+		}
+	}
+
+	private void retain() {
+		long minTimestamp = RETENTION_MILLIS > 0 ? System.currentTimeMillis() - RETENTION_MILLIS : 0;
+		for (SequencedTopic topic : topics.values()) {
+			try {
+				((TopicLog) topic).retain(minTimestamp, RETENTION_BYTES);
+			} catch (Exception e) {
+				LOG.error(e, "Error applying retention to Topic " + topic.getName());
+			}
+		}
+	}
+}
@@ -0,0 +1,272 @@
+package com.lockmarker.api.application.log;
+
+import com.lockmarker.api.application.model.Message;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import com.yammer.dropwizard.logging.Log;
+
+/**
+ * One file of a topic log, holding the records from its base offset on. The
+ * file is preallocated and memory-mapped; records are appended one after the
+ * other, each framed as
+ *
+ * <pre>
+ * int length | int crc | long timestamp | short idLength | id
+ *            | short contentTypeLength (-1 for none) | contentType | body
+ * </pre>
+ *
+ * where length counts and crc is the CRC32 of everything after the crc. A
+ * zero length marks the end of the records. When a segment is opened its
+ * records are checked, and the first record with a bad length or crc ends
+ * the segment: it is what a crash left half written.
+ *
+ * Only one thread appends, under the lock of the topic. Readers find records
+ * through an in-memory index of their positions and get bodies as slices of
+ * the mapped file, without copying them.
+ */
+public class LogSegment {
+	private static final Log				LOG					= Log.forClass(LogSegment.class);
+	public static final String				SUFFIX				= ".log";
+	private static final int				HEADER_BYTES		= 8;
+	private static final int				FIXED_PAYLOAD_BYTES	= 12;
+	private final File						file;
+	private final long						baseOffset;
+	private final MappedByteBuffer		buffer;
+	// owned by the appending thread
+	private final ByteBuffer				writer;
+	private final CRC32						crc;
+	// positions[i] is the position of record baseOffset + i; set before count
+	private volatile int[]					positions;
+	private volatile int						count;
+	private volatile int						size;
+	private volatile long					lastTimestamp;
+	private volatile boolean				dirty;
+
+	private LogSegment(File file, long baseOffset, MappedByteBuffer buffer) {
+		this.file = file;
+		this.baseOffset = baseOffset;
+		this.buffer = buffer;
+		this.writer = buffer.duplicate();
+		this.crc = new CRC32();
+		this.positions = new int[1024];
+	}
+
+	/**
+	 * @return the file name of the segment starting at baseOffset, which sorts
+	 *         by offset
+	 */
+	public static String fileName(long baseOffset) {
+		return String.format("%020d", baseOffset) + SUFFIX;
+	}
+
+	/**
+	 * Open a segment file, creating it with the given capacity if it does not
+	 * exist or is empty, and recover its records
+	 */
+	public static LogSegment open(File file, int capacity) throws IOException {
+		String name = file.getName();
+		long baseOffset = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		MappedByteBuffer buffer;
+		try {
+			if (raf.length() == 0) {
+				raf.setLength(capacity);
+			}
+			// the mapping stays valid after the file is closed
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+		LogSegment segment = new LogSegment(file, baseOffset, buffer);
+		segment.recover();
+		return segment;
+	}
+
+	/**
+	 * @return the bytes a record takes in a segment
+	 */
+	public static int recordBytes(byte[] id, byte[] contentType, int bodyLength) {
+		return HEADER_BYTES + FIXED_PAYLOAD_BYTES + id.length + (contentType == null ? 0 : contentType.length)
+				+ bodyLength;
+	}
+
+	/**
+	 * Append a record, by the appending thread only
+	 *
+	 * @param id
+	 *           the UTF-8 message ID
+	 * @param contentType
+	 *           the UTF-8 content type, or null
+	 * @return false if the record does not fit, the segment is then full
+	 */
+	public boolean append(byte[] id, byte[] contentType, byte[] body, long timestamp) {
+		int recordBytes = recordBytes(id, contentType, body.length);
+		int position = size;
+		if (position + recordBytes > buffer.capacity()) {
+			return false;
+		}
+
+		ByteBuffer fields = ByteBuffer.allocate(recordBytes - HEADER_BYTES - body.length);
+		fields.putLong(timestamp);
+		fields.putShort((short) id.length);
+		fields.put(id);
+		if (contentType == null) {
+			fields.putShort((short) -1);
+		} else {
+			fields.putShort((short) contentType.length);
+			fields.put(contentType);
+		}
+		crc.reset();
+		crc.update(fields.array());
+		crc.update(body);
+
+		writer.position(position);
+		writer.putInt(recordBytes - HEADER_BYTES);
+		writer.putInt((int) crc.getValue());
+		writer.put(fields.array());
+		writer.put(body);
+
+		int[] index = positions;
+		if (count == index.length) {
+			int[] grown = new int[index.length * 2];
+			System.arraycopy(index, 0, grown, 0, count);
+			index = grown;
+			positions = grown;
+		}
+		index[count] = position;
+		size = position + recordBytes;
+		lastTimestamp = timestamp;
+		dirty = true;
+		// publishes the record to readers
+		count = count + 1;
+		return true;
+	}
+
+	/**
+	 * @return the message at offset, with its body read in place, or null if
+	 *         the segment does not hold it
+	 */
+	public Message read(long offset, String topicName) {
+		long index = offset - baseOffset;
+		if (index < 0 || index >= count) {
+			return null;
+		}
+		int position = positions[(int) index];
+		ByteBuffer record = buffer.duplicate();
+		int end = position + HEADER_BYTES + record.getInt(position);
+		record.position(position + HEADER_BYTES + 8);
+		String id = readString(record, record.getShort());
+		short contentTypeLength = record.getShort();
+		String contentType = contentTypeLength < 0 ? null : readString(record, contentTypeLength);
+		record.limit(end);
+		return new Message(id, topicName, record.slice(), contentType);
+	}
+
+	/**
+	 * Force appended records to disk
+	 */
+	public void flush() {
+		if (dirty) {
+			dirty = false;
+			buffer.force();
+		}
+	}
+
+	public long getBaseOffset() {
+		return baseOffset;
+	}
+
+	/**
+	 * @return the offset the next record of this segment would get
+	 */
+	public long getNextOffset() {
+		return baseOffset + count;
+	}
+
+	/**
+	 * @return the bytes taken by records
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * @return the timestamp of the newest record, 0 if there is none
+	 */
+	public long getLastTimestamp() {
+		return lastTimestamp;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Delete the file. Readers holding messages of the segment can still read
+	 * them until the mapping is collected.
+	 */
+	public boolean delete() {
+		return file.delete();
+	}
+
+	private void recover() {
+		int position = 0;
+		int limit = buffer.capacity();
+		ByteBuffer reader = buffer.duplicate();
+		while (position + HEADER_BYTES <= limit) {
+			int payloadBytes = reader.getInt(position);
+			if (payloadBytes == 0) {
+				break;
+			}
+			if (payloadBytes < FIXED_PAYLOAD_BYTES || payloadBytes > limit - position - HEADER_BYTES
+					|| (int) checksum(reader, position + HEADER_BYTES, payloadBytes) != reader.getInt(position + 4)) {
+				LOG.warn("Segment " + file + " ends in a broken record at position " + position
+						+ ", dropping the rest of it.");
+				// clear it, so that later appends cannot run into old bytes
+				writer.position(position);
+				while (writer.hasRemaining()) {
+					writer.put((byte) 0);
+				}
+				break;
+			}
+			if (count == positions.length) {
+				int[] grown = new int[positions.length * 2];
+				System.arraycopy(positions, 0, grown, 0, count);
+				positions = grown;
+			}
+			positions[count] = position;
+			lastTimestamp = reader.getLong(position + HEADER_BYTES);
+			count = count + 1;
+			position += HEADER_BYTES + payloadBytes;
+		}
+		size = position;
+	}
+
+	private long checksum(ByteBuffer source, int position, int length) {
+		ByteBuffer payload = source.duplicate();
+		payload.position(position);
+		byte[] chunk = new byte[Math.min(length, 8192)];
+		crc.reset();
+		int remaining = length;
+		while (remaining > 0) {
+			int n = Math.min(remaining, chunk.length);
+			payload.get(chunk, 0, n);
+			crc.update(chunk, 0, n);
+			remaining -= n;
+		}
+		return crc.getValue();
+	}
+
+	private static String readString(ByteBuffer record, int length) {
+		byte[] bytes = new byte[length];
+		record.get(bytes);
+		return new String(bytes, Message.CHARSET);
+	}
+}
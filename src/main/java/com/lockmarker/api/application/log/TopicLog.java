@@ -0,0 +1,246 @@
+package com.lockmarker.api.application.log;
+
+import com.lockmarker.api.application.memory.MessageIndex;
+import com.lockmarker.api.application.memory.SequencedTopic;
+import com.lockmarker.api.application.model.Message;
+import com.lockmarker.api.exceptions.InternalErrorException;
+import com.lockmarker.utils.RecentKeyWindow;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.yammer.dropwizard.logging.Log;
+import com.yammer.metrics.core.Meter;
+
+/**
+ * A topic kept as an append-only log of segment files in its own directory.
+ * Message sequences are log offsets. Appends take the lock of the topic and
+ * roll to a new segment when the active one is full; reads take no lock and
+ * find their segment in a copy-on-write array of the segments.
+ *
+ * Retention deletes whole segments from the oldest on, never the active one.
+ * Readers behind the oldest segment left skip to it, as they skip
+ * overwritten messages of an in-memory topic.
+ *
+ * The message ID index is kept in messages.idx next to the segments. It is
+ * forced with them and marked with the offset it is complete up to, and on
+ * opening the messages appended after that mark are indexed again.
+ */
+public class TopicLog extends SequencedTopic {
+	private static final Log			LOG			= Log.forClass(TopicLog.class);
+	private static final String		INDEX_FILE	= "messages.idx";
+	private final File					dir;
+	private final int						segmentBytes;
+	private final boolean				flushEveryAppend;
+	// oldest first, the last one is appended to
+	private volatile LogSegment[]		segments;
+
+	/**
+	 * Open the log in dir, recovering its segments, or start it empty
+	 *
+	 * @param p2pCursor
+	 *           the offset of the next message for the P2P pullers
+	 * @param segmentBytes
+	 *           the size of new segment files
+	 * @param flushEveryAppend
+	 *           force every append to disk before it returns
+	 */
+	public TopicLog(File dir, String tenantId, String name, long p2pCursor, int segmentBytes,
+			boolean flushEveryAppend, RecentKeyWindow<String> sentKeys, Meter overrun) throws IOException {
+		super(tenantId, name, p2pCursor, sentKeys, openIndex(dir), overrun);
+		this.dir = dir;
+		this.segmentBytes = segmentBytes;
+		this.flushEveryAppend = flushEveryAppend;
+
+		File[] files = dir.listFiles();
+		List<String> names = new ArrayList<String>();
+		for (File file : files) {
+			if (file.getName().endsWith(LogSegment.SUFFIX)) {
+				names.add(file.getName());
+			}
+		}
+		// names sort by base offset
+		String[] sorted = names.toArray(new String[names.size()]);
+		Arrays.sort(sorted);
+		List<LogSegment> opened = new ArrayList<LogSegment>(sorted.length + 1);
+		for (String file : sorted) {
+			opened.add(LogSegment.open(new File(dir, file), segmentBytes));
+		}
+		if (opened.isEmpty()) {
+			opened.add(LogSegment.open(new File(dir, LogSegment.fileName(0)), segmentBytes));
+		}
+		this.segments = opened.toArray(new LogSegment[opened.size()]);
+
+		long head = getHead();
+		long tail = getTail();
+		for (long offset = Math.max(getIndex().getMark(), head); offset < tail; offset++) {
+			getIndex().add(read(offset).getId(), offset, head);
+		}
+		getIndex().flush(tail);
+		LOG.debug("Opened log of Topic " + name + " with " + segments.length + " segments, offsets "
+				+ getHead() + " to " + getTail());
+	}
+
+	/**
+	 * Append a message. The message ID and content type are stored with the
+	 * body, so a read gives back the same message.
+	 *
+	 * @return the offset of the message
+	 */
+	@Override
+	public long publish(Message message) {
+		byte[] id = message.getId().getBytes(Message.CHARSET);
+		byte[] contentType = message.getContentType() == null ? null : message.getContentType().getBytes(
+				Message.CHARSET);
+		byte[] body = message.getBodyArray();
+		if (LogSegment.recordBytes(id, contentType, body.length) > segmentBytes
+				|| (contentType != null && contentType.length > Short.MAX_VALUE)) {
+			throw new IllegalArgumentException("message does not fit a log segment of " + segmentBytes + " bytes");
+		}
+
+		long offset;
+		synchronized (this) {
+			LogSegment active = segments[segments.length - 1];
+			long now = System.currentTimeMillis();
+			if (!active.append(id, contentType, body, now)) {
+				active = roll(active);
+				active.append(id, contentType, body, now);
+			}
+			offset = active.getNextOffset() - 1;
+			getIndex().add(message.getId(), offset, getHead());
+			if (flushEveryAppend) {
+				active.flush();
+			}
+		}
+		published();
+		return offset;
+	}
+
+	@Override
+	public long getHead() {
+		return segments[0].getBaseOffset();
+	}
+
+	@Override
+	public long getTail() {
+		LogSegment[] current = segments;
+		return current[current.length - 1].getNextOffset();
+	}
+
+	@Override
+	public Message read(long offset) {
+		LogSegment[] current = segments;
+		// the last segment whose base offset is not above the offset
+		int low = 0;
+		int high = current.length - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (current[middle].getBaseOffset() <= offset) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return current[low].read(offset, getName());
+	}
+
+	/**
+	 * Force appended messages and their index entries to disk
+	 */
+	public void flush() {
+		long tail;
+		LogSegment active;
+		synchronized (this) {
+			tail = getTail();
+			active = segments[segments.length - 1];
+		}
+		active.flush();
+		getIndex().flush(tail);
+	}
+
+	/**
+	 * Delete the oldest segments that are out of retention
+	 *
+	 * @param minTimestamp
+	 *           segments whose newest message is older are deleted; 0 for none
+	 * @param maxBytes
+	 *           oldest segments are deleted while the log is larger; 0 for none
+	 * @return the number of segments deleted
+	 */
+	public synchronized int retain(long minTimestamp, long maxBytes) {
+		LogSegment[] current = segments;
+		long totalBytes = 0;
+		for (LogSegment segment : current) {
+			totalBytes += segment.getSize();
+		}
+		int dropped = 0;
+		while (dropped < current.length - 1) {
+			LogSegment oldest = current[dropped];
+			boolean expired = minTimestamp > 0 && oldest.getLastTimestamp() < minTimestamp;
+			boolean oversized = maxBytes > 0 && totalBytes > maxBytes;
+			if (!expired && !oversized) {
+				break;
+			}
+			totalBytes -= oldest.getSize();
+			dropped++;
+		}
+		if (dropped == 0) {
+			return 0;
+		}
+		segments = Arrays.copyOfRange(current, dropped, current.length);
+		for (int i = 0; i < dropped; i++) {
+			if (!current[i].delete()) {
+				LOG.error("Could not delete segment " + current[i].getFile());
+			}
+		}
+		LOG.debug("Deleted " + dropped + " segments of Topic " + getName() + ", log now starts at " + getHead());
+		return dropped;
+	}
+
+	/**
+	 * Delete all segments and the directory of the log
+	 */
+	public synchronized void delete() {
+		for (LogSegment segment : segments) {
+			segment.delete();
+		}
+		File[] rest = dir.listFiles();
+		if (rest != null) {
+			for (File file : rest) {
+				file.delete();
+			}
+		}
+		if (!dir.delete()) {
+			LOG.error("Could not delete log directory " + dir);
+		}
+	}
+
+	public File getDir() {
+		return dir;
+	}
+
+	private static MessageIndex openIndex(File dir) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create log directory " + dir);
+		}
+		return new MessageIndex(new File(dir, INDEX_FILE));
+	}
+
+	private LogSegment roll(LogSegment active) {
+		active.flush();
+		LogSegment next;
+		try {
+			next = LogSegment.open(new File(dir, LogSegment.fileName(active.getNextOffset())), segmentBytes);
+		} catch (IOException e) {
+			LOG.error(e, "Error rolling log of Topic " + getName());
+			throw new InternalErrorException("Error sending message to topic: " + getName());
+		}
+		LogSegment[] rolled = Arrays.copyOf(segments, segments.length + 1);
+		rolled[rolled.length - 1] = next;
+		segments = rolled;
+		return next;
+	}
+}
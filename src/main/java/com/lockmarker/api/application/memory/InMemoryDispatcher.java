@@ -0,0 +1,44 @@
+package com.lockmarker.api.application.memory;
+
+import com.lockmarker.config.MemoryConfiguration;
+import com.lockmarker.config.MessagingConfiguration;
+
+import com.yammer.dropwizard.logging.Log;
+
+/**
+ * A MessagingDispatcher that keeps everything in the memory of this process,
+ * for development, tests and deployments that can lose messages on restart.
+ *
+ * Every topic is a bounded, lock-free ring of its latest messages. Sends
+ * append to the ring without taking a lock and never wait for readers: the
+ * P2P pullers of a topic share one cursor into the ring, and every subscriber
+ * has its own. A reader that falls a whole ring behind skips the messages
+ * that were overwritten, which the messages-overrun meter counts.
+ */
+public class InMemoryDispatcher extends TopicDispatcher {
+	private static final Log	LOG				= Log.forClass(InMemoryDispatcher.class);
+	private int						TOPIC_CAPACITY	= 65536;
+
+	/**
+	 * This constructor is needed for Guice dependency injection. Nothing runs
+	 * until the caller calls loadConfiguration()
+	 */
+	public InMemoryDispatcher() {
+	}
+
+	@Override
+	public void loadConfiguration(MessagingConfiguration configuration) {
+		MemoryConfiguration memory = configuration.getMemoryConfiguration();
+		TOPIC_CAPACITY = memory.getTopicCapacity();
+		// feeding, circuit breaking and message IDs work as with RabbitMQ
+		loadSharedConfiguration(configuration.getRabbitMQConfiguration(), memory.getFeedThreads(),
+				memory.getMaxDeadLetters(), memory.getDeliveryBatchSize());
+		init();
+		LOG.debug("Started in-memory dispatcher with topic capacity " + TOPIC_CAPACITY);
+	}
+
+	@Override
+	protected SequencedTopic newTopic(String tenantId, String topicName) {
+		return new MemoryTopic(tenantId, topicName, TOPIC_CAPACITY, newSentKeys(), getOverrun());
+	}
+}
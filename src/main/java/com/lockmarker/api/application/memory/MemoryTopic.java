@@ -0,0 +1,87 @@
+package com.lockmarker.api.application.memory;
+
+import com.lockmarker.api.application.model.Message;
+import com.lockmarker.utils.RecentKeyWindow;
+
+import java.io.IOException;
+
+import com.yammer.metrics.core.Meter;
+
+/**
+ * A topic of the in-memory dispatcher, kept in a ring of its latest messages.
+ *
+ * The P2P cursor starts at the first message of the topic, as the P2P queue
+ * of a RabbitMQ topic does.
+ *
+ * Publishing takes no lock: the message IDs are indexed by the lookups, which
+ * add the messages published since the last one under the lock of the index.
+ */
+public class MemoryTopic extends SequencedTopic {
+	private final TopicRing	ring;
+	// the lowest sequence that may not be indexed yet, guarded by the index
+	private long				indexed;
+
+	/**
+	 * @param capacity
+	 *           the number of messages kept
+	 * @param sentKeys
+	 *           the recent idempotency keys of the topic, with their message IDs
+	 * @param overrun
+	 *           counts messages overwritten before a reader got them
+	 */
+	public MemoryTopic(String tenantId, String name, int capacity, RecentKeyWindow<String> sentKeys, Meter overrun) {
+		super(tenantId, name, 0, sentKeys, newIndex(), overrun);
+		this.ring = new TopicRing(capacity);
+	}
+
+	@Override
+	public long publish(Message message) {
+		long sequence = ring.publish(message);
+		published();
+		return sequence;
+	}
+
+	@Override
+	protected void indexPublished() {
+		MessageIndex index = getIndex();
+		synchronized (index) {
+			long head = ring.getHead();
+			long tail = ring.getTail();
+			long gap = -1;
+			for (long sequence = Math.max(indexed, head); sequence < tail; sequence++) {
+				Message message = ring.read(sequence);
+				if (message != null) {
+					index.add(message.getId(), sequence, head);
+				} else if (gap < 0 && sequence >= ring.getHead()) {
+					// claimed by a publisher but not written yet, looked at again next time
+					gap = sequence;
+				}
+			}
+			indexed = gap < 0 ? tail : gap;
+		}
+	}
+
+	private static MessageIndex newIndex() {
+		try {
+			return new MessageIndex(null);
+		} catch (IOException e) {
+			// only a file can fail
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public long getHead() {
+		return ring.getHead();
+	}
+
+	@Override
+	public long getTail() {
+		return ring.getTail();
+	}
+
+	@Override
+	public Message read(long sequence) {
+		return ring.read(sequence);
+	}
+}
@@ -0,0 +1,275 @@
+package com.lockmarker.api.application.memory;
+
+import com.lockmarker.api.application.model.Message;
+import com.lockmarker.utils.KeyHash;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Maps the message IDs of a topic to their sequence, in an open-addressing
+ * hash table kept off the Java heap: in a direct buffer, or in a memory-mapped
+ * sidecar file that survives restarts.
+ *
+ * A slot is 16 bytes, the 64-bit hash of the ID and the sequence. The ID
+ * itself is not kept, so a lookup checks the message it finds, and the
+ * tombstone of a deleted message is the top bit of its sequence. Entries of
+ * messages that are gone from the topic are dropped when the table grows.
+ *
+ * Writers take the lock of the index; lookups take none and read the table
+ * that is current when they start.
+ *
+ * The file starts with a header of the table size, the entry count and a
+ * mark, the sequence up to which the owner knows the file to be complete.
+ */
+public class MessageIndex {
+	private static final int				MAGIC				= 0x4d494458;
+	private static final int				HEADER_BYTES	= 32;
+	private static final int				SLOT_BYTES		= 16;
+	private static final long				DELETED			= 1L << 63;
+	private static final int				MIN_SLOTS		= 1024;
+	private final File						file;
+	private volatile ByteBuffer			table;
+	private int									slots;
+	private int									count;
+
+	/**
+	 * @param file
+	 *           the sidecar file, opened if it holds an index and started empty
+	 *           otherwise; null for an index that only lives in memory
+	 */
+	public MessageIndex(File file) throws IOException {
+		this.file = file;
+		if (file != null && file.length() > HEADER_BYTES) {
+			ByteBuffer existing = map(file, file.length());
+			long size = existing.getLong(8);
+			if (existing.getInt(0) == MAGIC && size >= MIN_SLOTS && Long.bitCount(size) == 1
+					&& HEADER_BYTES + size * SLOT_BYTES == file.length()) {
+				this.table = existing;
+				this.slots = (int) size;
+				this.count = (int) existing.getLong(16);
+				return;
+			}
+		}
+		this.slots = MIN_SLOTS;
+		this.table = create(file, slots, 0);
+	}
+
+	/**
+	 * Add the ID of a newly published message
+	 *
+	 * @param head
+	 *           the oldest sequence still in the topic; older entries may be
+	 *           dropped to make room
+	 */
+	public synchronized void add(String messageId, long sequence, long head) {
+		long hash = KeyHash.of(messageId);
+		ByteBuffer current = table;
+		int mask = slots - 1;
+		for (int slot = (int) hash & mask;; slot = (slot + 1) & mask) {
+			long key = current.getLong(position(slot));
+			if (key == 0) {
+				break;
+			}
+			if (key == hash && (current.getLong(position(slot) + 8) & ~DELETED) == sequence) {
+				// already indexed, e.g. when catching up after a restart
+				return;
+			}
+		}
+		if ((count + 1) * 4L > slots * 3L) {
+			grow(head);
+		}
+		insert(table, slots, hash, sequence);
+		count++;
+		table.putLong(16, count);
+	}
+
+	/**
+	 * @return the sequence of the message with this ID, -1 if the topic does
+	 *         not have it or it is deleted
+	 */
+	public long find(String messageId, SequencedTopic topic) {
+		ByteBuffer current = table;
+		int slot = locate(current, messageId, topic);
+		if (slot < 0) {
+			return -1;
+		}
+		long value = current.getLong(position(slot) + 8);
+		return (value & DELETED) != 0 ? -1 : value;
+	}
+
+	/**
+	 * Leave a tombstone for a message, so that readers skip it
+	 *
+	 * @return false if the topic does not have the message or it is already
+	 *         deleted
+	 */
+	public synchronized boolean delete(String messageId, SequencedTopic topic) {
+		int slot = locate(table, messageId, topic);
+		if (slot < 0) {
+			return false;
+		}
+		int position = position(slot) + 8;
+		long value = table.getLong(position);
+		if ((value & DELETED) != 0) {
+			return false;
+		}
+		table.putLong(position, value | DELETED);
+		return true;
+	}
+
+	/**
+	 * @return true if the message at this sequence was deleted; never
+	 *         allocates, so it can run for every message read
+	 */
+	public boolean isDeleted(String messageId, long sequence) {
+		ByteBuffer current = table;
+		int mask = current.getInt(4);
+		long hash = KeyHash.of(messageId);
+		for (int slot = (int) hash & mask;; slot = (slot + 1) & mask) {
+			long key = current.getLong(position(slot));
+			if (key == 0) {
+				return false;
+			}
+			long value = current.getLong(position(slot) + 8);
+			if (key == hash && (value & ~DELETED) == sequence) {
+				return (value & DELETED) != 0;
+			}
+		}
+	}
+
+	/**
+	 * @return the mark last set by flush(), 0 for a new index
+	 */
+	public long getMark() {
+		return table.getLong(24);
+	}
+
+	/**
+	 * Force the table to its file and record that it is complete up to mark
+	 */
+	public synchronized void flush(long mark) {
+		table.putLong(24, mark);
+		if (file != null) {
+			((MappedByteBuffer) table).force();
+		}
+	}
+
+	public synchronized int size() {
+		return count;
+	}
+
+	/**
+	 * @return the slot of the live or deleted entry of the message, -1 if none
+	 */
+	private static int locate(ByteBuffer current, String messageId, SequencedTopic topic) {
+		int mask = current.getInt(4);
+		long hash = KeyHash.of(messageId);
+		for (int slot = (int) hash & mask;; slot = (slot + 1) & mask) {
+			long key = current.getLong(position(slot));
+			if (key == 0) {
+				return -1;
+			}
+			if (key == hash) {
+				// different IDs may share a hash, the message tells
+				Message message = topic.read(current.getLong(position(slot) + 8) & ~DELETED);
+				if (message != null && message.getId().equals(messageId)) {
+					return slot;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Rebuild the table without the entries older than head, twice as large
+	 * if it would still be more than half full
+	 */
+	private void grow(long head) {
+		ByteBuffer old = table;
+		int live = 0;
+		for (int slot = 0; slot < slots; slot++) {
+			if (old.getLong(position(slot)) != 0 && (old.getLong(position(slot) + 8) & ~DELETED) >= head) {
+				live++;
+			}
+		}
+		int size = slots;
+		while ((live + 1) * 2L > size) {
+			size *= 2;
+		}
+		File tmp = file == null ? null : new File(file.getPath() + ".tmp");
+		ByteBuffer grown;
+		try {
+			grown = create(tmp, size, table.getLong(24));
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not grow message index " + file, e);
+		}
+		for (int slot = 0; slot < slots; slot++) {
+			long key = old.getLong(position(slot));
+			long value = old.getLong(position(slot) + 8);
+			if (key != 0 && (value & ~DELETED) >= head) {
+				insert(grown, size, key, value);
+			}
+		}
+		grown.putLong(16, live);
+		if (file != null) {
+			((MappedByteBuffer) grown).force();
+			if (!tmp.renameTo(file)) {
+				file.delete();
+				if (!tmp.renameTo(file)) {
+					throw new IllegalStateException("Could not replace message index " + file);
+				}
+			}
+		}
+		this.slots = size;
+		this.count = live;
+		// lookups running on the old table finish on it
+		this.table = grown;
+	}
+
+	private static void insert(ByteBuffer table, int slots, long key, long value) {
+		int mask = slots - 1;
+		int slot = (int) key & mask;
+		while (table.getLong(position(slot)) != 0) {
+			slot = (slot + 1) & mask;
+		}
+		// the value first, a lookup only looks at it once the key is there
+		table.putLong(position(slot) + 8, value);
+		table.putLong(position(slot), key);
+	}
+
+	private static ByteBuffer create(File file, int slots, long mark) throws IOException {
+		long bytes = HEADER_BYTES + (long) slots * SLOT_BYTES;
+		ByteBuffer table;
+		if (file == null) {
+			table = ByteBuffer.allocateDirect((int) bytes);
+		} else {
+			file.delete();
+			table = map(file, bytes);
+		}
+		table.putInt(0, MAGIC);
+		// the mask, so that lookups read it from the table they probe
+		table.putInt(4, slots - 1);
+		table.putLong(8, slots);
+		table.putLong(16, 0);
+		table.putLong(24, mark);
+		return table;
+	}
+
+	private static ByteBuffer map(File file, long bytes) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(bytes);
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static int position(int slot) {
+		return HEADER_BYTES + slot * SLOT_BYTES;
+	}
+}
@@ -0,0 +1,247 @@
+package com.lockmarker.api.application.memory;
+
+import com.lockmarker.api.application.model.Message;
+import com.lockmarker.utils.RecentKeyWindow;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.yammer.metrics.core.Meter;
+
+/**
+ * A topic whose messages are numbered by sequence and read through cursors:
+ * the shared cursor of its P2P pullers and one cursor per subscriber. Only
+ * the messages from getHead() up to getTail() can be read; a cursor that
+ * falls behind the head skips to it, losing the messages in between.
+ *
+ * Pullers that find the topic empty may wait on it; publishers only take the
+ * monitor when somebody is waiting.
+ *
+ * The MessageIndex of the topic finds messages by ID. Deleted messages keep
+ * their sequence but are skipped by pullers and subscribers.
+ */
+public abstract class SequencedTopic {
+	private final String										tenantId;
+	private final String										name;
+	private final AtomicLong								p2pCursor;
+	private final CopyOnWriteArrayList<TopicSubscriber>	subscribers;
+	private final RecentKeyWindow<String>				sentKeys;
+	private final MessageIndex								index;
+	private final Meter										overrun;
+	private final Object										pullSignal;
+	private final AtomicInteger							pullWaiters;
+
+	/**
+	 * @param p2pCursor
+	 *           the sequence of the next message for the P2P pullers
+	 * @param sentKeys
+	 *           the recent idempotency keys of the topic, with their message IDs
+	 * @param index
+	 *           the index of the message IDs, added to by publish() or by
+	 *           indexPublished()
+	 * @param overrun
+	 *           counts messages lost before a reader got them
+	 */
+	protected SequencedTopic(String tenantId, String name, long p2pCursor, RecentKeyWindow<String> sentKeys,
+			MessageIndex index, Meter overrun) {
+		this.tenantId = tenantId;
+		this.name = name;
+		this.p2pCursor = new AtomicLong(p2pCursor);
+		this.subscribers = new CopyOnWriteArrayList<TopicSubscriber>();
+		this.sentKeys = sentKeys;
+		this.index = index;
+		this.overrun = overrun;
+		this.pullSignal = new Object();
+		this.pullWaiters = new AtomicInteger();
+	}
+
+	/**
+	 * Append a message and wake everybody reading the topic
+	 *
+	 * @return the sequence number of the message
+	 */
+	public abstract long publish(Message message);
+
+	/**
+	 * @return the sequence of the oldest message that can still be read
+	 */
+	public abstract long getHead();
+
+	/**
+	 * @return the sequence the next message will get
+	 */
+	public abstract long getTail();
+
+	/**
+	 * @return the message with this sequence, or null if it is not written yet
+	 *         or is gone; getHead() tells which
+	 */
+	public abstract Message read(long sequence);
+
+	public String getTenantId() {
+		return tenantId;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public RecentKeyWindow<String> getSentKeys() {
+		return sentKeys;
+	}
+
+	public MessageIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return the message with this ID, or null if the topic does not have it
+	 *         or it was deleted
+	 */
+	public Message find(String messageId) {
+		indexPublished();
+		long sequence = index.find(messageId, this);
+		return sequence < 0 ? null : read(sequence);
+	}
+
+	/**
+	 * Delete a message, so that it is not pulled or fed any more
+	 *
+	 * @return false if the topic does not have the message or it was deleted
+	 */
+	public boolean delete(String messageId) {
+		indexPublished();
+		return index.delete(messageId, this);
+	}
+
+	/**
+	 * Bring the index up to the messages published so far, for a topic whose
+	 * publish() leaves the index alone. Called before every lookup; a message
+	 * can only be deleted once it is indexed, so readers need not wait for it.
+	 */
+	protected void indexPublished() {
+	}
+
+	/**
+	 * @return true if the message read at this sequence was deleted
+	 */
+	public boolean isDeleted(Message message, long sequence) {
+		return index.isDeleted(message.getId(), sequence);
+	}
+
+	public Meter getOverrun() {
+		return overrun;
+	}
+
+	/**
+	 * @return the sequence of the next message for the P2P pullers
+	 */
+	public long getP2pCursor() {
+		return p2pCursor.get();
+	}
+
+	public List<TopicSubscriber> getSubscribers() {
+		return subscribers;
+	}
+
+	public void addSubscriber(TopicSubscriber subscriber) {
+		subscribers.addIfAbsent(subscriber);
+	}
+
+	public void removeSubscriber(TopicSubscriber subscriber) {
+		subscribers.remove(subscriber);
+	}
+
+	/**
+	 * Take up to max messages off the P2P cursor
+	 *
+	 * @param waitMillis
+	 *           how long to wait for a first message, 0 returns right away
+	 * @return the messages taken, empty if none arrived in time
+	 */
+	public List<Message> pull(int max, long waitMillis) throws InterruptedException {
+		List<Message> messages = new ArrayList<Message>(Math.min(max, 16));
+		drainTo(messages, max);
+		if (!messages.isEmpty() || waitMillis <= 0) {
+			return messages;
+		}
+
+		long deadline = System.currentTimeMillis() + waitMillis;
+		pullWaiters.incrementAndGet();
+		try {
+			synchronized (pullSignal) {
+				while (true) {
+					// checked under the monitor, a publish after this check notifies us
+					drainTo(messages, max);
+					long remaining = deadline - System.currentTimeMillis();
+					if (!messages.isEmpty() || remaining <= 0) {
+						return messages;
+					}
+					pullSignal.wait(remaining);
+				}
+			}
+		} finally {
+			pullWaiters.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Wake the readers of the topic, called by publish() once the message can
+	 * be read
+	 */
+	protected void published() {
+		for (TopicSubscriber subscriber : subscribers) {
+			subscriber.wake();
+		}
+		if (pullWaiters.get() > 0) {
+			synchronized (pullSignal) {
+				pullSignal.notifyAll();
+			}
+		}
+	}
+
+	private void drainTo(List<Message> messages, int max) {
+		while (messages.size() < max) {
+			Message message = take();
+			if (message == null) {
+				return;
+			}
+			messages.add(message);
+		}
+	}
+
+	/**
+	 * Take the next message off the P2P cursor, which competing pullers claim
+	 * by CAS. A cursor that fell behind the head skips to it, and deleted
+	 * messages are claimed and dropped.
+	 *
+	 * @return the message taken, or null if the cursor is at the tail
+	 */
+	private Message take() {
+		while (true) {
+			long next = p2pCursor.get();
+			long head = getHead();
+			if (next < head) {
+				if (p2pCursor.compareAndSet(next, head)) {
+					overrun.mark(head - next);
+				}
+				continue;
+			}
+			Message message = read(next);
+			if (message == null) {
+				if (next < getHead()) {
+					// dropped while we looked
+					continue;
+				}
+				// claimed by a publisher but not written yet, or nothing new
+				return null;
+			}
+			if (p2pCursor.compareAndSet(next, next + 1) && !isDeleted(message, next)) {
+				return message;
+			}
+		}
+	}
+}
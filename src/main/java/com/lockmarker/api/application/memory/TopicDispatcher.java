@@ -0,0 +1,524 @@
+package com.lockmarker.api.application.memory;
+
+import com.lockmarker.api.application.MessagingDispatcher;
+import com.lockmarker.api.application.id.IdGenerator;
+import com.lockmarker.api.application.id.IdGenerators;
+import com.lockmarker.api.application.model.Message;
+import com.lockmarker.api.application.model.Subscriber;
+import com.lockmarker.api.application.policy.DeliveryPolicy;
+import com.lockmarker.api.application.policy.RedeliveryPolicy;
+import com.lockmarker.api.application.rabbitmq.CircuitBreakerRegistry;
+import com.lockmarker.api.application.rabbitmq.SubscriptionFeeder;
+import com.lockmarker.api.exceptions.InternalErrorException;
+import com.lockmarker.api.exceptions.TopicNotFoundException;
+import com.lockmarker.config.RabbitMQConfiguration;
+import com.lockmarker.utils.HttpConnectionPool;
+import com.lockmarker.utils.RecentKeyWindow;
+import com.lockmarker.utils.WebClientTool;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import com.yammer.dropwizard.logging.Log;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+
+/**
+ * A MessagingDispatcher that runs in this process, over SequencedTopics that
+ * a subclass provides. It implements the whole interface: sends append to the
+ * topic, P2P pulls take from the shared cursor of the topic, and subscribers
+ * are fed from their own cursors through the same SubscriptionFeeder,
+ * connection pool and circuit breakers as the RabbitMQ dispatcher.
+ *
+ * Subclasses read their configuration, call init() once, and may override
+ * the hooks that tell them about topics and subscribers changing.
+ */
+public abstract class TopicDispatcher implements MessagingDispatcher {
+	private static final Log								LOG						= Log.forClass(TopicDispatcher.class);
+	private int													FEED_THREADS			= 8;
+	private int													MAX_DEAD_LETTERS		= 10000;
+	private int													DELIVERY_BATCH_SIZE	= 1;
+	private int													FEED_MAX_CONNECTIONS	= 1000;
+	private int													FEED_MAX_CONNECTIONS_PER_HOST	= 64;
+	private int													FEED_CONNECT_TIMEOUT	= 5000;
+	private int													FEED_READ_TIMEOUT		= 30000;
+	private long												FEED_IDLE_TIMEOUT		= 60000;
+	private int													CIRCUIT_FAILURE_THRESHOLD	= 5;
+	private long												CIRCUIT_PROBE_INTERVAL	= 5000;
+	private long												CIRCUIT_MAX_PROBE_INTERVAL	= 60000;
+	private String												MESSAGE_ID_GENERATOR	= IdGenerators.TIME_ORDERED;
+	private int													MESSAGE_ID_NODE		= -1;
+	private long												IDEMPOTENCY_WINDOW	= 600000;
+	private int													IDEMPOTENCY_MAX_KEYS	= 100000;
+	private static final int								IDEMPOTENCY_BUCKETS	= 10;
+	// topics by name; topic names are global, as RabbitMQ exchanges are
+	protected final ConcurrentMap<String, SequencedTopic>	topics					= new ConcurrentHashMap<String, SequencedTopic>();
+	protected final ConcurrentMap<String, TopicSubscriber>	subscribers				= new ConcurrentHashMap<String, TopicSubscriber>();
+	private final Meter										published				= Metrics.newMeter(getClass(),
+																								"messages-published", "messages", TimeUnit.SECONDS);
+	private final Meter										overrun					= Metrics.newMeter(getClass(),
+																								"messages-overrun", "messages", TimeUnit.SECONDS);
+	private final Meter										duplicateSends			= Metrics.newMeter(getClass(),
+																								"duplicate-sends", "sends", TimeUnit.SECONDS);
+	private HttpConnectionPool								feedConnections;
+	private CircuitBreakerRegistry							circuitBreakers;
+	private ScheduledThreadPoolExecutor					feedExecutor;
+	private RedeliveryPolicy								defaultRetryPolicy;
+	private IdGenerator										messageIds;
+
+	/**
+	 * Read the settings shared with the RabbitMQ dispatcher: feeding, circuit
+	 * breaking, message IDs and idempotency
+	 *
+	 * @param feedThreads
+	 *           the threads feeding all subscribers
+	 * @param maxDeadLetters
+	 *           the most dead letters kept per subscriber
+	 * @param deliveryBatchSize
+	 *           the most messages of one topic fed in one request
+	 */
+	protected void loadSharedConfiguration(RabbitMQConfiguration config, int feedThreads, int maxDeadLetters,
+			int deliveryBatchSize) {
+		FEED_THREADS = feedThreads;
+		MAX_DEAD_LETTERS = maxDeadLetters;
+		DELIVERY_BATCH_SIZE = deliveryBatchSize;
+		FEED_MAX_CONNECTIONS = config.getFeedMaxConnections();
+		FEED_MAX_CONNECTIONS_PER_HOST = config.getFeedMaxConnectionsPerHost();
+		FEED_CONNECT_TIMEOUT = config.getFeedConnectTimeout();
+		FEED_READ_TIMEOUT = config.getFeedReadTimeout();
+		FEED_IDLE_TIMEOUT = config.getFeedIdleTimeout();
+		CIRCUIT_FAILURE_THRESHOLD = config.getCircuitFailureThreshold();
+		CIRCUIT_PROBE_INTERVAL = config.getCircuitProbeInterval();
+		CIRCUIT_MAX_PROBE_INTERVAL = config.getCircuitMaxProbeInterval();
+		MESSAGE_ID_GENERATOR = config.getMessageIdGenerator();
+		MESSAGE_ID_NODE = config.getMessageIdNode();
+		IDEMPOTENCY_WINDOW = config.getIdempotencyWindow();
+		IDEMPOTENCY_MAX_KEYS = config.getIdempotencyMaxKeys();
+	}
+
+	/**
+	 * Start the feeding machinery, once the configuration is loaded
+	 */
+	protected void init() {
+		this.messageIds = IdGenerators.create(MESSAGE_ID_GENERATOR, MESSAGE_ID_NODE);
+		this.defaultRetryPolicy = new RedeliveryPolicy();
+		this.feedConnections = new HttpConnectionPool(FEED_MAX_CONNECTIONS, FEED_MAX_CONNECTIONS_PER_HOST,
+				FEED_CONNECT_TIMEOUT, FEED_READ_TIMEOUT, FEED_IDLE_TIMEOUT);
+		this.circuitBreakers = new CircuitBreakerRegistry(feedConnections, CIRCUIT_FAILURE_THRESHOLD,
+				CIRCUIT_PROBE_INTERVAL, CIRCUIT_MAX_PROBE_INTERVAL);
+		final AtomicInteger threadCount = new AtomicInteger();
+		final String threadPrefix = getClass().getSimpleName() + "-feed-";
+		this.feedExecutor = new ScheduledThreadPoolExecutor(FEED_THREADS, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, threadPrefix + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		Metrics.newGauge(getClass(), "topics", new Gauge<Integer>() {
+			@Override
+			public Integer value() {
+				return topics.size();
+			}
+		});
+		Metrics.newGauge(getClass(), "subscribers", new Gauge<Integer>() {
+			@Override
+			public Integer value() {
+				return subscribers.size();
+			}
+		});
+	}
+
+	/**
+	 * @return a new topic, asked for only when no topic of that name exists
+	 */
+	protected abstract SequencedTopic newTopic(String tenantId, String topicName);
+
+	/**
+	 * Called once a topic is gone, after its subscribers left it
+	 */
+	protected void topicDeleted(SequencedTopic topic) {
+	}
+
+	/**
+	 * Called when a subscriber was created or its topics changed
+	 */
+	protected void subscriberChanged(TopicSubscriber subscriber) {
+	}
+
+	/**
+	 * Called once a subscriber is stopped and gone
+	 */
+	protected void subscriberDeleted(TopicSubscriber subscriber) {
+	}
+
+	/**
+	 * @return a window for the idempotency keys of a new topic
+	 */
+	protected RecentKeyWindow<String> newSentKeys() {
+		return new RecentKeyWindow<String>(IDEMPOTENCY_WINDOW, IDEMPOTENCY_BUCKETS, IDEMPOTENCY_MAX_KEYS);
+	}
+
+	/**
+	 * @return counts messages lost before a reader got them
+	 */
+	protected Meter getOverrun() {
+		return overrun;
+	}
+
+	/**
+	 * Create and register a subscriber that is not subscribed to anything yet
+	 */
+	protected TopicSubscriber newSubscriber(String subscriberId, String subscriberName, String endpoint,
+			int batchSize) {
+		SubscriptionFeeder feeder = new SubscriptionFeeder(subscriberName, subscriberId, endpoint,
+				feedConnections, circuitBreakers.acquire(endpoint), null);
+		try {
+			TopicSubscriber subscriber = new TopicSubscriber(subscriberId, subscriberName, endpoint, feeder,
+					defaultRetryPolicy, batchSize, MAX_DEAD_LETTERS, feedExecutor, overrun);
+			subscribers.put(subscriberId, subscriber);
+			return subscriber;
+		} catch (RuntimeException e) {
+			circuitBreakers.release(endpoint);
+			throw e;
+		}
+	}
+
+	@Override
+	public Collection<String> getTopics(String tenantId) {
+		Collection<String> names = new ArrayList<String>();
+		for (SequencedTopic topic : topics.values()) {
+			if (topic.getTenantId().equals(tenantId)) {
+				names.add(topic.getName());
+			}
+		}
+		return names;
+	}
+
+	@Override
+	public Collection<String> describeTopic(String tenantId, String topicName) {
+		Collection<String> subscriberIds = new ArrayList<String>();
+		for (TopicSubscriber subscriber : topic(topicName).getSubscribers()) {
+			subscriberIds.add(subscriber.getId());
+		}
+		return subscriberIds;
+	}
+
+	/**
+	 * Create a topic, does nothing if it already exists
+	 */
+	@Override
+	public synchronized void createTopic(String tenantId, String topicName) {
+		if (topics.containsKey(topicName)) {
+			return;
+		}
+		topics.put(topicName, newTopic(tenantId, topicName));
+		LOG.debug("Created topic: {}", topicName);
+	}
+
+	@Override
+	public synchronized void deleteTopic(String tenantId, String topicName) {
+		SequencedTopic topic = topics.remove(topicName);
+		if (topic == null) {
+			throw new TopicNotFoundException(topicName);
+		}
+		for (TopicSubscriber subscriber : topic.getSubscribers()) {
+			subscriber.unsubscribe(topic);
+			subscriberChanged(subscriber);
+		}
+		topicDeleted(topic);
+		LOG.debug("Deleted topic: " + topicName);
+	}
+
+	////////////////////
+	// P2P operations //
+	////////////////////
+	@Override
+	public String sendMessage(String tenantId, String topicName, String message) {
+		return sendMessage(tenantId, topicName, message, null);
+	}
+
+	@Override
+	public String sendMessage(String tenantId, String topicName, String message, String idempotencyKey) {
+		return sendMessage(tenantId, topicName, message.getBytes(Message.CHARSET), Message.TEXT_CONTENT_TYPE,
+				idempotencyKey);
+	}
+
+	/**
+	 * Append a message to a topic. The body is not copied, so it must not be
+	 * changed afterwards. A repeated idempotency key returns the ID of the first
+	 * message without appending again.
+	 *
+	 * @return the message ID
+	 */
+	@Override
+	public String sendMessage(String tenantId, String topicName, byte[] body, String contentType,
+			String idempotencyKey) {
+		SequencedTopic topic = topic(topicName);
+		String messageId = messageIds.nextId();
+		if (idempotencyKey != null) {
+			String original = topic.getSentKeys().putIfAbsent(idempotencyKey, messageId, System.currentTimeMillis());
+			if (original != null) {
+				duplicateSends.mark();
+				LOG.debug("Message with idempotency key " + idempotencyKey + " was already sent to topic: " + topicName);
+				return original;
+			}
+		}
+		topic.publish(new Message(messageId, topicName, body, contentType));
+		published.mark();
+		return messageId;
+	}
+
+	/**
+	 * Sends complete as soon as the message is appended
+	 */
+	@Override
+	public ListenableFuture<String> sendMessageAsync(String tenantId, String topicName, String message) {
+		return Futures.immediateFuture(sendMessage(tenantId, topicName, message));
+	}
+
+	@Override
+	public ListenableFuture<String> sendMessageAsync(String tenantId, String topicName, byte[] body,
+			String contentType, String idempotencyKey) {
+		return Futures.immediateFuture(sendMessage(tenantId, topicName, body, contentType, idempotencyKey));
+	}
+
+	@Override
+	public List<String> sendMessages(String tenantId, String topicName, List<String> messages) {
+		if (null == messages || messages.isEmpty()) {
+			throw new IllegalArgumentException("No message to send to topic: " + topicName);
+		}
+		SequencedTopic topic = topic(topicName);
+		List<String> messageIds = new ArrayList<String>(messages.size());
+		for (String message : messages) {
+			String messageId = this.messageIds.nextId();
+			topic.publish(new Message(messageId, topicName, message.getBytes(Message.CHARSET),
+					Message.TEXT_CONTENT_TYPE));
+			messageIds.add(messageId);
+		}
+		published.mark(messages.size());
+		return messageIds;
+	}
+
+	@Override
+	public Message pullMessage(String tenantId, String topicName) {
+		List<Message> messages = pullMessages(tenantId, topicName, 1);
+		return messages.isEmpty() ? null : messages.get(0);
+	}
+
+	@Override
+	public List<Message> pullMessages(String tenantId, String topicName, int max) {
+		return pullMessages(tenantId, topicName, max, 0);
+	}
+
+	/**
+	 * Take up to max messages off the P2P cursor of a topic, waiting up to
+	 * waitMillis for the first one
+	 */
+	@Override
+	public List<Message> pullMessages(String tenantId, String topicName, int max, long waitMillis) {
+		return pullMessages(tenantId, topicName, max, waitMillis, 0);
+	}
+
+	/**
+	 * Pulled messages leave the P2P cursor for good, there is no visibility
+	 * timeout to put them back
+	 */
+	@Override
+	public List<Message> pullMessages(String tenantId, String topicName, int max, long waitMillis,
+			long visibilityMillis) {
+		if (visibilityMillis != 0) {
+			throw new IllegalArgumentException("visibilityMillis is not supported by " + getClass().getSimpleName());
+		}
+		if (max < 1) {
+			throw new IllegalArgumentException("max must be positive");
+		}
+		if (waitMillis < 0) {
+			throw new IllegalArgumentException("waitMillis must not be negative");
+		}
+		try {
+			return topic(topicName).pull(max, waitMillis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InternalErrorException("Interrupted while pulling message from topic: " + topicName);
+		}
+	}
+
+	/**
+	 * @return always false, pulled messages are never leased
+	 */
+	@Override
+	public boolean extendLease(String tenantId, String topicName, String id, long visibilityMillis) {
+		topic(topicName);
+		return false;
+	}
+
+	/**
+	 * Look a message up by ID in the index of its topic
+	 *
+	 * @return the message, or null if the topic does not have it any more or
+	 *         it was deleted
+	 */
+	@Override
+	public Message getMessage(String tenantId, String topicName, String id) {
+		return topic(topicName).find(id);
+	}
+
+	/**
+	 * Delete a message, so that it is no longer pulled, fed or found. The
+	 * message keeps its place in the topic until it is dropped with the older
+	 * ones.
+	 *
+	 * @return false if the topic does not have the message or it was deleted
+	 */
+	@Override
+	public boolean deleteMessage(String tenantId, String topicName, String id) {
+		return topic(topicName).delete(id);
+	}
+
+	// //////////////////////
+	// Pub-Sub operations //
+	// //////////////////////
+	@Override
+	public Subscriber createSubscriber(String subscriberName, String endpoint, Collection<String> topics) {
+		return createSubscriber(subscriberName, endpoint, topics, null);
+	}
+
+	/**
+	 * Create a new subscriber, fed the messages published from now on. Feeds
+	 * of one subscriber run one at a time, in order, so the concurrency and
+	 * prefetch of the delivery policy do not apply; its batch size does.
+	 *
+	 * @param deliveryPolicy
+	 *           how messages are fed to the endpoint, or null for the defaults
+	 */
+	@Override
+	public Subscriber createSubscriber(String subscriberName, String endpoint, Collection<String> topics,
+			DeliveryPolicy deliveryPolicy) {
+		// at least one topic is required to subscribe
+		if (null == topics || topics.size() == 0) {
+			throw new InternalErrorException("No topic selected for subscriber: " + subscriberName);
+		}
+
+		// endpoint must be valid and alive
+		if (!WebClientTool.isEndpointAlive(endpoint, feedConnections)) {
+			throw new InternalErrorException("Failed subscription due to inaccessible endpoint: " + endpoint);
+		}
+
+		String subscriberId = UUID.randomUUID().toString();
+		int batchSize = deliveryPolicy == null ? DELIVERY_BATCH_SIZE : deliveryPolicy.getBatchSize();
+		newSubscriber(subscriberId, subscriberName, endpoint, batchSize);
+		Collection<String> topicsSubscribed;
+		try {
+			topicsSubscribed = subscribeTopic(subscriberId, topics);
+		} catch (RuntimeException e) {
+			deleteSubscriber(subscriberId);
+			throw e;
+		}
+		LOG.debug("Start feeding Subscriber " + subscriberId + " (" + subscriberName + ")");
+
+		return new Subscriber(subscriberId, subscriberName, endpoint, topicsSubscribed);
+	}
+
+	@Override
+	public Subscriber getSubscriberInfo(String subscriberId) {
+		return subscriber(subscriberId).describe();
+	}
+
+	@Override
+	public boolean deleteSubscriber(String subscriberId) {
+		TopicSubscriber subscriber = subscribers.remove(subscriberId);
+		if (subscriber == null) {
+			throw new InternalErrorException("Failed deleting Subscriber " + subscriberId);
+		}
+		subscriber.stop();
+		circuitBreakers.release(subscriber.getEndpoint());
+		subscriberDeleted(subscriber);
+		return true;
+	}
+
+	/**
+	 * Subscribe to more topics, from their tail; topics that do not exist are
+	 * skipped
+	 *
+	 * @return the topics subscribed
+	 */
+	@Override
+	public Collection<String> subscribeTopic(String subscriberId, Collection<String> topics) {
+		if (null == topics || topics.size() == 0) {
+			throw new InternalErrorException("No topic selected for subscriber: " + subscriberId);
+		}
+		TopicSubscriber subscriber = subscriber(subscriberId);
+		Collection<String> topicsSubscribed = new HashSet<String>();
+		for (String topicName : topics) {
+			SequencedTopic topic = this.topics.get(topicName);
+			if (topic == null) {
+				LOG.error("Failed subscribing Subscriber " + subscriberId + " to missing Topic " + topicName);
+				continue;
+			}
+			subscriber.subscribe(topic, topic.getTail());
+			topicsSubscribed.add(topicName);
+		}
+		subscriberChanged(subscriber);
+		LOG.debug("Successfully subscribed topics: " + topicsSubscribed);
+		return topicsSubscribed;
+	}
+
+	@Override
+	public Collection<String> unsubscribeTopic(String subscriberId, Collection<String> topics) {
+		if (null == topics || topics.size() == 0) {
+			throw new InternalErrorException("No topic selected for subscriber: " + subscriberId);
+		}
+		TopicSubscriber subscriber = subscriber(subscriberId);
+		Collection<String> topicsUnsubscribed = new HashSet<String>();
+		for (String topicName : topics) {
+			SequencedTopic topic = this.topics.get(topicName);
+			if (topic != null && subscriber.unsubscribe(topic)) {
+				topicsUnsubscribed.add(topicName);
+			}
+		}
+		subscriberChanged(subscriber);
+		return topicsUnsubscribed;
+	}
+
+	@Override
+	public List<Message> getDeadLetters(String subscriberId, int max) {
+		return subscriber(subscriberId).getDeadLetters(max);
+	}
+
+	@Override
+	public ListenableFuture<Long> replayDeadLetters(String subscriberId, long max, int ratePerSecond) {
+		return subscriber(subscriberId).replayDeadLetters(max, ratePerSecond);
+	}
+
+	protected SequencedTopic topic(String topicName) {
+		SequencedTopic topic = topics.get(topicName);
+		if (topic == null) {
+			throw new TopicNotFoundException(topicName);
+		}
+		return topic;
+	}
+
+	protected TopicSubscriber subscriber(String subscriberId) {
+		TopicSubscriber subscriber = subscribers.get(subscriberId);
+		if (subscriber == null) {
+			throw new InternalErrorException("Unknown Subscriber " + subscriberId);
+		}
+		return subscriber;
+	}
+}
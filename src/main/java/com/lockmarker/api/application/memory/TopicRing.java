@@ -0,0 +1,90 @@
+package com.lockmarker.api.application.memory;
+
+import com.lockmarker.api.application.model.Message;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free ring buffer of the messages of one topic.
+ *
+ * Every message gets the next sequence number of the topic and goes into the
+ * slot sequence % capacity. Publishers claim sequence numbers with one atomic
+ * increment and never wait for readers: when the ring is full the oldest
+ * message is overwritten. Readers keep their own cursor, i.e. the sequence of
+ * the next message they want, and find out from the slot whether that message
+ * is there, not written yet, or already overwritten.
+ */
+public class TopicRing {
+	private final AtomicReferenceArray<Slot>	slots;
+	private final int									mask;
+	// the sequence the next publish gets
+	private final AtomicLong						tail;
+
+	/**
+	 * @param capacity
+	 *           the number of messages kept, rounded up to a power of two
+	 */
+	public TopicRing(int capacity) {
+		int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+		this.slots = new AtomicReferenceArray<Slot>(size);
+		this.mask = size - 1;
+		this.tail = new AtomicLong();
+	}
+
+	/**
+	 * @return the sequence number of the message
+	 */
+	public long publish(Message message) {
+		long sequence = tail.getAndIncrement();
+		int index = (int) (sequence & mask);
+		Slot slot = new Slot(sequence, message);
+		while (true) {
+			Slot current = slots.get(index);
+			// a publisher that stalled for a whole lap must not overwrite a newer message
+			if (current != null && current.sequence > sequence) {
+				return sequence;
+			}
+			if (slots.compareAndSet(index, current, slot)) {
+				return sequence;
+			}
+		}
+	}
+
+	/**
+	 * @return the sequence the next message will get
+	 */
+	public long getTail() {
+		return tail.get();
+	}
+
+	/**
+	 * @return the sequence of the oldest message still in the ring
+	 */
+	public long getHead() {
+		return Math.max(0, tail.get() - slots.length());
+	}
+
+	public int getCapacity() {
+		return slots.length();
+	}
+
+	/**
+	 * @return the message with this sequence, or null if it is not written yet
+	 *         or was overwritten; getHead() tells which
+	 */
+	public Message read(long sequence) {
+		Slot slot = slots.get((int) (sequence & mask));
+		return slot != null && slot.sequence == sequence ? slot.message : null;
+	}
+
+	private static class Slot {
+		final long		sequence;
+		final Message	message;
+
+		Slot(long sequence, Message message) {
+			this.sequence = sequence;
+			this.message = message;
+		}
+	}
+}
@@ -0,0 +1,424 @@
+package com.lockmarker.api.application.memory;
+
+import com.lockmarker.api.application.model.Message;
+import com.lockmarker.api.application.model.Subscriber;
+import com.lockmarker.api.application.policy.RedeliveryPolicy;
+import com.lockmarker.api.application.rabbitmq.EndpointCircuitBreaker;
+import com.lockmarker.api.application.rabbitmq.SubscriptionFeeder;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import com.yammer.dropwizard.logging.Log;
+import com.yammer.metrics.core.Meter;
+
+/**
+ * A subscriber of a TopicDispatcher. It keeps one cursor into every topic it
+ * subscribes to and feeds the messages past its cursors to its endpoint
+ * through a SubscriptionFeeder.
+ *
+ * Feeds of one subscriber run one at a time on the shared feed executor, so
+ * every topic is fed in order. A publish only wakes the subscriber; the
+ * subscriber then drains all of its cursors. A cursor only moves past a
+ * message once it is fed or dead-lettered, so a failed feed is retried by the
+ * RedeliveryPolicy before anything newer of that topic. While the circuit of
+ * the endpoint is open nothing is fed, and the circuit closing wakes the
+ * subscriber again. A subscriber that falls behind the head of a topic loses
+ * the messages that are gone.
+ *
+ * Messages out of retries are kept as dead letters, up to a maximum; replayed
+ * dead letters are fed before the messages of the topics.
+ */
+public class TopicSubscriber implements Runnable, EndpointCircuitBreaker.Listener {
+	private static final Log								LOG	= Log.forClass(TopicSubscriber.class);
+	private final String										id;
+	private final String										name;
+	private final String										endpoint;
+	private final SubscriptionFeeder						feeder;
+	private final RedeliveryPolicy						retryPolicy;
+	private final int											batchSize;
+	private final int											maxDeadLetters;
+	private final ScheduledExecutorService				executor;
+	private final Meter										overrun;
+	private final ConcurrentMap<String, Subscription>	subscriptions;
+	private final Queue<Message>							replays;
+	private final ArrayDeque<Message>						deadLetters;
+	private final AtomicInteger							wip;
+	private final Runnable									waker;
+	// only touched by the drain, which never runs twice at once
+	private int													failures;
+	private long												retryAt;
+	private int													nextSubscription;
+	private volatile boolean								stopped;
+
+	/**
+	 * @param feeder
+	 *           feeds the endpoint
+	 * @param retryPolicy
+	 *           how failed feeds are retried
+	 * @param batchSize
+	 *           the most messages of one topic fed in one request
+	 * @param maxDeadLetters
+	 *           the most dead letters kept, the oldest are dropped beyond that
+	 * @param executor
+	 *           runs the feeds and the retry timers
+	 * @param overrun
+	 *           counts messages lost before they were fed
+	 */
+	public TopicSubscriber(String id, String name, String endpoint, SubscriptionFeeder feeder,
+			RedeliveryPolicy retryPolicy, int batchSize, int maxDeadLetters, ScheduledExecutorService executor,
+			Meter overrun) {
+		this.id = id;
+		this.name = name;
+		this.endpoint = endpoint;
+		this.feeder = feeder;
+		this.retryPolicy = retryPolicy;
+		this.batchSize = Math.max(1, batchSize);
+		this.maxDeadLetters = maxDeadLetters;
+		this.executor = executor;
+		this.overrun = overrun;
+		this.subscriptions = new ConcurrentHashMap<String, Subscription>();
+		this.replays = new ConcurrentLinkedQueue<Message>();
+		this.deadLetters = new ArrayDeque<Message>();
+		this.wip = new AtomicInteger();
+		this.waker = new Runnable() {
+			@Override
+			public void run() {
+				wake();
+			}
+		};
+		feeder.getCircuitBreaker().addListener(this);
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * @return the subscriber as the dispatcher API describes it
+	 */
+	public Subscriber describe() {
+		return new Subscriber(id, name, endpoint, new ArrayList<String>(subscriptions.keySet()));
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getEndpoint() {
+		return endpoint;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public Collection<String> getTopicNames() {
+		return subscriptions.keySet();
+	}
+
+	/**
+	 * @return the sequence of the next message to feed, by topic name
+	 */
+	public Map<String, Long> getCursors() {
+		Map<String, Long> cursors = new HashMap<String, Long>();
+		for (Map.Entry<String, Subscription> entry : subscriptions.entrySet()) {
+			cursors.put(entry.getKey(), entry.getValue().cursor);
+		}
+		return cursors;
+	}
+
+	/**
+	 * Start feeding the messages of a topic
+	 *
+	 * @param from
+	 *           the sequence of the first message to feed
+	 * @return false if already subscribed
+	 */
+	public boolean subscribe(SequencedTopic topic, long from) {
+		Subscription subscription = new Subscription(topic, from);
+		if (subscriptions.putIfAbsent(topic.getName(), subscription) != null) {
+			return false;
+		}
+		topic.addSubscriber(this);
+		return true;
+	}
+
+	/**
+	 * @return false if not subscribed
+	 */
+	public boolean unsubscribe(SequencedTopic topic) {
+		Subscription subscription = subscriptions.remove(topic.getName());
+		if (subscription == null) {
+			return false;
+		}
+		topic.removeSubscriber(this);
+		return true;
+	}
+
+	public void stop() {
+		stopped = true;
+		feeder.getCircuitBreaker().removeListener(this);
+		for (Subscription subscription : subscriptions.values()) {
+			subscription.topic.removeSubscriber(this);
+		}
+		subscriptions.clear();
+	}
+
+	/**
+	 * Make sure a drain runs after this call. Cheap when one is already due.
+	 */
+	public void wake() {
+		if (wip.getAndIncrement() == 0) {
+			try {
+				executor.execute(this);
+			} catch (RejectedExecutionException e) {
+				// shutting down
+				wip.set(0);
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		int missed = 1;
+		while (true) {
+			try {
+				drain();
+			} catch (Throwable t) {
+				LOG.error(t, "Unexpected error feeding Subscriber " + id);
+			}
+			missed = wip.addAndGet(-missed);
+			if (missed == 0) {
+				return;
+			}
+		}
+	}
+
+	@Override
+	public void onOpen(EndpointCircuitBreaker breaker) {
+	}
+
+	@Override
+	public void onClose(EndpointCircuitBreaker breaker) {
+		wake();
+	}
+
+	/**
+	 * @return up to max of the oldest dead letters, which stay where they are
+	 */
+	public List<Message> getDeadLetters(int max) {
+		synchronized (deadLetters) {
+			List<Message> messages = new ArrayList<Message>(Math.min(max, deadLetters.size()));
+			Iterator<Message> it = deadLetters.iterator();
+			while (it.hasNext() && messages.size() < max) {
+				messages.add(it.next());
+			}
+			return messages;
+		}
+	}
+
+	/**
+	 * Feed dead letters again, oldest first, moving at most ratePerSecond of
+	 * them per second
+	 *
+	 * @return completes with the number of messages moved
+	 */
+	public ListenableFuture<Long> replayDeadLetters(final long max, final int ratePerSecond) {
+		if (max < 1 || ratePerSecond < 1) {
+			throw new IllegalArgumentException("max and rate must be positive");
+		}
+		final SettableFuture<Long> done = SettableFuture.create();
+		executor.execute(new Runnable() {
+			private long	moved;
+
+			@Override
+			public void run() {
+				int step = 0;
+				while (moved < max && step < ratePerSecond) {
+					Message message;
+					synchronized (deadLetters) {
+						message = deadLetters.pollFirst();
+					}
+					if (message == null) {
+						break;
+					}
+					replays.add(message);
+					moved++;
+					step++;
+				}
+				if (step > 0) {
+					wake();
+				}
+				if (stopped || moved >= max || step < ratePerSecond) {
+					done.set(moved);
+				} else {
+					executor.schedule(this, 1, TimeUnit.SECONDS);
+				}
+			}
+		});
+		return done;
+	}
+
+	private void drain() {
+		while (!stopped && feeder.isAvailable()) {
+			long now = System.currentTimeMillis();
+			if (now < retryAt) {
+				// the retry timer wakes us
+				return;
+			}
+
+			Subscription source = null;
+			List<Message> batch;
+			Message replay = replays.peek();
+			if (replay != null) {
+				batch = Collections.singletonList(replay);
+			} else {
+				batch = new ArrayList<Message>(batchSize);
+				source = nextBatch(batch);
+				if (source == null) {
+					return;
+				}
+			}
+
+			if (feed(batch)) {
+				failures = 0;
+			} else {
+				int retry = failures++;
+				if (retryPolicy.canRetry(retry)) {
+					long delay = retryPolicy.getRetryDelay(retry);
+					if (delay > 0) {
+						retryAt = now + delay;
+						executor.schedule(waker, delay, TimeUnit.MILLISECONDS);
+						return;
+					}
+					continue;
+				}
+				LOG.error("Feeding of " + batch.size() + " messages to Subscriber " + id
+						+ " failed after " + failures + " attempts, moving them to dead letters.");
+				deadLetter(batch);
+				failures = 0;
+			}
+
+			// done with the batch, fed or dead-lettered
+			if (source == null) {
+				replays.poll();
+			} else {
+				source.cursor = source.batchEnd;
+			}
+		}
+	}
+
+	/**
+	 * Collect the next messages of one topic, taking the topics in turn
+	 *
+	 * @return the subscription the batch came from, null if no topic has one
+	 */
+	private Subscription nextBatch(List<Message> batch) {
+		List<Subscription> all = new ArrayList<Subscription>(subscriptions.values());
+		for (int i = 0; i < all.size(); i++) {
+			Subscription subscription = all.get((nextSubscription + i) % all.size());
+			collect(subscription, batch);
+			if (!batch.isEmpty()) {
+				nextSubscription = (nextSubscription + i + 1) % all.size();
+				return subscription;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Read the next messages of a topic into batch, leaving out deleted ones,
+	 * and set the batch end of the subscription past the last one read
+	 */
+	private void collect(Subscription subscription, List<Message> batch) {
+		SequencedTopic topic = subscription.topic;
+		while (true) {
+			long head = topic.getHead();
+			if (subscription.cursor < head) {
+				overrun.mark(head - subscription.cursor);
+				LOG.debug("Subscriber " + id + " fell behind Topic " + subscription.topic.getName()
+						+ ", skipping " + (head - subscription.cursor) + " messages.");
+				subscription.cursor = head;
+			}
+			long next = subscription.cursor;
+			batch.clear();
+			while (batch.size() < batchSize) {
+				Message message = topic.read(next);
+				if (message == null) {
+					break;
+				}
+				if (!topic.isDeleted(message, next)) {
+					batch.add(message);
+				}
+				next++;
+			}
+			if (subscription.cursor < topic.getHead()) {
+				// dropped while we read, start again from the oldest message left
+				continue;
+			}
+			if (batch.isEmpty() && next > subscription.cursor) {
+				// only deleted messages, nothing to feed for them
+				subscription.cursor = next;
+				continue;
+			}
+			subscription.batchEnd = next;
+			return;
+		}
+	}
+
+	private boolean feed(List<Message> batch) {
+		try {
+			if (batch.size() == 1) {
+				feeder.feed(batch.get(0));
+			} else {
+				feeder.feed(batch);
+			}
+			return true;
+		} catch (Exception e) {
+			LOG.debug("Feed to Subscriber " + id + " failed: " + e.getMessage());
+			return false;
+		}
+	}
+
+	private void deadLetter(List<Message> batch) {
+		synchronized (deadLetters) {
+			for (Message message : batch) {
+				if (deadLetters.size() >= maxDeadLetters) {
+					deadLetters.pollFirst();
+				}
+				deadLetters.addLast(message);
+			}
+		}
+	}
+
+	private static class Subscription {
+		final SequencedTopic	topic;
+		// the sequence of the next message to feed, only moved by the drain
+		volatile long		cursor;
+		// the sequence after the batch being fed
+		long					batchEnd;
+
+		Subscription(SequencedTopic topic, long cursor) {
+			this.topic = topic;
+			this.cursor = cursor;
+		}
+	}
+}
@@ -1,27 +1,273 @@
 package com.lockmarker.api.application.model;
 
+import com.lockmarker.utils.JsonProcessor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.codehaus.jackson.JsonGenerator;
+
+/**
+ * A message and its body as it came from the broker.
+ *
+ * The body is kept as the bytes it was received in, together with the
+ * charset they are encoded in, and is never copied by this class: it is
+ * handed out as a read-only view or written straight to a stream. Bodies are
+ * only decoded into a String when a caller asks for it. A body may also be a
+ * slice of a buffer, such as a mapped log segment, and is then read in place.
+ *
+ * A body whose content type is not text, e.g. application/octet-stream or an
+ * image, is not decoded at all; it is written to JSON documents as base64.
+ */
 public class Message {
-	private String id;
-	private String topic;
-	private byte[] body;
-	
+	public static final Charset	CHARSET				= Charset.forName("UTF-8");
+	public static final String		TEXT_CONTENT_TYPE	= "text/plain; charset=UTF-8";
+	private static final int		TRANSFER_BYTES		= 8192;
+	// the largest scratch array a thread keeps for writeJsonString()
+	private static final int		SCRATCH_BYTES		= 256 * 1024;
+	private static final ThreadLocal<byte[]>	SCRATCH	= new ThreadLocal<byte[]>();
+	private final String			id;
+	private final String			topic;
+	private final ByteBuffer		body;
+	private final String			contentType;
+	private final Charset		charset;
+	// whether a JSON body is well-formed: 0 not checked yet, 1 it is, -1 it is not
+	private volatile int			validJson;
+
 	public Message(String id,
                    String topic,
                    byte[] body) {
+		this(id, topic, body, null);
+	}
+
+	/**
+	 * @param body
+	 *           the body bytes, kept as they are and not to be changed afterwards
+	 * @param contentType
+	 *           the content type the publisher gave, its charset parameter is the
+	 *           charset of the body; UTF-8 if there is none
+	 */
+	public Message(String id, String topic, byte[] body, String contentType) {
+		this(id, topic, ByteBuffer.wrap(body), contentType);
+	}
+
+	/**
+	 * @param body
+	 *           the body from its position to its limit, kept as it is; the
+	 *           buffer must not be moved or changed afterwards
+	 * @param contentType
+	 *           the content type the publisher gave
+	 */
+	public Message(String id, String topic, ByteBuffer body, String contentType) {
 		this.id = id;
 		this.topic = topic;
 		this.body = body;
+		this.contentType = contentType;
+		this.charset = charsetOf(contentType);
 	}
-	
+
 	public String getId() {
 		return id;
 	}
-	
+
 	public String getTopic() {
 		return topic;
 	}
-	
-	public byte[] getBody() {
-		return body;
+
+	/**
+	 * @return a read-only view of the body
+	 */
+	public ByteBuffer getBody() {
+		return body.asReadOnlyBuffer();
+	}
+
+	public int getBodyLength() {
+		return body.remaining();
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	public Charset getCharset() {
+		return charset;
+	}
+
+	/**
+	 * @return true if the body is UTF-8, so it can be written to JSON as it is
+	 */
+	public boolean isUtf8() {
+		return CHARSET.equals(charset);
+	}
+
+	/**
+	 * @return true if the body is text that can be written as a JSON string:
+	 *         no content type, a text, JSON or XML type, or any type naming a
+	 *         charset
+	 */
+	public boolean isText() {
+		return contentType == null || isTextType(contentType);
+	}
+
+	/**
+	 * @return true if the publisher sent the body as UTF-8 JSON, e.g. with
+	 *         application/json or a +json content type, and it is well-formed.
+	 *         The body is parsed on the first call only.
+	 */
+	public boolean isJson() {
+		if (contentType == null || !isUtf8() || !isJsonType(contentType)) {
+			return false;
+		}
+		int valid = validJson;
+		if (valid == 0) {
+			// a publisher may bypass the REST API, which checks the body too
+			valid = JsonProcessor.isValidJson(body) ? 1 : -1;
+			validJson = valid;
+		}
+		return valid > 0;
+	}
+
+	/**
+	 * Decode the body. This copies it, so prefer writeBody() on hot paths.
+	 */
+	public String getBodyAsString() {
+		return charset.decode(body.duplicate()).toString();
+	}
+
+	/**
+	 * Write the body bytes to a stream. Array bodies are not copied, buffer
+	 * bodies go through a small transfer array.
+	 */
+	public void writeBody(OutputStream out) throws IOException {
+		if (body.hasArray()) {
+			out.write(body.array(), body.arrayOffset() + body.position(), body.remaining());
+			return;
+		}
+		ByteBuffer in = body.duplicate();
+		byte[] chunk = new byte[Math.min(in.remaining(), TRANSFER_BYTES)];
+		while (in.hasRemaining()) {
+			int n = Math.min(in.remaining(), chunk.length);
+			in.get(chunk, 0, n);
+			out.write(chunk, 0, n);
+		}
+	}
+
+	/**
+	 * Write the body as a JSON string value. UTF-8 bodies are escaped straight
+	 * from their bytes, other charsets are decoded first. A UTF-8 body that is
+	 * not an array, e.g. a slice of a mapped segment, goes through a scratch
+	 * array the thread keeps for the next call, as the generator only escapes
+	 * arrays and a string value cannot be written in pieces.
+	 */
+	public void writeJsonString(JsonGenerator generator) throws IOException {
+		if (isUtf8() && body.hasArray()) {
+			generator.writeUTF8String(body.array(), body.arrayOffset() + body.position(), body.remaining());
+		} else if (isUtf8()) {
+			int length = body.remaining();
+			byte[] scratch = scratch(length);
+			body.duplicate().get(scratch, 0, length);
+			generator.writeUTF8String(scratch, 0, length);
+		} else {
+			generator.writeString(getBodyAsString());
+		}
+	}
+
+	/**
+	 * @return the scratch array of this thread if it holds length bytes, else
+	 *         a new one, kept only if it is not larger than SCRATCH_BYTES
+	 */
+	private static byte[] scratch(int length) {
+		byte[] scratch = SCRATCH.get();
+		if (scratch != null && scratch.length >= length) {
+			return scratch;
+		}
+		scratch = new byte[Math.max(length, TRANSFER_BYTES)];
+		if (scratch.length <= SCRATCH_BYTES) {
+			SCRATCH.set(scratch);
+		}
+		return scratch;
+	}
+
+	/**
+	 * Write the body as a base64 JSON string value, for bodies that are not
+	 * text
+	 */
+	public void writeJsonBase64(JsonGenerator generator) throws IOException {
+		if (body.hasArray()) {
+			generator.writeBinary(body.array(), body.arrayOffset() + body.position(), body.remaining());
+		} else {
+			int length = body.remaining();
+			byte[] scratch = scratch(length);
+			body.duplicate().get(scratch, 0, length);
+			generator.writeBinary(scratch, 0, length);
+		}
+	}
+
+	/**
+	 * The body as an array for APIs that only take arrays, such as
+	 * basicPublish. A body that was given as a whole array is shared, not
+	 * copied, so it must not be changed; any other body is copied.
+	 */
+	public byte[] getBodyArray() {
+		if (body.hasArray() && body.arrayOffset() == 0 && body.position() == 0
+				&& body.remaining() == body.array().length) {
+			return body.array();
+		}
+		byte[] bytes = new byte[body.remaining()];
+		body.duplicate().get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * @param contentType
+	 *           a content type, not null
+	 * @return true for application/json and the +json types
+	 */
+	public static boolean isJsonType(String contentType) {
+		int end = contentType.indexOf(';');
+		String type = (end < 0 ? contentType : contentType.substring(0, end)).trim().toLowerCase();
+		return type.equals("application/json") || type.endsWith("+json");
+	}
+
+	/**
+	 * @param contentType
+	 *           a content type, not null
+	 * @return true for the text, JSON and XML types and for any type with a
+	 *         charset parameter
+	 */
+	public static boolean isTextType(String contentType) {
+		String lower = contentType.toLowerCase();
+		int end = lower.indexOf(';');
+		String type = (end < 0 ? lower : lower.substring(0, end)).trim();
+		return type.startsWith("text/") || type.equals("application/json") || type.endsWith("+json")
+				|| type.equals("application/xml") || type.endsWith("+xml")
+				|| type.equals("application/javascript") || type.equals("application/x-www-form-urlencoded")
+				|| (end >= 0 && lower.indexOf("charset", end) >= 0);
+	}
+
+	/**
+	 * @param contentType
+	 *           a content type such as "text/plain; charset=ISO-8859-1", may be null
+	 * @return the charset named by the content type, UTF-8 if it names none or
+	 *         one that is not supported
+	 */
+	public static Charset charsetOf(String contentType) {
+		if (contentType == null) {
+			return CHARSET;
+		}
+		for (String parameter : contentType.split(";")) {
+			String[] pair = parameter.trim().split("=", 2);
+			if (pair.length == 2 && pair[0].trim().equalsIgnoreCase("charset")) {
+				String name = pair[1].trim().replace("\"", "");
+				try {
+					return Charset.forName(name);
+				} catch (IllegalArgumentException e) {
+					return CHARSET;
+				}
+			}
+		}
+		return CHARSET;
 	}
 }
@@ -0,0 +1,154 @@
+package com.lockmarker.api.application.policy;
+
+/**
+ * This class implements the policy for feeding messages to a subscriber:
+ * how many feeds may be in flight at once, how many unacked messages the
+ * broker may push ahead of them, and whether messages sharing a key must be
+ * fed one after another
+ */
+public class DeliveryPolicy {
+	private int		CONCURRENCY	= 8;
+	private int		PREFETCH		= 32;
+	private boolean	ORDERED		= false;
+	private int		BATCH_SIZE	= 1;
+	private long		BATCH_LINGER	= 50;
+	private long		LATENCY_TARGET	= 1000;
+	private int		ACK_BATCH_SIZE	= 64;
+	private long		ACK_LINGER	= 20;
+
+	public DeliveryPolicy() {
+	}
+
+	public DeliveryPolicy(int concurrency, int prefetch, boolean ordered) {
+		setConcurrency(concurrency);
+		setPrefetch(prefetch);
+		setOrdered(ordered);
+	}
+
+	public void setConcurrency(int n) {
+		if (n < 1) {
+			throw new IllegalArgumentException("concurrency must be positive");
+		}
+		CONCURRENCY = n;
+	}
+
+	public int getConcurrency() {
+		return CONCURRENCY;
+	}
+
+	public void setPrefetch(int n) {
+		if (n < 1) {
+			throw new IllegalArgumentException("prefetch must be positive");
+		}
+		PREFETCH = n;
+	}
+
+	/**
+	 * @return the number of unacked messages the broker may push, never less
+	 *         than the concurrency or the batch size so that no worker sits
+	 *         idle and a batch can fill up
+	 */
+	public int getPrefetch() {
+		return Math.max(PREFETCH, Math.max(CONCURRENCY, BATCH_SIZE));
+	}
+
+	/**
+	 * Feed messages with the same ordering key one at a time, in the order
+	 * they were delivered. Messages with different keys still run in parallel.
+	 */
+	public void setOrdered(boolean ordered) {
+		ORDERED = ordered;
+	}
+
+	public boolean isOrdered() {
+		return ORDERED;
+	}
+
+	/**
+	 * Feed up to n messages per request as a JSON array. 1 feeds every
+	 * message on its own.
+	 */
+	public void setBatchSize(int n) {
+		if (n < 1) {
+			throw new IllegalArgumentException("batch size must be positive");
+		}
+		BATCH_SIZE = n;
+	}
+
+	public int getBatchSize() {
+		return BATCH_SIZE;
+	}
+
+	public boolean isBatched() {
+		return BATCH_SIZE > 1;
+	}
+
+	/**
+	 * How long a batch may wait for more messages before it is fed anyway
+	 */
+	public void setBatchLinger(long millis) {
+		if (millis < 0) {
+			throw new IllegalArgumentException("batch linger must not be negative");
+		}
+		BATCH_LINGER = millis;
+	}
+
+	public long getBatchLinger() {
+		return BATCH_LINGER;
+	}
+
+	/**
+	 * Feeds slower than this shrink the in-flight window of the subscriber,
+	 * faster ones grow it up to the concurrency. 0 keeps the window fixed at
+	 * the concurrency.
+	 */
+	public void setLatencyTarget(long millis) {
+		if (millis < 0) {
+			throw new IllegalArgumentException("latency target must not be negative");
+		}
+		LATENCY_TARGET = millis;
+	}
+
+	public long getLatencyTarget() {
+		return LATENCY_TARGET;
+	}
+
+	public boolean isAdaptive() {
+		return LATENCY_TARGET > 0;
+	}
+
+	/**
+	 * Ack up to n completed deliveries with one basicAck(multiple=true). 1 acks
+	 * every delivery on its own.
+	 */
+	public void setAckBatchSize(int n) {
+		if (n < 1) {
+			throw new IllegalArgumentException("ack batch size must be positive");
+		}
+		ACK_BATCH_SIZE = n;
+	}
+
+	/**
+	 * @param prefetch
+	 *           the current prefetch of the channel
+	 * @return the ack batch size, at most half the prefetch so that the acks
+	 *         held back leave the broker room to push more messages
+	 */
+	public int getAckBatchSize(int prefetch) {
+		return Math.min(ACK_BATCH_SIZE, Math.max(1, prefetch / 2));
+	}
+
+	/**
+	 * How long a completed delivery may wait for more before it is acked anyway
+	 */
+	public void setAckLinger(long millis) {
+		if (millis < 0) {
+			throw new IllegalArgumentException("ack linger must not be negative");
+		}
+		ACK_LINGER = millis;
+	}
+
+	public long getAckLinger() {
+		return ACK_LINGER;
+	}
+}
@@ -8,6 +8,7 @@ public class RedeliveryPolicy {
 	private int INIT_RETRY_NUM = 3;
 	private int MAX_RETRY_NUM = 30;
 	private int INIT_RETRY_INTERVAL = 3000;
+	private int RETRY_INTERVAL_INCREMENT = 1000;
 
 	public RedeliveryPolicy() {
 	}
@@ -35,4 +36,41 @@ public class RedeliveryPolicy {
 	public int getInitialRetryInterval() {
 		return INIT_RETRY_INTERVAL;
 	}
+	
+	public void setRetryIntervalIncrement(int n) {
+		RETRY_INTERVAL_INCREMENT = n;
+	}
+	
+	public int getRetryIntervalIncrement() {
+		return RETRY_INTERVAL_INCREMENT;
+	}
+	
+	/**
+	 * Get the delay before a retry. The first retry follows the failed
+	 * delivery right away, the initial retries are spaced by the initial
+	 * interval, and every later retry waits one increment longer than the
+	 * previous one.
+	 * 
+	 * @param numRetry
+	 *           0-based number of the retry
+	 * @return delay in milliseconds
+	 */
+	public long getRetryDelay(int numRetry) {
+		if (numRetry <= 0) {
+			return 0;
+		}
+		if (numRetry <= INIT_RETRY_NUM + 1) {
+			return INIT_RETRY_INTERVAL;
+		}
+		return INIT_RETRY_INTERVAL + (long) RETRY_INTERVAL_INCREMENT * (numRetry - INIT_RETRY_NUM - 1);
+	}
+	
+	/**
+	 * @param numRetry
+	 *           0-based number of the retry
+	 * @return true if the retry is still allowed by the policy
+	 */
+	public boolean canRetry(int numRetry) {
+		return numRetry < MAX_RETRY_NUM;
+	}
 }
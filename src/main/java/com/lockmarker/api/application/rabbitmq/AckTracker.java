@@ -0,0 +1,281 @@
+package com.lockmarker.api.application.rabbitmq;
+
+import com.rabbitmq.client.Channel;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.yammer.dropwizard.logging.Log;
+
+/**
+ * This class coalesces the acks of a consumer channel. Completed deliveries
+ * are not acked one by one: once batchSize of them are pending, or the first
+ * of them has waited lingerMillis, they are acked with one
+ * basicAck(multiple=true) up to the highest completed tag below the lowest
+ * tag still outstanding.
+ *
+ * multiple=true acks every unacked tag up to the given one, so it never goes
+ * past a delivery that is still being fed or waits for redelivery. Completed
+ * tags above such a gap wait for it; those still waiting at the next flush
+ * are acked one by one, so that a slow redelivery does not hold the prefetch
+ * of the channel for long.
+ *
+ * Rejects are sent at once. Acks still pending when the channel closes are
+ * lost with it, and the broker redelivers those messages.
+ *
+ * The tracker lock only guards the tag sets, so the consumer thread recording
+ * deliveries never waits for a frame being written. Frames are written under
+ * a separate send lock, taken before the tags are picked, so they reach the
+ * broker in the order they were planned: a multiple ack can never overtake a
+ * single ack or reject of a tag it covers.
+ */
+public class AckTracker {
+	private static final Log					LOG	= Log.forClass(AckTracker.class);
+	private final Channel						channel;
+	// orders the frames, taken before the tracker lock
+	private final Object							sendLock;
+	// delivered, neither completed nor rejected
+	private final TreeSet<Long>				outstanding;
+	// completed, the ack not sent yet
+	private final TreeSet<Long>				completed;
+	private final long							lingerMillis;
+	private final ScheduledExecutorService	timer;
+	private final Runnable						flusher;
+	private int										batchSize;
+	// the highest tag left waiting above a gap by the last flush
+	private long									waiting;
+	private boolean								flushScheduled;
+
+	/**
+	 * An AckTracker that acks every delivery as soon as it completes
+	 */
+	public AckTracker(Channel channel) {
+		this(channel, 1, 0, null);
+	}
+
+	/**
+	 * @param batchSize
+	 *           the number of completed deliveries that triggers a flush, 1
+	 *           acks every delivery on its own
+	 * @param lingerMillis
+	 *           how long a completed delivery may wait for the batch to fill
+	 * @param timer
+	 *           runs the linger flushes
+	 */
+	public AckTracker(Channel channel, int batchSize, long lingerMillis, ScheduledExecutorService timer) {
+		this.channel = channel;
+		this.sendLock = new Object();
+		this.outstanding = new TreeSet<Long>();
+		this.completed = new TreeSet<Long>();
+		this.batchSize = Math.max(1, batchSize);
+		this.lingerMillis = lingerMillis;
+		this.timer = timer;
+		this.flusher = new Runnable() {
+			@Override
+			public void run() {
+				lingerExpired();
+			}
+		};
+	}
+
+	public Channel getChannel() {
+		return channel;
+	}
+
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+
+	/**
+	 * Change the number of completed deliveries that triggers a flush, e.g.
+	 * when the prefetch of the channel changes
+	 */
+	public synchronized void setBatchSize(int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	/**
+	 * Record a delivery that must be acked or rejected later
+	 *
+	 * @param deliveryTag
+	 *           the delivery tag
+	 */
+	public synchronized void delivered(long deliveryTag) {
+		outstanding.add(deliveryTag);
+	}
+
+	/**
+	 * Ack one delivery, now or with the next flush
+	 *
+	 * @param deliveryTag
+	 *           the delivery tag
+	 */
+	public void ack(long deliveryTag) throws IOException {
+		boolean coalesced;
+		synchronized (this) {
+			coalesced = batchSize > 1 && timer != null;
+			if (coalesced) {
+				if (outstanding.remove(deliveryTag)) {
+					completed.add(deliveryTag);
+				}
+				if (!flushDue()) {
+					return;
+				}
+			}
+		}
+		if (coalesced) {
+			flush();
+			return;
+		}
+		synchronized (sendLock) {
+			synchronized (this) {
+				outstanding.remove(deliveryTag);
+			}
+			channel.basicAck(deliveryTag, false);
+		}
+	}
+
+	/**
+	 * Ack a batch of deliveries, now or with the next flush
+	 *
+	 * @param deliveryTags
+	 *           the delivery tags
+	 */
+	public void ack(List<Long> deliveryTags) throws IOException {
+		synchronized (this) {
+			for (Long deliveryTag : deliveryTags) {
+				if (outstanding.remove(deliveryTag)) {
+					completed.add(deliveryTag);
+				}
+			}
+			if (!flushDue()) {
+				return;
+			}
+		}
+		flush();
+	}
+
+	/**
+	 * Reject one delivery
+	 *
+	 * @param deliveryTag
+	 *           the delivery tag
+	 * @param requeue
+	 *           true to give the message back to the queue
+	 */
+	public void reject(long deliveryTag, boolean requeue) throws IOException {
+		synchronized (sendLock) {
+			synchronized (this) {
+				outstanding.remove(deliveryTag);
+			}
+			channel.basicReject(deliveryTag, requeue);
+		}
+	}
+
+	/**
+	 * Send the pending acks: one multiple ack for the tags below the lowest
+	 * outstanding one, and single acks for the tags above it that already
+	 * waited through the last flush
+	 */
+	public void flush() throws IOException {
+		synchronized (sendLock) {
+			long multiple = 0;
+			List<Long> singles = new ArrayList<Long>();
+			synchronized (this) {
+				if (completed.isEmpty()) {
+					return;
+				}
+				if (!channel.isOpen()) {
+					// the broker requeued them with the channel
+					completed.clear();
+					return;
+				}
+				SortedSet<Long> ready = outstanding.isEmpty() ? completed : completed.headSet(outstanding.first());
+				if (!ready.isEmpty()) {
+					multiple = ready.last();
+					ready.clear();
+				}
+				Iterator<Long> it = completed.iterator();
+				while (it.hasNext()) {
+					long deliveryTag = it.next();
+					if (deliveryTag > waiting) {
+						break;
+					}
+					singles.add(deliveryTag);
+					it.remove();
+				}
+				if (!completed.isEmpty()) {
+					waiting = completed.last();
+					if (!scheduleFlush()) {
+						singles.addAll(completed);
+						completed.clear();
+					}
+				}
+			}
+			if (multiple > 0) {
+				channel.basicAck(multiple, true);
+			}
+			for (Long deliveryTag : singles) {
+				channel.basicAck(deliveryTag, false);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of deliveries whose ack or reject was not sent yet
+	 */
+	public synchronized int getOutstanding() {
+		return outstanding.size() + completed.size();
+	}
+
+	/**
+	 * @return true if the pending acks must be flushed now, called with the
+	 *         tracker lock held
+	 */
+	private boolean flushDue() {
+		if (completed.size() >= batchSize) {
+			return true;
+		}
+		if (completed.isEmpty() || scheduleFlush()) {
+			return false;
+		}
+		// the timer is stopped, nothing left to wait for
+		waiting = completed.last();
+		return true;
+	}
+
+	/**
+	 * @return false if the timer is stopped
+	 */
+	private boolean scheduleFlush() {
+		if (flushScheduled) {
+			return true;
+		}
+		try {
+			timer.schedule(flusher, lingerMillis, TimeUnit.MILLISECONDS);
+			flushScheduled = true;
+			return true;
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+	}
+
+	private void lingerExpired() {
+		synchronized (this) {
+			flushScheduled = false;
+		}
+		try {
+			flush();
+		} catch (Exception e) {
+			// the broker redelivers them once the channel is gone
+			LOG.error(e, "Error flushing acks");
+		}
+	}
+}
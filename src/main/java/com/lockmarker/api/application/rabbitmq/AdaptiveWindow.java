@@ -0,0 +1,80 @@
+package com.lockmarker.api.application.rabbitmq;
+
+/**
+ * This class sizes the in-flight window of a subscriber by additive increase,
+ * multiplicative decrease.
+ *
+ * Every feed that succeeds within the latency target grows the window by
+ * 1/window, i.e. by one slot per full window of good feeds. A failed feed, or
+ * one slower than the target, halves the window. Halving happens at most
+ * once per latency target period, so a burst of slow responses that were all
+ * in flight together counts as a single congestion signal.
+ */
+public class AdaptiveWindow {
+	private static final int	MIN_WINDOW	= 1;
+	private final int				maxWindow;
+	private final long			latencyTargetMillis;
+	private double					window;
+	private long					lastDecrease;
+
+	/**
+	 * @param initialWindow
+	 *           the window to start with
+	 * @param maxWindow
+	 *           the largest window, i.e. the number of delivery workers
+	 * @param latencyTargetMillis
+	 *           feeds slower than this count as congestion
+	 */
+	public AdaptiveWindow(int initialWindow, int maxWindow, long latencyTargetMillis) {
+		this.maxWindow = Math.max(MIN_WINDOW, maxWindow);
+		this.latencyTargetMillis = latencyTargetMillis;
+		this.window = Math.max(MIN_WINDOW, Math.min(initialWindow, this.maxWindow));
+	}
+
+	/**
+	 * Record a successful feed
+	 *
+	 * @param latencyMillis
+	 *           the response time of the endpoint
+	 * @param now
+	 *           the current time in milliseconds
+	 * @return true if the window size changed
+	 */
+	public synchronized boolean onSuccess(long latencyMillis, long now) {
+		if (latencyMillis > latencyTargetMillis) {
+			return decrease(now);
+		}
+		int before = getWindow();
+		window = Math.min(maxWindow, window + 1 / window);
+		return getWindow() != before;
+	}
+
+	/**
+	 * Record a failed feed
+	 *
+	 * @param now
+	 *           the current time in milliseconds
+	 * @return true if the window size changed
+	 */
+	public synchronized boolean onFailure(long now) {
+		return decrease(now);
+	}
+
+	public synchronized int getWindow() {
+		return (int) window;
+	}
+
+	public int getMaxWindow() {
+		return maxWindow;
+	}
+
+	private boolean decrease(long now) {
+		if (now - lastDecrease < latencyTargetMillis) {
+			return false;
+		}
+		lastDecrease = now;
+		int before = getWindow();
+		window = Math.max(MIN_WINDOW, window / 2);
+		return getWindow() != before;
+	}
+}
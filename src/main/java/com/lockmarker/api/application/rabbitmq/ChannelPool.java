@@ -0,0 +1,374 @@
+package com.lockmarker.api.application.rabbitmq;
+
+import com.lockmarker.api.exceptions.InternalErrorException;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import com.yammer.dropwizard.logging.Log;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Timer;
+import com.yammer.metrics.core.TimerContext;
+
+/**
+ * This class manages the AMQP channels opened on the shared RabbitMQ connection.
+ *
+ * Publisher channels are kept in a bounded pool and leased to one caller at a
+ * time, so a channel is never used by two threads concurrently. The caller must
+ * hand the channel back with release() once the operation is done, usually in a
+ * finally block. Consumer channels are long-lived and opened separately, because
+ * a consumer owns its channel for as long as the subscription exists.
+ *
+ * Closed channels (e.g. after a channel-level error from the broker) are detected
+ * on lease and on release, discarded and replaced lazily by a fresh channel.
+ *
+ * When publisher confirms are enabled, every publisher channel is put in confirm
+ * mode and gets a PublisherConfirmTracker, and overdue confirms are failed by a
+ * background sweeper.
+ */
+public class ChannelPool {
+	private static final Log			LOG	= Log.forClass(ChannelPool.class);
+	private final Connection			connection;
+	private final int						maxChannels;
+	private final long					leaseTimeoutMillis;
+	private final LinkedBlockingDeque<Channel>	idleChannels;
+	private final Semaphore				permits;
+	private final Set<Channel>			leasedChannels;
+	private final Set<Channel>			consumerChannels;
+	private final int						maxOutstandingConfirms;
+	private final long					confirmTimeoutMillis;
+	private final Map<Channel, PublisherConfirmTracker>	confirmTrackers;
+	private ScheduledExecutorService	confirmSweeper;
+	private final Counter				channelsCreated;
+	private final Counter				channelsReplaced;
+	private final Timer					leaseWait;
+
+	/**
+	 * Create a channel pool on top of an open connection
+	 *
+	 * @param connection
+	 *           the connection to open channels on
+	 * @param maxChannels
+	 *           the maximum number of publisher channels leased at the same time
+	 * @param leaseTimeoutMillis
+	 *           how long a caller waits for a free channel before giving up
+	 */
+	public ChannelPool(Connection connection, int maxChannels, long leaseTimeoutMillis) {
+		this(connection, maxChannels, leaseTimeoutMillis, 0, 0);
+	}
+
+	/**
+	 * Create a channel pool whose publisher channels run in confirm mode
+	 *
+	 * @param connection
+	 *           the connection to open channels on
+	 * @param maxChannels
+	 *           the maximum number of publisher channels leased at the same time
+	 * @param leaseTimeoutMillis
+	 *           how long a caller waits for a free channel before giving up
+	 * @param maxOutstandingConfirms
+	 *           the maximum number of unconfirmed publishes per channel
+	 * @param confirmTimeoutMillis
+	 *           how long a publish may wait for its confirm, 0 disables confirms
+	 */
+	public ChannelPool(Connection connection, int maxChannels, long leaseTimeoutMillis,
+			int maxOutstandingConfirms, long confirmTimeoutMillis) {
+		this.connection = connection;
+		this.maxChannels = maxChannels;
+		this.leaseTimeoutMillis = leaseTimeoutMillis;
+		this.idleChannels = new LinkedBlockingDeque<Channel>(maxChannels);
+		this.permits = new Semaphore(maxChannels, true);
+		this.leasedChannels = Collections.newSetFromMap(new ConcurrentHashMap<Channel, Boolean>());
+		this.consumerChannels = Collections.newSetFromMap(new ConcurrentHashMap<Channel, Boolean>());
+		this.maxOutstandingConfirms = maxOutstandingConfirms;
+		this.confirmTimeoutMillis = confirmTimeoutMillis;
+		this.confirmTrackers = new ConcurrentHashMap<Channel, PublisherConfirmTracker>();
+		if (isConfirmEnabled()) {
+			startConfirmSweeper();
+		}
+
+		this.channelsCreated = Metrics.newCounter(ChannelPool.class, "channels-created");
+		this.channelsReplaced = Metrics.newCounter(ChannelPool.class, "channels-replaced");
+		this.leaseWait = Metrics.newTimer(ChannelPool.class, "lease-wait");
+		Metrics.newGauge(ChannelPool.class, "idle-publisher-channels", new Gauge<Integer>() {
+			@Override
+			public Integer value() {
+				return idleChannels.size();
+			}
+		});
+		Metrics.newGauge(ChannelPool.class, "leased-publisher-channels", new Gauge<Integer>() {
+			@Override
+			public Integer value() {
+				return leasedChannels.size();
+			}
+		});
+		Metrics.newGauge(ChannelPool.class, "consumer-channels", new Gauge<Integer>() {
+			@Override
+			public Integer value() {
+				return consumerChannels.size();
+			}
+		});
+		Metrics.newGauge(ChannelPool.class, "unconfirmed-messages", new Gauge<Integer>() {
+			@Override
+			public Integer value() {
+				int outstanding = 0;
+				for (PublisherConfirmTracker tracker : confirmTrackers.values()) {
+					outstanding += tracker.getOutstanding();
+				}
+				return outstanding;
+			}
+		});
+	}
+
+	public boolean isConfirmEnabled() {
+		return confirmTimeoutMillis > 0;
+	}
+
+	/**
+	 * Publish a message on a leased channel
+	 *
+	 * @param channel
+	 *           the leased publisher channel
+	 * @param exchange
+	 *           the exchange to publish to
+	 * @param routingKey
+	 *           the routing key
+	 * @param prop
+	 *           message properties, including the message ID
+	 * @param body
+	 *           message body
+	 * @return a future completing with the message ID once the broker confirms
+	 *         the message, or immediately if publisher confirms are disabled
+	 */
+	public ListenableFuture<String> publish(Channel channel, String exchange, String routingKey,
+			BasicProperties prop, byte[] body) throws IOException {
+		PublisherConfirmTracker tracker = confirmTrackers.get(channel);
+		if (tracker == null) {
+			channel.basicPublish(exchange, routingKey, prop, body);
+			return Futures.immediateFuture(prop.getMessageId());
+		}
+
+		// register the sequence number before publishing so an early ack is not missed
+		long seqNo = channel.getNextPublishSeqNo();
+		ListenableFuture<String> confirm = tracker.track(seqNo, prop.getMessageId());
+		try {
+			channel.basicPublish(exchange, routingKey, prop, body);
+		} catch (IOException e) {
+			tracker.discard(seqNo, e);
+			throw e;
+		}
+		return confirm;
+	}
+
+	/**
+	 * Lease a publisher channel. The channel is confined to the calling thread
+	 * until it is handed back through release().
+	 *
+	 * @return an open channel
+	 */
+	public Channel lease() {
+		final TimerContext context = leaseWait.time();
+		try {
+			if (!permits.tryAcquire(leaseTimeoutMillis, TimeUnit.MILLISECONDS)) {
+				LOG.error("No publisher channel available after " + leaseTimeoutMillis + " ms. Pool size: " + maxChannels);
+				throw new InternalErrorException("Messaging service is too busy. Try again later.");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InternalErrorException("Interrupted while waiting for a channel.");
+		} finally {
+			context.stop();
+		}
+
+		try {
+			Channel channel;
+			// most recently used channel first, discarding any that died while idle
+			while ((channel = idleChannels.pollFirst()) != null) {
+				if (channel.isOpen()) {
+					break;
+				}
+				LOG.debug("Discarding closed idle channel #" + channel.getChannelNumber());
+				discard(channel);
+			}
+			if (channel == null) {
+				channel = createPublisherChannel();
+			}
+			leasedChannels.add(channel);
+			return channel;
+		} catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Hand a leased channel back to the pool
+	 *
+	 * @param channel
+	 *           the channel returned by lease(), null is ignored
+	 */
+	public void release(Channel channel) {
+		if (channel == null) {
+			return;
+		}
+		if (!leasedChannels.remove(channel)) {
+			LOG.error("Ignoring release of a channel not leased from this pool: #" + channel.getChannelNumber());
+			return;
+		}
+		try {
+			if (channel.isOpen()) {
+				idleChannels.offerFirst(channel);
+			} else {
+				// broker closed it on a channel-level error, a new one is opened on next lease
+				LOG.debug("Discarding closed channel #" + channel.getChannelNumber());
+				discard(channel);
+			}
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Open a dedicated channel for a long-lived consumer. The channel is not
+	 * shared with publishers and is not counted against the publisher pool.
+	 *
+	 * @return an open channel
+	 */
+	public Channel openConsumerChannel() {
+		Channel channel = createChannel();
+		consumerChannels.add(channel);
+		return channel;
+	}
+
+	/**
+	 * Close a consumer channel opened by openConsumerChannel()
+	 *
+	 * @param channel
+	 *           the consumer channel
+	 */
+	public void closeConsumerChannel(Channel channel) {
+		if (channel == null) {
+			return;
+		}
+		consumerChannels.remove(channel);
+		closeQuietly(channel);
+	}
+
+	/**
+	 * Close all idle and consumer channels. Leased channels are closed by the
+	 * connection shutdown.
+	 */
+	public void close() {
+		if (confirmSweeper != null) {
+			confirmSweeper.shutdownNow();
+		}
+		Channel channel;
+		while ((channel = idleChannels.pollFirst()) != null) {
+			closeQuietly(channel);
+		}
+		for (Channel c : consumerChannels) {
+			closeQuietly(c);
+		}
+		consumerChannels.clear();
+	}
+
+	public int getIdleCount() {
+		return idleChannels.size();
+	}
+
+	public int getLeasedCount() {
+		return leasedChannels.size();
+	}
+
+	public int getConsumerCount() {
+		return consumerChannels.size();
+	}
+
+	private Channel createPublisherChannel() {
+		Channel channel = createChannel();
+		if (isConfirmEnabled()) {
+			try {
+				PublisherConfirmTracker tracker = new PublisherConfirmTracker(maxOutstandingConfirms, confirmTimeoutMillis);
+				channel.confirmSelect();
+				channel.addConfirmListener(tracker);
+				channel.addShutdownListener(tracker);
+				confirmTrackers.put(channel, tracker);
+			} catch (IOException e) {
+				closeQuietly(channel);
+				LOG.error(e, "Error enabling publisher confirms on channel.");
+				throw new InternalErrorException("Error opening a channel to RabbitMQ server.");
+			}
+		}
+		return channel;
+	}
+
+	private void discard(Channel channel) {
+		channelsReplaced.inc();
+		confirmTrackers.remove(channel);
+	}
+
+	private void startConfirmSweeper() {
+		confirmSweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "publisher-confirm-sweeper");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		// a tenth of the timeout keeps the overshoot on expiry small
+		long period = Math.max(10, confirmTimeoutMillis / 10);
+		confirmSweeper.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				long now = System.currentTimeMillis();
+				for (PublisherConfirmTracker tracker : confirmTrackers.values()) {
+					tracker.expire(now);
+				}
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	private Channel createChannel() {
+		try {
+			Channel channel = connection.createChannel();
+			if (channel == null) {
+				throw new InternalErrorException("No channel number available on the RabbitMQ connection.");
+			}
+			channelsCreated.inc();
+			LOG.debug("Opened channel #" + channel.getChannelNumber());
+			return channel;
+		} catch (IOException e) {
+			LOG.error(e, "Error opening a channel to RabbitMQ server.");
+			throw new InternalErrorException("Error opening a channel to RabbitMQ server.");
+		}
+	}
+
+	private void closeQuietly(Channel channel) {
+		try {
+			if (channel.isOpen()) {
+				channel.close();
+			}
+		} catch (Exception e) {
+			LOG.debug("Error closing channel #" + channel.getChannelNumber() + ": " + e.getMessage());
+		}
+	}
+}
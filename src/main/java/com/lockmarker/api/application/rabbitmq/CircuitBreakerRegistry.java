@@ -0,0 +1,174 @@
+package com.lockmarker.api.application.rabbitmq;
+
+import com.lockmarker.utils.HttpConnectionPool;
+import com.lockmarker.utils.WebClientTool;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.yammer.dropwizard.logging.Log;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+
+/**
+ * This class keeps one circuit breaker per subscriber endpoint, shared by all
+ * subscribers feeding that endpoint, and probes the endpoints whose circuit
+ * is open.
+ *
+ * Probes run on their own threads with the same PUT check used when a
+ * subscriber is created. A failed probe is repeated with a doubling interval,
+ * up to the maximum probe interval.
+ *
+ * Subscribers acquire the breaker of their endpoint when they are created and
+ * release it when they are deleted; the breaker of an endpoint no subscriber
+ * feeds any more is dropped, and its probes stop.
+ */
+public class CircuitBreakerRegistry implements EndpointCircuitBreaker.Listener {
+	private static final Log												LOG	= Log.forClass(CircuitBreakerRegistry.class);
+	private static final int												PROBE_THREADS	= 2;
+	private final ConcurrentMap<String, EndpointCircuitBreaker>	breakers;
+	// the number of subscribers feeding each endpoint, guarded by the registry
+	private final Map<String, Integer>									users;
+	private final HttpConnectionPool										connections;
+	private final int															failureThreshold;
+	private final long														probeIntervalMillis;
+	private final long														maxProbeIntervalMillis;
+	private final ScheduledExecutorService								prober;
+
+	/**
+	 * @param connections
+	 *           the connection pool used for probes
+	 * @param failureThreshold
+	 *           the number of consecutive failures that opens a circuit
+	 * @param probeIntervalMillis
+	 *           the delay before the first probe of an open circuit
+	 * @param maxProbeIntervalMillis
+	 *           the longest delay between probes
+	 */
+	public CircuitBreakerRegistry(HttpConnectionPool connections, int failureThreshold,
+			long probeIntervalMillis, long maxProbeIntervalMillis) {
+		this.breakers = new ConcurrentHashMap<String, EndpointCircuitBreaker>();
+		this.users = new HashMap<String, Integer>();
+		this.connections = connections;
+		this.failureThreshold = failureThreshold;
+		this.probeIntervalMillis = probeIntervalMillis;
+		this.maxProbeIntervalMillis = Math.max(probeIntervalMillis, maxProbeIntervalMillis);
+		final AtomicInteger threadCount = new AtomicInteger();
+		this.prober = Executors.newScheduledThreadPool(PROBE_THREADS, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "endpoint-probe-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		Metrics.newGauge(CircuitBreakerRegistry.class, "open-circuits", new Gauge<Integer>() {
+			@Override
+			public Integer value() {
+				int open = 0;
+				for (EndpointCircuitBreaker breaker : breakers.values()) {
+					if (!breaker.isClosed()) {
+						open++;
+					}
+				}
+				return open;
+			}
+		});
+	}
+
+	/**
+	 * Get the circuit breaker of an endpoint for a new subscriber, creating it
+	 * on first use
+	 *
+	 * @param endpoint
+	 *           the subscriber endpoint
+	 * @return the breaker shared by all subscribers of the endpoint
+	 */
+	public synchronized EndpointCircuitBreaker acquire(String endpoint) {
+		EndpointCircuitBreaker breaker = breakers.get(endpoint);
+		if (breaker == null) {
+			breaker = new EndpointCircuitBreaker(endpoint, failureThreshold);
+			breaker.addListener(this);
+			breakers.put(endpoint, breaker);
+		}
+		Integer count = users.get(endpoint);
+		users.put(endpoint, count == null ? 1 : count + 1);
+		return breaker;
+	}
+
+	/**
+	 * A subscriber of an endpoint is gone. The breaker is dropped with the last
+	 * one.
+	 *
+	 * @param endpoint
+	 *           the subscriber endpoint
+	 */
+	public synchronized void release(String endpoint) {
+		Integer count = users.get(endpoint);
+		if (count == null) {
+			return;
+		}
+		if (count > 1) {
+			users.put(endpoint, count - 1);
+			return;
+		}
+		users.remove(endpoint);
+		EndpointCircuitBreaker breaker = breakers.remove(endpoint);
+		if (breaker != null) {
+			breaker.removeListener(this);
+		}
+	}
+
+	/**
+	 * @return the number of endpoints with a breaker
+	 */
+	public int size() {
+		return breakers.size();
+	}
+
+	@Override
+	public void onOpen(EndpointCircuitBreaker breaker) {
+		scheduleProbe(breaker, probeIntervalMillis);
+	}
+
+	@Override
+	public void onClose(EndpointCircuitBreaker breaker) {
+	}
+
+	public void stop() {
+		prober.shutdownNow();
+	}
+
+	private void scheduleProbe(final EndpointCircuitBreaker breaker, final long delayMillis) {
+		try {
+			prober.schedule(new Runnable() {
+				@Override
+				public void run() {
+					// closed meanwhile, or released by its last subscriber
+					if (breaker.isClosed() || breakers.get(breaker.getEndpoint()) != breaker) {
+						return;
+					}
+					if (WebClientTool.isEndpointAlive(breaker.getEndpoint(), connections)) {
+						breaker.close();
+					} else {
+						long next = Math.min(delayMillis * 2, maxProbeIntervalMillis);
+						LOG.debug("Endpoint " + breaker.getEndpoint() + " still down, probing again in " + next + " ms");
+						scheduleProbe(breaker, next);
+					}
+				}
+			}, delayMillis, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// stopped, nothing to probe for any more
+			LOG.debug("Not probing endpoint " + breaker.getEndpoint() + ", the registry is stopped.");
+		}
+	}
+}
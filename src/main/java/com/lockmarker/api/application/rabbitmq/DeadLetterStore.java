@@ -0,0 +1,283 @@
+package com.lockmarker.api.application.rabbitmq;
+
+import com.lockmarker.api.application.model.Message;
+import com.lockmarker.api.exceptions.InternalErrorException;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.GetResponse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import com.yammer.dropwizard.logging.Log;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Meter;
+
+/**
+ * This class keeps the messages that could not be delivered to a subscriber
+ * within its redelivery policy.
+ *
+ * Every subscriber has a durable dead-letter queue named MSGAS-DLQ-<subscriber ID>.
+ * Exhausted messages are published there with a publisher confirm before the
+ * original delivery is acked, so a message is never in neither queue. Replay
+ * moves messages back to the subscriber queue in small confirmed batches at a
+ * bounded rate; only one batch is held in memory, so a replay can run through
+ * any number of messages.
+ */
+public class DeadLetterStore {
+	private static final Log						LOG					= Log.forClass(DeadLetterStore.class);
+	public static final String						RESERVED_DLQ_PREFIX	= "MSGAS-DLQ";
+	private static final int						REPLAY_BATCH_SIZE	= 100;
+	private static final int						MAX_PEEK				= 100;
+	private static final int						PERSISTENT			= 2;
+	private final ChannelPool						channelPool;
+	private final long								confirmTimeoutMillis;
+	private final Set<String>						declaredQueues;
+	private final ListeningExecutorService		replayExecutor;
+	private final Meter								deadLettered;
+	private final Meter								replayed;
+
+	/**
+	 * @param channelPool
+	 *           the pool to lease publisher channels from
+	 * @param confirmTimeoutMillis
+	 *           how long to wait for a dead-letter publish to be confirmed
+	 */
+	public DeadLetterStore(ChannelPool channelPool, long confirmTimeoutMillis) {
+		this.channelPool = channelPool;
+		this.confirmTimeoutMillis = confirmTimeoutMillis;
+		this.declaredQueues = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		// replays run one at a time so they cannot starve publishers of channels
+		this.replayExecutor = MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "dead-letter-replay");
+				thread.setDaemon(true);
+				return thread;
+			}
+		}));
+		this.deadLettered = Metrics.newMeter(DeadLetterStore.class, "dead-lettered", "messages", TimeUnit.SECONDS);
+		this.replayed = Metrics.newMeter(DeadLetterStore.class, "replayed", "messages", TimeUnit.SECONDS);
+	}
+
+	public static String getQueueName(String subscriberId) {
+		return RESERVED_DLQ_PREFIX + "-" + subscriberId;
+	}
+
+	/**
+	 * Declare the dead-letter queue of a subscriber
+	 *
+	 * @param channel
+	 *           any open channel
+	 * @param subscriberId
+	 *           the ID of subscriber
+	 */
+	public void declare(Channel channel, String subscriberId) throws java.io.IOException {
+		String queueName = getQueueName(subscriberId);
+		channel.queueDeclare(queueName, true, false, false, null);
+		declaredQueues.add(queueName);
+	}
+
+	/**
+	 * Store an undeliverable message in the subscriber's dead-letter queue
+	 *
+	 * @param subscriberId
+	 *           the ID of subscriber
+	 * @param message
+	 *           the message that exhausted its retries
+	 * @return true once the broker confirmed the message, false if it could not
+	 *         be stored
+	 */
+	public boolean store(String subscriberId, Message message) {
+		String queueName = getQueueName(subscriberId);
+		Channel channel = null;
+		ListenableFuture<String> confirm;
+		try {
+			channel = channelPool.lease();
+			if (!declaredQueues.contains(queueName)) {
+				// subscribers created before dead-lettering existed have no DLQ yet
+				declare(channel, subscriberId);
+			}
+			confirm = channelPool.publish(channel, "", queueName, newProperties(message), message.getBodyArray());
+		} catch (Exception e) {
+			LOG.error(e, "Error dead-lettering message " + message.getId() + " of Subscriber " + subscriberId);
+			return false;
+		} finally {
+			channelPool.release(channel);
+		}
+
+		try {
+			confirm.get(confirmTimeoutMillis, TimeUnit.MILLISECONDS);
+			deadLettered.mark();
+			LOG.info("Message " + message.getId() + " moved to dead-letter queue of Subscriber " + subscriberId);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (Exception e) {
+			LOG.error(e, "Dead-lettered message " + message.getId() + " was not confirmed.");
+			return false;
+		}
+	}
+
+	/**
+	 * Look at the oldest dead letters of a subscriber without removing them
+	 *
+	 * @param subscriberId
+	 *           the ID of subscriber
+	 * @param max
+	 *           the maximum number of messages to return, at most 100
+	 * @return the dead letters, oldest first
+	 */
+	public List<Message> peek(String subscriberId, int max) {
+		List<Message> messages = new ArrayList<Message>();
+		Channel channel = null;
+		try {
+			// unacked gets go back to the queue in their original order when the channel closes
+			channel = channelPool.openConsumerChannel();
+			for (int i = 0; i < Math.min(max, MAX_PEEK); i++) {
+				GetResponse response = channel.basicGet(getQueueName(subscriberId), false);
+				if (response == null) {
+					break;
+				}
+				messages.add(toMessage(response));
+			}
+			return messages;
+		} catch (Exception e) {
+			LOG.error(e, "Error reading dead letters of Subscriber " + subscriberId);
+			throw new InternalErrorException("Error reading dead letters of Subscriber " + subscriberId);
+		} finally {
+			channelPool.closeConsumerChannel(channel);
+		}
+	}
+
+	/**
+	 * Move dead letters back to the subscriber queue in the background
+	 *
+	 * @param subscriberId
+	 *           the ID of subscriber
+	 * @param max
+	 *           the maximum number of messages to replay
+	 * @param ratePerSecond
+	 *           the maximum replay rate
+	 * @return a future completing with the number of messages replayed
+	 */
+	public ListenableFuture<Long> replay(final String subscriberId, final long max, final int ratePerSecond) {
+		if (max < 1 || ratePerSecond < 1) {
+			throw new IllegalArgumentException("max and rate must be positive");
+		}
+		return replayExecutor.submit(new Callable<Long>() {
+			@Override
+			public Long call() throws Exception {
+				return replayNow(subscriberId, max, ratePerSecond);
+			}
+		});
+	}
+
+	/**
+	 * Delete the dead-letter queue of a subscriber
+	 *
+	 * @param channel
+	 *           any open channel
+	 * @param subscriberId
+	 *           the ID of subscriber
+	 */
+	public void delete(Channel channel, String subscriberId) throws java.io.IOException {
+		String queueName = getQueueName(subscriberId);
+		declaredQueues.remove(queueName);
+		channel.queueDelete(queueName);
+	}
+
+	public void stop() {
+		replayExecutor.shutdownNow();
+	}
+
+	private long replayNow(String subscriberId, long max, int ratePerSecond) throws Exception {
+		String queueName = getQueueName(subscriberId);
+		int batchSize = Math.min(REPLAY_BATCH_SIZE, ratePerSecond);
+		long replayedCount = 0;
+		Channel source = channelPool.openConsumerChannel();
+		try {
+			LOG.info("Replaying up to " + max + " dead letters of Subscriber " + subscriberId
+					+ " at " + ratePerSecond + " messages/s");
+			while (replayedCount < max) {
+				long batchStart = System.currentTimeMillis();
+				int batch = replayBatch(source, queueName, subscriberId, (int) Math.min(batchSize, max - replayedCount));
+				replayedCount += batch;
+				if (batch < batchSize) {
+					break;
+				}
+				// pace batches so the average rate stays under ratePerSecond
+				long pause = batch * 1000L / ratePerSecond - (System.currentTimeMillis() - batchStart);
+				if (pause > 0) {
+					Thread.sleep(pause);
+				}
+			}
+			LOG.info("Replayed " + replayedCount + " dead letters of Subscriber " + subscriberId);
+			return replayedCount;
+		} finally {
+			channelPool.closeConsumerChannel(source);
+		}
+	}
+
+	private int replayBatch(Channel source, String queueName, String subscriberId, int batchSize) throws Exception {
+		List<ListenableFuture<String>> confirms = new ArrayList<ListenableFuture<String>>(batchSize);
+		long lastTag = -1;
+		Channel channel = channelPool.lease();
+		try {
+			for (int i = 0; i < batchSize; i++) {
+				GetResponse response = source.basicGet(queueName, false);
+				if (response == null) {
+					break;
+				}
+				lastTag = response.getEnvelope().getDeliveryTag();
+				// the default exchange routes straight to the subscriber queue
+				confirms.add(channelPool.publish(channel, "", subscriberId, response.getProps(), response.getBody()));
+			}
+		} finally {
+			channelPool.release(channel);
+		}
+		if (lastTag < 0) {
+			return 0;
+		}
+
+		// only drop the batch from the dead-letter queue once all of it is back
+		Futures.allAsList(confirms).get(confirmTimeoutMillis, TimeUnit.MILLISECONDS);
+		source.basicAck(lastTag, true);
+		replayed.mark(confirms.size());
+		return confirms.size();
+	}
+
+	private static BasicProperties newProperties(Message message) {
+		Map<String, Object> topicHeader = new HashMap<String, Object>();
+		topicHeader.put("topic", message.getTopic());
+		return new BasicProperties.Builder()
+				.messageId(message.getId())
+				.deliveryMode(PERSISTENT)
+				.contentType(message.getContentType())
+				.headers(topicHeader)
+				.build();
+	}
+
+	private static Message toMessage(GetResponse response) {
+		BasicProperties prop = response.getProps();
+		Object topic = prop.getHeaders() == null ? null : prop.getHeaders().get("topic");
+		return new Message(prop.getMessageId(), topic == null ? null : topic.toString(), response.getBody(),
+				prop.getContentType());
+	}
+}
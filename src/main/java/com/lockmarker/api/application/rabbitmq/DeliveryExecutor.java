@@ -0,0 +1,312 @@
+package com.lockmarker.api.application.rabbitmq;
+
+import com.lockmarker.api.application.policy.DeliveryPolicy;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.yammer.dropwizard.logging.Log;
+
+/**
+ * This class runs the feeds of one subscriber on its own worker threads, so
+ * that a slow endpoint only holds up its own subscriber and several feeds to
+ * the same endpoint can be in flight at once.
+ *
+ * The work queue is unbounded on purpose: the broker never pushes more than
+ * the prefetch of the subscriber's channel, so at most prefetch tasks are ever
+ * queued. With ordered delivery, tasks are spread over one serial lane per
+ * worker by the hash of their ordering key; tasks of a lane run one at a time
+ * in submission order while different lanes run in parallel.
+ *
+ * A HeldTask may finish after its run() returns, e.g. when its feed failed
+ * and the message waits for a retry. Its lane stays held until it calls
+ * release, so a retried message is not overtaken by the later messages of its
+ * key. The worker is free meanwhile.
+ *
+ * The number of feeds running at once can be lowered below the number of
+ * workers with setLimit(); tasks over the limit wait in submission order.
+ */
+public class DeliveryExecutor {
+	private static final Log					LOG	= Log.forClass(DeliveryExecutor.class);
+	// the release of a task that holds no lane
+	private static final Runnable				NO_LANE	=
+			new Runnable() {
+				@Override
+				public void run() {
+				}
+			};
+	private final ThreadPoolExecutor			workers;
+	private final Gate							gate;
+	private final SerialLane[]					lanes;
+	private final AtomicInteger				inFlight;
+
+	/**
+	 * @param subscriberId
+	 *           the ID of subscriber, used to name the worker threads
+	 * @param policy
+	 *           the delivery policy of the subscriber
+	 */
+	public DeliveryExecutor(final String subscriberId, DeliveryPolicy policy) {
+		final AtomicInteger threadCount = new AtomicInteger();
+		int concurrency = policy.getConcurrency();
+		this.workers = new ThreadPoolExecutor(concurrency, concurrency, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "delivery-" + subscriberId + "-" + threadCount.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		this.workers.allowCoreThreadTimeOut(true);
+		this.inFlight = new AtomicInteger();
+		this.gate = new Gate(workers, concurrency);
+		if (policy.isOrdered()) {
+			this.lanes = new SerialLane[concurrency];
+			for (int i = 0; i < concurrency; i++) {
+				this.lanes[i] = new SerialLane();
+			}
+		} else {
+			this.lanes = null;
+		}
+	}
+
+	/**
+	 * Run a feed on a worker thread
+	 *
+	 * @param orderingKey
+	 *           feeds with equal keys run in order if delivery is ordered
+	 * @param task
+	 *           the feed
+	 */
+	public void execute(String orderingKey, final Runnable task) {
+		execute(orderingKey, new HeldTask() {
+			@Override
+			public void run(Runnable release) {
+				try {
+					task.run();
+				} finally {
+					release.run();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Run a feed that may hold the lane of its ordering key after it returns
+	 *
+	 * @param orderingKey
+	 *           feeds with equal keys run in order if delivery is ordered
+	 * @param task
+	 *           the feed
+	 */
+	public void execute(String orderingKey, HeldTask task) {
+		if (workers.isShutdown()) {
+			throw new RejectedExecutionException("Delivery executor is shut down.");
+		}
+		inFlight.incrementAndGet();
+		if (lanes == null) {
+			try {
+				gate.execute(counted(task, NO_LANE));
+			} catch (RejectedExecutionException e) {
+				inFlight.decrementAndGet();
+				throw e;
+			}
+		} else {
+			int hash = orderingKey == null ? 0 : orderingKey.hashCode();
+			lanes[(hash & Integer.MAX_VALUE) % lanes.length].execute(task);
+		}
+	}
+
+	/**
+	 * @return the number of feeds queued or running
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * Change the number of feeds that may run at once
+	 *
+	 * @param limit
+	 *           the new limit, at most the number of workers is used
+	 */
+	public void setLimit(int limit) {
+		gate.setLimit(limit);
+	}
+
+	public int getLimit() {
+		return gate.getLimit();
+	}
+
+	/**
+	 * Let the queued feeds finish and stop the workers afterwards
+	 */
+	public void shutdown() {
+		workers.shutdown();
+	}
+
+	private Runnable counted(final HeldTask task, final Runnable release) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				try {
+					task.run(release);
+				} catch (Throwable t) {
+					LOG.error(t, "Unexpected error in delivery task.");
+					release.run();
+				} finally {
+					inFlight.decrementAndGet();
+				}
+			}
+		};
+	}
+
+	/**
+	 * A feed that may leave work behind when run() returns
+	 */
+	public interface HeldTask {
+		/**
+		 * @param release
+		 *           to be run once the message is done with; the lane of the
+		 *           ordering key waits for it
+		 */
+		void run(Runnable release);
+	}
+
+	private class SerialLane {
+		private final Queue<HeldTask>	tasks;
+		private boolean					running;
+
+		SerialLane() {
+			this.tasks = new ArrayDeque<HeldTask>();
+		}
+
+		synchronized void execute(HeldTask task) {
+			tasks.add(task);
+			if (!running) {
+				scheduleNext();
+			}
+		}
+
+		private synchronized void scheduleNext() {
+			HeldTask next = tasks.poll();
+			running = next != null;
+			if (!running) {
+				return;
+			}
+			final AtomicBoolean released = new AtomicBoolean();
+			try {
+				gate.execute(counted(next, new Runnable() {
+					@Override
+					public void run() {
+						if (released.compareAndSet(false, true)) {
+							release();
+						}
+					}
+				}));
+			} catch (RejectedExecutionException e) {
+				// shut down, the channel gives the unfed messages back when it closes
+				running = false;
+				inFlight.addAndGet(-(tasks.size() + 1));
+				tasks.clear();
+				throw e;
+			}
+		}
+
+		private void release() {
+			try {
+				scheduleNext();
+			} catch (RejectedExecutionException e) {
+				LOG.debug("Dropping queued deliveries of a stopped subscriber.");
+			}
+		}
+	}
+
+	private static class Gate implements Executor {
+		private final Executor			executor;
+		private final Queue<Runnable>	waiting;
+		private int							running;
+		private int							limit;
+
+		Gate(Executor executor, int limit) {
+			this.executor = executor;
+			this.waiting = new ArrayDeque<Runnable>();
+			this.limit = limit;
+		}
+
+		@Override
+		public void execute(final Runnable task) {
+			synchronized (this) {
+				waiting.add(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							task.run();
+						} finally {
+							synchronized (Gate.this) {
+								running--;
+							}
+							try {
+								drain();
+							} catch (RejectedExecutionException e) {
+								LOG.debug("Dropping queued deliveries of a stopped subscriber.");
+							}
+						}
+					}
+				});
+			}
+			drain();
+		}
+
+		synchronized int getLimit() {
+			return limit;
+		}
+
+		void setLimit(int limit) {
+			synchronized (this) {
+				this.limit = Math.max(1, limit);
+			}
+			try {
+				drain();
+			} catch (RejectedExecutionException e) {
+				LOG.debug("Dropping queued deliveries of a stopped subscriber.");
+			}
+		}
+
+		/**
+		 * @throws RejectedExecutionException
+		 *            if the workers are shut down; the queued tasks are dropped
+		 */
+		private void drain() {
+			while (true) {
+				Runnable next;
+				synchronized (this) {
+					if (running >= limit || waiting.isEmpty()) {
+						return;
+					}
+					next = waiting.poll();
+					running++;
+				}
+				try {
+					executor.execute(next);
+				} catch (RejectedExecutionException e) {
+					// shut down, the channel gives the unfed messages back when it closes
+					synchronized (this) {
+						running--;
+						waiting.clear();
+					}
+					throw e;
+				}
+			}
+		}
+	}
+}
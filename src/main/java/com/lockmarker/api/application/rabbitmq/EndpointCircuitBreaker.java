@@ -0,0 +1,106 @@
+package com.lockmarker.api.application.rabbitmq;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.yammer.dropwizard.logging.Log;
+
+/**
+ * This class tracks the health of one subscriber endpoint.
+ *
+ * The circuit opens after a number of consecutive failed feeds. While it is
+ * open, the subscribers feeding this endpoint stop consuming and give their
+ * unacked messages back to their queues, so nothing is fed to a dead endpoint
+ * and nothing is held in memory. The circuit closes again once a probe finds
+ * the endpoint alive, and the subscribers resume consuming.
+ */
+public class EndpointCircuitBreaker {
+	private static final Log									LOG	= Log.forClass(EndpointCircuitBreaker.class);
+	private final String											endpoint;
+	private final int												failureThreshold;
+	private final CopyOnWriteArrayList<Listener>			listeners;
+	private int														consecutiveFailures;
+	private volatile boolean									open;
+
+	/**
+	 * @param endpoint
+	 *           the subscriber endpoint
+	 * @param failureThreshold
+	 *           the number of consecutive failures that opens the circuit
+	 */
+	public EndpointCircuitBreaker(String endpoint, int failureThreshold) {
+		this.endpoint = endpoint;
+		this.failureThreshold = failureThreshold;
+		this.listeners = new CopyOnWriteArrayList<Listener>();
+	}
+
+	public String getEndpoint() {
+		return endpoint;
+	}
+
+	/**
+	 * @return true if feeds may be sent to the endpoint
+	 */
+	public boolean isClosed() {
+		return !open;
+	}
+
+	public void addListener(Listener listener) {
+		listeners.addIfAbsent(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	public void recordSuccess() {
+		synchronized (this) {
+			consecutiveFailures = 0;
+		}
+	}
+
+	/**
+	 * Record a failed feed
+	 *
+	 * @return true if this failure opened the circuit
+	 */
+	public boolean recordFailure() {
+		synchronized (this) {
+			consecutiveFailures++;
+			if (open || consecutiveFailures < failureThreshold) {
+				return false;
+			}
+			open = true;
+		}
+		LOG.info("Circuit of endpoint " + endpoint + " opened after " + failureThreshold + " consecutive failures.");
+		for (Listener listener : listeners) {
+			listener.onOpen(this);
+		}
+		return true;
+	}
+
+	/**
+	 * Close the circuit after a successful probe
+	 */
+	public void close() {
+		synchronized (this) {
+			if (!open) {
+				return;
+			}
+			open = false;
+			consecutiveFailures = 0;
+		}
+		LOG.info("Circuit of endpoint " + endpoint + " closed, endpoint is alive again.");
+		for (Listener listener : listeners) {
+			listener.onClose(this);
+		}
+	}
+
+	/**
+	 * Is told when the circuit opens and closes
+	 */
+	public interface Listener {
+		void onOpen(EndpointCircuitBreaker breaker);
+
+		void onClose(EndpointCircuitBreaker breaker);
+	}
+}
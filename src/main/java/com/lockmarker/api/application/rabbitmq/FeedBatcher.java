@@ -0,0 +1,116 @@
+package com.lockmarker.api.application.rabbitmq;
+
+import com.lockmarker.api.application.model.Message;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class groups the deliveries of a subscriber into batches for batch
+ * feed mode.
+ *
+ * A batch is handed on as soon as it holds batchSize messages, or when the
+ * linger time has passed since its first message arrived, whichever comes
+ * first. Batches are kept per key, so with ordered delivery a batch never mixes
+ * messages that must stay in order with others.
+ */
+public class FeedBatcher {
+	private final int										batchSize;
+	private final long									lingerMillis;
+	private final ScheduledExecutorService			timer;
+	private final BatchListener						listener;
+	private final Map<String, Batch>					batches;
+
+	/**
+	 * @param batchSize
+	 *           the maximum number of messages in a batch
+	 * @param lingerMillis
+	 *           how long a batch waits to fill up
+	 * @param timer
+	 *           fires the linger timeouts
+	 * @param listener
+	 *           receives the complete batches
+	 */
+	public FeedBatcher(int batchSize, long lingerMillis, ScheduledExecutorService timer, BatchListener listener) {
+		this.batchSize = batchSize;
+		this.lingerMillis = lingerMillis;
+		this.timer = timer;
+		this.listener = listener;
+		this.batches = new HashMap<String, Batch>();
+	}
+
+	/**
+	 * Add a delivery to the batch of its key
+	 *
+	 * @param key
+	 *           the batch key
+	 * @param deliveryTag
+	 *           the delivery tag
+	 * @param message
+	 *           the delivered message
+	 */
+	public void add(final String key, long deliveryTag, Message message) {
+		Batch full = null;
+		synchronized (this) {
+			Batch batch = batches.get(key);
+			if (batch == null) {
+				batch = new Batch();
+				batches.put(key, batch);
+				final Batch lingering = batch;
+				batch.linger = timer.schedule(new Runnable() {
+					@Override
+					public void run() {
+						flush(key, lingering);
+					}
+				}, lingerMillis, TimeUnit.MILLISECONDS);
+			}
+			batch.deliveryTags.add(deliveryTag);
+			batch.messages.add(message);
+			if (batch.messages.size() >= batchSize) {
+				batches.remove(key);
+				batch.linger.cancel(false);
+				full = batch;
+			}
+		}
+		if (full != null) {
+			listener.onBatch(key, full.deliveryTags, full.messages);
+		}
+	}
+
+	private void flush(String key, Batch batch) {
+		synchronized (this) {
+			// the batch may have filled up and gone out already
+			if (batches.get(key) != batch) {
+				return;
+			}
+			batches.remove(key);
+		}
+		listener.onBatch(key, batch.deliveryTags, batch.messages);
+	}
+
+	/**
+	 * Receives the batches once they are full or have lingered long enough
+	 */
+	public interface BatchListener {
+		/**
+		 * @param key
+		 *           the batch key
+		 * @param deliveryTags
+		 *           the delivery tags in ascending order
+		 * @param messages
+		 *           the messages in delivery order
+		 */
+		void onBatch(String key, List<Long> deliveryTags, List<Message> messages);
+	}
+
+	private static class Batch {
+		private final List<Long>		deliveryTags	= new ArrayList<Long>();
+		private final List<Message>	messages			= new ArrayList<Message>();
+		private ScheduledFuture<?>		linger;
+	}
+}
@@ -0,0 +1,126 @@
+package com.lockmarker.api.application.rabbitmq;
+
+import com.lockmarker.api.application.model.Message;
+import com.lockmarker.utils.JsonProcessor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.io.SerializedString;
+
+/**
+ * The request body of a subscription feed, written straight to the
+ * connection.
+ *
+ * A single message is sent as {"messageId", "topicName", "message"}, a batch
+ * as a JSON array of such documents. Message bodies are escaped from the
+ * delivered bytes into the request stream, so no String or JSON tree of the
+ * body is ever built. A body the publisher sent as JSON becomes the "message"
+ * value as it is, without escaping, once it is checked to be well-formed; a
+ * malformed one is sent as an escaped string, so it cannot break the feed.
+ * A body that is not text, e.g. application/octet-stream, is sent base64
+ * encoded with "encoding": "base64" next to it.
+ *
+ * The field names are encoded once for all feeds. One generator writes the
+ * whole feed, and its buffers are recycled by the shared factory.
+ */
+public class FeedEntity extends AbstractHttpEntity {
+	private static final SerializedString	MESSAGE_ID	= new SerializedString("messageId");
+	private static final SerializedString	TOPIC_NAME	= new SerializedString("topicName");
+	private static final SerializedString	MESSAGE		= new SerializedString("message");
+	private static final SerializedString	ENCODING		= new SerializedString("encoding");
+	private static final SerializedString	BASE64		= new SerializedString("base64");
+	private final List<Message>	messages;
+	private final boolean			batch;
+
+	/**
+	 * A feed of one message
+	 */
+	public FeedEntity(Message message) {
+		this(Collections.singletonList(message), false);
+	}
+
+	/**
+	 * A feed of a batch of messages, in delivery order
+	 */
+	public FeedEntity(List<Message> messages) {
+		this(messages, true);
+	}
+
+	private FeedEntity(List<Message> messages, boolean batch) {
+		this.messages = messages;
+		this.batch = batch;
+		setContentType(ContentType.APPLICATION_JSON.toString());
+		setChunked(true);
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	@Override
+	public long getContentLength() {
+		return -1;
+	}
+
+	@Override
+	public InputStream getContent() throws IOException {
+		// only used by code that wants to read the entity back, never when sending
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writeTo(out);
+		return new ByteArrayInputStream(out.toByteArray());
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		JsonGenerator generator = JsonProcessor.createJsonGenerator(out);
+		// flush() only hands the generator's buffer to the connection, it must not send a chunk
+		generator.disable(JsonGenerator.Feature.FLUSH_PASSED_TO_STREAM);
+		if (batch) {
+			generator.writeStartArray();
+		}
+		for (Message message : messages) {
+			generator.writeStartObject();
+			generator.writeFieldName(MESSAGE_ID);
+			generator.writeString(message.getId());
+			generator.writeFieldName(TOPIC_NAME);
+			generator.writeString(message.getTopic());
+			if (!message.isText()) {
+				generator.writeFieldName(ENCODING);
+				generator.writeString(BASE64);
+				generator.writeFieldName(MESSAGE);
+				message.writeJsonBase64(generator);
+				generator.writeEndObject();
+				continue;
+			}
+			generator.writeFieldName(MESSAGE);
+			if (message.isJson()) {
+				// an empty raw value writes the separator, the body bytes follow it unchanged
+				generator.writeRawValue("");
+				generator.flush();
+				message.writeBody(out);
+			} else {
+				message.writeJsonString(generator);
+			}
+			generator.writeEndObject();
+		}
+		if (batch) {
+			generator.writeEndArray();
+		}
+		generator.flush();
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return false;
+	}
+}
@@ -0,0 +1,186 @@
+package com.lockmarker.api.application.rabbitmq;
+
+import com.lockmarker.utils.HashedTimingWheel;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.yammer.dropwizard.logging.Log;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+
+/**
+ * This class keeps the messages pulled with a visibility timeout. Such a
+ * message stays unacked on the channel of the prefetcher that pulled it until
+ * the consumer deletes it, which acks it, or its lease expires, which requeues
+ * it for the next pull. A consumer that needs longer extends the lease.
+ *
+ * Leases are found by topic and message ID in a concurrent map and expire on
+ * a HashedTimingWheel, so taking, settling and extending a lease is O(1) and
+ * costs one small object on the wheel. Expiry is up to one tick late.
+ *
+ * Exactly one of ack and expiry settles a lease: whichever removes it from
+ * the map first.
+ */
+public class LeaseTable {
+	private static final Log							LOG			= Log.forClass(LeaseTable.class);
+	private static final long							TICK_MILLIS	= 100;
+	private static final int							WHEEL_SIZE	= 1024;
+	private final ConcurrentMap<String, Lease>	leases;
+	private final AtomicInteger						count;
+	private final int										maxLeases;
+	private final ExecutorService						expirer;
+	private final HashedTimingWheel					wheel;
+	private final Meter									expired;
+
+	/**
+	 * @param maxLeases
+	 *           the most messages leased at once, over all topics
+	 */
+	public LeaseTable(int maxLeases) {
+		this.leases = new ConcurrentHashMap<String, Lease>();
+		this.count = new AtomicInteger();
+		this.maxLeases = maxLeases;
+		this.expirer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "lease-expiry");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.wheel = new HashedTimingWheel("lease-timer", TICK_MILLIS, WHEEL_SIZE, expirer);
+		this.expired = Metrics.newMeter(LeaseTable.class, "leases-expired", "messages", TimeUnit.SECONDS);
+
+		Metrics.newGauge(LeaseTable.class, "leased-messages", new Gauge<Integer>() {
+			@Override
+			public Integer value() {
+				return count.get();
+			}
+		});
+	}
+
+	/**
+	 * @return the number of leases that can still be taken
+	 */
+	public int available() {
+		return Math.max(0, maxLeases - count.get());
+	}
+
+	/**
+	 * Lease a pulled message. A lease left over from an earlier pull of the
+	 * same message is replaced and settled with a requeue, which only releases
+	 * the count of its prefetcher when the broker requeued that copy already.
+	 *
+	 * @param owner
+	 *           the prefetcher whose channel the message is unacked on
+	 * @param deliveryTag
+	 *           the delivery tag of the message on that channel
+	 * @param visibilityMillis
+	 *           how long the message is hidden from other pulls
+	 */
+	public void lease(String topicName, String messageId, PullPrefetcher owner, long deliveryTag,
+			long visibilityMillis) {
+		Lease lease = new Lease(key(topicName, messageId), owner, deliveryTag);
+		count.incrementAndGet();
+		Lease replaced;
+		synchronized (lease) {
+			// in the map before it can expire, and with its timeout before anyone settles it
+			replaced = leases.put(lease.key, lease);
+			lease.timeout = wheel.schedule(lease, visibilityMillis);
+		}
+		if (replaced != null) {
+			synchronized (replaced) {
+				replaced.timeout.cancel();
+			}
+			count.decrementAndGet();
+			// no longer in the map, so its timeout cannot settle it either
+			replaced.owner.settle(replaced.deliveryTag, false);
+		}
+	}
+
+	/**
+	 * Ack a leased message, as the consumer is done with it
+	 *
+	 * @return false if the message has no lease, or the ack was lost with the
+	 *         channel and the broker requeued the message
+	 */
+	public boolean ack(String topicName, String messageId) {
+		Lease lease = leases.remove(key(topicName, messageId));
+		if (lease == null) {
+			return false;
+		}
+		count.decrementAndGet();
+		synchronized (lease) {
+			lease.timeout.cancel();
+		}
+		return lease.owner.settle(lease.deliveryTag, true);
+	}
+
+	/**
+	 * Reset the visibility timeout of a leased message
+	 *
+	 * @param visibilityMillis
+	 *           how much longer the message is hidden, counted from now; 0
+	 *           makes it visible again right away
+	 * @return false if the message has no lease any more
+	 */
+	public boolean extend(String topicName, String messageId, long visibilityMillis) {
+		Lease lease = leases.get(key(topicName, messageId));
+		if (lease == null) {
+			return false;
+		}
+		synchronized (lease) {
+			if (!lease.timeout.cancel()) {
+				// expired meanwhile
+				return false;
+			}
+			lease.timeout = wheel.schedule(lease, visibilityMillis);
+		}
+		return leases.get(lease.key) == lease;
+	}
+
+	public int size() {
+		return count.get();
+	}
+
+	public void stop() {
+		wheel.stop();
+		expirer.shutdownNow();
+	}
+
+	private static String key(String topicName, String messageId) {
+		return topicName + '/' + messageId;
+	}
+
+	private class Lease implements Runnable {
+		private final String					key;
+		private final PullPrefetcher		owner;
+		private final long					deliveryTag;
+		// replaced by extend(), guarded by the lease
+		private HashedTimingWheel.Timeout	timeout;
+
+		Lease(String key, PullPrefetcher owner, long deliveryTag) {
+			this.key = key;
+			this.owner = owner;
+			this.deliveryTag = deliveryTag;
+		}
+
+		@Override
+		public void run() {
+			if (!leases.remove(key, this)) {
+				return;
+			}
+			owner.settle(deliveryTag, false);
+			count.decrementAndGet();
+			expired.mark();
+			LOG.debug("Lease of message " + key + " expired, requeued it.");
+		}
+	}
+}
@@ -0,0 +1,281 @@
+package com.lockmarker.api.application.rabbitmq;
+
+import com.lockmarker.api.application.model.Subscriber;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+
+/**
+ * This class caches the topic and subscriber metadata read from the RabbitMQ
+ * management API.
+ *
+ * Entries expire after the TTL and the cache is bounded in size. Concurrent
+ * lookups of a missing entry share a single request to the management API.
+ * Entries older than the refresh interval are reloaded on a background thread
+ * while readers keep getting the current value, so a hot entry never makes a
+ * reader wait. Every mutation made through the dispatcher invalidates the
+ * affected entries before it returns.
+ *
+ * A load that was already running when its key is invalidated may have read
+ * the metadata from before the mutation, and the cache would still store its
+ * result. Each value therefore carries the clock reading its load started at,
+ * and a value whose load started before the last invalidation of its key is
+ * dropped and loaded again when it is read.
+ */
+public class MetadataCache {
+	private final FencedCache<String, Collection<String>>			topics;
+	private final FencedCache<List<String>, Collection<String>>	topicSubscriptions;
+	private final FencedCache<String, Subscriber>					subscribers;
+
+	/**
+	 * @param loader
+	 *           reads the metadata from the management API
+	 * @param ttlMillis
+	 *           how long an entry is kept
+	 * @param refreshMillis
+	 *           the age at which an entry is reloaded in the background
+	 * @param maxSize
+	 *           the maximum number of entries of each kind
+	 * @param refresher
+	 *           runs the background reloads
+	 */
+	public MetadataCache(final MetadataLoader loader, long ttlMillis, long refreshMillis, long maxSize,
+			final Executor refresher) {
+		this.topics = new FencedCache<String, Collection<String>>(ttlMillis, refreshMillis, maxSize, refresher,
+				new CacheLoader<String, Collection<String>>() {
+					@Override
+					public Collection<String> load(String tenantId) {
+						return loader.loadTopics(tenantId);
+					}
+				});
+		this.topicSubscriptions = new FencedCache<List<String>, Collection<String>>(ttlMillis, refreshMillis, maxSize, refresher,
+				new CacheLoader<List<String>, Collection<String>>() {
+					@Override
+					public Collection<String> load(List<String> key) {
+						return loader.loadTopicSubscriptions(key.get(0), key.get(1));
+					}
+				});
+		this.subscribers = new FencedCache<String, Subscriber>(ttlMillis, refreshMillis, maxSize, refresher,
+				new CacheLoader<String, Subscriber>() {
+					@Override
+					public Subscriber load(String subscriberId) {
+						return loader.loadSubscriber(subscriberId);
+					}
+				});
+
+		Metrics.newGauge(MetadataCache.class, "hit-rate", new Gauge<Double>() {
+			@Override
+			public Double value() {
+				long hits = topics.cache.stats().hitCount() + topicSubscriptions.cache.stats().hitCount()
+						+ subscribers.cache.stats().hitCount();
+				long requests = topics.cache.stats().requestCount() + topicSubscriptions.cache.stats().requestCount()
+						+ subscribers.cache.stats().requestCount();
+				return requests == 0 ? 1.0 : (double) hits / requests;
+			}
+		});
+		Metrics.newGauge(MetadataCache.class, "entries", new Gauge<Long>() {
+			@Override
+			public Long value() {
+				return topics.cache.size() + topicSubscriptions.cache.size() + subscribers.cache.size();
+			}
+		});
+	}
+
+	public Collection<String> getTopics(String tenantId) {
+		return topics.get(tenantId);
+	}
+
+	public Collection<String> getTopicSubscriptions(String tenantId, String topicName) {
+		return topicSubscriptions.get(Arrays.asList(tenantId, topicName));
+	}
+
+	public Subscriber getSubscriber(String subscriberId) {
+		return subscribers.get(subscriberId);
+	}
+
+	/**
+	 * A topic was created or deleted
+	 */
+	public void invalidateTopic(String tenantId, String topicName) {
+		topics.invalidate(tenantId);
+		topicSubscriptions.invalidate(Arrays.asList(tenantId, topicName));
+	}
+
+	/**
+	 * The subscriptions of a subscriber to some topics changed
+	 */
+	public void invalidateSubscriptions(String subscriberId, Collection<String> topicNames) {
+		subscribers.invalidate(subscriberId);
+		// the tenant of a subscription is not known here, so match on the topic
+		for (List<String> key : topicSubscriptions.keys()) {
+			if (topicNames.contains(key.get(1))) {
+				topicSubscriptions.invalidate(key);
+			}
+		}
+	}
+
+	/**
+	 * A subscriber was deleted along with all of its subscriptions
+	 */
+	public void invalidateSubscriber(String subscriberId) {
+		subscribers.invalidate(subscriberId);
+		for (Map.Entry<List<String>, Loaded<Collection<String>>> entry : topicSubscriptions.cache.asMap().entrySet()) {
+			if (entry.getValue().value.contains(subscriberId)) {
+				topicSubscriptions.invalidate(entry.getKey());
+			}
+		}
+		// what a running load will return is not known yet
+		for (List<String> key : topicSubscriptions.loading) {
+			topicSubscriptions.invalidate(key);
+		}
+	}
+
+	private static <K, V> V get(LoadingCache<K, V> cache, K key) {
+		try {
+			return cache.getUnchecked(key);
+		} catch (UncheckedExecutionException e) {
+			// loaders throw the dispatcher's own exceptions, pass them on as they are
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	private static <K, V> LoadingCache<K, V> newCache(long ttlMillis, long refreshMillis, long maxSize,
+			final Executor refresher, final CacheLoader<K, V> loader) {
+		return CacheBuilder.newBuilder()
+				.expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+				.refreshAfterWrite(refreshMillis, TimeUnit.MILLISECONDS)
+				.maximumSize(maxSize)
+				.recordStats()
+				.build(new CacheLoader<K, V>() {
+					@Override
+					public V load(K key) throws Exception {
+						return loader.load(key);
+					}
+
+					@Override
+					public ListenableFuture<V> reload(final K key, V oldValue) {
+						// the reader that triggered the refresh gets the old value right away
+						ListenableFutureTask<V> task = ListenableFutureTask.create(new Callable<V>() {
+							@Override
+							public V call() throws Exception {
+								return loader.load(key);
+							}
+						});
+						refresher.execute(task);
+						return task;
+					}
+				});
+	}
+
+	/**
+	 * A loading cache whose values are fenced by the invalidations of their keys
+	 */
+	private static class FencedCache<K, V> {
+		private final LoadingCache<K, Loaded<V>>	cache;
+		// the clock reading of the last invalidation of each key
+		private final ConcurrentMap<K, Long>		invalidated;
+		private final AtomicLong						clock;
+		// the keys being loaded or reloaded right now
+		private final Set<K>							loading;
+
+		FencedCache(long ttlMillis, long refreshMillis, long maxSize, Executor refresher,
+				final CacheLoader<K, V> loader) {
+			this.clock = new AtomicLong();
+			this.loading = Collections.newSetFromMap(new ConcurrentHashMap<K, Boolean>());
+			// a mark outlives every value loaded before it, unless a load takes longer than the TTL
+			this.invalidated = CacheBuilder.newBuilder()
+					.expireAfterWrite(2 * ttlMillis, TimeUnit.MILLISECONDS)
+					.<K, Long> build()
+					.asMap();
+			this.cache = newCache(ttlMillis, refreshMillis, maxSize, refresher, new CacheLoader<K, Loaded<V>>() {
+				@Override
+				public Loaded<V> load(K key) throws Exception {
+					loading.add(key);
+					try {
+						long started = clock.get();
+						return new Loaded<V>(started, loader.load(key));
+					} finally {
+						loading.remove(key);
+					}
+				}
+			});
+		}
+
+		V get(K key) {
+			while (true) {
+				Loaded<V> loaded = MetadataCache.get(cache, key);
+				Long mark = invalidated.get(key);
+				if (mark == null || loaded.started >= mark) {
+					return loaded.value;
+				}
+				// loaded before the last invalidation, and stored after it
+				cache.asMap().remove(key, loaded);
+			}
+		}
+
+		/**
+		 * @return the keys with a value and the keys being loaded
+		 */
+		Set<K> keys() {
+			Set<K> keys = new HashSet<K>(cache.asMap().keySet());
+			keys.addAll(loading);
+			return keys;
+		}
+
+		void invalidate(K key) {
+			long mark = clock.incrementAndGet();
+			while (true) {
+				Long current = invalidated.putIfAbsent(key, mark);
+				if (current == null || current >= mark || invalidated.replace(key, current, mark)) {
+					break;
+				}
+			}
+			cache.invalidate(key);
+		}
+	}
+
+	private static class Loaded<V> {
+		private final long	started;
+		private final V		value;
+
+		Loaded(long started, V value) {
+			this.started = started;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Reads metadata from the management API
+	 */
+	public interface MetadataLoader {
+		Collection<String> loadTopics(String tenantId);
+
+		Collection<String> loadTopicSubscriptions(String tenantId, String topicName);
+
+		Subscriber loadSubscriber(String subscriberId);
+	}
+}
@@ -0,0 +1,179 @@
+package com.lockmarker.api.application.rabbitmq;
+
+import com.lockmarker.api.exceptions.InternalErrorException;
+
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import com.yammer.dropwizard.logging.Log;
+
+/**
+ * This class tracks the publishes outstanding on one confirm-mode channel.
+ *
+ * Every publish registers its sequence number before basicPublish and gets a
+ * future that completes with the message ID when the broker acks it, or fails
+ * when the broker nacks it, the channel shuts down, or no confirm arrives
+ * within the timeout. Pending publishes are kept sorted by sequence number so
+ * that multiple acks/nacks and expiry only ever touch the head of the map.
+ *
+ * The number of outstanding publishes is bounded, so a slow broker pushes back
+ * on publishers instead of letting the pending set grow without limit.
+ */
+public class PublisherConfirmTracker implements ConfirmListener, ShutdownListener {
+	private static final Log											LOG	= Log.forClass(PublisherConfirmTracker.class);
+	private final ConcurrentSkipListMap<Long, PendingConfirm>	pending;
+	private final Semaphore												permits;
+	private final long													timeoutMillis;
+
+	/**
+	 * @param maxOutstanding
+	 *           the maximum number of unconfirmed publishes on the channel
+	 * @param timeoutMillis
+	 *           how long a publish may stay unconfirmed before it is failed
+	 */
+	public PublisherConfirmTracker(int maxOutstanding, long timeoutMillis) {
+		this.pending = new ConcurrentSkipListMap<Long, PendingConfirm>();
+		this.permits = new Semaphore(maxOutstanding);
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Register a publish before it is sent. Blocks while the channel already has
+	 * the maximum number of unconfirmed publishes.
+	 *
+	 * @param seqNo
+	 *           the channel's next publish sequence number
+	 * @param messageId
+	 *           the ID the future completes with on ack
+	 * @return a future completing when the broker confirms the publish
+	 */
+	public ListenableFuture<String> track(long seqNo, String messageId) {
+		try {
+			if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+				throw new InternalErrorException("Too many unconfirmed messages. Try again later.");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InternalErrorException("Interrupted while waiting for publisher confirms.");
+		}
+		PendingConfirm confirm = new PendingConfirm(messageId, System.currentTimeMillis() + timeoutMillis);
+		pending.put(seqNo, confirm);
+		return confirm.future;
+	}
+
+	/**
+	 * Drop a publish that was registered but never reached the broker
+	 *
+	 * @param seqNo
+	 *           the sequence number passed to track()
+	 * @param cause
+	 *           the publish failure
+	 */
+	public void discard(long seqNo, Throwable cause) {
+		PendingConfirm confirm = pending.remove(seqNo);
+		if (confirm != null) {
+			permits.release();
+			confirm.future.setException(cause);
+		}
+	}
+
+	@Override
+	public void handleAck(long deliveryTag, boolean multiple) {
+		for (PendingConfirm confirm : remove(deliveryTag, multiple)) {
+			confirm.future.set(confirm.messageId);
+		}
+	}
+
+	@Override
+	public void handleNack(long deliveryTag, boolean multiple) {
+		for (PendingConfirm confirm : remove(deliveryTag, multiple)) {
+			LOG.error("Message " + confirm.messageId + " was rejected by RabbitMQ server.");
+			confirm.future.setException(new InternalErrorException("Message " + confirm.messageId
+					+ " was rejected by messaging server."));
+		}
+	}
+
+	@Override
+	public void shutdownCompleted(ShutdownSignalException cause) {
+		failAll(new InternalErrorException("Channel closed before message was confirmed."));
+	}
+
+	/**
+	 * Fail every publish whose confirm is overdue. Sequence numbers grow with
+	 * time on a channel, so this stops at the first publish still in time.
+	 *
+	 * @param now
+	 *           current time in milliseconds
+	 * @return the number of publishes failed
+	 */
+	public int expire(long now) {
+		int expired = 0;
+		Map.Entry<Long, PendingConfirm> head;
+		while ((head = pending.firstEntry()) != null && head.getValue().deadline <= now) {
+			if (pending.remove(head.getKey(), head.getValue())) {
+				permits.release();
+				LOG.error("Timed out waiting for confirm of message " + head.getValue().messageId);
+				head.getValue().future.setException(new InternalErrorException("Timed out waiting for confirm of message "
+						+ head.getValue().messageId));
+				expired++;
+			}
+		}
+		return expired;
+	}
+
+	public int getOutstanding() {
+		return pending.size();
+	}
+
+	private void failAll(Throwable cause) {
+		Map.Entry<Long, PendingConfirm> head;
+		while ((head = pending.pollFirstEntry()) != null) {
+			permits.release();
+			head.getValue().future.setException(cause);
+		}
+	}
+
+	private Iterable<PendingConfirm> remove(long deliveryTag, boolean multiple) {
+		if (!multiple) {
+			PendingConfirm confirm = pending.remove(deliveryTag);
+			if (confirm == null) {
+				// already expired or discarded
+				return Collections.<PendingConfirm> emptyList();
+			}
+			permits.release();
+			return Collections.singletonList(confirm);
+		}
+		ConcurrentNavigableMap<Long, PendingConfirm> confirmed = pending.headMap(deliveryTag, true);
+		List<PendingConfirm> result = new ArrayList<PendingConfirm>(confirmed.size());
+		Map.Entry<Long, PendingConfirm> head;
+		while ((head = confirmed.pollFirstEntry()) != null) {
+			permits.release();
+			result.add(head.getValue());
+		}
+		return result;
+	}
+
+	private static class PendingConfirm {
+		private final String							messageId;
+		private final long							deadline;
+		private final SettableFuture<String>	future	= SettableFuture.create();
+
+		PendingConfirm(String messageId, long deadline) {
+			this.messageId = messageId;
+			this.deadline = deadline;
+		}
+	}
+}
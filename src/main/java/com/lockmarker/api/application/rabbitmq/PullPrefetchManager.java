@@ -0,0 +1,187 @@
+package com.lockmarker.api.application.rabbitmq;
+
+import com.rabbitmq.client.Channel;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.yammer.dropwizard.logging.Log;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+
+/**
+ * This class owns the prefetching consumers of the topics being pulled from.
+ *
+ * A prefetcher is started the first time a topic is pulled and stopped once it
+ * has been idle (nothing buffered, nothing pulled) for the idle timeout. The
+ * number of prefetchers is bounded; topics beyond the bound are served by
+ * plain basicGet.
+ */
+public class PullPrefetchManager {
+	private static final Log							LOG	= Log.forClass(PullPrefetchManager.class);
+	private final ChannelPool							channelPool;
+	private final int										prefetch;
+	private final long									idleTimeoutMillis;
+	private final int										maxConsumers;
+	private final TombstoneRegistry					tombstones;
+	private final LeaseTable							leases;
+	private final ConcurrentMap<String, PullPrefetcher>	prefetchers;
+	private final ScheduledExecutorService			reaper;
+
+	/**
+	 * @param channelPool
+	 *           the pool to open consumer channels from
+	 * @param prefetch
+	 *           the number of messages buffered per topic
+	 * @param idleTimeoutMillis
+	 *           how long an unused prefetcher is kept
+	 * @param maxConsumers
+	 *           the maximum number of topics with a prefetcher
+	 * @param tombstones
+	 *           the deleted messages, dropped instead of buffered
+	 * @param leases
+	 *           keeps the messages pulled with a visibility timeout
+	 */
+	public PullPrefetchManager(ChannelPool channelPool, int prefetch, long idleTimeoutMillis, int maxConsumers,
+			TombstoneRegistry tombstones, LeaseTable leases) {
+		this.channelPool = channelPool;
+		this.prefetch = prefetch;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		this.maxConsumers = maxConsumers;
+		this.tombstones = tombstones;
+		this.leases = leases;
+		this.prefetchers = new ConcurrentHashMap<String, PullPrefetcher>();
+		this.reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "pull-prefetch-reaper");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		long period = Math.max(1000, idleTimeoutMillis / 2);
+		this.reaper.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				evictIdle();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+
+		Metrics.newGauge(PullPrefetchManager.class, "pull-consumers", new Gauge<Integer>() {
+			@Override
+			public Integer value() {
+				return prefetchers.size();
+			}
+		});
+		Metrics.newGauge(PullPrefetchManager.class, "parked-pulls", new Gauge<Integer>() {
+			@Override
+			public Integer value() {
+				int waiters = 0;
+				for (PullPrefetcher prefetcher : prefetchers.values()) {
+					waiters += prefetcher.getWaiters();
+				}
+				return waiters;
+			}
+		});
+		Metrics.newGauge(PullPrefetchManager.class, "prefetched-messages", new Gauge<Integer>() {
+			@Override
+			public Integer value() {
+				int buffered = 0;
+				for (PullPrefetcher prefetcher : prefetchers.values()) {
+					buffered += prefetcher.getBuffered();
+				}
+				return buffered;
+			}
+		});
+	}
+
+	/**
+	 * Get the running prefetcher of a topic
+	 *
+	 * @param topicName
+	 *           the topic
+	 * @return the prefetcher, or null if the topic has none
+	 */
+	public PullPrefetcher get(String topicName) {
+		PullPrefetcher prefetcher = prefetchers.get(topicName);
+		if (prefetcher != null && !prefetcher.isOpen()) {
+			stop(topicName, prefetcher);
+			return null;
+		}
+		return prefetcher;
+	}
+
+	/**
+	 * Start a prefetcher for a topic unless one is running or the maximum number
+	 * of prefetchers is reached. Errors are logged and leave the topic on plain
+	 * basicGet.
+	 *
+	 * @param topicName
+	 *           the topic
+	 * @param queueName
+	 *           the P2P queue of the topic
+	 */
+	public synchronized void start(String topicName, String queueName) {
+		if (prefetchers.containsKey(topicName) || prefetchers.size() >= maxConsumers) {
+			return;
+		}
+		Channel channel = null;
+		try {
+			channel = channelPool.openConsumerChannel();
+			PullPrefetcher prefetcher = new PullPrefetcher(channel, topicName, prefetch, tombstones, leases);
+			prefetcher.start(queueName);
+			prefetchers.put(topicName, prefetcher);
+		} catch (Exception e) {
+			LOG.error(e, "Error starting prefetching consumer for Topic " + topicName);
+			channelPool.closeConsumerChannel(channel);
+		}
+	}
+
+	/**
+	 * Stop the prefetcher of a topic, requeueing its buffered messages
+	 *
+	 * @param topicName
+	 *           the topic
+	 */
+	public void stop(String topicName) {
+		PullPrefetcher prefetcher = prefetchers.get(topicName);
+		if (prefetcher != null) {
+			stop(topicName, prefetcher);
+		}
+	}
+
+	private void stop(String topicName, PullPrefetcher prefetcher) {
+		// only the caller that removes it closes it
+		if (prefetchers.remove(topicName, prefetcher)) {
+			prefetcher.close();
+			channelPool.closeConsumerChannel(prefetcher.getChannel());
+			LOG.debug("Stopped prefetching consumer for Topic " + topicName);
+		}
+	}
+
+	public void close() {
+		reaper.shutdownNow();
+		for (String topicName : prefetchers.keySet()) {
+			stop(topicName);
+		}
+	}
+
+	private void evictIdle() {
+		try {
+			long now = System.currentTimeMillis();
+			for (Map.Entry<String, PullPrefetcher> entry : prefetchers.entrySet()) {
+				PullPrefetcher prefetcher = entry.getValue();
+				if (!prefetcher.isOpen() || prefetcher.isIdle(now, idleTimeoutMillis)) {
+					stop(entry.getKey(), prefetcher);
+				}
+			}
+		} catch (Exception e) {
+			LOG.error(e, "Error evicting idle prefetching consumers.");
+		}
+	}
+}
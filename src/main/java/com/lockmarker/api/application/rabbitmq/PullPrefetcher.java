@@ -0,0 +1,328 @@
+package com.lockmarker.api.application.rabbitmq;
+
+import com.lockmarker.api.application.model.Message;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.GetResponse;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.yammer.dropwizard.logging.Log;
+
+/**
+ * This class keeps a long-lived consumer on the P2P queue of one topic and
+ * buffers the messages the broker pushes to it, so that pulls are served from
+ * memory instead of costing one basicGet round trip per message.
+ *
+ * The consumer runs with basicQos(prefetch) and the buffer holds twice
+ * prefetch messages, so the broker can never push more than fits. Buffered
+ * messages stay unacked until they are handed out by drain(); when the
+ * prefetcher is closed, whatever is left is rejected back to the queue.
+ *
+ * A pull with a visibility timeout leases its messages in the LeaseTable
+ * instead of acking them, and they stay unacked on this channel until the
+ * lease is settled. As leased messages count against the prefetch of the
+ * channel too, the prefetch is raised by whole prefetch steps while leases
+ * are outstanding; the spare half of the buffer takes up the rounding.
+ *
+ * Long-polling pulls park on the buffer of their topic and are woken up by the
+ * first delivery, so an empty topic costs no broker traffic while they wait.
+ * They are woken up too when the prefetcher closes, instead of waiting out
+ * their time on a buffer nothing is pushed to any more.
+ *
+ * Deliveries of deleted messages are acked and dropped on arrival, before
+ * they take up room in the buffer.
+ */
+public class PullPrefetcher extends DefaultConsumer {
+	private static final Log								LOG	= Log.forClass(PullPrefetcher.class);
+	// put in the buffer to wake up parked pulls when closing
+	private static final BufferedMessage				CLOSED	= new BufferedMessage(null, -1);
+	private final String										topicName;
+	private final int											prefetch;
+	private final ArrayBlockingQueue<BufferedMessage>	buffer;
+	private final AtomicInteger							waiters;
+	private final TombstoneRegistry						tombstones;
+	private final LeaseTable								leases;
+	private final AtomicInteger							leased;
+	private String												queueName;
+	// the prefetch last set on the channel, guarded by the prefetcher
+	private int													qos;
+	private volatile long									lastAccess;
+	private volatile boolean								closed;
+
+	/**
+	 * @param channel
+	 *           a dedicated consumer channel
+	 * @param topicName
+	 *           the topic whose P2P queue is consumed
+	 * @param prefetch
+	 *           the number of messages buffered ahead of pulls
+	 * @param tombstones
+	 *           the deleted messages, dropped instead of buffered
+	 * @param leases
+	 *           keeps the messages pulled with a visibility timeout
+	 */
+	public PullPrefetcher(Channel channel, String topicName, int prefetch, TombstoneRegistry tombstones,
+			LeaseTable leases) {
+		super(channel);
+		this.topicName = topicName;
+		this.prefetch = prefetch;
+		this.buffer = new ArrayBlockingQueue<BufferedMessage>(prefetch * 2);
+		this.waiters = new AtomicInteger();
+		this.tombstones = tombstones;
+		this.leases = leases;
+		this.leased = new AtomicInteger();
+		this.lastAccess = System.currentTimeMillis();
+	}
+
+	/**
+	 * Start consuming from the P2P queue
+	 *
+	 * @param queueName
+	 *           the P2P queue of the topic
+	 */
+	public void start(String queueName) throws IOException {
+		this.queueName = queueName;
+		this.qos = prefetch;
+		getChannel().basicQos(prefetch);
+		// autoAck = false, messages are acked once handed out
+		getChannel().basicConsume(queueName, false, this);
+		LOG.debug("Started prefetching consumer on queue " + queueName);
+	}
+
+	@Override
+	public void handleDelivery(String consumerTag, Envelope envelope,
+			BasicProperties properties, byte[] body) throws IOException {
+		if (tombstones.isDeleted(topicName, properties.getMessageId())) {
+			getChannel().basicAck(envelope.getDeliveryTag(), false);
+			return;
+		}
+		Message message = new Message(properties.getMessageId(), topicName, body, properties.getContentType());
+		if (closed || !buffer.offer(new BufferedMessage(message, envelope.getDeliveryTag()))) {
+			// only possible while closing, prefetch never exceeds the buffer size
+			getChannel().basicReject(envelope.getDeliveryTag(), true);
+		}
+	}
+
+	@Override
+	public void handleCancel(String consumerTag) throws IOException {
+		// the queue was deleted under us, e.g. the topic is gone
+		LOG.debug("Prefetching consumer of Topic " + topicName + " cancelled by server.");
+		closed = true;
+		wakeWaiters();
+	}
+
+	@Override
+	public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+		// unacked messages go back to the queue with the channel
+		closed = true;
+		buffer.clear();
+		wakeWaiters();
+	}
+
+	/**
+	 * Hand out up to max buffered messages, acking or leasing each of them. If
+	 * nothing is buffered, wait up to waitMillis for the first one to arrive.
+	 *
+	 * @param max
+	 *           the maximum number of messages to return
+	 * @param waitMillis
+	 *           how long to wait for a message, 0 returns immediately
+	 * @param visibilityMillis
+	 *           how long the messages are leased, 0 acks them
+	 * @return the messages, empty if none arrived in time or the prefetcher
+	 *         closed meanwhile
+	 */
+	public List<Message> drain(int max, long waitMillis, long visibilityMillis) throws InterruptedException {
+		List<BufferedMessage> drained = new ArrayList<BufferedMessage>();
+		waiters.incrementAndGet();
+		try {
+			lastAccess = System.currentTimeMillis();
+			if (buffer.drainTo(drained, max) == 0 && waitMillis > 0 && !closed) {
+				BufferedMessage first = buffer.poll(waitMillis, TimeUnit.MILLISECONDS);
+				if (first == CLOSED) {
+					// leave it for the other parked pulls
+					buffer.offer(CLOSED);
+				} else if (first != null) {
+					drained.add(first);
+					// whatever else arrived meanwhile goes out in the same batch
+					buffer.drainTo(drained, max - 1);
+				}
+			}
+		} finally {
+			lastAccess = System.currentTimeMillis();
+			waiters.decrementAndGet();
+		}
+		return handOut(drained, visibilityMillis);
+	}
+
+	/**
+	 * Get one message straight from the queue with basicGet, for a pull that
+	 * comes before the consumer got its first deliveries
+	 *
+	 * @param visibilityMillis
+	 *           how long the message is leased, 0 acks it
+	 * @return the message, or null if the queue is empty
+	 */
+	public Message fetch(long visibilityMillis) throws IOException {
+		GetResponse response = getChannel().basicGet(queueName, false);
+		while (response != null && tombstones.isDeleted(topicName, response.getProps().getMessageId())) {
+			getChannel().basicAck(response.getEnvelope().getDeliveryTag(), false);
+			response = getChannel().basicGet(queueName, false);
+		}
+		if (response == null) {
+			return null;
+		}
+		BasicProperties properties = response.getProps();
+		Message message = new Message(properties.getMessageId(), topicName, response.getBody(),
+				properties.getContentType());
+		List<Message> messages = handOut(Collections.singletonList(new BufferedMessage(message,
+				response.getEnvelope().getDeliveryTag())), visibilityMillis);
+		return messages.isEmpty() ? null : messages.get(0);
+	}
+
+	/**
+	 * Settle a leased message, called by the LeaseTable
+	 *
+	 * @param ack
+	 *           true to ack the message, false to requeue it
+	 * @return false if the channel is gone, the broker requeued the message
+	 *         with it
+	 */
+	public boolean settle(long deliveryTag, boolean ack) {
+		try {
+			if (ack) {
+				getChannel().basicAck(deliveryTag, false);
+			} else {
+				getChannel().basicReject(deliveryTag, true);
+			}
+			return true;
+		} catch (Exception e) {
+			LOG.debug("Error settling leased message of Topic " + topicName + ": " + e.getMessage());
+			return false;
+		} finally {
+			leased.decrementAndGet();
+			adjustQos();
+		}
+	}
+
+	private List<Message> handOut(List<BufferedMessage> drained, long visibilityMillis) {
+		List<Message> messages = new ArrayList<Message>(drained.size());
+		for (BufferedMessage buffered : drained) {
+			if (buffered == CLOSED) {
+				buffer.offer(CLOSED);
+				continue;
+			}
+			if (visibilityMillis > 0) {
+				leased.incrementAndGet();
+				leases.lease(topicName, buffered.message.getId(), this, buffered.deliveryTag, visibilityMillis);
+				messages.add(buffered.message);
+				continue;
+			}
+			try {
+				getChannel().basicAck(buffered.deliveryTag, false);
+				messages.add(buffered.message);
+			} catch (Exception e) {
+				// the broker redelivers it with the channel, so it is not handed out
+				LOG.error(e, "Error acking prefetched message " + buffered.message.getId());
+			}
+		}
+		if (visibilityMillis > 0) {
+			adjustQos();
+		}
+		return messages;
+	}
+
+	/**
+	 * Keep prefetch messages of room for deliveries on top of the leased ones,
+	 * changing the channel only when a whole step of leases comes or goes
+	 */
+	private synchronized void adjustQos() {
+		int steps = (leased.get() + prefetch - 1) / prefetch;
+		int wanted = prefetch + steps * prefetch;
+		if (wanted == qos || closed || !getChannel().isOpen()) {
+			return;
+		}
+		try {
+			getChannel().basicQos(wanted);
+			qos = wanted;
+		} catch (Exception e) {
+			LOG.error(e, "Error changing prefetch of consumer of Topic " + topicName);
+		}
+	}
+
+	public boolean isOpen() {
+		return !closed && getChannel().isOpen();
+	}
+
+	public boolean isIdle(long now, long idleTimeoutMillis) {
+		// closing the channel would requeue the leased messages
+		return waiters.get() == 0 && buffer.isEmpty() && leased.get() == 0 && now - lastAccess > idleTimeoutMillis;
+	}
+
+	public int getLeased() {
+		return leased.get();
+	}
+
+	public int getWaiters() {
+		return waiters.get();
+	}
+
+	public int getBuffered() {
+		return buffer.size();
+	}
+
+	/**
+	 * Stop consuming and give the buffered messages back to the queue. The
+	 * caller closes the channel afterwards.
+	 */
+	public void close() {
+		closed = true;
+		try {
+			if (getChannel().isOpen() && getConsumerTag() != null) {
+				getChannel().basicCancel(getConsumerTag());
+			}
+		} catch (Exception e) {
+			LOG.debug("Error cancelling prefetching consumer of Topic " + topicName + ": " + e.getMessage());
+		}
+		BufferedMessage buffered;
+		while ((buffered = buffer.poll()) != null) {
+			if (buffered == CLOSED) {
+				continue;
+			}
+			try {
+				getChannel().basicReject(buffered.deliveryTag, true);
+			} catch (Exception e) {
+				// requeued anyway once the channel closes
+				LOG.debug("Error requeueing prefetched message " + buffered.message.getId());
+			}
+		}
+		wakeWaiters();
+	}
+
+	private void wakeWaiters() {
+		if (waiters.get() > 0) {
+			buffer.offer(CLOSED);
+		}
+	}
+
+	private static class BufferedMessage {
+		private final Message	message;
+		private final long		deliveryTag;
+
+		BufferedMessage(Message message, long deliveryTag) {
+			this.message = message;
+			this.deliveryTag = deliveryTag;
+		}
+	}
+}
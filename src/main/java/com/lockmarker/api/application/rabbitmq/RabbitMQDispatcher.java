@@ -1,38 +1,57 @@
 package com.lockmarker.api.application.rabbitmq;
 
 import com.lockmarker.api.application.MessagingDispatcher;
+import com.lockmarker.api.application.id.IdGenerator;
+import com.lockmarker.api.application.id.IdGenerators;
 import com.lockmarker.api.application.model.Subscriber;
 import com.lockmarker.api.application.model.Message;
+import com.lockmarker.api.application.policy.DeliveryPolicy;
 import com.lockmarker.api.application.policy.RedeliveryPolicy;
 import com.lockmarker.api.exceptions.InternalErrorException;
+import com.lockmarker.api.exceptions.NotImplementedException;
+import com.lockmarker.api.exceptions.ServiceUnavailableException;
 import com.lockmarker.config.MessagingConfiguration;
 import com.lockmarker.config.RabbitMQConfiguration;
+import com.lockmarker.utils.HttpConnectionPool;
 import com.lockmarker.utils.JsonProcessor;
+import com.lockmarker.utils.RecentKeyWindow;
 import com.lockmarker.utils.WebClientTool;
 
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
 import com.rabbitmq.client.Channel;
-import com.rabbitmq.client.DefaultConsumer;
 import com.rabbitmq.client.AMQP.BasicProperties;
-import com.rabbitmq.client.Envelope;
 import com.rabbitmq.client.GetResponse;
 
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.ws.rs.core.MediaType;
 
 import org.codehaus.jackson.node.JsonNodeFactory;
 import org.codehaus.jackson.node.ObjectNode;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
 import com.sun.jersey.api.client.Client;
 import com.sun.jersey.api.client.filter.HTTPBasicAuthFilter;
 import com.sun.jersey.api.client.ClientResponse;
 import com.sun.jersey.api.client.WebResource;
 
 import com.yammer.dropwizard.logging.Log;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Meter;
 
 public class RabbitMQDispatcher implements MessagingDispatcher {
 	private static final Log		LOG						= Log.forClass(RabbitMQDispatcher.class);
@@ -41,6 +60,45 @@ public class RabbitMQDispatcher implements MessagingDispatcher {
 	private String						RABBITMQ_USERID		= "guest";
 	private String						RABBITMQ_PASSWORD		= "guest";
 	private String						RABBITMQ_VHOST			= "/";
+	private int							PUBLISHER_CHANNELS	= 16;
+	private long						CHANNEL_LEASE_TIMEOUT	= 5000;
+	private long						CONFIRM_TIMEOUT		= 10000;
+	private int							MAX_OUTSTANDING_CONFIRMS	= 10000;
+	private int							PULL_PREFETCH			= 100;
+	private long						PULL_IDLE_TIMEOUT		= 60000;
+	private int							MAX_PULL_CONSUMERS	= 256;
+	private long						PULL_POLL_INTERVAL	= 200;
+	private int							REDELIVERY_THREADS	= 8;
+	private int							DELIVERY_CONCURRENCY	= 8;
+	private int							DELIVERY_PREFETCH		= 32;
+	private boolean					ORDERED_DELIVERY		= false;
+	private int							FEED_MAX_CONNECTIONS	= 1000;
+	private int							FEED_MAX_CONNECTIONS_PER_HOST	= 64;
+	private int							FEED_CONNECT_TIMEOUT	= 5000;
+	private int							FEED_READ_TIMEOUT		= 30000;
+	private long						FEED_IDLE_TIMEOUT		= 60000;
+	private int							DELIVERY_BATCH_SIZE	= 1;
+	private long						DELIVERY_BATCH_LINGER	= 50;
+	private long						DELIVERY_LATENCY_TARGET	= 1000;
+	private int							ACK_BATCH_SIZE			= 64;
+	private long						ACK_LINGER				= 20;
+	private int							CIRCUIT_FAILURE_THRESHOLD	= 5;
+	private long						CIRCUIT_PROBE_INTERVAL	= 5000;
+	private long						CIRCUIT_MAX_PROBE_INTERVAL	= 60000;
+	private long						METADATA_CACHE_TTL		= 30000;
+	private long						METADATA_REFRESH_INTERVAL	= 5000;
+	private long						METADATA_CACHE_SIZE	= 10000;
+	private String						MESSAGE_ID_GENERATOR	= IdGenerators.TIME_ORDERED;
+	private int							MESSAGE_ID_NODE		= -1;
+	private long						IDEMPOTENCY_WINDOW	= 600000;
+	private int							IDEMPOTENCY_MAX_KEYS	= 100000;
+	private static final int		IDEMPOTENCY_BUCKETS	= 10;
+	private long						DELIVERY_DEDUP_WINDOW	= 300000;
+	private int							DELIVERY_DEDUP_MAX_KEYS	= 10000;
+	private long						CONSUMER_RECOVERY_INTERVAL	= 5000;
+	private long						TOMBSTONE_WINDOW		= 86400000;
+	private int							TOMBSTONE_MAX_KEYS	= 100000;
+	private int							MAX_PULL_LEASES		= 500000;
 	private String						RABBITMQ_WEBAPI_PORT	= "55672";
 	private String						RABBITMQ_WEBAPI		= "http://" +
 																		  RABBITMQ_HOST +
@@ -49,11 +107,38 @@ public class RabbitMQDispatcher implements MessagingDispatcher {
 																		  "/api/";
 	private static final String	DEFAULT_ROUTING_KEY	= "#";
 	private static final String	RESERVED_P2P_PREFIX	= "MSGAS-P2P";
+	// all RMQ built-in exchanges, * is wildcard here
+	private static final JsonProcessor.SkipMatcher	BUILT_IN_EXCHANGES	= JsonProcessor.SkipMatcher.compile("direct", "amq.*");
+	private static final Collection<String>	SUBSCRIBER_PROPERTIES	= Arrays.asList("subscriberName", "endpoint");
 	private Connection				connection;
-	private Channel					defaultChannel;
+	private ChannelPool				channelPool;
+	private PullPrefetchManager	pullPrefetchers;
 	private Client						webclient;
 	private RedeliveryPolicy		defaultRetryPolicy;
-	private Map<String, Channel>  activeChannels			= null;
+	private RedeliveryScheduler	redeliveryScheduler;
+	private DeadLetterStore			deadLetterStore;
+	private HttpConnectionPool		feedConnections;
+	private ScheduledExecutorService	batchTimer;
+	private CircuitBreakerRegistry	circuitBreakers;
+	private MetadataCache				metadataCache;
+	private IdGenerator					messageIds;
+	private TombstoneRegistry			tombstones;
+	private LeaseTable					leases;
+	// idempotency keys recently sent, per tenant and topic
+	private final ConcurrentMap<String, RecentKeyWindow<ListenableFuture<String>>>	sentKeys	=
+			new ConcurrentHashMap<String, RecentKeyWindow<ListenableFuture<String>>>();
+	private final Meter					duplicateSends			= Metrics.newMeter(RabbitMQDispatcher.class,
+																				"duplicate-sends", "sends", TimeUnit.SECONDS);
+	// the consumer of each subscriber, replaced when its channel is lost
+	private final ConcurrentMap<String, SubscriptionConsumer>	consumers	=
+			new ConcurrentHashMap<String, SubscriptionConsumer>();
+	private final SubscriptionConsumer.RecoveryListener	consumerRecovery	=
+			new SubscriptionConsumer.RecoveryListener() {
+				@Override
+				public void onChannelLost(SubscriptionConsumer consumer) {
+					scheduleRecovery(consumer);
+				}
+			};
 
 	/**
 	 * This constructor is needed for Guice dependency injection The connection
@@ -71,11 +156,61 @@ public class RabbitMQDispatcher implements MessagingDispatcher {
 			factory.setPassword(RABBITMQ_PASSWORD);
 			factory.setVirtualHost(RABBITMQ_VHOST);
 			this.connection = factory.newConnection();
-			this.defaultChannel = connection.createChannel();
+			this.channelPool = new ChannelPool(connection, PUBLISHER_CHANNELS, CHANNEL_LEASE_TIMEOUT,
+					MAX_OUTSTANDING_CONFIRMS, CONFIRM_TIMEOUT);
+			this.tombstones = new TombstoneRegistry(TOMBSTONE_WINDOW, IDEMPOTENCY_BUCKETS, TOMBSTONE_MAX_KEYS);
+			this.leases = new LeaseTable(MAX_PULL_LEASES);
+			this.pullPrefetchers = new PullPrefetchManager(channelPool, PULL_PREFETCH, PULL_IDLE_TIMEOUT, MAX_PULL_CONSUMERS,
+					tombstones, leases);
 			this.webclient = Client.create();
+			this.feedConnections = new HttpConnectionPool(FEED_MAX_CONNECTIONS, FEED_MAX_CONNECTIONS_PER_HOST,
+					FEED_CONNECT_TIMEOUT, FEED_READ_TIMEOUT, FEED_IDLE_TIMEOUT);
+			this.circuitBreakers = new CircuitBreakerRegistry(feedConnections, CIRCUIT_FAILURE_THRESHOLD,
+					CIRCUIT_PROBE_INTERVAL, CIRCUIT_MAX_PROBE_INTERVAL);
+			this.batchTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "feed-batch-linger");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
 			this.webclient.addFilter(new HTTPBasicAuthFilter(RABBITMQ_USERID, RABBITMQ_PASSWORD));
+			this.metadataCache = new MetadataCache(new MetadataCache.MetadataLoader() {
+				@Override
+				public Collection<String> loadTopics(String tenantId) {
+					return fetchTopics(tenantId);
+				}
+
+				@Override
+				public Collection<String> loadTopicSubscriptions(String tenantId, String topicName) {
+					return fetchTopicSubscriptions(tenantId, topicName);
+				}
+
+				@Override
+				public Subscriber loadSubscriber(String subscriberId) {
+					return fetchSubscriberInfo(subscriberId);
+				}
+			}, METADATA_CACHE_TTL, METADATA_REFRESH_INTERVAL, METADATA_CACHE_SIZE,
+					Executors.newSingleThreadExecutor(new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "metadata-refresh");
+							thread.setDaemon(true);
+							return thread;
+						}
+					}));
+			this.messageIds = IdGenerators.create(MESSAGE_ID_GENERATOR, MESSAGE_ID_NODE);
 			this.defaultRetryPolicy = new RedeliveryPolicy();
-			this.activeChannels = new ConcurrentHashMap<String, Channel>();
+			this.deadLetterStore = new DeadLetterStore(channelPool, CONFIRM_TIMEOUT);
+			this.redeliveryScheduler = new RedeliveryScheduler(REDELIVERY_THREADS, deadLetterStore, tombstones);
+			// also run by the shutdown task, which exits the JVM
+			Runtime.getRuntime().addShutdownHook(new Thread("rabbitmq-dispatcher-stop") {
+				@Override
+				public void run() {
+					RabbitMQDispatcher.this.stop();
+				}
+			});
 
 			LOG.debug("Connected to RabbitMQ server with the following parameters:");
 			LOG.debug("host = " + RABBITMQ_HOST);
@@ -83,6 +218,8 @@ public class RabbitMQDispatcher implements MessagingDispatcher {
 			LOG.debug("user = " + RABBITMQ_USERID);
 			LOG.debug("password = " + RABBITMQ_PASSWORD);
 			LOG.debug("vhost = " + RABBITMQ_VHOST);
+			LOG.debug("publisher channels = " + PUBLISHER_CHANNELS);
+			LOG.debug("confirm timeout = " + CONFIRM_TIMEOUT);
 		} catch (Exception e) {
 			LOG.error(e, "Error initializing RabbitMQ dispatcher.");
 			throw new InternalErrorException("Error starting messaging service.");
@@ -91,6 +228,32 @@ public class RabbitMQDispatcher implements MessagingDispatcher {
 		}
 	}
 
+	/**
+	 * Stop the background work of the dispatcher: probes, retries, replays,
+	 * lease timers and pull consumers, then close the channels, the connection
+	 * and the feed connections. Unacked messages go back to their queues when
+	 * the connection closes.
+	 */
+	public void stop() {
+		circuitBreakers.stop();
+		redeliveryScheduler.stop();
+		deadLetterStore.stop();
+		pullPrefetchers.close();
+		leases.stop();
+		batchTimer.shutdownNow();
+		channelPool.close();
+		try {
+			// stop() may already have run before the shutdown hook
+			if (connection.isOpen()) {
+				connection.close();
+			}
+		} catch (Exception e) {
+			LOG.error(e, "Error closing connection to RabbitMQ server.");
+		}
+		feedConnections.shutdown();
+		LOG.debug("Stopped RabbitMQ dispatcher.");
+	}
+
 	@Override
 	public void loadConfiguration(MessagingConfiguration configuration) {
 		RabbitMQConfiguration config = configuration.getRabbitMQConfiguration();
@@ -99,12 +262,54 @@ public class RabbitMQDispatcher implements MessagingDispatcher {
 		RABBITMQ_USERID = config.getUser();
 		RABBITMQ_PASSWORD = config.getPassword();
 		RABBITMQ_VHOST = config.getVhost();
+		PUBLISHER_CHANNELS = config.getPublisherChannels();
+		CHANNEL_LEASE_TIMEOUT = config.getChannelLeaseTimeout();
+		CONFIRM_TIMEOUT = config.getConfirmTimeout();
+		MAX_OUTSTANDING_CONFIRMS = config.getMaxOutstandingConfirms();
+		PULL_PREFETCH = config.getPullPrefetch();
+		PULL_IDLE_TIMEOUT = config.getPullIdleTimeout();
+		MAX_PULL_CONSUMERS = config.getMaxPullConsumers();
+		PULL_POLL_INTERVAL = config.getPullPollInterval();
+		REDELIVERY_THREADS = config.getRedeliveryThreads();
+		DELIVERY_CONCURRENCY = config.getDeliveryConcurrency();
+		DELIVERY_PREFETCH = config.getDeliveryPrefetch();
+		ORDERED_DELIVERY = config.isOrderedDelivery();
+		FEED_MAX_CONNECTIONS = config.getFeedMaxConnections();
+		FEED_MAX_CONNECTIONS_PER_HOST = config.getFeedMaxConnectionsPerHost();
+		FEED_CONNECT_TIMEOUT = config.getFeedConnectTimeout();
+		FEED_READ_TIMEOUT = config.getFeedReadTimeout();
+		FEED_IDLE_TIMEOUT = config.getFeedIdleTimeout();
+		DELIVERY_BATCH_SIZE = config.getDeliveryBatchSize();
+		DELIVERY_BATCH_LINGER = config.getDeliveryBatchLinger();
+		DELIVERY_LATENCY_TARGET = config.getDeliveryLatencyTarget();
+		ACK_BATCH_SIZE = config.getAckBatchSize();
+		ACK_LINGER = config.getAckLinger();
+		CIRCUIT_FAILURE_THRESHOLD = config.getCircuitFailureThreshold();
+		CIRCUIT_PROBE_INTERVAL = config.getCircuitProbeInterval();
+		CIRCUIT_MAX_PROBE_INTERVAL = config.getCircuitMaxProbeInterval();
+		METADATA_CACHE_TTL = config.getMetadataCacheTtl();
+		METADATA_REFRESH_INTERVAL = Math.min(config.getMetadataRefreshInterval(), METADATA_CACHE_TTL);
+		METADATA_CACHE_SIZE = config.getMetadataCacheSize();
+		MESSAGE_ID_GENERATOR = config.getMessageIdGenerator();
+		MESSAGE_ID_NODE = config.getMessageIdNode();
+		IDEMPOTENCY_WINDOW = config.getIdempotencyWindow();
+		IDEMPOTENCY_MAX_KEYS = config.getIdempotencyMaxKeys();
+		DELIVERY_DEDUP_WINDOW = config.getDeliveryDedupWindow();
+		DELIVERY_DEDUP_MAX_KEYS = config.getDeliveryDedupMaxKeys();
+		CONSUMER_RECOVERY_INTERVAL = config.getConsumerRecoveryInterval();
+		TOMBSTONE_WINDOW = config.getTombstoneWindow();
+		TOMBSTONE_MAX_KEYS = config.getTombstoneMaxKeys();
+		MAX_PULL_LEASES = config.getMaxPullLeases();
 		RABBITMQ_WEBAPI = "http://" + RABBITMQ_HOST + ":" + RABBITMQ_WEBAPI_PORT + "/api/";
 		init();
 	}
 
 	@Override
 	public Collection<String> getTopics(String tenantId) {
+		return metadataCache.getTopics(tenantId);
+	}
+
+	private Collection<String> fetchTopics(String tenantId) {
 		try {
 			String uri = RABBITMQ_WEBAPI + "exchanges/" + tenantId;
 			WebResource webResource = this.webclient.resource(uri);
@@ -116,13 +321,10 @@ public class RabbitMQDispatcher implements MessagingDispatcher {
 				throw new InternalErrorException("Error listing topics.");
 			}
 
-			// need to skip all RMQ built-in exchanges
-			Collection<String> valuesToSkip = new ArrayList<String>();
-			valuesToSkip.add("direct");
-			valuesToSkip.add("amq.*"); // * is wildcard here
-			Collection<String> topics = JsonProcessor.parseJsonList(response.getEntity(String.class),
+			// need to skip all RMQ built-in exchanges; parse straight off the wire
+			Collection<String> topics = JsonProcessor.parseJsonList(response.getEntityInputStream(),
 																						"name",
-																						valuesToSkip);
+																						BUILT_IN_EXCHANGES);
 			LOG.debug("Topic list retrieved from RMQ: " + topics.toString());
 
 			return topics;
@@ -134,24 +336,32 @@ public class RabbitMQDispatcher implements MessagingDispatcher {
 
 	@Override
 	public void createTopic(String tenantId, String topicName) {
+		Channel channel = null;
 		try {
 			// declare durable and non-autodelete exchange to represent the topic 
-			Channel channel = null;
+			channel = channelPool.lease();
 			channel.exchangeDeclare(topicName, "topic", true);
 
 			// always bind a P2P queue to the topic
 			String p2pQueueName = RESERVED_P2P_PREFIX + "-" + topicName;
 			channel.queueDeclare(p2pQueueName, true, false, false, null);
 			channel.queueBind(p2pQueueName, topicName, DEFAULT_ROUTING_KEY);
+			metadataCache.invalidateTopic(tenantId, topicName);
 			LOG.debug("Created topic: {}", topicName);
 		} catch (Exception e) {
 			LOG.error(e, "Error creating topic: {}", topicName);
 			throw new InternalErrorException("Error creating topic" + topicName);
+		} finally {
+			channelPool.release(channel);
 		}
 	}
 
 	@Override
 	public Collection<String> describeTopic(String tenantId, String topicName) {
+		return metadataCache.getTopicSubscriptions(tenantId, topicName);
+	}
+
+	private Collection<String> fetchTopicSubscriptions(String tenantId, String topicName) {
 		try {
 			// Refer RMQ API at
 			// http://hg.rabbitmq.com/rabbitmq-management/raw-file/rabbitmq_v2_8_5/priv/www/api/index.html
@@ -170,10 +380,9 @@ public class RabbitMQDispatcher implements MessagingDispatcher {
 				throw new InternalErrorException("Error describing Topic " + topicName);
 			}
 
-			Collection<String> valuesToSkip = new ArrayList<String>();
-			valuesToSkip.add("MSGAS-P2P-" + topicName);
+			JsonProcessor.SkipMatcher p2pQueue = JsonProcessor.SkipMatcher.compile(RESERVED_P2P_PREFIX + "-" + topicName);
 			Collection<String> subscriptions = JsonProcessor.parseJsonList(
-					response.getEntity(String.class), "destination", valuesToSkip);
+					response.getEntityInputStream(), "destination", p2pQueue);
 			LOG.debug("Subscription list retrieved from RMQ for Topic {}: {}", topicName, subscriptions.toString());
 
 			return subscriptions;
@@ -185,10 +394,12 @@ public class RabbitMQDispatcher implements MessagingDispatcher {
 
 	@Override
 	public void deleteTopic(String tenantId, String topicName) {
+		Channel tmpChannel = null;
 		try {
-			// list current subscriptions of this topic and unsubscribe each of them
-			Collection<String> subscriptions = describeTopic(tenantId, topicName);
-			Channel tmpChannel = null;
+			// list current subscriptions of this topic and unsubscribe each of them,
+			// bypassing the cache so that none is missed
+			Collection<String> subscriptions = fetchTopicSubscriptions(tenantId, topicName);
+			tmpChannel = channelPool.lease();
 			
 			for (String subscriberId : subscriptions) {
 				try {
@@ -199,15 +410,24 @@ public class RabbitMQDispatcher implements MessagingDispatcher {
 				}
 			}
 			// also unbind and delete the default P2P queue
+			pullPrefetchers.stop(topicName);
 			String p2pQueue = RESERVED_P2P_PREFIX + '-' + topicName;
 			tmpChannel.queueUnbind(p2pQueue, topicName, DEFAULT_ROUTING_KEY);
 			tmpChannel.queueDelete(p2pQueue);
 			// finally delete the exchange of the topic
 			tmpChannel.exchangeDelete(topicName);
+			metadataCache.invalidateTopic(tenantId, topicName);
+			sentKeys.remove(tenantId + ':' + topicName);
+			tombstones.remove(topicName);
+			for (String subscriberId : subscriptions) {
+				metadataCache.invalidateSubscriptions(subscriberId, Collections.singleton(topicName));
+			}
 			LOG.debug("Deleted topic: " + topicName);
 		} catch (Exception e) {
 			LOG.error(e, "Error deleting topic: {}", topicName);
 			throw new InternalErrorException("Error deleting topic " + topicName);
+		} finally {
+			channelPool.release(tmpChannel);
 		}
 	}
 
@@ -216,56 +436,421 @@ public class RabbitMQDispatcher implements MessagingDispatcher {
 	////////////////////
 	@Override
 	public String sendMessage(String tenantId, String topicName, String message) {
+		return sendMessage(tenantId, topicName, message, null);
+	}
+
+	@Override
+	public String sendMessage(String tenantId, String topicName, String message, String idempotencyKey) {
+		return sendMessage(tenantId, topicName, message.getBytes(Message.CHARSET), Message.TEXT_CONTENT_TYPE,
+				idempotencyKey);
+	}
+
+	@Override
+	public String sendMessage(String tenantId, String topicName, byte[] body, String contentType,
+			String idempotencyKey) {
+		ListenableFuture<String> confirm = sendMessageAsync(tenantId, topicName, body, contentType, idempotencyKey);
+		try {
+			// the confirm tracker fails the future on timeout, so this never blocks forever
+			return confirm.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InternalErrorException("Interrupted while sending message to topic: " + topicName);
+		} catch (ExecutionException e) {
+			LOG.error(e.getCause(), "Message to topic {} was not confirmed.", topicName);
+			throw new InternalErrorException("Error sending message to topic: " + topicName);
+		}
+	}
+
+	@Override
+	public ListenableFuture<String> sendMessageAsync(String tenantId, String topicName, String message) {
+		return sendMessageAsync(tenantId, topicName, message.getBytes(Message.CHARSET), Message.TEXT_CONTENT_TYPE,
+				null);
+	}
+
+	/**
+	 * Send a message body as it is. The array is handed to the broker client
+	 * without being copied, so it must not be changed afterwards.
+	 * 
+	 * A send with an idempotency key that was already sent to the topic within
+	 * the idempotency window is not published again; it completes with the ID
+	 * of the first message instead. If the first send fails, the key is
+	 * forgotten so that a retry publishes.
+	 * 
+	 * @param body
+	 *           the message body
+	 * @param contentType
+	 *           the content type of the body, its charset parameter tells
+	 *           subscribers how the body is encoded
+	 * @param idempotencyKey
+	 *           a key chosen by the client for this message, or null
+	 * @return completes with the message ID on broker confirm
+	 */
+	@Override
+	public ListenableFuture<String> sendMessageAsync(String tenantId, String topicName, byte[] body,
+			String contentType, final String idempotencyKey) {
+		if (idempotencyKey == null) {
+			return publish(topicName, body, contentType);
+		}
+
+		final RecentKeyWindow<ListenableFuture<String>> window = sentKeys(tenantId, topicName);
+		final SettableFuture<String> claim = SettableFuture.create();
+		ListenableFuture<String> original = window.putIfAbsent(idempotencyKey, claim, System.currentTimeMillis());
+		if (original != null) {
+			duplicateSends.mark();
+			LOG.debug("Message with idempotency key " + idempotencyKey + " was already sent to topic: " + topicName);
+			return original;
+		}
+
+		ListenableFuture<String> confirm;
+		try {
+			confirm = publish(topicName, body, contentType);
+		} catch (RuntimeException e) {
+			window.remove(idempotencyKey, claim);
+			claim.setException(e);
+			throw e;
+		}
+		Futures.addCallback(confirm, new FutureCallback<String>() {
+			@Override
+			public void onSuccess(String messageId) {
+				claim.set(messageId);
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				window.remove(idempotencyKey, claim);
+				claim.setException(t);
+			}
+		});
+		return claim;
+	}
+
+	private RecentKeyWindow<ListenableFuture<String>> sentKeys(String tenantId, String topicName) {
+		String topicKey = tenantId + ':' + topicName;
+		RecentKeyWindow<ListenableFuture<String>> window = sentKeys.get(topicKey);
+		if (window == null) {
+			RecentKeyWindow<ListenableFuture<String>> created = new RecentKeyWindow<ListenableFuture<String>>(
+					IDEMPOTENCY_WINDOW, IDEMPOTENCY_BUCKETS, IDEMPOTENCY_MAX_KEYS);
+			window = sentKeys.putIfAbsent(topicKey, created);
+			if (window == null) {
+				window = created;
+			}
+		}
+		return window;
+	}
+
+	private ListenableFuture<String> publish(String topicName, byte[] body, String contentType) {
+		Channel channel = null;
 		try {
-			BasicProperties prop = new BasicProperties();
-			String messageId = UUID.randomUUID().toString();
-			prop.setMessageId(messageId);
-
-			Map<String, Object> topicHeader = new HashMap<String, Object>();
-			topicHeader.put("topic", topicName);
-			prop.setHeaders(topicHeader);
-
-			// create a publisher channel
-			Channel channel = null;
-			channel.basicPublish(topicName, "", prop, message.getBytes());
-			return messageId;
+			BasicProperties prop = newMessageProperties(topicName, contentType);
+
+			// lease a publisher channel, it goes back to the pool before the confirm arrives
+			channel = channelPool.lease();
+			return channelPool.publish(channel, topicName, "", prop, body);
 		} catch (Exception e) {
 			LOG.error(e, "Error sending message to topic: " + topicName);
 			throw new InternalErrorException("Error sending message to topic: " + topicName);
+		} finally {
+			channelPool.release(channel);
 		}
 	}
 
+	/**
+	 * Send a batch of messages to a topic. The whole batch is published on one
+	 * leased channel and the call waits once for all confirms.
+	 * 
+	 * @param tenantId
+	 *           the tenant owning the topic
+	 * @param topicName
+	 *           the topic to send to
+	 * @param messages
+	 *           message bodies
+	 * @return message IDs in the order of the input messages
+	 */
+	@Override
+	public List<String> sendMessages(String tenantId, String topicName, List<String> messages) {
+		if (null == messages || messages.isEmpty()) {
+			throw new IllegalArgumentException("No message to send to topic: " + topicName);
+		}
+
+		List<ListenableFuture<String>> confirms = new ArrayList<ListenableFuture<String>>(messages.size());
+		Channel channel = null;
+		try {
+			channel = channelPool.lease();
+			for (String message : messages) {
+				confirms.add(channelPool.publish(channel, topicName, "",
+						newMessageProperties(topicName, Message.TEXT_CONTENT_TYPE), message.getBytes(Message.CHARSET)));
+			}
+		} catch (Exception e) {
+			LOG.error(e, "Error sending message batch to topic: " + topicName);
+			throw new InternalErrorException("Error sending message batch to topic: " + topicName);
+		} finally {
+			channelPool.release(channel);
+		}
+
+		try {
+			// allAsList keeps input order and fails if any message is not confirmed
+			List<String> messageIds = Futures.allAsList(confirms).get();
+			LOG.debug("Sent " + messageIds.size() + " messages to topic: " + topicName);
+			return messageIds;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InternalErrorException("Interrupted while sending message batch to topic: " + topicName);
+		} catch (ExecutionException e) {
+			LOG.error(e.getCause(), "Message batch to topic {} was not fully confirmed.", topicName);
+			throw new InternalErrorException("Error sending message batch to topic: " + topicName);
+		}
+	}
+
+	private BasicProperties newMessageProperties(String topicName, String contentType) {
+		String messageId = messageIds.nextId();
+		// so that the message can be deleted by its ID
+		tombstones.published(topicName, messageId);
+
+		Map<String, Object> topicHeader = new HashMap<String, Object>();
+		topicHeader.put("topic", topicName);
+		return new BasicProperties.Builder()
+				.messageId(messageId)
+				.contentType(contentType)
+				.headers(topicHeader)
+				.build();
+	}
+
 	@Override
 	public Message pullMessage(String tenantId, String topicName) {
+		List<Message> messages = pullMessages(tenantId, topicName, 1);
+		return messages.isEmpty() ? null : messages.get(0);
+	}
+
+	/**
+	 * Pull up to max messages from the P2P queue of a topic. Messages are served
+	 * from the topic's prefetching consumer; the first pull of a topic starts
+	 * that consumer and falls back to a single basicGet.
+	 * 
+	 * @param tenantId
+	 *           the tenant owning the topic
+	 * @param topicName
+	 *           the topic to pull from
+	 * @param max
+	 *           the maximum number of messages to return
+	 * @return the messages pulled, empty if none is available
+	 */
+	@Override
+	public List<Message> pullMessages(String tenantId, String topicName, int max) {
+		return pullMessages(tenantId, topicName, max, 0);
+	}
+
+	/**
+	 * Long-poll variant of pullMessages. If the topic is empty, the caller is
+	 * parked on the topic's prefetch buffer until a message arrives or
+	 * waitMillis elapses. A topic without a prefetcher is polled with basicGet
+	 * for that long instead.
+	 * 
+	 * @param tenantId
+	 *           the tenant owning the topic
+	 * @param topicName
+	 *           the topic to pull from
+	 * @param max
+	 *           the maximum number of messages to return
+	 * @param waitMillis
+	 *           how long to wait for a message, 0 returns immediately
+	 * @return the messages pulled, empty if none arrived in time
+	 */
+	@Override
+	public List<Message> pullMessages(String tenantId, String topicName, int max, long waitMillis) {
+		return pullMessages(tenantId, topicName, max, waitMillis, 0);
+	}
+
+	/**
+	 * Pull with a visibility timeout. The messages are not acked but leased:
+	 * they stay unacked on the channel of the topic's prefetcher, hidden from
+	 * other pulls, until the consumer deletes them or the timeout requeues
+	 * them. Without a timeout the messages are acked as they are pulled. If no
+	 * prefetcher can be started for the topic, a leasing pull answers 503.
+	 * 
+	 * @param visibilityMillis
+	 *           how long the messages are leased, 0 acks them right away
+	 * @return the messages pulled, empty if none arrived in time or the lease
+	 *         table is full
+	 */
+	@Override
+	public List<Message> pullMessages(String tenantId, String topicName, int max, long waitMillis,
+			long visibilityMillis) {
+		if (max < 1) {
+			throw new IllegalArgumentException("max must be positive");
+		}
+		if (waitMillis < 0) {
+			throw new IllegalArgumentException("waitMillis must not be negative");
+		}
+		if (visibilityMillis < 0) {
+			throw new IllegalArgumentException("visibilityMillis must not be negative");
+		}
+		if (visibilityMillis > 0) {
+			max = Math.min(max, leases.available());
+			if (max == 0) {
+				LOG.error("Too many leased messages, not pulling from Topic " + topicName);
+				return new ArrayList<Message>(0);
+			}
+		}
+		String p2pQueueName = RESERVED_P2P_PREFIX + "-" + topicName;
+		long deadline = System.currentTimeMillis() + waitMillis;
+		PullPrefetcher prefetcher = pullPrefetchers.get(topicName);
+		if (prefetcher == null) {
+			// cold topic, messages pushed to the new consumer are served from the next pull
+			pullPrefetchers.start(topicName, p2pQueueName);
+			prefetcher = pullPrefetchers.get(topicName);
+			if (prefetcher == null) {
+				// no consumer to wait on, e.g. a channel error or too many topics pulled from
+				return poll(topicName, p2pQueueName, deadline, visibilityMillis);
+			}
+			Message message;
+			if (visibilityMillis == 0) {
+				message = getMessage(topicName, p2pQueueName);
+			} else {
+				// a leased message must stay on the channel of the prefetcher
+				message = fetch(prefetcher, topicName, visibilityMillis);
+			}
+			if (message != null || waitMillis == 0) {
+				List<Message> messages = new ArrayList<Message>(1);
+				if (message != null) {
+					messages.add(message);
+				}
+				return messages;
+			}
+		}
+
+		try {
+			List<Message> messages = prefetcher.drain(max, waitMillis, visibilityMillis);
+			if (messages.isEmpty() && !prefetcher.isOpen() && System.currentTimeMillis() < deadline) {
+				// woken up by the prefetcher closing, wait out the rest without it
+				return poll(topicName, p2pQueueName, deadline, visibilityMillis);
+			}
+			if (messages.isEmpty()) {
+				LOG.debug("No message found from Topic: " + topicName);
+			}
+			return messages;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InternalErrorException("Interrupted while pulling message from topic: " + topicName);
+		}
+	}
+
+	/**
+	 * Pull from a topic that has no prefetcher, retrying basicGet every poll
+	 * interval until a message comes or the deadline passes. A leased message
+	 * must stay unacked on a consumer channel, so leasing pulls are refused
+	 * instead.
+	 */
+	private List<Message> poll(String topicName, String p2pQueueName, long deadline, long visibilityMillis) {
+		if (visibilityMillis > 0) {
+			throw new ServiceUnavailableException("no consumer to lease messages of Topic " + topicName + " on");
+		}
+		List<Message> messages = new ArrayList<Message>(1);
+		try {
+			while (true) {
+				Message message = getMessage(topicName, p2pQueueName);
+				if (message != null) {
+					messages.add(message);
+					return messages;
+				}
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return messages;
+				}
+				Thread.sleep(Math.min(PULL_POLL_INTERVAL, remaining));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InternalErrorException("Interrupted while pulling message from topic: " + topicName);
+		}
+	}
+
+	private Message fetch(PullPrefetcher prefetcher, String topicName, long visibilityMillis) {
+		try {
+			return prefetcher.fetch(visibilityMillis);
+		} catch (Exception e) {
+			LOG.error(e, "Error pulling message from topic: " + topicName);
+			throw new InternalErrorException("Error pulling message to topic: " + topicName);
+		}
+	}
+
+	private Message getMessage(String topicName, String p2pQueueName) {
 		Message message = null;
+		Channel channel = null;
 		try {
-			// create a consumer channel for pulling message
-			// Channel channel = connection.createChannel();
-			String p2pQueueName = RESERVED_P2P_PREFIX + "-" + topicName;
+			// lease a channel for pulling message
 			boolean autoAck = false;
-			Channel channel = null;
+			channel = channelPool.lease();
 			GetResponse response = channel.basicGet(p2pQueueName, autoAck);
+			while (response != null && tombstones.isDeleted(topicName, response.getProps().getMessageId())) {
+				// deleted while queued, drop it and take the next one
+				channel.basicAck(response.getEnvelope().getDeliveryTag(), false);
+				response = channel.basicGet(p2pQueueName, autoAck);
+			}
 			if (response == null) {
 				LOG.debug("No message found from Topic: " + topicName);
 			} else {
 				String messageId = response.getProps().getMessageId();
-				message = new Message(messageId, topicName, response.getBody());
-				defaultChannel.basicAck(response.getEnvelope().getDeliveryTag(), false);
+				message = new Message(messageId, topicName, response.getBody(),
+						response.getProps().getContentType());
+				// delivery tags are scoped to the channel that fetched the message
+				channel.basicAck(response.getEnvelope().getDeliveryTag(), false);
 				LOG.debug("Message received. Message ID: " + messageId);
 			}
-			// channel.close();
 		} catch (Exception e) {
 			LOG.error(e, "Error pulling message from topic: " + topicName);
 			throw new InternalErrorException("Error pulling message to topic: " + topicName);
+		} finally {
+			channelPool.release(channel);
 		}
 		return message;
 	}
 
+	/**
+	 * Not supported: RabbitMQ queues can only be consumed from the front, so a
+	 * queued message cannot be looked up by its ID
+	 *
+	 * @throws NotImplementedException
+	 *            always, which the API answers with 501
+	 */
+	@Override
+	public Message getMessage(String tenantId, String topicName, String id) {
+		throw new NotImplementedException("Looking up a message by ID is not supported on RabbitMQ topics.");
+	}
+
+	/**
+	 * Delete a message. A leased message is acked. Otherwise, and if the ack
+	 * was lost with its channel, the message ID is recorded as a tombstone of
+	 * the topic, as RabbitMQ cannot remove a message from the middle of a
+	 * queue, and the queued copies are dropped when they are delivered.
+	 *
+	 * @return false if the message is neither leased nor was published through
+	 *         this dispatcher within the tombstone window, or was already
+	 *         deleted
+	 */
 	@Override
 	public boolean deleteMessage(String tenantId, String topicName, String id) {
-		// TODO: it seems RabbitMQ allows only the consumption of message
-		// but not deletion of message. Need to get this sorted out.
-		return true;
+		if (leases.ack(topicName, id)) {
+			LOG.debug("Acked leased message " + id + " of Topic " + topicName);
+			return true;
+		}
+		boolean deleted = tombstones.delete(topicName, id);
+		if (deleted) {
+			LOG.debug("Deleted message " + id + " of Topic " + topicName);
+		}
+		return deleted;
+	}
+
+	/**
+	 * Reset the visibility timeout of a message pulled with one
+	 *
+	 * @return false if the message has no lease any more
+	 */
+	@Override
+	public boolean extendLease(String tenantId, String topicName, String id, long visibilityMillis) {
+		if (visibilityMillis < 0) {
+			throw new IllegalArgumentException("visibilityMillis must not be negative");
+		}
+		return leases.extend(topicName, id, visibilityMillis);
 	}
 
 	// //////////////////////
@@ -285,6 +870,31 @@ public class RabbitMQDispatcher implements MessagingDispatcher {
 	@Override
 	public Subscriber createSubscriber(String subscriberName, String endpoint,
 			Collection<String> topics) {
+		DeliveryPolicy deliveryPolicy = new DeliveryPolicy(DELIVERY_CONCURRENCY, DELIVERY_PREFETCH, ORDERED_DELIVERY);
+		deliveryPolicy.setBatchSize(DELIVERY_BATCH_SIZE);
+		deliveryPolicy.setBatchLinger(DELIVERY_BATCH_LINGER);
+		deliveryPolicy.setLatencyTarget(DELIVERY_LATENCY_TARGET);
+		deliveryPolicy.setAckBatchSize(ACK_BATCH_SIZE);
+		deliveryPolicy.setAckLinger(ACK_LINGER);
+		return createSubscriber(subscriberName, endpoint, topics, deliveryPolicy);
+	}
+
+	/**
+	 * Create a new subscriber with its own delivery concurrency and prefetch
+	 * 
+	 * @param subscriberName
+	 *           the name of subscriber to be created
+	 * @param endpoint
+	 *           subscriber's end point that is listening online for message feed
+	 * @param topics
+	 *           a list of topics to subscribe to
+	 * @param deliveryPolicy
+	 *           how messages are fed to the endpoint
+	 * @return a list of topics that have been successfully subscribed
+	 */
+	@Override
+	public Subscriber createSubscriber(String subscriberName, String endpoint,
+			Collection<String> topics, DeliveryPolicy deliveryPolicy) {
 		// at least one topic is required to subscribe
 		if (null == topics || topics.size() == 0) {
 			throw new InternalErrorException("No topic selected for subscriber: "
@@ -292,11 +902,12 @@ public class RabbitMQDispatcher implements MessagingDispatcher {
 		}
 
 		// endpoint must be valid and alive
-		if (!WebClientTool.isEndpointAlive(endpoint)) {
+		if (!WebClientTool.isEndpointAlive(endpoint, feedConnections)) {
 			throw new InternalErrorException(
 					"Failed subscription due to inaccessible endpoint: " + endpoint);
 		}
 
+		String acquired = null;
 		try {
 			// set subscriber ID
 			String subscriberId = UUID.randomUUID().toString();
@@ -308,128 +919,39 @@ public class RabbitMQDispatcher implements MessagingDispatcher {
 
 			// create an non-exclusive, non-autodelete, durable queue named by the
 			// subscriber ID
-			final Channel channel = connection.createChannel();
+			final Channel channel = channelPool.openConsumerChannel();
 			channel.queueDeclare(subscriberId, true, false, false, subscriberProp);
+			// messages that exhaust their retries are parked here
+			deadLetterStore.declare(channel, subscriberId);
 			// bind the subscriber queue to the exchanges of the target topics
 			Collection<String> topicsSubscribed = subscribeTopicHelper(
 					subscriberId, topics);
 
 			// set a callback object for feed upon message received
-			final SubscriptionFeeder feeder = new SubscriptionFeeder(
-					subscriberName, subscriberId, endpoint);
+			// remembers what was fed, so that broker redeliveries of it are not fed again;
+			// it lives as long as the feeder, which outlives lost consumer channels
+			RecentKeyWindow<Boolean> recentDeliveries = DELIVERY_DEDUP_WINDOW > 0
+					? new RecentKeyWindow<Boolean>(DELIVERY_DEDUP_WINDOW, IDEMPOTENCY_BUCKETS, DELIVERY_DEDUP_MAX_KEYS)
+					: null;
+			final SubscriptionFeeder feeder = new SubscriptionFeeder(subscriberName, subscriberId, endpoint,
+					feedConnections, circuitBreakers.acquire(endpoint), recentDeliveries);
+			acquired = endpoint;
 
 			// start consuming messages from the topic and feed to the subscriber
-			DefaultConsumer consumer = new DefaultConsumer(channel) {
-				// Implement consumer callback so the operation gets dispatched to
-				// background using thread pool managed by RabbitMQ Client
-				@Override
-				public void handleDelivery(String consumerTag, Envelope envelope,
-						BasicProperties properties, byte[] body) throws IOException {
-					long deliveryTag = envelope.getDeliveryTag();
-					String messageBody = new String(body);
-					String messageId = properties.getMessageId();
-					String topicName = properties.getHeaders().get("topic")
-							.toString();
-					Message message = new Message(messageId, topicName, body);
-
-					LOG.debug("Message received for subscriber [Message ID: "
-							+ messageId + "]:");
-					LOG.debug(messageBody);
-
-					boolean success = true;
-					try {
-						feeder.feed(message);
-					} catch (Exception e) {
-						LOG.error(e,
-								"Failed on initial feed. Will retry delivery shortly.");
-						success = false;
-					}
-
-					if (success) {
-						channel.basicAck(deliveryTag, false);
-						LOG.debug("Successfully feed and Ack sent for message "
-								+ messageId);
-					} else {
-						// if the initial feed failed, start redelivery attempts
-						// according to the retry policy
-						int numRetry = 0;
-						int initInterval = defaultRetryPolicy
-								.getInitialRetryInterval();
-						int maxRetryNum = defaultRetryPolicy.getMaxRetryNum();
-						try {
-							// Phase 1, initial retry for configured number of times
-							for (int i = 0; i < defaultRetryPolicy
-									.getInitialRetryNum(); i++) {
-								try {
-									feeder.feed(message);
-									success = true;
-								} catch (Exception e) {
-									LOG.debug("Cannot feed the message. Initial retry #"
-											+ numRetry);
-									success = false;
-								}
-
-								if (success) {
-									break;
-								} else {
-									LOG.debug("Sleeping for " + initInterval
-											+ " before retry.");
-									Thread.sleep(initInterval);
-								}
-								numRetry++;
-							}
-
-							// Phase 2, if still failing, retry until reaching the
-							// configured max
-							// number of retries with incremental time interval
-							if (!success) {
-								while (numRetry < maxRetryNum) {
-									try {
-										feeder.feed(message);
-										success = true;
-									} catch (Exception e) {
-										LOG.debug("Cannot feed the message. Retry #"
-												+ numRetry);
-										success = false;
-									}
-
-									if (success) {
-										break;
-									} else {
-										LOG.debug("Sleeping for " + initInterval
-												+ " before retry.");
-										Thread.sleep(initInterval);
-										initInterval += 1000;
-									}
-									numRetry++;
-								}
-							}
-
-							// Phase 3, if still failing, stop feeding and discard the
-							// message
-							if (!success) {
-								channel.basicReject(deliveryTag, false);
-								LOG.debug("Sent BasicRejeck to discard the undelivarable message: "
-										+ messageId);
-							} else {
-								channel.basicAck(deliveryTag, false);
-								LOG.debug("Successfully feed and Ack sent for message: "
-										+ messageId);
-							}
-						} catch (Exception e) {
-							LOG.error(e, "Error redelivering message.");
-						}
-					}
-				}
-			};
+			SubscriptionConsumer consumer = newConsumer(channel, feeder, deliveryPolicy);
 
-			LOG.debug("Start consuming messages for Subscriber " + subscriberId + " (" + subscriberName + ")");
-			// autoAck = false so consumer explicitly sends ack
-			channel.basicConsume(subscriberId, false, consumer);
+			LOG.debug("Start consuming messages for Subscriber " + subscriberId + " (" + subscriberName + ")"
+					+ " with concurrency " + deliveryPolicy.getConcurrency()
+					+ " and prefetch " + deliveryPolicy.getPrefetch());
+			consumers.put(subscriberId, consumer);
+			consumer.start(subscriberId);
 
 			return new Subscriber(subscriberId, subscriberName, endpoint,
 					topicsSubscribed);
 		} catch (Exception e) {
+			if (acquired != null) {
+				circuitBreakers.release(acquired);
+			}
 			LOG.error(e, "Error creating subscriber. Subscriber: "
 					+ subscriberName);
 			throw new InternalErrorException(
@@ -437,6 +959,58 @@ public class RabbitMQDispatcher implements MessagingDispatcher {
 		}
 	}
 
+	private SubscriptionConsumer newConsumer(Channel channel, SubscriptionFeeder feeder, DeliveryPolicy deliveryPolicy) {
+		return new SubscriptionConsumer(channel, feeder, redeliveryScheduler, defaultRetryPolicy, deliveryPolicy,
+				batchTimer, tombstones, consumerRecovery);
+	}
+
+	private void scheduleRecovery(final SubscriptionConsumer lost) {
+		try {
+			batchTimer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					recoverConsumer(lost);
+				}
+			}, CONSUMER_RECOVERY_INTERVAL, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			LOG.debug("Not resuming Subscriber " + lost.getFeeder().getSubscriberId() + ", shutting down.");
+		}
+	}
+
+	/**
+	 * Consume the queue of a subscriber again after its consumer channel was
+	 * lost. The new consumer keeps the feeder of the lost one, and with it the
+	 * recent-delivery window, so the messages the broker redelivers because
+	 * their acks were lost are not fed twice. Retried until it succeeds or the
+	 * subscriber is deleted.
+	 *
+	 * @param lost
+	 *           the consumer whose channel was lost
+	 */
+	private void recoverConsumer(SubscriptionConsumer lost) {
+		String subscriberId = lost.getFeeder().getSubscriberId();
+		if (consumers.get(subscriberId) != lost) {
+			// deleted meanwhile
+			return;
+		}
+		channelPool.closeConsumerChannel(lost.getChannel());
+		Channel channel = null;
+		try {
+			channel = channelPool.openConsumerChannel();
+			SubscriptionConsumer consumer = newConsumer(channel, lost.getFeeder(), lost.getDeliveryPolicy());
+			consumer.start(subscriberId);
+			if (!consumers.replace(subscriberId, lost, consumer)) {
+				channelPool.closeConsumerChannel(channel);
+				return;
+			}
+			LOG.info("Resumed Subscriber " + subscriberId + " on a new channel.");
+		} catch (Exception e) {
+			LOG.error(e, "Error resuming Subscriber " + subscriberId + ". Will retry.");
+			channelPool.closeConsumerChannel(channel);
+			scheduleRecovery(lost);
+		}
+	}
+
 	/**
 	 * Bind a subscriber to a list of topics
 	 * 
@@ -449,9 +1023,10 @@ public class RabbitMQDispatcher implements MessagingDispatcher {
 	 */
 	private Collection<String> subscribeTopicHelper(String subscriberId,
 			Collection<String> topics) {
+		Channel tmpChannel = null;
 		try {
 			Collection<String> topicsSubscribed = new HashSet<String>();
-			Channel tmpChannel = connection.createChannel();
+			tmpChannel = channelPool.lease();
 
 			// for each topic to subscribe, bind the subscriber queue to the
 			// topic's exchange
@@ -469,13 +1044,15 @@ public class RabbitMQDispatcher implements MessagingDispatcher {
 					continue;
 				}
 			}
-			tmpChannel.close();
+			metadataCache.invalidateSubscriptions(subscriberId, topicsSubscribed);
 			LOG.debug("Successfully subscribed topics: " + topicsSubscribed);
 
 			return topicsSubscribed;
 		} catch (Exception e) {
 			LOG.error(e, "Failed on subscription. Subscriber: " + subscriberId);
 			throw new InternalErrorException("Failed on subscription. subscriber: " + subscriberId);
+		} finally {
+			channelPool.release(tmpChannel);
 		}
 	}
 
@@ -502,6 +1079,10 @@ public class RabbitMQDispatcher implements MessagingDispatcher {
 
 	@Override
 	public Subscriber getSubscriberInfo(String subscriberId) {
+		return metadataCache.getSubscriber(subscriberId);
+	}
+
+	private Subscriber fetchSubscriberInfo(String subscriberId) {
 		try {
 			// URI: api/queues/vhost/queue/bindings
 			String uri = RABBITMQ_WEBAPI +
@@ -521,7 +1102,7 @@ public class RabbitMQDispatcher implements MessagingDispatcher {
 			}
 
 			Collection<String> subscribedTopics = JsonProcessor.parseJsonList(
-					response.getEntity(String.class), "source", null);
+					response.getEntityInputStream(), "source", JsonProcessor.SkipMatcher.NONE);
 			LOG.debug("Topic list retrieved from RMQ for Subscriber {}: {}", subscriberId, subscribedTopics.toString());
 
 			// Get subscriber name and endpoint
@@ -538,11 +1119,8 @@ public class RabbitMQDispatcher implements MessagingDispatcher {
 				throw new InternalErrorException("Error describing Subscriber " + subscriberId);
 			}
 
-			Collection<String> keysToSearch = new ArrayList<String>();
-			keysToSearch.add("subscriberName");
-			keysToSearch.add("endpoint");
 			Map<String, String> subscriberProp = JsonProcessor.parseJsonEntities(
-					response.getEntity(String.class), keysToSearch);
+					response.getEntityInputStream(), SUBSCRIBER_PROPERTIES);
 			LOG.debug(
 					"Subscriber name and endpoint retrieved from RMQ for Subscriber {}: {}",
 					subscriberId, subscriberProp.toString());
@@ -568,17 +1146,56 @@ public class RabbitMQDispatcher implements MessagingDispatcher {
 	 */
 	@Override
 	public boolean deleteSubscriber(String subscriberId) {
+		Channel tmpChannel = null;
 		try {
-			Channel tmpChannel = connection.createChannel();
+			tmpChannel = channelPool.lease();
+			SubscriptionConsumer consumer = consumers.remove(subscriberId);
+			if (consumer != null) {
+				circuitBreakers.release(consumer.getFeeder().getEndpoint());
+				channelPool.closeConsumerChannel(consumer.getChannel());
+			}
 			tmpChannel.queueDelete(subscriberId);
-			tmpChannel.close();
+			deadLetterStore.delete(tmpChannel, subscriberId);
+			metadataCache.invalidateSubscriber(subscriberId);
 		} catch (Exception e) {
 			LOG.error(e, "Failed deleting Subscriber " + subscriberId);
 			throw new InternalErrorException("Failed deleting Subscriber " + subscriberId);
+		} finally {
+			channelPool.release(tmpChannel);
 		}
 		return true;
 	}
 
+	/**
+	 * Look at the dead letters of a subscriber without removing them
+	 * 
+	 * @param subscriberId
+	 *           the ID of subscriber
+	 * @param max
+	 *           the maximum number of messages to return
+	 * @return the oldest dead letters
+	 */
+	@Override
+	public List<Message> getDeadLetters(String subscriberId, int max) {
+		return deadLetterStore.peek(subscriberId, max);
+	}
+
+	/**
+	 * Move dead letters back to a subscriber's queue in the background
+	 * 
+	 * @param subscriberId
+	 *           the ID of subscriber
+	 * @param max
+	 *           the maximum number of messages to replay
+	 * @param ratePerSecond
+	 *           the maximum replay rate
+	 * @return a future completing with the number of messages replayed
+	 */
+	@Override
+	public ListenableFuture<Long> replayDeadLetters(String subscriberId, long max, int ratePerSecond) {
+		return deadLetterStore.replay(subscriberId, max, ratePerSecond);
+	}
+
 	/**
 	 * Un-subscribe an existing subscriber out of a list of topics
 	 * 
@@ -596,8 +1213,9 @@ public class RabbitMQDispatcher implements MessagingDispatcher {
 
 		LOG.debug("Expect to unsubscribe topics " + topics);
 		Collection<String> topicsUnsubscribed = new HashSet<String>();
+		Channel tmpChannel = null;
 		try {
-			Channel tmpChannel = connection.createChannel();
+			tmpChannel = channelPool.lease();
 			// unbind the subscriber queue from each topic requested
 			for (String topic : topics) {
 				try {
@@ -609,11 +1227,13 @@ public class RabbitMQDispatcher implements MessagingDispatcher {
 				}
 				topicsUnsubscribed.add(topic);
 			}
-			tmpChannel.close();
 		} catch (Exception e) {
 			LOG.error(e, "Error unsubscribing Subscriber " + subscriberId);
 			throw new InternalErrorException("Error unsubscribing Subscriber " + subscriberId);
+		} finally {
+			channelPool.release(tmpChannel);
 		}
+		metadataCache.invalidateSubscriptions(subscriberId, topicsUnsubscribed);
 		return topicsUnsubscribed;
 	}
 
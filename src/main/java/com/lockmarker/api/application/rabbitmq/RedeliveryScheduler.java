@@ -0,0 +1,207 @@
+package com.lockmarker.api.application.rabbitmq;
+
+import com.lockmarker.api.application.model.Message;
+import com.lockmarker.api.application.policy.RedeliveryPolicy;
+import com.lockmarker.utils.HashedTimingWheel;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.yammer.dropwizard.logging.Log;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+
+/**
+ * This class retries failed subscription feeds without blocking the consumer
+ * thread that received the message.
+ *
+ * Each failed delivery is kept with its delivery tag on a timing wheel. When
+ * the retry is due, the feed is attempted on a worker thread, and the message
+ * is acked on success, rescheduled according to the RedeliveryPolicy on
+ * failure, or moved to the subscriber's dead-letter queue once the policy is
+ * exhausted. If the circuit of the endpoint opens meanwhile, the message is
+ * requeued instead and its retries start over once the endpoint is back. A
+ * message deleted while it waits for a retry is acked and not fed again.
+ *
+ * Until then the message stays unacked on its channel, so nothing is lost if
+ * the service stops.
+ */
+public class RedeliveryScheduler {
+	private static final Log				LOG			= Log.forClass(RedeliveryScheduler.class);
+	private static final long				TICK_MILLIS	= 100;
+	private static final int				WHEEL_SIZE	= 512;
+	private final ThreadPoolExecutor		workers;
+	private final HashedTimingWheel		wheel;
+	private final DeadLetterStore			deadLetterStore;
+	private final TombstoneRegistry		tombstones;
+	private final Meter						redelivered;
+	private final Meter						rejected;
+
+	/**
+	 * @param workerThreads
+	 *           number of threads running retry attempts
+	 * @param deadLetterStore
+	 *           keeps the messages that exhausted their retries
+	 * @param tombstones
+	 *           the deleted messages, acked instead of retried
+	 */
+	public RedeliveryScheduler(int workerThreads, DeadLetterStore deadLetterStore, TombstoneRegistry tombstones) {
+		this.deadLetterStore = deadLetterStore;
+		this.tombstones = tombstones;
+		final AtomicInteger threadCount = new AtomicInteger();
+		this.workers = new ThreadPoolExecutor(workerThreads, workerThreads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "redelivery-worker-" + threadCount.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		this.workers.allowCoreThreadTimeOut(true);
+		this.wheel = new HashedTimingWheel("redelivery-timer", TICK_MILLIS, WHEEL_SIZE, workers);
+
+		this.redelivered = Metrics.newMeter(RedeliveryScheduler.class, "redelivered", "messages", TimeUnit.SECONDS);
+		this.rejected = Metrics.newMeter(RedeliveryScheduler.class, "rejected", "messages", TimeUnit.SECONDS);
+		Metrics.newGauge(RedeliveryScheduler.class, "pending-redeliveries", new Gauge<Integer>() {
+			@Override
+			public Integer value() {
+				return wheel.getPending() + workers.getQueue().size() + workers.getActiveCount();
+			}
+		});
+	}
+
+	/**
+	 * Start redelivery of a message whose initial feed failed
+	 *
+	 * @param acks
+	 *           the ack tracker of the channel the message was delivered on
+	 * @param deliveryTag
+	 *           the delivery tag to ack once the retries resolve
+	 * @param message
+	 *           the message to feed
+	 * @param feeder
+	 *           the subscriber's feeder
+	 * @param policy
+	 *           the retry policy of the subscriber
+	 * @param release
+	 *           run once the message is acked, requeued or dead-lettered, so
+	 *           that ordered delivery can go on with the next message
+	 */
+	public void schedule(AckTracker acks, long deliveryTag, Message message,
+			SubscriptionFeeder feeder, RedeliveryPolicy policy, Runnable release) {
+		Redelivery redelivery = new Redelivery(acks, deliveryTag, message, feeder, policy, release);
+		wheel.schedule(redelivery, policy.getRetryDelay(0));
+	}
+
+	public void stop() {
+		wheel.stop();
+		workers.shutdownNow();
+	}
+
+	private class Redelivery implements Runnable {
+		private final AckTracker			acks;
+		private final long					deliveryTag;
+		private final Message				message;
+		private final SubscriptionFeeder	feeder;
+		private final RedeliveryPolicy	policy;
+		private final Runnable				release;
+		private int								numRetry;
+
+		Redelivery(AckTracker acks, long deliveryTag, Message message,
+				SubscriptionFeeder feeder, RedeliveryPolicy policy, Runnable release) {
+			this.acks = acks;
+			this.deliveryTag = deliveryTag;
+			this.message = message;
+			this.feeder = feeder;
+			this.policy = policy;
+			this.release = release;
+		}
+
+		@Override
+		public void run() {
+			if (!acks.isOpen()) {
+				// the broker requeues the unacked message with the channel
+				LOG.debug("Channel closed, dropping redelivery of message " + message.getId());
+				release.run();
+				return;
+			}
+			if (tombstones.isDeleted(message.getTopic(), message.getId())) {
+				drop();
+				return;
+			}
+			if (!feeder.isAvailable()) {
+				// the circuit is open, the queue keeps the message until the endpoint is back
+				requeue();
+				return;
+			}
+			try {
+				feeder.feed(message);
+			} catch (Exception e) {
+				LOG.debug("Cannot feed the message. Retry #" + numRetry);
+				numRetry++;
+				if (policy.canRetry(numRetry)) {
+					wheel.schedule(this, policy.getRetryDelay(numRetry));
+					return;
+				}
+				deadLetter();
+				return;
+			}
+			ack();
+		}
+
+		private void ack() {
+			try {
+				acks.ack(deliveryTag);
+				redelivered.mark();
+				LOG.debug("Successfully feed and Ack sent for message: " + message.getId());
+			} catch (Exception e) {
+				LOG.error(e, "Error acking redelivered message " + message.getId());
+			}
+			release.run();
+		}
+
+		private void drop() {
+			try {
+				acks.ack(deliveryTag);
+				LOG.debug("Message " + message.getId() + " was deleted, not retrying it.");
+			} catch (Exception e) {
+				// the broker redelivers it, and the consumer drops it then
+				LOG.error(e, "Error acking deleted message " + message.getId());
+			}
+			release.run();
+		}
+
+		private void requeue() {
+			try {
+				acks.reject(deliveryTag, true);
+				LOG.debug("Requeued message " + message.getId() + " while its endpoint is down.");
+			} catch (Exception e) {
+				LOG.error(e, "Error requeueing message " + message.getId());
+			}
+			release.run();
+		}
+
+		private void deadLetter() {
+			if (!deadLetterStore.store(feeder.getSubscriberId(), message)) {
+				// keep the message unacked and try again rather than lose it
+				LOG.error("Cannot dead-letter message " + message.getId() + ". Will try again later.");
+				wheel.schedule(this, policy.getRetryDelay(numRetry));
+				return;
+			}
+			try {
+				acks.ack(deliveryTag);
+				rejected.mark();
+				LOG.debug("Moved the undeliverable message " + message.getId() + " to the dead-letter queue.");
+			} catch (Exception e) {
+				// the broker redelivers it, so it may end up dead-lettered twice
+				LOG.error(e, "Error acking dead-lettered message " + message.getId());
+			}
+			release.run();
+		}
+	}
+}
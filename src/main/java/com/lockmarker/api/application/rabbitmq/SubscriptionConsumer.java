@@ -0,0 +1,461 @@
+package com.lockmarker.api.application.rabbitmq;
+
+import com.lockmarker.api.application.model.Message;
+import com.lockmarker.api.application.policy.DeliveryPolicy;
+import com.lockmarker.api.application.policy.RedeliveryPolicy;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.yammer.dropwizard.logging.Log;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * This class consumes a subscriber's queue and feeds every message to the
+ * subscriber's endpoint. The callback only hands each delivery to the
+ * subscriber's DeliveryExecutor, so up to concurrency feeds are in flight and
+ * the broker keeps up to prefetch messages pushed ahead of them. Successful
+ * feeds complete in any order; the AckTracker of the channel coalesces their
+ * acks into basicAck(multiple=true) frames, sent once the ack batch fills or
+ * its linger runs out. The ack batch is capped at half the prefetch, so the
+ * acks held back never starve the consumer. Failed feeds are handed to the
+ * RedeliveryScheduler; with ordered delivery, the later messages of the topic
+ * wait until the retries of the failed one resolve.
+ *
+ * In batch feed mode, deliveries are first grouped by a FeedBatcher and each
+ * batch is fed in one request. If a batch fails, each of its messages is
+ * retried on its own.
+ *
+ * While the circuit of the subscriber's endpoint is open, the consumer is
+ * cancelled and every message not fed yet is requeued instead, so the queue
+ * holds the backlog rather than memory. Consuming resumes once the circuit
+ * closes.
+ *
+ * With an adaptive delivery policy, the response time and outcome of every
+ * feed drive an AdaptiveWindow. The window caps the feeds running at once and
+ * sets the channel prefetch to twice the window, so a slow endpoint is sent
+ * fewer concurrent requests and has fewer messages parked for it, while a
+ * fast one gets up to the full concurrency.
+ *
+ * A message the broker redelivers, e.g. because its ack was lost with a
+ * channel, is acked without a feed if the feeder fed it successfully within
+ * its recent-delivery window. A message deleted while it was queued is acked
+ * without a feed too.
+ *
+ * When the channel closes without the application closing it, the
+ * RecoveryListener is told so that it can resume the queue on a new channel
+ * with a new consumer around the same feeder. The recent-delivery window lives
+ * in the feeder, so the messages whose acks were lost with the channel are
+ * recognized when the broker redelivers them.
+ */
+public class SubscriptionConsumer extends DefaultConsumer implements EndpointCircuitBreaker.Listener {
+	private static final Log					LOG	= Log.forClass(SubscriptionConsumer.class);
+	private final SubscriptionFeeder			feeder;
+	private final RedeliveryScheduler		redeliveryScheduler;
+	private final RedeliveryPolicy			retryPolicy;
+	private final DeliveryPolicy				deliveryPolicy;
+	private final DeliveryExecutor			deliveryExecutor;
+	private final AckTracker					acks;
+	private final FeedBatcher					batcher;
+	private final AdaptiveWindow				window;
+	private final TombstoneRegistry			tombstones;
+	private final RecoveryListener			recovery;
+	private Meter									suppressed;
+	private volatile int							prefetch;
+	private String									queueName;
+	private boolean								paused;
+
+	/**
+	 * @param channel
+	 *           a dedicated consumer channel
+	 * @param feeder
+	 *           the subscriber's feeder
+	 * @param redeliveryScheduler
+	 *           retries failed feeds
+	 * @param retryPolicy
+	 *           the retry policy of the subscriber
+	 * @param deliveryPolicy
+	 *           the delivery policy of the subscriber
+	 * @param batchTimer
+	 *           fires the linger timeouts of batch feed mode and of acks
+	 * @param tombstones
+	 *           the deleted messages, dropped instead of fed
+	 * @param recovery
+	 *           told when the channel is lost, or null
+	 */
+	public SubscriptionConsumer(Channel channel, SubscriptionFeeder feeder,
+			RedeliveryScheduler redeliveryScheduler, RedeliveryPolicy retryPolicy,
+			DeliveryPolicy deliveryPolicy, ScheduledExecutorService batchTimer, TombstoneRegistry tombstones,
+			RecoveryListener recovery) {
+		super(channel);
+		this.recovery = recovery;
+		this.feeder = feeder;
+		this.redeliveryScheduler = redeliveryScheduler;
+		this.retryPolicy = retryPolicy;
+		this.deliveryPolicy = deliveryPolicy;
+		this.deliveryExecutor = new DeliveryExecutor(feeder.getSubscriberId(), deliveryPolicy);
+		this.tombstones = tombstones;
+		this.prefetch = deliveryPolicy.getPrefetch();
+		if (deliveryPolicy.isAdaptive()) {
+			// start small and let good responses open the window
+			this.window = new AdaptiveWindow(1, deliveryPolicy.getConcurrency(), deliveryPolicy.getLatencyTarget());
+			this.deliveryExecutor.setLimit(window.getWindow());
+			this.prefetch = prefetchFor(window.getWindow());
+		} else {
+			this.window = null;
+		}
+		this.acks = new AckTracker(channel, deliveryPolicy.getAckBatchSize(prefetch), deliveryPolicy.getAckLinger(),
+				batchTimer);
+		if (deliveryPolicy.isBatched()) {
+			this.batcher = new FeedBatcher(deliveryPolicy.getBatchSize(), deliveryPolicy.getBatchLinger(),
+					batchTimer, new FeedBatcher.BatchListener() {
+						@Override
+						public void onBatch(String key, List<Long> deliveryTags, List<Message> messages) {
+							submitBatch(key, deliveryTags, messages);
+						}
+					});
+		} else {
+			this.batcher = null;
+		}
+	}
+
+	/**
+	 * Start consuming the subscriber's queue
+	 *
+	 * @param queueName
+	 *           the subscriber queue
+	 */
+	public void start(String queueName) throws IOException {
+		this.queueName = queueName;
+		// bounds the unacked messages and so the delivery executor's queue
+		getChannel().basicQos(prefetch);
+		registerMetrics();
+		feeder.getCircuitBreaker().addListener(this);
+		// autoAck = false so consumer explicitly sends ack
+		getChannel().basicConsume(queueName, false, this);
+	}
+
+	@Override
+	public synchronized void onOpen(EndpointCircuitBreaker breaker) {
+		if (paused) {
+			return;
+		}
+		paused = true;
+		try {
+			if (getChannel().isOpen() && getConsumerTag() != null) {
+				getChannel().basicCancel(getConsumerTag());
+			}
+			LOG.info("Paused Subscriber " + feeder.getSubscriberId() + " while its endpoint is down.");
+		} catch (Exception e) {
+			LOG.error(e, "Error pausing Subscriber " + feeder.getSubscriberId());
+		}
+	}
+
+	@Override
+	public synchronized void onClose(EndpointCircuitBreaker breaker) {
+		if (!paused) {
+			return;
+		}
+		paused = false;
+		try {
+			getChannel().basicConsume(queueName, false, this);
+			LOG.info("Resumed Subscriber " + feeder.getSubscriberId() + ".");
+		} catch (Exception e) {
+			LOG.error(e, "Error resuming Subscriber " + feeder.getSubscriberId());
+		}
+	}
+
+	@Override
+	public void handleDelivery(String consumerTag, Envelope envelope,
+			BasicProperties properties, byte[] body) throws IOException {
+		final long deliveryTag = envelope.getDeliveryTag();
+		String messageId = properties.getMessageId();
+		String topicName = properties.getHeaders().get("topic")
+				.toString();
+		acks.delivered(deliveryTag);
+
+		// checked before anything is allocated for the message
+		if (tombstones.isDeleted(topicName, messageId)) {
+			LOG.debug("Dropped deleted message " + messageId + " for Subscriber " + feeder.getSubscriberId());
+			try {
+				acks.ack(deliveryTag);
+			} catch (Exception e) {
+				LOG.error(e, "Error acking deleted message " + messageId);
+			}
+			return;
+		}
+
+		final Message message = new Message(messageId, topicName, body, properties.getContentType());
+		LOG.debug("Message received for subscriber [Message ID: "
+				+ messageId + "]");
+
+		// only a redelivery can repeat a message this subscriber was already fed
+		if (envelope.isRedeliver() && feeder.wasDelivered(messageId)) {
+			suppressed.mark();
+			LOG.debug("Suppressed duplicate of message " + messageId + " for Subscriber " + feeder.getSubscriberId());
+			try {
+				acks.ack(deliveryTag);
+			} catch (Exception e) {
+				LOG.error(e, "Error acking duplicate message " + messageId);
+			}
+			return;
+		}
+
+		if (batcher != null) {
+			// with ordered delivery a batch only holds messages of one topic
+			batcher.add(deliveryPolicy.isOrdered() ? topicName : "", deliveryTag, message);
+			return;
+		}
+
+		try {
+			// the topic is the ordering key when delivery is ordered
+			deliveryExecutor.execute(topicName, new DeliveryExecutor.HeldTask() {
+				@Override
+				public void run(Runnable release) {
+					deliver(deliveryTag, message, release);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// the subscriber is going away, give the message back
+			acks.reject(deliveryTag, true);
+		}
+	}
+
+	private void submitBatch(String key, final List<Long> deliveryTags, final List<Message> messages) {
+		try {
+			deliveryExecutor.execute(key, new DeliveryExecutor.HeldTask() {
+				@Override
+				public void run(Runnable release) {
+					deliverBatch(deliveryTags, messages, release);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// the subscriber is going away, give the messages back
+			LOG.debug("Requeueing batch of " + messages.size() + " messages of stopped Subscriber "
+					+ feeder.getSubscriberId());
+			for (Long deliveryTag : deliveryTags) {
+				try {
+					acks.reject(deliveryTag, true);
+				} catch (Exception rejectError) {
+					// the channel is gone, the broker requeued them with it
+					LOG.debug("Error requeueing message of stopped Subscriber " + feeder.getSubscriberId());
+					return;
+				}
+			}
+		}
+	}
+
+	@Override
+	public void handleCancel(String consumerTag) throws IOException {
+		// the subscriber queue was deleted
+		LOG.debug("Consumer of Subscriber " + feeder.getSubscriberId() + " cancelled by server.");
+		feeder.getCircuitBreaker().removeListener(this);
+		removeMetrics();
+		deliveryExecutor.shutdown();
+	}
+
+	@Override
+	public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+		// unacked messages go back to the queue with the channel
+		feeder.getCircuitBreaker().removeListener(this);
+		removeMetrics();
+		deliveryExecutor.shutdown();
+		if (recovery != null && !sig.isInitiatedByApplication()) {
+			LOG.error("Lost the channel of Subscriber " + feeder.getSubscriberId() + ": " + sig.getReason());
+			recovery.onChannelLost(this);
+		}
+	}
+
+	public int getInFlight() {
+		return deliveryExecutor.getInFlight();
+	}
+
+	public SubscriptionFeeder getFeeder() {
+		return feeder;
+	}
+
+	public DeliveryPolicy getDeliveryPolicy() {
+		return deliveryPolicy;
+	}
+
+	/**
+	 * @param release
+	 *           run once the message is done with, maybe by a later retry
+	 */
+	private void deliver(long deliveryTag, Message message, Runnable release) {
+		if (!feeder.isAvailable()) {
+			requeue(deliveryTag);
+			release.run();
+			return;
+		}
+		long start = System.currentTimeMillis();
+		try {
+			feeder.feed(message);
+		} catch (Exception e) {
+			adapt(false, start);
+			// retry in the background according to the retry policy
+			LOG.error(e,
+					"Failed on initial feed. Will retry delivery shortly.");
+			// ordered delivery holds the message's lane until the retries resolve
+			redeliveryScheduler.schedule(acks, deliveryTag, message, feeder, retryPolicy, release);
+			return;
+		}
+		adapt(true, start);
+
+		try {
+			acks.ack(deliveryTag);
+			LOG.debug("Successfully feed and Ack sent for message "
+					+ message.getId());
+		} catch (Exception e) {
+			// the broker redelivers it once the channel is gone
+			LOG.error(e, "Error acking message " + message.getId());
+		}
+		release.run();
+	}
+
+	private void deliverBatch(List<Long> deliveryTags, List<Message> messages, Runnable release) {
+		if (!feeder.isAvailable()) {
+			for (Long deliveryTag : deliveryTags) {
+				requeue(deliveryTag);
+			}
+			release.run();
+			return;
+		}
+		long start = System.currentTimeMillis();
+		try {
+			feeder.feed(messages);
+		} catch (Exception e) {
+			adapt(false, start);
+			// retry each message on its own according to the retry policy
+			LOG.error(e, "Failed on initial batch feed. Will retry " + messages.size() + " messages shortly.");
+			Runnable released = countDown(messages.size(), release);
+			for (int i = 0; i < messages.size(); i++) {
+				redeliveryScheduler.schedule(acks, deliveryTags.get(i), messages.get(i), feeder, retryPolicy, released);
+			}
+			return;
+		}
+
+		adapt(true, start);
+		try {
+			acks.ack(deliveryTags);
+			LOG.debug("Successfully fed batch of " + messages.size() + " messages");
+		} catch (Exception e) {
+			// the broker redelivers them once the channel is gone
+			LOG.error(e, "Error acking batch of " + messages.size() + " messages");
+		}
+		release.run();
+	}
+
+	/**
+	 * @return a release that runs release once it ran count times
+	 */
+	private static Runnable countDown(int count, final Runnable release) {
+		final AtomicInteger pending = new AtomicInteger(count);
+		return new Runnable() {
+			@Override
+			public void run() {
+				if (pending.decrementAndGet() == 0) {
+					release.run();
+				}
+			}
+		};
+	}
+
+	private void requeue(long deliveryTag) {
+		try {
+			// the endpoint is down, keep the message in the queue until it is back
+			acks.reject(deliveryTag, true);
+		} catch (Exception e) {
+			LOG.error(e, "Error requeueing message of paused Subscriber " + feeder.getSubscriberId());
+		}
+	}
+
+	private void adapt(boolean success, long start) {
+		if (window == null) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		boolean changed = success ? window.onSuccess(now - start, now) : window.onFailure(now);
+		if (!changed) {
+			return;
+		}
+		int size = window.getWindow();
+		deliveryExecutor.setLimit(size);
+		int newPrefetch = prefetchFor(size);
+		if (newPrefetch != prefetch) {
+			prefetch = newPrefetch;
+			acks.setBatchSize(deliveryPolicy.getAckBatchSize(newPrefetch));
+			try {
+				getChannel().basicQos(newPrefetch);
+			} catch (Exception e) {
+				LOG.error(e, "Error changing prefetch of Subscriber " + feeder.getSubscriberId());
+			}
+		}
+		LOG.debug("Delivery window of Subscriber " + feeder.getSubscriberId() + " is now " + size);
+	}
+
+	private int prefetchFor(int size) {
+		// keep one spare message per running feed, and room for a full batch
+		return Math.min(deliveryPolicy.getPrefetch(), Math.max(size * 2, deliveryPolicy.getBatchSize()));
+	}
+
+	private void registerMetrics() {
+		String scope = feeder.getSubscriberId();
+		suppressed = Metrics.newMeter(SubscriptionConsumer.class, "duplicates-suppressed", scope, "messages",
+				TimeUnit.SECONDS);
+		Metrics.newGauge(SubscriptionConsumer.class, "delivery-window", scope, new Gauge<Integer>() {
+			@Override
+			public Integer value() {
+				return deliveryExecutor.getLimit();
+			}
+		});
+		Metrics.newGauge(SubscriptionConsumer.class, "delivery-window-limit", scope, new Gauge<Integer>() {
+			@Override
+			public Integer value() {
+				return deliveryPolicy.getConcurrency();
+			}
+		});
+		Metrics.newGauge(SubscriptionConsumer.class, "delivery-prefetch", scope, new Gauge<Integer>() {
+			@Override
+			public Integer value() {
+				return prefetch;
+			}
+		});
+		Metrics.newGauge(SubscriptionConsumer.class, "deliveries-in-flight", scope, new Gauge<Integer>() {
+			@Override
+			public Integer value() {
+				return deliveryExecutor.getInFlight();
+			}
+		});
+	}
+
+	private void removeMetrics() {
+		String scope = feeder.getSubscriberId();
+		Metrics.defaultRegistry().removeMetric(new MetricName(SubscriptionConsumer.class, "delivery-window", scope));
+		Metrics.defaultRegistry().removeMetric(new MetricName(SubscriptionConsumer.class, "delivery-window-limit", scope));
+		Metrics.defaultRegistry().removeMetric(new MetricName(SubscriptionConsumer.class, "delivery-prefetch", scope));
+		Metrics.defaultRegistry().removeMetric(new MetricName(SubscriptionConsumer.class, "deliveries-in-flight", scope));
+		Metrics.defaultRegistry().removeMetric(new MetricName(SubscriptionConsumer.class, "duplicates-suppressed", scope));
+	}
+
+	/**
+	 * Told when the channel of a consumer closes without the application
+	 * closing it
+	 */
+	public interface RecoveryListener {
+		void onChannelLost(SubscriptionConsumer consumer);
+	}
+}
@@ -1,65 +1,142 @@
 package com.lockmarker.api.application.rabbitmq;
 
 import com.lockmarker.api.application.model.Message;
+import com.lockmarker.utils.HttpConnectionPool;
+import com.lockmarker.utils.RecentKeyWindow;
 
-import org.codehaus.jackson.node.JsonNodeFactory;
-import org.codehaus.jackson.node.ObjectNode;
-import com.sun.jersey.api.client.Client;
-import com.sun.jersey.api.client.ClientResponse;
-import com.sun.jersey.api.client.WebResource;
+import java.util.List;
 
 import com.yammer.dropwizard.logging.Log;
 
 /**
  * This class implements all logic for feeding message to subscribers 
  * upon receiving message from RabbitMQ client.
+ *
+ * Only transport errors and 5xx answers count against the circuit breaker of
+ * the endpoint. Any other answer but 200 fails the feed too, but shows that
+ * the endpoint is up, so it must not take the endpoint out of service.
  */
 public class SubscriptionFeeder {
 	private static final Log LOG = Log.forClass(SubscriptionFeeder.class);
 	private String subscriberName;
 	private String subscriberId;
 	private String endpoint;
-	private Client webclient;
-	private WebResource webResource;
+	private HttpConnectionPool connections;
+	private EndpointCircuitBreaker circuitBreaker;
+	private RecentKeyWindow<Boolean> recentDeliveries;
 	
-	SubscriptionFeeder(String subscriberName,
-			           String subscriberId,
-			           String endpoint) {
+	/**
+	 * @param recentDeliveries
+	 *           remembers the IDs of messages fed successfully, or null to
+	 *           not track them
+	 */
+	public SubscriptionFeeder(String subscriberName,
+			                  String subscriberId,
+			                  String endpoint,
+			                  HttpConnectionPool connections,
+			                  EndpointCircuitBreaker circuitBreaker,
+			                  RecentKeyWindow<Boolean> recentDeliveries) {
 		this.subscriberName = subscriberName;
 		this.subscriberId = subscriberId;
 		this.endpoint = endpoint;
-		this.webclient = Client.create();
-		this.webResource = webclient.resource(endpoint);
+		this.connections = connections;
+		this.circuitBreaker = circuitBreaker;
+		this.recentDeliveries = recentDeliveries;
 	}
 
 	public void feed(Message message) {
+		LOG.debug("Feeding message " + message.getId() + "to subscriber " + subscriberName);
+		int status;
 		try {
-			LOG.debug("Feeding message " + message.getId() + "to subscriber " + subscriberName);
-			ObjectNode feedJson = JsonNodeFactory.instance.objectNode();
-			feedJson.put("messageId", message.getId());
-			feedJson.put("topicName", message.getTopic());
-			feedJson.put("message", new String(message.getBody()));
-			
-			ClientResponse response = webResource.put(ClientResponse.class, feedJson.toString());
-			if (response.getStatus() != 200) {
-				LOG.debug("Failed feeding message to subscription");
-				LOG.debug("\t\tmessageId = " + message.getId());
-				LOG.debug("\t\ttopic = " + message.getTopic());
-				LOG.debug("\t\tsubscriberName = " + subscriberName);
-				LOG.debug("\t\tsubscriberId = " + subscriberId);
-				LOG.debug("\t\tendpoint = " + endpoint);
-				LOG.debug("endpoint response code: " + response.getStatus());
-				LOG.error("Error feeding message to suscriber.");
-				throw new RuntimeException("Error feeding message to Subscriber " +
-						subscriberName + " (" + subscriberId + 
-						"). Endpoint response code: " + response.getStatus());
-			}
+			status = connections.put(endpoint, new FeedEntity(message));
 		} catch (Exception e) {
+			circuitBreaker.recordFailure();
 			LOG.error("Error feeding message " + message.getId() + " to Suscriber " + subscriberId);
 			throw new RuntimeException("Failed feeding message to Subscriber " 
 					+ subscriberName 
 					+ " (" + subscriberId + ").");
 		}
+		if (status != 200) {
+			LOG.debug("Failed feeding message to subscription");
+			LOG.debug("\t\tmessageId = " + message.getId());
+			LOG.debug("\t\ttopic = " + message.getTopic());
+			LOG.debug("\t\tsubscriberName = " + subscriberName);
+			LOG.debug("\t\tsubscriberId = " + subscriberId);
+			LOG.debug("\t\tendpoint = " + endpoint);
+			LOG.debug("endpoint response code: " + status);
+			LOG.error("Error feeding message to suscriber.");
+			recordRejection(status);
+			throw new RuntimeException("Error feeding message to Subscriber " +
+					subscriberName + " (" + subscriberId + 
+					"). Endpoint response code: " + status);
+		}
+		circuitBreaker.recordSuccess();
+		remember(message);
+	}
+	
+	/**
+	 * Feed a batch of messages in one request. The body is a JSON array of the
+	 * documents feed(Message) sends one at a time.
+	 * 
+	 * @param messages
+	 *           the messages in delivery order
+	 */
+	public void feed(List<Message> messages) {
+		LOG.debug("Feeding batch of " + messages.size() + " messages to subscriber " + subscriberName);
+		int status;
+		try {
+			status = connections.put(endpoint, new FeedEntity(messages));
+		} catch (Exception e) {
+			circuitBreaker.recordFailure();
+			LOG.error("Error feeding batch of " + messages.size() + " messages to Suscriber " + subscriberId);
+			throw new RuntimeException("Failed feeding batch to Subscriber " 
+					+ subscriberName 
+					+ " (" + subscriberId + ").");
+		}
+		if (status != 200) {
+			LOG.error("Error feeding batch to suscriber " + subscriberId + ". Endpoint response code: " + status);
+			recordRejection(status);
+			throw new RuntimeException("Error feeding batch to Subscriber " +
+					subscriberName + " (" + subscriberId + 
+					"). Endpoint response code: " + status);
+		}
+		circuitBreaker.recordSuccess();
+		for (Message message : messages) {
+			remember(message);
+		}
+	}
+
+	private void recordRejection(int status) {
+		// a 4xx comes from an endpoint that is up, only server errors open the circuit
+		if (status >= 500) {
+			circuitBreaker.recordFailure();
+		}
+	}
+	
+	/**
+	 * @return true if a message with this ID was fed successfully within the
+	 *         recent-delivery window
+	 */
+	public boolean wasDelivered(String messageId) {
+		return recentDeliveries != null && messageId != null
+				&& recentDeliveries.get(messageId, System.currentTimeMillis()) != null;
+	}
+	
+	private void remember(Message message) {
+		if (recentDeliveries != null && message.getId() != null) {
+			recentDeliveries.putIfAbsent(message.getId(), Boolean.TRUE, System.currentTimeMillis());
+		}
+	}
+	
+	/**
+	 * @return false while the circuit of the endpoint is open
+	 */
+	public boolean isAvailable() {
+		return circuitBreaker.isClosed();
+	}
+	
+	public EndpointCircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
 	}
 	
 	public String getSubscriberId() {
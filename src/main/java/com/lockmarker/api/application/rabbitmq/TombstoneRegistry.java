@@ -0,0 +1,134 @@
+package com.lockmarker.api.application.rabbitmq;
+
+import com.lockmarker.utils.TombstoneSet;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+
+/**
+ * This class keeps one TombstoneSet per topic with the IDs of the messages
+ * deleted from it. RabbitMQ cannot remove a message from the middle of a
+ * queue, so a deleted message stays queued; the subscription consumers and
+ * pull prefetchers check every delivery here and ack and drop the deleted
+ * ones instead of feeding or returning them.
+ *
+ * Nor can RabbitMQ tell whether a queue holds a message, so the IDs published
+ * through this dispatcher are remembered for the same window too, and only
+ * those can be deleted. They are kept in a few stripes per topic, each with
+ * its own lock, so that concurrent publishers to a topic rarely wait for each
+ * other.
+ *
+ * A tombstone is kept for the tombstone window. A deleted message still
+ * queued after that is delivered as usual.
+ */
+public class TombstoneRegistry {
+	private static final int									STRIPES	= 16;
+	private final ConcurrentMap<String, TombstoneSet>		tombstones;
+	private final ConcurrentMap<String, TombstoneSet[]>	published;
+	private final long											windowMillis;
+	private final int												bucketCount;
+	private final int												maxPerTopic;
+	private final Meter											dropped;
+
+	/**
+	 * @param windowMillis
+	 *           how long a published or deleted message ID is remembered
+	 * @param bucketCount
+	 *           the number of buckets the window is split into
+	 * @param maxPerTopic
+	 *           the most published, and the most deleted, message IDs
+	 *           remembered per topic
+	 */
+	public TombstoneRegistry(long windowMillis, int bucketCount, int maxPerTopic) {
+		this.tombstones = new ConcurrentHashMap<String, TombstoneSet>();
+		this.published = new ConcurrentHashMap<String, TombstoneSet[]>();
+		this.windowMillis = windowMillis;
+		this.bucketCount = bucketCount;
+		this.maxPerTopic = maxPerTopic;
+		this.dropped = Metrics.newMeter(TombstoneRegistry.class, "deleted-messages-dropped", "messages",
+				TimeUnit.SECONDS);
+
+		Metrics.newGauge(TombstoneRegistry.class, "tombstones", new Gauge<Integer>() {
+			@Override
+			public Integer value() {
+				int size = 0;
+				for (TombstoneSet set : tombstones.values()) {
+					size += set.size();
+				}
+				return size;
+			}
+		});
+	}
+
+	/**
+	 * Record the ID of a message published to a topic
+	 */
+	public void published(String topicName, String messageId) {
+		TombstoneSet[] stripes = published.get(topicName);
+		if (stripes == null) {
+			TombstoneSet[] created = new TombstoneSet[STRIPES];
+			for (int i = 0; i < STRIPES; i++) {
+				created[i] = new TombstoneSet(windowMillis, bucketCount, Math.max(1, maxPerTopic / STRIPES));
+			}
+			stripes = published.putIfAbsent(topicName, created);
+			if (stripes == null) {
+				stripes = created;
+			}
+		}
+		stripes[messageId.hashCode() & (STRIPES - 1)].add(messageId, System.currentTimeMillis());
+	}
+
+	/**
+	 * Record the deletion of a message
+	 *
+	 * @return false if the message was not published within the window, or was
+	 *         already deleted
+	 */
+	public boolean delete(String topicName, String messageId) {
+		TombstoneSet[] stripes = published.get(topicName);
+		long now = System.currentTimeMillis();
+		if (stripes == null || !stripes[messageId.hashCode() & (STRIPES - 1)].contains(messageId, now)) {
+			return false;
+		}
+		TombstoneSet set = tombstones.get(topicName);
+		if (set == null) {
+			TombstoneSet created = new TombstoneSet(windowMillis, bucketCount, maxPerTopic);
+			set = tombstones.putIfAbsent(topicName, created);
+			if (set == null) {
+				set = created;
+			}
+		}
+		return set.add(messageId, now);
+	}
+
+	/**
+	 * Check a delivered message, counting it as dropped if it was deleted. Takes
+	 * no lock and allocates nothing.
+	 *
+	 * @return true if the caller must ack and drop the message
+	 */
+	public boolean isDeleted(String topicName, String messageId) {
+		if (messageId == null) {
+			return false;
+		}
+		TombstoneSet set = tombstones.get(topicName);
+		if (set == null || !set.contains(messageId, System.currentTimeMillis())) {
+			return false;
+		}
+		dropped.mark();
+		return true;
+	}
+
+	/**
+	 * Forget the published IDs and tombstones of a deleted topic
+	 */
+	public void remove(String topicName) {
+		tombstones.remove(topicName);
+		published.remove(topicName);
+	}
+}
@@ -1,9 +1,9 @@
 package com.lockmarker.api.exceptions;
 
 public class MessageNotFoundException extends MsgasException {
-    //public MessageNotFoundException(String topicName) {
-    //    super(topicName);
-    //}
+    public MessageNotFoundException(String messageId) {
+        super(messageId);
+    }
     public MessageNotFoundException() {
         super("no available message");
     }
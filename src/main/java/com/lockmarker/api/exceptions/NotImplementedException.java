@@ -0,0 +1,7 @@
+package com.lockmarker.api.exceptions;
+
+public class NotImplementedException extends MsgasException {
+    public NotImplementedException(String why) {
+        super(why);
+    }
+}
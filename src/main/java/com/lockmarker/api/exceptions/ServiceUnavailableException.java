@@ -0,0 +1,7 @@
+package com.lockmarker.api.exceptions;
+
+public class ServiceUnavailableException extends MsgasException {
+    public ServiceUnavailableException(String why) {
+        super(why);
+    }
+}
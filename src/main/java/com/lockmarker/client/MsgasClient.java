@@ -1,5 +1,7 @@
 package com.lockmarker.client;
 
+import java.util.List;
+
 public interface MsgasClient {
 	public void getTopics();
 
@@ -11,6 +13,8 @@ public interface MsgasClient {
 	
 	public void sendMessage(String topic, String message);
 	
+	public void sendMessages(String topic, List<String> messages);
+	
 	public void pullMessage(String topic);
 	
 	public void deleteMessage(String topic, String messageId);
@@ -52,6 +52,8 @@ public class MsgasClientCommandLine {
 							break;
 		        	case 7: deleteMessage();
 							break;
+		        	case 8: sendMessages();
+							break;
 		        	default: System.out.println("No operation found for Index " + optIndex);
 		        	         confirmQuit();
 	                		 break;
@@ -88,6 +90,7 @@ public class MsgasClientCommandLine {
 		operations.add((i++) + ". send a message");
 		operations.add((i++) + ". receive a message");
 		operations.add((i++) + ". delete a message");
+		operations.add((i++) + ". send a batch of messages");
 		
 		System.out.println("\n\nMessaging operations to run: ");
 		for (String opt: operations) {
@@ -178,6 +181,26 @@ public class MsgasClientCommandLine {
 		System.out.println();
 	}
 	
+	private static void sendMessages() {
+		String topic = null;
+		List<String> messages = new ArrayList<String>();
+		while (null == topic || topic.isEmpty()) {
+			topic = console.readLine("Enter topic name to send messages: ");
+		}
+		while (true) {
+			String message = console.readLine("Enter message body to send (empty line to finish): ");
+			if (null == message || message.isEmpty()) {
+				if (!messages.isEmpty()) {
+					break;
+				}
+				continue;
+			}
+			messages.add(message);
+		}
+		client.sendMessages(topic, messages);
+		System.out.println();
+	}
+	
 	private static void receiveMessage() {
 		String topic = null;
 		while (null == topic || topic.isEmpty()) {
@@ -8,6 +8,11 @@ import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.ConnectException;
 import java.net.URL;
+import java.util.List;
+
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.ObjectNode;
  
 public class MsgasJavaNetClient implements MsgasClient {
 	
@@ -176,6 +181,46 @@ public class MsgasJavaNetClient implements MsgasClient {
 		}
 	}
 	
+	public void sendMessages(String topic, List<String> messages) {
+		try {
+			System.out.println("----- Sending " + messages.size() + " messages to Topic \"" + topic + "\" -----");
+
+			URL url = new URL(serviceEndpoint + "/topic/" + topic + "/messages");
+			HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+			conn.setRequestMethod("POST");
+			conn.setRequestProperty("Content-Type", "application/json");
+			conn.setRequestProperty("Accept", "application/json");
+			conn.setDoOutput(true);
+
+			ObjectNode input = JsonNodeFactory.instance.objectNode();
+			ArrayNode bodies = input.putArray("messages");
+			for (String message : messages) {
+				bodies.add(message);
+			}
+			OutputStream os = conn.getOutputStream();
+			os.write(input.toString().getBytes());
+			os.flush();
+			
+			if (conn.getResponseCode() != 200) {
+				throw new RuntimeException("Failed with HTTP error code: "
+						+ conn.getResponseCode());
+			}
+			BufferedReader br = new BufferedReader(new InputStreamReader((conn.getInputStream())));
+			String output;
+			while ((output = br.readLine()) != null) {
+				System.out.println(output);
+			}
+			conn.disconnect();
+		} catch (MalformedURLException e) {
+			e.printStackTrace();
+		} catch (ConnectException e) {
+			System.out.println("Error connecting to Msgas Service. Please make sure the REST server is running.");
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
 	public void pullMessage(String topic) {
 		try {
 			System.out.println("----- Pulling a message from Topic \"" + topic + "\" -----");
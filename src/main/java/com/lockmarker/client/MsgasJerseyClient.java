@@ -1,5 +1,11 @@
 package com.lockmarker.client;
 
+import java.util.List;
+
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.ObjectNode;
+
 import com.sun.jersey.api.client.Client;
 import com.sun.jersey.api.client.ClientResponse;
 import com.sun.jersey.api.client.WebResource;
@@ -104,6 +110,29 @@ public class MsgasJerseyClient implements MsgasClient {
 		}
 	}
 	
+	public void sendMessages(String topic, List<String> messages) {
+		try {
+			System.out.println("----- Sending " + messages.size() + " messages to Topic \"" + topic + "\" -----");
+		
+			Client client = Client.create();
+			WebResource webResource = client.resource(serviceEndpoint + "/topic/" + topic + "/messages");
+			ObjectNode input = JsonNodeFactory.instance.objectNode();
+			ArrayNode bodies = input.putArray("messages");
+			for (String message : messages) {
+				bodies.add(message);
+			}
+			ClientResponse response = webResource.type("application/json").post(ClientResponse.class, input.toString());
+ 
+			if (response.getStatus() != 200) {
+				throw new RuntimeException("Failed with HTTP error code: " + response.getStatus());
+			}
+			String output = response.getEntity(String.class);
+			System.out.println(output);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+	
 	public void pullMessage(String topic) {
 		try {
 			System.out.println("----- Pulling a message from Topic \"" + topic + "\" -----");
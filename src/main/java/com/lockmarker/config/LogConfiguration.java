@@ -0,0 +1,97 @@
+package com.lockmarker.config;
+
+import org.codehaus.jackson.annotate.JsonProperty;
+import org.hibernate.validator.constraints.NotEmpty;
+import javax.validation.constraints.Min;
+
+/**
+ * Settings of the log dispatcher. The feed, circuit breaker, message ID and
+ * idempotency settings are shared with the rabbitmq section.
+ */
+public class LogConfiguration {
+	@NotEmpty
+	@JsonProperty
+	private String dataDir = "data/log";
+
+	// a segment rolls once the next record does not fit; also the largest record
+	@Min(65536)
+	@JsonProperty
+	private int segmentBytes = 64 * 1024 * 1024;
+
+	// segments whose newest record is older are deleted; 0 keeps them by age
+	@Min(0)
+	@JsonProperty
+	private long retentionMillis = 7L * 24 * 60 * 60 * 1000;
+
+	// per topic, oldest segments are deleted beyond it; 0 keeps them by size
+	@Min(0)
+	@JsonProperty
+	private long retentionBytes = 0;
+
+	@Min(1000)
+	@JsonProperty
+	private long retentionCheckInterval = 60000;
+
+	// how often appended records are forced to disk; 0 forces every append
+	@Min(0)
+	@JsonProperty
+	private long flushInterval = 1000;
+
+	// how often P2P and subscriber offsets are written
+	@Min(100)
+	@JsonProperty
+	private long checkpointInterval = 5000;
+
+	@Min(1)
+	@JsonProperty
+	private int feedThreads = 8;
+
+	// dead letters kept per subscriber, in memory only
+	@Min(0)
+	@JsonProperty
+	private int maxDeadLetters = 10000;
+
+	@Min(1)
+	@JsonProperty
+	private int deliveryBatchSize = 1;
+
+	public String getDataDir() {
+		return dataDir;
+	}
+
+	public int getSegmentBytes() {
+		return segmentBytes;
+	}
+
+	public long getRetentionMillis() {
+		return retentionMillis;
+	}
+
+	public long getRetentionBytes() {
+		return retentionBytes;
+	}
+
+	public long getRetentionCheckInterval() {
+		return retentionCheckInterval;
+	}
+
+	public long getFlushInterval() {
+		return flushInterval;
+	}
+
+	public long getCheckpointInterval() {
+		return checkpointInterval;
+	}
+
+	public int getFeedThreads() {
+		return feedThreads;
+	}
+
+	public int getMaxDeadLetters() {
+		return maxDeadLetters;
+	}
+
+	public int getDeliveryBatchSize() {
+		return deliveryBatchSize;
+	}
+}
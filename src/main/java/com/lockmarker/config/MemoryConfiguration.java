@@ -0,0 +1,44 @@
+package com.lockmarker.config;
+
+import org.codehaus.jackson.annotate.JsonProperty;
+import javax.validation.constraints.Min;
+
+/**
+ * Settings of the in-memory dispatcher. The feed, circuit breaker, message ID
+ * and idempotency settings are shared with the rabbitmq section.
+ */
+public class MemoryConfiguration {
+	// messages kept per topic, rounded up to a power of two; readers further behind lose the oldest
+	@Min(1)
+	@JsonProperty
+	private int topicCapacity = 65536;
+
+	@Min(1)
+	@JsonProperty
+	private int feedThreads = 8;
+
+	// dead letters kept per subscriber, the oldest are dropped beyond that
+	@Min(0)
+	@JsonProperty
+	private int maxDeadLetters = 10000;
+
+	@Min(1)
+	@JsonProperty
+	private int deliveryBatchSize = 1;
+
+	public int getTopicCapacity() {
+		return topicCapacity;
+	}
+
+	public int getFeedThreads() {
+		return feedThreads;
+	}
+
+	public int getMaxDeadLetters() {
+		return maxDeadLetters;
+	}
+
+	public int getDeliveryBatchSize() {
+		return deliveryBatchSize;
+	}
+}
@@ -24,6 +24,16 @@ public class MessagingConfiguration extends Configuration {
     @JsonProperty
     private RabbitMQConfiguration rabbitmq = new RabbitMQConfiguration();
     
+    @Valid
+    @NotNull
+    @JsonProperty
+    private MemoryConfiguration memory = new MemoryConfiguration();
+    
+    @Valid
+    @NotNull
+    @JsonProperty
+    private LogConfiguration log = new LogConfiguration();
+    
     public String getTemplate() {
         return template;
     }
@@ -32,6 +42,14 @@ public class MessagingConfiguration extends Configuration {
         return rabbitmq;
     }
     
+    public MemoryConfiguration getMemoryConfiguration() {
+        return memory;
+    }
+    
+    public LogConfiguration getLogConfiguration() {
+        return log;
+    }
+    
 	public boolean getUseMiddleware() {
 		return useMiddleware;
 	}
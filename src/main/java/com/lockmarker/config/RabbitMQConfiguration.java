@@ -27,6 +27,176 @@ public class RabbitMQConfiguration {
 	@JsonProperty
 	private String vhost = "/";
 
+	@Min(1)
+	@JsonProperty
+	private int publisherChannels = 16;
+
+	@Min(1)
+	@JsonProperty
+	private long channelLeaseTimeout = 5000;
+
+	// 0 disables publisher confirms
+	@Min(0)
+	@JsonProperty
+	private long confirmTimeout = 10000;
+
+	@Min(1)
+	@JsonProperty
+	private int maxOutstandingConfirms = 10000;
+
+	@Min(1)
+	@JsonProperty
+	private int pullPrefetch = 100;
+
+	@Min(1000)
+	@JsonProperty
+	private long pullIdleTimeout = 60000;
+
+	@Min(0)
+	@JsonProperty
+	private int maxPullConsumers = 256;
+
+	// how often a long poll on a topic without a prefetcher retries basicGet
+	@Min(10)
+	@JsonProperty
+	private long pullPollInterval = 200;
+
+	// the most messages pulled with a visibility timeout and not deleted yet
+	@Min(1)
+	@JsonProperty
+	private int maxPullLeases = 500000;
+
+	@Min(1)
+	@JsonProperty
+	private int redeliveryThreads = 8;
+
+	// default feeds in flight per subscriber
+	@Min(1)
+	@JsonProperty
+	private int deliveryConcurrency = 8;
+
+	// default unacked messages pushed per subscriber
+	@Min(1)
+	@JsonProperty
+	private int deliveryPrefetch = 32;
+
+	// feed messages of the same topic one at a time per subscriber
+	@JsonProperty
+	private boolean orderedDelivery = false;
+
+	// default messages per feed request, 1 disables batch feed mode
+	@Min(1)
+	@JsonProperty
+	private int deliveryBatchSize = 1;
+
+	@Min(0)
+	@JsonProperty
+	private long deliveryBatchLinger = 50;
+
+	// feeds slower than this shrink a subscriber's window, 0 disables adaptation
+	@Min(0)
+	@JsonProperty
+	private long deliveryLatencyTarget = 1000;
+
+	// completed deliveries acked with one frame, 1 acks every delivery on its own
+	@Min(1)
+	@JsonProperty
+	private int ackBatchSize = 64;
+
+	@Min(0)
+	@JsonProperty
+	private long ackLinger = 20;
+
+	// consecutive failed feeds that pause all subscribers of an endpoint
+	@Min(1)
+	@JsonProperty
+	private int circuitFailureThreshold = 5;
+
+	@Min(100)
+	@JsonProperty
+	private long circuitProbeInterval = 5000;
+
+	@Min(100)
+	@JsonProperty
+	private long circuitMaxProbeInterval = 60000;
+
+	// topic and subscriber metadata read from the management API
+	@Min(1)
+	@JsonProperty
+	private long metadataCacheTtl = 30000;
+
+	@Min(1)
+	@JsonProperty
+	private long metadataRefreshInterval = 5000;
+
+	@Min(1)
+	@JsonProperty
+	private long metadataCacheSize = 10000;
+
+	// "time-ordered" or "uuid"
+	@NotEmpty
+	@JsonProperty
+	private String messageIdGenerator = "time-ordered";
+
+	// tag of this node in time-ordered IDs, -1 derives one from host and process
+	@Min(-1)
+	@Max(1023)
+	@JsonProperty
+	private int messageIdNode = -1;
+
+	// how long, and how many, idempotency keys are remembered per topic
+	@Min(1000)
+	@JsonProperty
+	private long idempotencyWindow = 600000;
+
+	@Min(1)
+	@JsonProperty
+	private int idempotencyMaxKeys = 100000;
+
+	// how long, and how many, fed message IDs are remembered per subscriber; 0 turns it off
+	@Min(0)
+	@JsonProperty
+	private long deliveryDedupWindow = 300000;
+
+	@Min(1)
+	@JsonProperty
+	private int deliveryDedupMaxKeys = 10000;
+
+	// delay before a subscriber whose consumer channel was lost consumes again
+	@Min(100)
+	@JsonProperty
+	private long consumerRecoveryInterval = 5000;
+
+	// how long, and how many, deleted message IDs are remembered per topic
+	@Min(1000)
+	@JsonProperty
+	private long tombstoneWindow = 86400000;
+
+	@Min(1)
+	@JsonProperty
+	private int tombstoneMaxKeys = 100000;
+
+	// HTTP connections shared by all subscription feeds
+	@Min(1)
+	@JsonProperty
+	private int feedMaxConnections = 1000;
+
+	@Min(1)
+	@JsonProperty
+	private int feedMaxConnectionsPerHost = 64;
+
+	@Min(1)
+	@JsonProperty
+	private int feedConnectTimeout = 5000;
+
+	@Min(1)
+	@JsonProperty
+	private int feedReadTimeout = 30000;
+
+	@Min(1000)
+	@JsonProperty
+	private long feedIdleTimeout = 60000;
+
 	public String getHost() {
 		return host;
 	}
@@ -46,4 +216,156 @@ public class RabbitMQConfiguration {
 	public String getVhost() {
 		return vhost;
 	}
+
+	public int getPublisherChannels() {
+		return publisherChannels;
+	}
+
+	public long getChannelLeaseTimeout() {
+		return channelLeaseTimeout;
+	}
+
+	public long getConfirmTimeout() {
+		return confirmTimeout;
+	}
+
+	public int getMaxOutstandingConfirms() {
+		return maxOutstandingConfirms;
+	}
+
+	public int getPullPrefetch() {
+		return pullPrefetch;
+	}
+
+	public long getPullIdleTimeout() {
+		return pullIdleTimeout;
+	}
+
+	public int getMaxPullConsumers() {
+		return maxPullConsumers;
+	}
+
+	public long getPullPollInterval() {
+		return pullPollInterval;
+	}
+
+	public int getMaxPullLeases() {
+		return maxPullLeases;
+	}
+
+	public int getRedeliveryThreads() {
+		return redeliveryThreads;
+	}
+
+	public int getDeliveryConcurrency() {
+		return deliveryConcurrency;
+	}
+
+	public int getDeliveryPrefetch() {
+		return deliveryPrefetch;
+	}
+
+	public boolean isOrderedDelivery() {
+		return orderedDelivery;
+	}
+
+	public int getDeliveryBatchSize() {
+		return deliveryBatchSize;
+	}
+
+	public long getDeliveryBatchLinger() {
+		return deliveryBatchLinger;
+	}
+
+	public long getDeliveryLatencyTarget() {
+		return deliveryLatencyTarget;
+	}
+
+	public int getAckBatchSize() {
+		return ackBatchSize;
+	}
+
+	public long getAckLinger() {
+		return ackLinger;
+	}
+
+	public int getCircuitFailureThreshold() {
+		return circuitFailureThreshold;
+	}
+
+	public long getCircuitProbeInterval() {
+		return circuitProbeInterval;
+	}
+
+	public long getCircuitMaxProbeInterval() {
+		return circuitMaxProbeInterval;
+	}
+
+	public long getMetadataCacheTtl() {
+		return metadataCacheTtl;
+	}
+
+	public long getMetadataRefreshInterval() {
+		return metadataRefreshInterval;
+	}
+
+	public long getMetadataCacheSize() {
+		return metadataCacheSize;
+	}
+
+	public int getFeedMaxConnections() {
+		return feedMaxConnections;
+	}
+
+	public int getFeedMaxConnectionsPerHost() {
+		return feedMaxConnectionsPerHost;
+	}
+
+	public int getFeedConnectTimeout() {
+		return feedConnectTimeout;
+	}
+
+	public int getFeedReadTimeout() {
+		return feedReadTimeout;
+	}
+
+	public long getFeedIdleTimeout() {
+		return feedIdleTimeout;
+	}
+
+	public String getMessageIdGenerator() {
+		return messageIdGenerator;
+	}
+
+	public int getMessageIdNode() {
+		return messageIdNode;
+	}
+
+	public long getIdempotencyWindow() {
+		return idempotencyWindow;
+	}
+
+	public int getIdempotencyMaxKeys() {
+		return idempotencyMaxKeys;
+	}
+
+	public long getDeliveryDedupWindow() {
+		return deliveryDedupWindow;
+	}
+
+	public int getDeliveryDedupMaxKeys() {
+		return deliveryDedupMaxKeys;
+	}
+
+	public long getConsumerRecoveryInterval() {
+		return consumerRecoveryInterval;
+	}
+
+	public long getTombstoneWindow() {
+		return tombstoneWindow;
+	}
+
+	public int getTombstoneMaxKeys() {
+		return tombstoneMaxKeys;
+	}
 }
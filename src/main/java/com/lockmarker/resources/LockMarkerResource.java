@@ -1,12 +1,25 @@
 package com.lockmarker.resources;
 
+import com.lockmarker.api.application.MessagingDispatcher;
+import com.lockmarker.api.application.model.Message;
 import com.lockmarker.api.exceptions.*;
+import com.lockmarker.utils.JsonProcessor;
 
+import com.sun.jersey.api.core.HttpContext;
+import com.sun.jersey.spi.container.ContainerRequest;
 import com.yammer.dropwizard.logging.Log;
 import com.yammer.metrics.annotation.Timed;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ArrayNode;
 import org.codehaus.jackson.node.JsonNodeFactory;
 import org.codehaus.jackson.node.ObjectNode;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
 import javax.ws.rs.*;
 import javax.ws.rs.core.*;
 import javax.ws.rs.core.Response.Status;
@@ -16,8 +29,23 @@ import javax.ws.rs.core.Response.Status;
 public class LockMarkerResource {
     private static final Log LOG = Log.forClass(LockMarkerResource.class);
     protected static JsonNodeFactory fact = JsonNodeFactory.instance;
+    private static final String DEFAULT_TENANT = "/";
+    private static final int MAX_BATCH_SIZE = 1000;
+    private static final long MAX_WAIT_MILLIS = 20000;
+    private static final long MAX_VISIBILITY_MILLIS = 12 * 60 * 60 * 1000;
+    private static final int MAX_DEAD_LETTER_PEEK = 100;
+    private static final int MAX_REPLAY_RATE = 10000;
+    private static final int MAX_MESSAGE_BYTES = 4 * 1024 * 1024;
+    private static final String IDEMPOTENCY_KEY = "Idempotency-Key";
+    private static final int MAX_IDEMPOTENCY_KEY_LENGTH = 255;
+    private final MessagingDispatcher dispatcher;
 
     public LockMarkerResource() {
+        this(null);
+    }
+
+    public LockMarkerResource(MessagingDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
     }
 
     @Path("/ping")
@@ -37,7 +65,364 @@ public class LockMarkerResource {
         }
     }
 
+    /**
+     * Send one message. The request body is the message body as it is, and is
+     * read into a single array that goes to the broker without being copied or
+     * decoded. The content type, including its charset, is passed on to
+     * subscribers; a JSON body is checked to be well-formed and is fed as JSON,
+     * a body that is not text is fed and returned base64 encoded.
+     * A retry with the same Idempotency-Key header is not sent again and gets
+     * the ID of the first message.
+     */
+    @Path("/topic/{topicName}/message")
+    @POST
+    @Consumes(MediaType.WILDCARD)
+    @Timed
+    public Response sendMessage(@PathParam("topicName") String topicName,
+            @HeaderParam("X-Tenant-Id") @DefaultValue(DEFAULT_TENANT) String tenantId,
+            @HeaderParam(HttpHeaders.CONTENT_TYPE) String contentType,
+            @HeaderParam(HttpHeaders.CONTENT_LENGTH) @DefaultValue("-1") int contentLength,
+            @HeaderParam(IDEMPOTENCY_KEY) String idempotencyKey,
+            @Context HttpContext context) {
+        try {
+            // read the raw stream, the JSON provider would claim an InputStream entity and parse it
+            InputStream body = ((ContainerRequest) context.getRequest()).getEntityInputStream();
+            byte[] message = readBody(body, contentLength);
+            if (message.length == 0) {
+                throw new IllegalArgumentException("message not specified");
+            }
+
+            if (contentType == null) {
+                contentType = Message.TEXT_CONTENT_TYPE;
+            } else if (Message.isJsonType(contentType) && Message.CHARSET.equals(Message.charsetOf(contentType))
+                    && !JsonProcessor.isValidJson(message)) {
+                // JSON bodies are fed to subscribers as they are, so they must be well-formed
+                throw new IllegalArgumentException("message is not valid JSON");
+            }
+
+            if (idempotencyKey != null && (idempotencyKey.isEmpty() || idempotencyKey.length() > MAX_IDEMPOTENCY_KEY_LENGTH)) {
+                throw new IllegalArgumentException(IDEMPOTENCY_KEY + " must be 1 to " + MAX_IDEMPOTENCY_KEY_LENGTH
+                        + " characters");
+            }
+
+            String messageId = dispatcher.sendMessage(tenantId, topicName, message, contentType, idempotencyKey);
+
+            final Status status = Status.OK;
+            ObjectNode result = fact.objectNode();
+            result.put("status", status.getStatusCode());
+            result.put("messageId", messageId);
+            return buildResponse(LockMarkerResource.class, status, result);
+        } catch (AuthenticationException authex) {
+            return generateAuthenticationErrorResponse(authex);
+        } catch (Exception e) {
+            throw handleException(e);
+        }
+    }
+
+    /**
+     * Send a batch of messages to a topic in one request.
+     * Request body: {"messages": ["message 1", "message 2", ...]}
+     */
+    @Path("/topic/{topicName}/messages")
+    @POST
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Timed
+    public Response sendMessages(@PathParam("topicName") String topicName,
+            @HeaderParam("X-Tenant-Id") @DefaultValue(DEFAULT_TENANT) String tenantId,
+            JsonNode request) {
+        try {
+            if (request == null) {
+                throw new IllegalArgumentException("messages not specified");
+            }
+            List<String> messages = new ArrayList<String>(
+                    JsonProcessor.jgetChildrenInString(request, "messages"));
+            if (messages.isEmpty()) {
+                throw new IllegalArgumentException("messages not specified");
+            }
+            if (messages.size() > MAX_BATCH_SIZE) {
+                throw new IllegalArgumentException("at most " + MAX_BATCH_SIZE
+                        + " messages are allowed in one batch");
+            }
+
+            List<String> messageIds = dispatcher.sendMessages(tenantId, topicName, messages);
+
+            final Status status = Status.OK;
+            ObjectNode result = fact.objectNode();
+            result.put("status", status.getStatusCode());
+            ArrayNode ids = result.putArray("messageIds");
+            for (String messageId : messageIds) {
+                ids.add(messageId);
+            }
+            return buildResponse(LockMarkerResource.class, status, result);
+        } catch (AuthenticationException authex) {
+            return generateAuthenticationErrorResponse(authex);
+        } catch (Exception e) {
+            throw handleException(e);
+        }
+    }
+
+    /**
+     * Receive up to max messages from a topic. With waitMillis > 0 the request
+     * is held until a message arrives or the wait elapses, instead of returning
+     * an empty list right away. With visibilityMillis > 0 the messages are only
+     * leased: they are received again after that long unless they are deleted
+     * first.
+     */
+    @Path("/topic/{topicName}/messages")
+    @GET
+    @Timed
+    public Response receiveMessages(@PathParam("topicName") String topicName,
+            @HeaderParam("X-Tenant-Id") @DefaultValue(DEFAULT_TENANT) String tenantId,
+            @QueryParam("max") @DefaultValue("1") int max,
+            @QueryParam("waitMillis") @DefaultValue("0") long waitMillis,
+            @QueryParam("visibilityMillis") @DefaultValue("0") long visibilityMillis) {
+        try {
+            if (max < 1 || max > MAX_BATCH_SIZE) {
+                throw new IllegalArgumentException("max must be between 1 and " + MAX_BATCH_SIZE);
+            }
+            if (waitMillis < 0 || waitMillis > MAX_WAIT_MILLIS) {
+                throw new IllegalArgumentException("waitMillis must be between 0 and " + MAX_WAIT_MILLIS);
+            }
+            checkVisibility(visibilityMillis);
+
+            List<Message> messages = dispatcher.pullMessages(tenantId, topicName, max, waitMillis, visibilityMillis);
+
+            final Status status = Status.OK;
+            ObjectNode result = fact.objectNode();
+            result.put("status", status.getStatusCode());
+            ArrayNode items = result.putArray("messages");
+            for (Message message : messages) {
+                ObjectNode item = items.addObject();
+                item.put("messageId", message.getId());
+                item.put("topicName", message.getTopic());
+                putBody(item, message);
+            }
+            return buildResponse(LockMarkerResource.class, status, result);
+        } catch (AuthenticationException authex) {
+            return generateAuthenticationErrorResponse(authex);
+        } catch (Exception e) {
+            throw handleException(e);
+        }
+    }
+
+    /**
+     * Get one message of a topic by its ID. The message is not taken off the
+     * topic, pullers and subscribers still get it. Dispatchers that cannot look
+     * up a queued message by its ID, such as the RabbitMQ one, answer 501.
+     */
+    @Path("/topic/{topicName}/message/{messageId}")
+    @GET
+    @Timed
+    public Response getMessage(@PathParam("topicName") String topicName,
+            @PathParam("messageId") String messageId,
+            @HeaderParam("X-Tenant-Id") @DefaultValue(DEFAULT_TENANT) String tenantId) {
+        try {
+            Message message = dispatcher.getMessage(tenantId, topicName, messageId);
+            if (message == null) {
+                throw new MessageNotFoundException(messageId);
+            }
+
+            final Status status = Status.OK;
+            ObjectNode result = fact.objectNode();
+            result.put("status", status.getStatusCode());
+            result.put("messageId", message.getId());
+            result.put("topicName", message.getTopic());
+            putBody(result, message);
+            return buildResponse(LockMarkerResource.class, status, result);
+        } catch (AuthenticationException authex) {
+            return generateAuthenticationErrorResponse(authex);
+        } catch (Exception e) {
+            throw handleException(e);
+        }
+    }
+
+    /**
+     * Delete one message of a topic by its ID. A message received with a
+     * visibility timeout is done with; any other is no longer received or fed
+     * to subscribers.
+     */
+    @Path("/topic/{topicName}/message/{messageId}")
+    @DELETE
+    @Timed
+    public Response deleteMessage(@PathParam("topicName") String topicName,
+            @PathParam("messageId") String messageId,
+            @HeaderParam("X-Tenant-Id") @DefaultValue(DEFAULT_TENANT) String tenantId) {
+        try {
+            if (!dispatcher.deleteMessage(tenantId, topicName, messageId)) {
+                throw new MessageNotFoundException(messageId);
+            }
+
+            final Status status = Status.OK;
+            ObjectNode result = fact.objectNode();
+            result.put("status", status.getStatusCode());
+            result.put("messageId", messageId);
+            return buildResponse(LockMarkerResource.class, status, result);
+        } catch (AuthenticationException authex) {
+            return generateAuthenticationErrorResponse(authex);
+        } catch (Exception e) {
+            throw handleException(e);
+        }
+    }
+
+    /**
+     * Reset the visibility timeout of a message received with one, counted
+     * from now. visibilityMillis is required; an explicit 0 makes the message
+     * available to receivers again right away.
+     */
+    @Path("/topic/{topicName}/message/{messageId}/lease")
+    @PUT
+    @Timed
+    public Response extendLease(@PathParam("topicName") String topicName,
+            @PathParam("messageId") String messageId,
+            @HeaderParam("X-Tenant-Id") @DefaultValue(DEFAULT_TENANT) String tenantId,
+            @QueryParam("visibilityMillis") Long visibilityMillis) {
+        try {
+            if (visibilityMillis == null) {
+                throw new IllegalArgumentException("visibilityMillis is required");
+            }
+            checkVisibility(visibilityMillis);
+            if (!dispatcher.extendLease(tenantId, topicName, messageId, visibilityMillis)) {
+                throw new MessageNotFoundException(messageId);
+            }
+
+            final Status status = Status.OK;
+            ObjectNode result = fact.objectNode();
+            result.put("status", status.getStatusCode());
+            result.put("messageId", messageId);
+            result.put("visibilityMillis", visibilityMillis);
+            return buildResponse(LockMarkerResource.class, status, result);
+        } catch (AuthenticationException authex) {
+            return generateAuthenticationErrorResponse(authex);
+        } catch (Exception e) {
+            throw handleException(e);
+        }
+    }
+
+    /**
+     * Look at the oldest dead letters of a subscriber. Nothing is removed.
+     */
+    @Path("/subscriber/{subscriberId}/deadletters")
+    @GET
+    @Timed
+    public Response getDeadLetters(@PathParam("subscriberId") String subscriberId,
+            @QueryParam("max") @DefaultValue("10") int max) {
+        try {
+            if (max < 1 || max > MAX_DEAD_LETTER_PEEK) {
+                throw new IllegalArgumentException("max must be between 1 and " + MAX_DEAD_LETTER_PEEK);
+            }
+
+            List<Message> messages = dispatcher.getDeadLetters(subscriberId, max);
+
+            final Status status = Status.OK;
+            ObjectNode result = fact.objectNode();
+            result.put("status", status.getStatusCode());
+            ArrayNode items = result.putArray("messages");
+            for (Message message : messages) {
+                ObjectNode item = items.addObject();
+                item.put("messageId", message.getId());
+                item.put("topicName", message.getTopic());
+                putBody(item, message);
+            }
+            return buildResponse(LockMarkerResource.class, status, result);
+        } catch (AuthenticationException authex) {
+            return generateAuthenticationErrorResponse(authex);
+        } catch (Exception e) {
+            throw handleException(e);
+        }
+    }
+
+    /**
+     * Start moving up to max dead letters back to the subscriber at no more
+     * than rate messages per second. Returns as soon as the replay is queued.
+     */
+    @Path("/subscriber/{subscriberId}/deadletters/replay")
+    @POST
+    @Timed
+    public Response replayDeadLetters(@PathParam("subscriberId") String subscriberId,
+            @QueryParam("max") @DefaultValue("1000") long max,
+            @QueryParam("rate") @DefaultValue("100") int rate) {
+        try {
+            if (max < 1) {
+                throw new IllegalArgumentException("max must be positive");
+            }
+            if (rate < 1 || rate > MAX_REPLAY_RATE) {
+                throw new IllegalArgumentException("rate must be between 1 and " + MAX_REPLAY_RATE);
+            }
+
+            dispatcher.replayDeadLetters(subscriberId, max, rate);
+
+            final Status status = Status.ACCEPTED;
+            ObjectNode result = fact.objectNode();
+            result.put("status", status.getStatusCode());
+            result.put("subscriberId", subscriberId);
+            result.put("max", max);
+            result.put("rate", rate);
+            return buildResponse(LockMarkerResource.class, status, result);
+        } catch (AuthenticationException authex) {
+            return generateAuthenticationErrorResponse(authex);
+        } catch (Exception e) {
+            throw handleException(e);
+        }
+    }
+
+    /**
+     * Put the body of a message in a response document, base64 encoded and
+     * marked so if it is not text
+     */
+    private static void putBody(ObjectNode node, Message message) {
+        if (message.isText()) {
+            node.put("message", message.getBodyAsString());
+        } else {
+            node.put("encoding", "base64");
+            node.put("message", message.getBodyArray());
+        }
+    }
+
+    private static void checkVisibility(long visibilityMillis) {
+        if (visibilityMillis < 0 || visibilityMillis > MAX_VISIBILITY_MILLIS) {
+            throw new IllegalArgumentException("visibilityMillis must be between 0 and " + MAX_VISIBILITY_MILLIS);
+        }
+    }
+
+    /**
+     * Read a request body into one array. With a known length the array is
+     * allocated once at its final size and filled straight from the stream.
+     */
+    private static byte[] readBody(InputStream in, int contentLength) throws IOException {
+        if (contentLength > MAX_MESSAGE_BYTES) {
+            throw new IllegalArgumentException("message is larger than " + MAX_MESSAGE_BYTES + " bytes");
+        }
+        if (contentLength >= 0) {
+            byte[] body = new byte[contentLength];
+            int read = 0;
+            while (read < contentLength) {
+                int n = in.read(body, read, contentLength - read);
+                if (n < 0) {
+                    throw new IllegalArgumentException("message is shorter than its Content-Length");
+                }
+                read += n;
+            }
+            return body;
+        }
+        // chunked request, the length is only known at the end
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+            if (out.size() > MAX_MESSAGE_BYTES) {
+                throw new IllegalArgumentException("message is larger than " + MAX_MESSAGE_BYTES + " bytes");
+            }
+        }
+        return out.toByteArray();
+    }
+
     private RuntimeException handleException(Exception ex) {
+        if (ex instanceof NotImplementedException) {
+            // JAX-RS 1.1 has no Status constant for 501
+            return new WebApplicationException(Response.status(501)
+                    .entity("Not implemented " + ex.getMessage()).type("text/plain").build());
+        }
         Response.Status status;
         StringBuilder sb = new StringBuilder();
         if (ex instanceof TopicNotFoundException) {
@@ -54,6 +439,9 @@ public class LockMarkerResource {
         } else if (ex instanceof TopicExistsException) {
             sb.append("Topic already exists ").append(ex.getMessage());
             status = Status.CONFLICT;
+        } else if (ex instanceof ServiceUnavailableException) {
+            sb.append("Service unavailable ").append(ex.getMessage());
+            status = Status.SERVICE_UNAVAILABLE;
         } else {
             status = Status.INTERNAL_SERVER_ERROR;
             sb.append("Exception ");
@@ -0,0 +1,208 @@
+package com.lockmarker.utils;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.yammer.dropwizard.logging.Log;
+
+/**
+ * A hashed timing wheel for large numbers of coarse-grained timeouts.
+ *
+ * Scheduling is O(1) and lock-free: new timeouts go to a concurrent queue and
+ * the single wheel thread moves them into their bucket on the next tick. On
+ * every tick the wheel thread walks one bucket and hands the due tasks to the
+ * executor, so a slow task never delays the wheel. Timeouts fire up to one tick
+ * late, which is fine for retry back-off and lease expiry.
+ */
+public class HashedTimingWheel {
+	private static final Log						LOG	= Log.forClass(HashedTimingWheel.class);
+	private final long								tickMillis;
+	private final List<WheelTimeout>[]			wheel;
+	private final int									mask;
+	private final ConcurrentLinkedQueue<WheelTimeout>	newTimeouts;
+	private final Executor							executor;
+	private final AtomicInteger					pending;
+	private final Thread								worker;
+	private final long								startTime;
+	private volatile boolean						stopped;
+	private long										tick;
+
+	/**
+	 * @param name
+	 *           name of the wheel thread
+	 * @param tickMillis
+	 *           duration of one tick, i.e. the timer resolution
+	 * @param wheelSize
+	 *           number of buckets, rounded up to a power of two
+	 * @param executor
+	 *           runs the expired tasks
+	 */
+	public HashedTimingWheel(String name, long tickMillis, int wheelSize, Executor executor) {
+		if (tickMillis < 1) {
+			throw new IllegalArgumentException("tickMillis must be positive");
+		}
+		int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+		this.tickMillis = tickMillis;
+		this.wheel = newWheel(size);
+		for (int i = 0; i < size; i++) {
+			this.wheel[i] = new ArrayList<WheelTimeout>();
+		}
+		this.mask = size - 1;
+		this.newTimeouts = new ConcurrentLinkedQueue<WheelTimeout>();
+		this.executor = executor;
+		this.pending = new AtomicInteger();
+		this.startTime = System.currentTimeMillis();
+		this.worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runWheel();
+			}
+		}, name);
+		this.worker.setDaemon(true);
+		this.worker.start();
+	}
+
+	/**
+	 * Schedule a task
+	 *
+	 * @param task
+	 *           the task to run on the executor once the delay elapsed
+	 * @param delayMillis
+	 *           delay in milliseconds, 0 runs it on the next tick
+	 * @return a handle to cancel the task
+	 */
+	public Timeout schedule(Runnable task, long delayMillis) {
+		if (stopped) {
+			throw new IllegalStateException("Timing wheel is stopped.");
+		}
+		WheelTimeout timeout = new WheelTimeout(task, System.currentTimeMillis() + Math.max(0, delayMillis));
+		pending.incrementAndGet();
+		newTimeouts.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * @return the number of timeouts scheduled and not yet fired or cancelled
+	 */
+	public int getPending() {
+		return pending.get();
+	}
+
+	/**
+	 * Stop the wheel. Pending timeouts never fire.
+	 */
+	public void stop() {
+		stopped = true;
+		worker.interrupt();
+	}
+
+	private void runWheel() {
+		while (!stopped) {
+			long deadline = startTime + (tick + 1) * tickMillis;
+			long sleep = deadline - System.currentTimeMillis();
+			if (sleep > 0) {
+				try {
+					Thread.sleep(sleep);
+				} catch (InterruptedException e) {
+					if (stopped) {
+						return;
+					}
+				}
+				continue;
+			}
+			try {
+				transferNewTimeouts();
+				expire(wheel[(int) (tick & mask)], deadline);
+			} catch (Throwable t) {
+				LOG.error(t, "Error processing timing wheel tick.");
+			}
+			tick++;
+		}
+	}
+
+	private void transferNewTimeouts() {
+		WheelTimeout timeout;
+		while ((timeout = newTimeouts.poll()) != null) {
+			if (timeout.cancelled) {
+				continue;
+			}
+			long ticks = Math.max(tick, (timeout.deadline - startTime) / tickMillis);
+			timeout.remainingRounds = (ticks - tick) / wheel.length;
+			wheel[(int) (ticks & mask)].add(timeout);
+		}
+	}
+
+	private void expire(List<WheelTimeout> bucket, long deadline) {
+		Iterator<WheelTimeout> it = bucket.iterator();
+		while (it.hasNext()) {
+			WheelTimeout timeout = it.next();
+			if (timeout.cancelled) {
+				it.remove();
+			} else if (timeout.remainingRounds <= 0 && timeout.deadline <= deadline) {
+				it.remove();
+				if (timeout.fire()) {
+					try {
+						executor.execute(timeout.task);
+					} catch (Exception e) {
+						LOG.error(e, "Error dispatching expired timeout.");
+					}
+				}
+			} else {
+				timeout.remainingRounds--;
+			}
+		}
+	}
+
+	/**
+	 * Handle of a scheduled task
+	 */
+	public interface Timeout {
+		/**
+		 * @return true if the task was cancelled before it fired
+		 */
+		boolean cancel();
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static List<WheelTimeout>[] newWheel(int size) {
+		// no arrays of a generic type can be created
+		return new List[size];
+	}
+
+	private class WheelTimeout implements Timeout {
+		private final Runnable	task;
+		private final long		deadline;
+		private long				remainingRounds;
+		private volatile boolean	cancelled;
+		private boolean			done;
+
+		WheelTimeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		@Override
+		public synchronized boolean cancel() {
+			if (done) {
+				return false;
+			}
+			done = true;
+			cancelled = true;
+			pending.decrementAndGet();
+			return true;
+		}
+
+		synchronized boolean fire() {
+			if (done) {
+				return false;
+			}
+			done = true;
+			pending.decrementAndGet();
+			return true;
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package com.lockmarker.utils;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.params.ClientPNames;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.util.EntityUtils;
+
+import com.yammer.dropwizard.logging.Log;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Timer;
+import com.yammer.metrics.core.TimerContext;
+
+/**
+ * A bounded pool of keep-alive HTTP connections shared by all subscription
+ * feeds and endpoint checks.
+ *
+ * Connections are kept per host, so the connection and TLS setup cost is paid
+ * once per connection instead of once per feed, and the total number of
+ * sockets stays bounded however many subscribers there are. A background
+ * thread closes connections that have been idle for too long or that the
+ * server has already closed.
+ */
+public class HttpConnectionPool {
+	private static final Log								LOG	= Log.forClass(HttpConnectionPool.class);
+	private final PoolingClientConnectionManager	connectionManager;
+	private final DefaultHttpClient					httpClient;
+	private final ScheduledExecutorService			evictor;
+	private final Timer									requests;
+
+	/**
+	 * @param maxConnections
+	 *           the maximum number of connections in total
+	 * @param maxConnectionsPerHost
+	 *           the maximum number of connections to one host
+	 * @param connectTimeoutMillis
+	 *           timeout for connecting, and for waiting on a pooled connection
+	 * @param readTimeoutMillis
+	 *           socket timeout while waiting for the response
+	 * @param idleTimeoutMillis
+	 *           how long an unused connection is kept open
+	 */
+	public HttpConnectionPool(int maxConnections, int maxConnectionsPerHost, int connectTimeoutMillis,
+			int readTimeoutMillis, final long idleTimeoutMillis) {
+		this.connectionManager = new PoolingClientConnectionManager(SchemeRegistryFactory.createDefault());
+		this.connectionManager.setMaxTotal(maxConnections);
+		this.connectionManager.setDefaultMaxPerRoute(maxConnectionsPerHost);
+
+		HttpParams params = new BasicHttpParams();
+		HttpConnectionParams.setConnectionTimeout(params, connectTimeoutMillis);
+		HttpConnectionParams.setSoTimeout(params, readTimeoutMillis);
+		// the stale check costs a read per request; the evictor handles stale connections
+		HttpConnectionParams.setStaleCheckingEnabled(params, false);
+		params.setLongParameter(ClientPNames.CONN_MANAGER_TIMEOUT, connectTimeoutMillis);
+		this.httpClient = new DefaultHttpClient(connectionManager, params);
+
+		this.evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "http-connection-evictor");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		long period = Math.max(1000, idleTimeoutMillis / 2);
+		this.evictor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					connectionManager.closeExpiredConnections();
+					connectionManager.closeIdleConnections(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+				} catch (Exception e) {
+					LOG.error(e, "Error evicting idle HTTP connections.");
+				}
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+
+		this.requests = Metrics.newTimer(HttpConnectionPool.class, "requests", TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+		Metrics.newGauge(HttpConnectionPool.class, "leased-connections", new Gauge<Integer>() {
+			@Override
+			public Integer value() {
+				return connectionManager.getTotalStats().getLeased();
+			}
+		});
+		Metrics.newGauge(HttpConnectionPool.class, "idle-connections", new Gauge<Integer>() {
+			@Override
+			public Integer value() {
+				return connectionManager.getTotalStats().getAvailable();
+			}
+		});
+		Metrics.newGauge(HttpConnectionPool.class, "pending-connections", new Gauge<Integer>() {
+			@Override
+			public Integer value() {
+				return connectionManager.getTotalStats().getPending();
+			}
+		});
+	}
+
+	/**
+	 * PUT an empty request
+	 *
+	 * @param uri
+	 *           the target URI
+	 * @return the response status code
+	 */
+	public int put(String uri) throws IOException {
+		return put(uri, (HttpEntity) null);
+	}
+
+	/**
+	 * PUT a JSON document
+	 *
+	 * @param uri
+	 *           the target URI
+	 * @param json
+	 *           the request body, or null for an empty request
+	 * @return the response status code
+	 */
+	public int put(String uri, String json) throws IOException {
+		return put(uri, json == null ? null : new StringEntity(json, ContentType.APPLICATION_JSON));
+	}
+
+	/**
+	 * PUT a request body that writes itself to the connection
+	 *
+	 * @param uri
+	 *           the target URI
+	 * @param entity
+	 *           the request body, or null for an empty request
+	 * @return the response status code
+	 */
+	public int put(String uri, HttpEntity entity) throws IOException {
+		HttpPut put = new HttpPut(uri);
+		if (entity != null) {
+			put.setEntity(entity);
+		}
+		TimerContext context = requests.time();
+		try {
+			HttpResponse response = httpClient.execute(put);
+			// reading the entity to the end hands the connection back to the pool
+			EntityUtils.consume(response.getEntity());
+			return response.getStatusLine().getStatusCode();
+		} catch (IOException e) {
+			put.abort();
+			throw e;
+		} catch (RuntimeException e) {
+			put.abort();
+			throw e;
+		} finally {
+			context.stop();
+		}
+	}
+
+	public void shutdown() {
+		evictor.shutdownNow();
+		connectionManager.shutdown();
+	}
+}
@@ -1,19 +1,24 @@
 package com.lockmarker.utils;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import org.codehaus.jackson.JsonEncoding;
 import org.codehaus.jackson.JsonFactory;
-import org.codehaus.jackson.JsonGenerationException;
+import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.JsonParser;
 import org.codehaus.jackson.JsonToken;
-import org.codehaus.jackson.map.JsonMappingException;
 
 import com.lockmarker.api.exceptions.InternalErrorException;
 
@@ -21,6 +26,15 @@ import com.yammer.dropwizard.logging.Log;
 
 public class JsonProcessor {
 	private static final Log LOG = Log.forClass(JsonProcessor.class);
+	// thread-safe once configured, and it recycles the parsers' buffers
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+	
+	/**
+	 * Create a generator that writes UTF-8 JSON straight to a stream
+	 */
+	public static JsonGenerator createJsonGenerator(OutputStream out) throws IOException {
+		return JSON_FACTORY.createJsonGenerator(out, JsonEncoding.UTF8);
+	}
 	
 	public static String jgetString(JsonNode node,
 			                         String name) {
@@ -46,111 +60,258 @@ public class JsonProcessor {
     	return children;
     }
 	
-	public static Collection<String> parseJsonList(String jsonInput,
-		                                           String keyToSearch, 
-			                                       Collection<String> valuesToSkip) {
+	/**
+	 * Check that a UTF-8 document is a single well-formed JSON value, without
+	 * building anything from it
+	 */
+	public static boolean isValidJson(byte[] json) {
+		return isValidJson(ByteBuffer.wrap(json));
+	}
+	
+	/**
+	 * Check that the UTF-8 bytes from the position to the limit of a buffer are
+	 * a single well-formed JSON value. The buffer is read in place and its
+	 * position is left alone.
+	 */
+	public static boolean isValidJson(ByteBuffer json) {
 		try {
-			if (null == jsonInput) {
-				LOG.debug("Cannot parsing null input Json string.");
-				return null;
+			JsonParser parser = json.hasArray()
+					? JSON_FACTORY.createJsonParser(json.array(), json.arrayOffset() + json.position(), json.remaining())
+					: JSON_FACTORY.createJsonParser(newInputStream(json.duplicate()));
+			try {
+				if (parser.nextToken() == null) {
+					return false;
+				}
+				parser.skipChildren();
+				return parser.nextToken() == null;
+			} finally {
+				parser.close();
 			}
-			// LOG.debug("Parsing json string: " + jsonInput);
-
-			Collection<String> result = new HashSet<String>();
-			JsonFactory jfactory = new JsonFactory();
-			JsonParser jParser = jfactory.createJsonParser(jsonInput);
-
-			// skip START_ARRAY '['
-			if (jParser.nextToken() == JsonToken.START_ARRAY) {
-				jParser.nextToken();
+		} catch (IOException e) {
+			return false;
+		}
+	}
+	
+	private static InputStream newInputStream(final ByteBuffer buffer) {
+		return new InputStream() {
+			@Override
+			public int read() {
+				return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
 			}
-			// loop until END_ARRAY ']'
-			while (jParser.nextToken() != JsonToken.END_ARRAY) {
-				String fieldname = jParser.getCurrentName();
-				// find the key
-				if (keyToSearch.equals(fieldname)) {
-					// get the value
-					jParser.nextToken();
-					String tokenValue = jParser.getText();
-
-					// validate the value
-					boolean skip = false;
-					// ignore empty value
-					if (tokenValue.isEmpty()) {
-						skip = true;
-					} else if (null != valuesToSkip) {
-						for (String v : valuesToSkip) {
-							// broad match
-							if (v.contains("*")) {
-								if (tokenValue.startsWith(v.substring(0,
-										v.length() - 1))) {
-									skip = true;
-								}
-							} else {
-								// exact match
-								if (tokenValue.equals(v)) {
-									skip = true;
-								}
-							}
-						}
-					}
 
-					// add the valid value to result list
-					if (!skip) {
-						result.add(tokenValue);
-					}
-					jParser.skipChildren();
+			@Override
+			public int read(byte[] bytes, int offset, int length) {
+				if (!buffer.hasRemaining()) {
+					return -1;
 				}
+				int n = Math.min(length, buffer.remaining());
+				buffer.get(bytes, offset, n);
+				return n;
 			}
-			jParser.close();
-			return result;
-		} catch (JsonGenerationException e) {
+		};
+	}
+	
+	/**
+	 * Collect the values of a top-level field from every object of a JSON array,
+	 * e.g. the names in a list of exchanges
+	 * 
+	 * @param jsonInput
+	 *           the JSON array
+	 * @param keyToSearch
+	 *           the field to collect
+	 * @param valuesToSkip
+	 *           values to leave out; a trailing * matches any suffix
+	 * @return the distinct values found
+	 */
+	public static Collection<String> parseJsonList(String jsonInput,
+		                                           String keyToSearch, 
+			                                       Collection<String> valuesToSkip) {
+		if (null == jsonInput) {
+			LOG.debug("Cannot parsing null input Json string.");
+			return null;
+		}
+		try {
+			return parseJsonList(JSON_FACTORY.createJsonParser(jsonInput), keyToSearch,
+					SkipMatcher.compile(valuesToSkip));
+		} catch (IOException e) {
 			LOG.error(e, "Error parsing RMQ Json response.");
 			throw new InternalErrorException("Error parsing RMQ Json response.");
-		} catch (JsonMappingException e) {
+		}
+	}
+
+	/**
+	 * Collect the values of a top-level field from every object of a JSON array
+	 * read straight from a stream. Only the values kept are materialized, so
+	 * arbitrarily long lists are parsed in constant memory besides the result.
+	 * 
+	 * @param jsonInput
+	 *           the JSON array, e.g. a response entity stream; it is closed
+	 * @param keyToSearch
+	 *           the field to collect
+	 * @param skip
+	 *           the values to leave out
+	 * @return the distinct values found
+	 */
+	public static Collection<String> parseJsonList(InputStream jsonInput,
+			                                       String keyToSearch,
+			                                       SkipMatcher skip) {
+		try {
+			return parseJsonList(JSON_FACTORY.createJsonParser(jsonInput), keyToSearch, skip);
+		} catch (IOException e) {
 			LOG.error(e, "Error parsing RMQ Json response.");
 			throw new InternalErrorException("Error parsing RMQ Json response.");
+		}
+	}
+
+	/**
+	 * Find the values of some fields anywhere in a JSON document
+	 * 
+	 * @param jsonInput
+	 *           the JSON document
+	 * @param keysToSearch
+	 *           the fields to find
+	 * @return the scalar value of each field found
+	 */
+	public static Map<String, String> parseJsonEntities(String jsonInput,
+			                                            Collection<String> keysToSearch) {
+		if (null == jsonInput) {
+			LOG.debug("Cannot parsing null input Json string.");
+			return null;
+		}
+		try {
+			return parseJsonEntities(JSON_FACTORY.createJsonParser(jsonInput), keysToSearch);
 		} catch (IOException e) {
 			LOG.error(e, "Error parsing RMQ Json response.");
 			throw new InternalErrorException("Error parsing RMQ Json response.");
 		}
 	}
 
-	public static Map<String, String> parseJsonEntities(String jsonInput,
+	/**
+	 * Find the values of some fields anywhere in a JSON document read straight
+	 * from a stream
+	 * 
+	 * @param jsonInput
+	 *           the JSON document, e.g. a response entity stream; it is closed
+	 * @param keysToSearch
+	 *           the fields to find
+	 * @return the scalar value of each field found
+	 */
+	public static Map<String, String> parseJsonEntities(InputStream jsonInput,
 			                                            Collection<String> keysToSearch) {
 		try {
-			if (null == jsonInput) {
-				LOG.debug("Cannot parsing null input Json string.");
-				return null;
+			return parseJsonEntities(JSON_FACTORY.createJsonParser(jsonInput), keysToSearch);
+		} catch (IOException e) {
+			LOG.error(e, "Error parsing RMQ Json response.");
+			throw new InternalErrorException("Error parsing RMQ Json response.");
+		}
+	}
+
+	private static Collection<String> parseJsonList(JsonParser jParser, String keyToSearch,
+			                                        SkipMatcher skip) throws IOException {
+		try {
+			Collection<String> result = new HashSet<String>();
+			if (jParser.nextToken() != JsonToken.START_ARRAY) {
+				return result;
+			}
+			// one object per element of the array
+			while (jParser.nextToken() == JsonToken.START_OBJECT) {
+				while (jParser.nextToken() == JsonToken.FIELD_NAME) {
+					// field names are interned by the parser, no string is built here
+					boolean found = keyToSearch.equals(jParser.getCurrentName());
+					JsonToken value = jParser.nextToken();
+					if (found && value.isScalarValue()) {
+						String tokenValue = jParser.getText();
+						// ignore empty value
+						if (!tokenValue.isEmpty() && !skip.matches(tokenValue)) {
+							result.add(tokenValue);
+						}
+					} else {
+						// nested objects and arrays are skipped without being parsed into values
+						jParser.skipChildren();
+					}
+				}
 			}
-			// LOG.debug("Parsing json string: " + jsonInput);
+			return result;
+		} finally {
+			jParser.close();
+		}
+	}
 
+	private static Map<String, String> parseJsonEntities(JsonParser jParser,
+			                                             Collection<String> keysToSearch) throws IOException {
+		try {
 			Map<String, String> result = new HashMap<String, String>();
-			JsonFactory jfactory = new JsonFactory();
-			JsonParser jParser = jfactory.createJsonParser(jsonInput);
-
-			while (null != jParser.nextToken()) {
-				String fieldname = jParser.getText();
-				for (String key : keysToSearch) {
-					if (key.equals(fieldname)) {
-						jParser.nextToken();
+			Set<String> keys = new HashSet<String>(keysToSearch);
+			JsonToken token;
+			while (null != (token = jParser.nextToken())) {
+				if (token == JsonToken.FIELD_NAME && keys.contains(jParser.getCurrentName())) {
+					String key = jParser.getCurrentName();
+					if (jParser.nextToken().isScalarValue()) {
 						String value = jParser.getText();
 						result.put(key, value);
 						LOG.debug(key + " = " + value);
 					}
 				}
 			}
-			jParser.close();
 			return result;
-		} catch (JsonGenerationException e) {
-			LOG.error(e, "Error parsing RMQ Json response.");
-			throw new InternalErrorException("Error parsing RMQ Json response.");
-		} catch (JsonMappingException e) {
-			LOG.error(e, "Error parsing RMQ Json response.");
-			throw new InternalErrorException("Error parsing RMQ Json response.");
-		} catch (IOException e) {
-			LOG.error(e, "Error parsing RMQ Json response.");
-			throw new InternalErrorException("Error parsing RMQ Json response.");
+		} finally {
+			jParser.close();
+		}
+	}
+
+	/**
+	 * A precompiled set of values to skip: exact values, and prefixes given
+	 * with a trailing *. Build it once and reuse it for every response.
+	 */
+	public static final class SkipMatcher {
+		public static final SkipMatcher NONE = new SkipMatcher(new HashSet<String>(), new ArrayList<String>());
+		private final Set<String> exact;
+		private final String[] prefixes;
+
+		private SkipMatcher(Set<String> exact, List<String> prefixes) {
+			this.exact = exact;
+			this.prefixes = prefixes.toArray(new String[prefixes.size()]);
+		}
+
+		/**
+		 * @param valuesToSkip
+		 *           exact values, or prefixes ending with *; may be null
+		 * @return the matcher
+		 */
+		public static SkipMatcher compile(Collection<String> valuesToSkip) {
+			if (null == valuesToSkip) {
+				return NONE;
+			}
+			Set<String> exact = new HashSet<String>();
+			List<String> prefixes = new ArrayList<String>();
+			for (String v : valuesToSkip) {
+				if (v.endsWith("*")) {
+					prefixes.add(v.substring(0, v.length() - 1));
+				} else {
+					exact.add(v);
+				}
+			}
+			return new SkipMatcher(exact, prefixes);
+		}
+
+		public static SkipMatcher compile(String... valuesToSkip) {
+			List<String> values = new ArrayList<String>(valuesToSkip.length);
+			for (String v : valuesToSkip) {
+				values.add(v);
+			}
+			return compile(values);
+		}
+
+		public boolean matches(String value) {
+			if (exact.contains(value)) {
+				return true;
+			}
+			for (String prefix : prefixes) {
+				if (value.startsWith(prefix)) {
+					return true;
+				}
+			}
+			return false;
 		}
 	}
 }
@@ -0,0 +1,30 @@
+package com.lockmarker.utils;
+
+/**
+ * A 64-bit hash of string keys such as message IDs, for tables that keep the
+ * hash instead of the key. Computing it reads the chars of the key and
+ * allocates nothing.
+ */
+public final class KeyHash {
+
+	private KeyHash() {
+	}
+
+	/**
+	 * FNV-1a over the chars of the key, mixed by the MurmurHash3 finalizer; 0
+	 * marks an empty slot in the tables using it, so it is never returned
+	 */
+	public static long of(String key) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			hash ^= key.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash == 0 ? 1 : hash;
+	}
+}
@@ -0,0 +1,144 @@
+package com.lockmarker.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers the keys seen within a sliding time window, each with a value,
+ * in bounded memory.
+ *
+ * The window is split into buckets of equal length. New keys go into the
+ * bucket of the current time, and a whole bucket is dropped at once when it
+ * falls out of the window, so expiry costs nothing per key. When the window
+ * holds the maximum number of keys, the oldest bucket is dropped early; a key
+ * is then forgotten sooner than the window, but memory never grows past the
+ * limit.
+ *
+ * @param <V>
+ *           the value kept with each key
+ */
+public class RecentKeyWindow<V> {
+	private final Map<String, V>[]	buckets;
+	private final long					bucketMillis;
+	private final int						maxKeys;
+	// the bucket period of the newest bucket, buckets[newest % buckets.length]
+	private long							newest;
+	private int								size;
+
+	/**
+	 * @param windowMillis
+	 *           how long a key is remembered
+	 * @param bucketCount
+	 *           the number of buckets the window is split into; more buckets
+	 *           expire keys closer to the window, at the cost of more lookups
+	 * @param maxKeys
+	 *           the most keys remembered at once
+	 */
+	public RecentKeyWindow(long windowMillis, int bucketCount, int maxKeys) {
+		this.buckets = newBuckets(Math.max(1, bucketCount));
+		this.bucketMillis = Math.max(1, windowMillis / buckets.length);
+		this.maxKeys = Math.max(1, maxKeys);
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = new HashMap<String, V>();
+		}
+	}
+
+	/**
+	 * Remember a key unless it is already in the window
+	 *
+	 * @param now
+	 *           the current time in milliseconds
+	 * @return the value the key already has, or null if it was added
+	 */
+	public synchronized V putIfAbsent(String key, V value, long now) {
+		advance(now);
+		V existing = find(key);
+		if (existing != null) {
+			return existing;
+		}
+		if (size >= maxKeys) {
+			dropOldest();
+		}
+		buckets[index(newest)].put(key, value);
+		size++;
+		return null;
+	}
+
+	/**
+	 * @return the value of a key in the window, or null
+	 */
+	public synchronized V get(String key, long now) {
+		advance(now);
+		return find(key);
+	}
+
+	/**
+	 * Forget a key, if it still has the given value
+	 *
+	 * @return true if the key was removed
+	 */
+	public synchronized boolean remove(String key, V value) {
+		for (Map<String, V> bucket : buckets) {
+			V existing = bucket.get(key);
+			if (existing != null && existing.equals(value)) {
+				bucket.remove(key);
+				size--;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	private V find(String key) {
+		for (Map<String, V> bucket : buckets) {
+			V value = bucket.get(key);
+			if (value != null) {
+				return value;
+			}
+		}
+		return null;
+	}
+
+	private void advance(long now) {
+		long period = now / bucketMillis;
+		if (period <= newest) {
+			return;
+		}
+		// clear every bucket that left the window, at most all of them
+		long cleared = Math.min(period - newest, buckets.length);
+		for (long p = period - cleared + 1; p <= period; p++) {
+			clear(buckets[index(p)]);
+		}
+		newest = period;
+	}
+
+	private void dropOldest() {
+		for (int i = buckets.length - 1; i >= 0; i--) {
+			Map<String, V> bucket = buckets[index(newest - i)];
+			if (!bucket.isEmpty()) {
+				clear(bucket);
+				return;
+			}
+		}
+	}
+
+	private void clear(Map<String, V> bucket) {
+		size -= bucket.size();
+		bucket.clear();
+	}
+
+	private int index(long period) {
+		int index = (int) (period % buckets.length);
+		return index < 0 ? index + buckets.length : index;
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static <V> Map<String, V>[] newBuckets(int count) {
+		// no arrays of a generic type can be created
+		return new Map[count];
+	}
+}
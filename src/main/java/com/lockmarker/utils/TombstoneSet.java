@@ -0,0 +1,176 @@
+package com.lockmarker.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Remembers deleted keys for a sliding time window, keeping only the 64-bit
+ * KeyHash of each in open-addressing tables of longs, so a key costs about
+ * 16 bytes.
+ *
+ * The window is split into buckets as in RecentKeyWindow: a whole bucket
+ * expires at once, and when the set holds the maximum number of keys the
+ * oldest bucket is dropped early. A key that shares its hash with a deleted
+ * one is taken for deleted too, which 64 bits make unlikely enough to ignore.
+ *
+ * Adding takes the lock of the set. contains() takes none and allocates
+ * nothing, so it can run for every message delivered.
+ */
+public class TombstoneSet {
+	private static final int								MIN_SLOTS	= 16;
+	private final AtomicReferenceArray<Bucket>		buckets;
+	private final long										bucketMillis;
+	private final int											maxKeys;
+	// the bucket period of the newest bucket
+	private long												newest;
+	private int													size;
+
+	/**
+	 * @param windowMillis
+	 *           how long a key is remembered
+	 * @param bucketCount
+	 *           the number of buckets the window is split into
+	 * @param maxKeys
+	 *           the most keys remembered at once
+	 */
+	public TombstoneSet(long windowMillis, int bucketCount, int maxKeys) {
+		this.buckets = new AtomicReferenceArray<Bucket>(Math.max(1, bucketCount));
+		this.bucketMillis = Math.max(1, windowMillis / buckets.length());
+		this.maxKeys = Math.max(1, maxKeys);
+	}
+
+	/**
+	 * Remember a key unless it is already in the window
+	 *
+	 * @param now
+	 *           the current time in milliseconds
+	 * @return true if the key was added
+	 */
+	public synchronized boolean add(String key, long now) {
+		long hash = KeyHash.of(key);
+		long period = now / bucketMillis;
+		if (period > newest) {
+			newest = period;
+			expire();
+		}
+		if (contains(hash, newest)) {
+			return false;
+		}
+		if (size >= maxKeys) {
+			dropOldest();
+		}
+
+		int index = index(newest);
+		Bucket bucket = buckets.get(index);
+		if (bucket == null || bucket.period != newest) {
+			if (bucket != null) {
+				size -= bucket.count;
+			}
+			bucket = new Bucket(newest, MIN_SLOTS);
+			buckets.set(index, bucket);
+		} else if ((bucket.count + 1) * 4L > bucket.slots.length() * 3L) {
+			bucket = bucket.grow();
+			// readers switch to the larger table, the old one stays valid for those on it
+			buckets.set(index, bucket);
+		}
+		bucket.insert(hash);
+		size++;
+		return true;
+	}
+
+	/**
+	 * @param now
+	 *           the current time in milliseconds
+	 * @return true if the key was added within the window
+	 */
+	public boolean contains(String key, long now) {
+		return contains(KeyHash.of(key), now / bucketMillis);
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	private boolean contains(long hash, long period) {
+		for (int i = 0; i < buckets.length(); i++) {
+			Bucket bucket = buckets.get(i);
+			if (bucket != null && bucket.period > period - buckets.length() && bucket.contains(hash)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void expire() {
+		for (int i = 0; i < buckets.length(); i++) {
+			Bucket bucket = buckets.get(i);
+			if (bucket != null && bucket.period <= newest - buckets.length()) {
+				size -= bucket.count;
+				buckets.set(i, null);
+			}
+		}
+	}
+
+	private void dropOldest() {
+		for (int i = buckets.length() - 1; i >= 0; i--) {
+			int index = index(newest - i);
+			Bucket bucket = buckets.get(index);
+			if (bucket != null && bucket.count > 0) {
+				size -= bucket.count;
+				buckets.set(index, null);
+				return;
+			}
+		}
+	}
+
+	private int index(long period) {
+		int index = (int) (period % buckets.length());
+		return index < 0 ? index + buckets.length() : index;
+	}
+
+	private static class Bucket {
+		final long					period;
+		final AtomicLongArray	slots;
+		// only changed under the lock of the set
+		int							count;
+
+		Bucket(long period, int slots) {
+			this.period = period;
+			this.slots = new AtomicLongArray(slots);
+		}
+
+		boolean contains(long hash) {
+			int mask = slots.length() - 1;
+			for (int slot = (int) hash & mask;; slot = (slot + 1) & mask) {
+				long key = slots.get(slot);
+				if (key == 0) {
+					return false;
+				}
+				if (key == hash) {
+					return true;
+				}
+			}
+		}
+
+		void insert(long hash) {
+			int mask = slots.length() - 1;
+			int slot = (int) hash & mask;
+			while (slots.get(slot) != 0) {
+				slot = (slot + 1) & mask;
+			}
+			slots.set(slot, hash);
+			count++;
+		}
+
+		Bucket grow() {
+			Bucket grown = new Bucket(period, slots.length() * 2);
+			for (int slot = 0; slot < slots.length(); slot++) {
+				long key = slots.get(slot);
+				if (key != 0) {
+					grown.insert(key);
+				}
+			}
+			return grown;
+		}
+	}
+}
@@ -1,19 +1,16 @@
 package com.lockmarker.utils;
 
-import com.sun.jersey.api.client.Client;
-import com.sun.jersey.api.client.ClientResponse;
-
 import com.yammer.dropwizard.logging.Log;
 
 public class WebClientTool {
 	private static final Log LOG = Log.forClass(WebClientTool.class);
 	
-	public static boolean isEndpointAlive(String endpoint) {
+	public static boolean isEndpointAlive(String endpoint, HttpConnectionPool connections) {
     	try {
     		LOG.debug("Validating aliveness of endpoint: " + endpoint);
     		// Simply ping the endpoint using PUT w/o actual request body
-			ClientResponse response = Client.create().resource(endpoint).put(ClientResponse.class);
-			if (response.getStatus() != 200) {
+			int status = connections.put(endpoint);
+			if (status != 200) {
 				LOG.info("Invalid endpoint: " + endpoint);
 				return false;
 			}
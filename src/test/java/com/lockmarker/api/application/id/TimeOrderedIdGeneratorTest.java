@@ -0,0 +1,41 @@
+package com.lockmarker.api.application.id;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ * Unit tests on time-ordered message IDs
+ */
+public class TimeOrderedIdGeneratorTest {
+
+    @Test
+    public void testIdsAreOrderedInBothEncodings() throws Exception {
+        TimeOrderedIdGenerator ids = new TimeOrderedIdGenerator(7);
+        long previous = ids.nextLong();
+        // more IDs than one millisecond's sequence holds
+        for (int i = 0; i < 10000; i++) {
+            long id = ids.nextLong();
+            assertThat(id > previous, equalTo(true));
+            assertThat(TimeOrderedIdGenerator.encode(id)
+                    .compareTo(TimeOrderedIdGenerator.encode(previous)) > 0, equalTo(true));
+            previous = id;
+        }
+        assertThat(TimeOrderedIdGenerator.nodeOf(previous), equalTo(7));
+    }
+
+    @Test
+    public void testEncodingsRoundTrip() throws Exception {
+        long before = System.currentTimeMillis();
+        long id = new TimeOrderedIdGenerator(TimeOrderedIdGenerator.MAX_NODE).nextLong();
+        String encoded = TimeOrderedIdGenerator.encode(id);
+
+        assertThat(encoded.length(), equalTo(TimeOrderedIdGenerator.ENCODED_LENGTH));
+        assertThat(TimeOrderedIdGenerator.decode(encoded), equalTo(id));
+        assertThat(TimeOrderedIdGenerator.decode(encoded.toLowerCase()), equalTo(id));
+        assertThat(TimeOrderedIdGenerator.fromBytes(TimeOrderedIdGenerator.toBytes(id)), equalTo(id));
+        assertThat(TimeOrderedIdGenerator.nodeOf(id), equalTo(TimeOrderedIdGenerator.MAX_NODE));
+        assertThat(TimeOrderedIdGenerator.timestampOf(id) >= before, equalTo(true));
+    }
+}
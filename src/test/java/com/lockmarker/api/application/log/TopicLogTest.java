@@ -0,0 +1,104 @@
+package com.lockmarker.api.application.log;
+
+import com.lockmarker.api.application.model.Message;
+import com.lockmarker.utils.RecentKeyWindow;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Meter;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.nullValue;
+
+/**
+ * Unit tests on the segmented topic log
+ */
+public class TopicLogTest {
+    private static final Meter OVERRUN = Metrics.newMeter(TopicLogTest.class, "overrun", "messages", TimeUnit.SECONDS);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TopicLog open(File dir) throws IOException {
+        return new TopicLog(dir, "tenant", "topic", 0, 256, false, new RecentKeyWindow<String>(1000, 1, 10), OVERRUN);
+    }
+
+    private static Message message(int i) {
+        return new Message("id-" + i, "topic", ("body " + i).getBytes(Message.CHARSET),
+                i % 2 == 0 ? "application/json" : null);
+    }
+
+    @Test
+    public void testMessagesSurviveReopenAcrossSegments() throws Exception {
+        File dir = folder.newFolder("topic");
+        TopicLog log = open(dir);
+        for (int i = 0; i < 20; i++) {
+            assertThat(log.publish(message(i)), equalTo((long) i));
+        }
+        log.flush();
+        assertThat(dir.list().length, greaterThan(2));
+
+        TopicLog reopened = open(dir);
+        assertThat(reopened.getHead(), equalTo(0L));
+        assertThat(reopened.getTail(), equalTo(20L));
+        for (int i = 0; i < 20; i++) {
+            Message message = reopened.read(i);
+            assertThat(message.getId(), equalTo("id-" + i));
+            assertThat(message.getContentType(), equalTo(i % 2 == 0 ? "application/json" : null));
+            assertThat(message.getBodyAsString(), equalTo("body " + i));
+        }
+        assertThat(reopened.read(20), nullValue());
+        assertThat(reopened.publish(message(20)), equalTo(20L));
+    }
+
+    @Test
+    public void testBrokenTailIsDroppedAndOldSegmentsRetired() throws Exception {
+        File dir = folder.newFolder("topic");
+        TopicLog log = open(dir);
+        for (int i = 0; i < 20; i++) {
+            log.publish(message(i));
+        }
+        log.flush();
+
+        // break the body of the newest record, as a crash in the middle of it would
+        String[] segments = dir.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(LogSegment.SUFFIX);
+            }
+        });
+        Arrays.sort(segments);
+        RandomAccessFile active = new RandomAccessFile(new File(dir, segments[segments.length - 1]), "rw");
+        try {
+            byte[] bytes = new byte[(int) active.length()];
+            active.readFully(bytes);
+            int body = new String(bytes, "ISO-8859-1").indexOf("body 19");
+            active.seek(body + 6);
+            active.write('X');
+        } finally {
+            active.close();
+        }
+
+        TopicLog reopened = open(dir);
+        assertThat(reopened.getTail(), equalTo(19L));
+        assertThat(reopened.read(19), nullValue());
+        assertThat(reopened.publish(message(19)), equalTo(19L));
+
+        // keep at most one segment's worth
+        assertThat(reopened.retain(0, 256), greaterThan(0));
+        assertThat(reopened.getHead(), greaterThan(0L));
+        assertThat(reopened.read(0), nullValue());
+        assertThat(reopened.read(19).getBodyAsString(), equalTo("body 19"));
+    }
+}
@@ -0,0 +1,89 @@
+package com.lockmarker.api.application.memory;
+
+import com.lockmarker.api.application.model.Message;
+import com.lockmarker.utils.RecentKeyWindow;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Meter;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+
+/**
+ * Unit tests on the message ID index of the topics
+ */
+public class MessageIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static MemoryTopic topic(int capacity) {
+        Meter overrun = Metrics.newMeter(MessageIndexTest.class, "overrun", "messages", TimeUnit.SECONDS);
+        return new MemoryTopic("tenant", "topic", capacity, new RecentKeyWindow<String>(1000, 1, 1), overrun);
+    }
+
+    private static Message message(String id) {
+        return new Message(id, "topic", id.getBytes(Message.CHARSET));
+    }
+
+    @Test
+    public void testDeletedMessagesAreNotFoundOrPulled() throws Exception {
+        MemoryTopic topic = topic(4);
+        for (String id : new String[] { "a", "b", "c" }) {
+            topic.publish(message(id));
+        }
+
+        assertThat(topic.find("b").getId(), equalTo("b"));
+        assertThat(topic.find("x"), nullValue());
+        assertThat(topic.delete("b"), equalTo(true));
+        assertThat(topic.delete("b"), equalTo(false));
+        assertThat(topic.find("b"), nullValue());
+        assertThat(topic.isDeleted(topic.read(1), 1), equalTo(true));
+        assertThat(topic.isDeleted(topic.read(2), 2), equalTo(false));
+
+        List<Message> messages = topic.pull(10, 0);
+        assertThat(messages.size(), equalTo(2));
+        assertThat(messages.get(0).getId(), equalTo("a"));
+        assertThat(messages.get(1).getId(), equalTo("c"));
+    }
+
+    @Test
+    public void testGrowingDropsOverwrittenMessages() throws Exception {
+        MemoryTopic topic = topic(1000);
+        for (int i = 0; i < 5000; i++) {
+            topic.publish(message("m" + i));
+        }
+
+        assertThat(topic.find("m10"), nullValue());
+        assertThat(topic.find("m4999").getId(), equalTo("m4999"));
+        assertThat(topic.getIndex().size() < 2048, equalTo(true));
+    }
+
+    @Test
+    public void testFileIndexKeepsTombstones() throws Exception {
+        MemoryTopic topic = topic(16);
+        for (String id : new String[] { "a", "b" }) {
+            topic.publish(message(id));
+        }
+        File file = new File(folder.getRoot(), "messages.idx");
+        MessageIndex index = new MessageIndex(file);
+        index.add("a", 0, 0);
+        index.add("b", 1, 0);
+        assertThat(index.delete("a", topic), equalTo(true));
+        index.flush(2);
+
+        MessageIndex reopened = new MessageIndex(file);
+        assertThat(reopened.getMark(), equalTo(2L));
+        assertThat(reopened.size(), equalTo(2));
+        assertThat(reopened.find("a", topic), equalTo(-1L));
+        assertThat(reopened.find("b", topic), equalTo(1L));
+    }
+}
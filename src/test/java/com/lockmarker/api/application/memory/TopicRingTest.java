@@ -0,0 +1,72 @@
+package com.lockmarker.api.application.memory;
+
+import com.lockmarker.api.application.model.Message;
+import com.lockmarker.utils.RecentKeyWindow;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Meter;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+
+/**
+ * Unit tests on the ring buffer of the in-memory topics
+ */
+public class TopicRingTest {
+
+    private static Message message(String id) {
+        return new Message(id, "topic", id.getBytes(Message.CHARSET));
+    }
+
+    @Test
+    public void testReadersSeeMessagesInOrder() throws Exception {
+        TopicRing ring = new TopicRing(3);
+        assertThat(ring.getCapacity(), equalTo(4));
+
+        assertThat(ring.publish(message("a")), equalTo(0L));
+        assertThat(ring.publish(message("b")), equalTo(1L));
+        assertThat(ring.read(0).getId(), equalTo("a"));
+        assertThat(ring.read(1).getId(), equalTo("b"));
+        assertThat(ring.read(2), nullValue());
+    }
+
+    @Test
+    public void testOverwrittenSlotsReadAsGone() throws Exception {
+        TopicRing ring = new TopicRing(2);
+        for (String id : new String[] { "a", "b", "c", "d", "e" }) {
+            ring.publish(message(id));
+        }
+
+        assertThat(ring.getTail(), equalTo(5L));
+        assertThat(ring.getHead(), equalTo(3L));
+        for (long sequence = 0; sequence < ring.getHead(); sequence++) {
+            assertThat(ring.read(sequence), nullValue());
+        }
+        assertThat(ring.read(3).getId(), equalTo("d"));
+        assertThat(ring.read(4).getId(), equalTo("e"));
+        assertThat(ring.read(5), nullValue());
+    }
+
+    @Test
+    public void testLappedCursorSkipsOverwrittenMessages() throws Exception {
+        Meter overrun = Metrics.newMeter(TopicRingTest.class, "overrun", "messages", TimeUnit.SECONDS);
+        long before = overrun.count();
+        MemoryTopic topic = new MemoryTopic("tenant", "topic", 2, new RecentKeyWindow<String>(1000, 1, 1), overrun);
+        for (String id : new String[] { "a", "b", "c", "d", "e" }) {
+            topic.publish(message(id));
+        }
+
+        assertThat(topic.read(0), nullValue());
+        List<Message> messages = topic.pull(10, 0);
+        assertThat(messages.size(), equalTo(2));
+        assertThat(messages.get(0).getId(), equalTo("d"));
+        assertThat(messages.get(1).getId(), equalTo("e"));
+        assertThat(topic.pull(10, 0).isEmpty(), equalTo(true));
+        assertThat(overrun.count() - before, equalTo(3L));
+    }
+}
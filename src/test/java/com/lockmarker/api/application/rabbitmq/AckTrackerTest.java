@@ -0,0 +1,127 @@
+package com.lockmarker.api.application.rabbitmq;
+
+import com.rabbitmq.client.Channel;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests on coalescing the acks of a channel
+ */
+public class AckTrackerTest {
+
+    @Test
+    public void testFullBatchIsAckedWithOneFrame() throws Exception {
+        Channel channel = mock(Channel.class);
+        when(channel.isOpen()).thenReturn(true);
+        ScheduledExecutorService timer = mock(ScheduledExecutorService.class);
+        AckTracker acks = new AckTracker(channel, 3, 20, timer);
+        for (long tag = 1; tag <= 4; tag++) {
+            acks.delivered(tag);
+        }
+
+        // completed out of order
+        acks.ack(2L);
+        acks.ack(1L);
+        verify(channel, never()).basicAck(anyLong(), anyBoolean());
+        acks.ack(Arrays.asList(3L));
+        verify(channel).basicAck(3L, true);
+        verify(channel, times(1)).basicAck(anyLong(), anyBoolean());
+        assertThat(acks.getOutstanding(), equalTo(1));
+    }
+
+    @Test
+    public void testMultipleAckNeverPassesOutstandingTag() throws Exception {
+        Channel channel = mock(Channel.class);
+        when(channel.isOpen()).thenReturn(true);
+        ScheduledExecutorService timer = mock(ScheduledExecutorService.class);
+        AckTracker acks = new AckTracker(channel, 10, 20, timer);
+        for (long tag = 1; tag <= 5; tag++) {
+            acks.delivered(tag);
+        }
+
+        // tag 1 is still being fed elsewhere and must not be acked
+        acks.ack(Arrays.asList(2L, 3L, 4L));
+        acks.flush();
+        verify(channel, never()).basicAck(anyLong(), anyBoolean());
+        assertThat(acks.getOutstanding(), equalTo(5));
+
+        acks.ack(1L);
+        acks.flush();
+        verify(channel).basicAck(4L, true);
+        verify(channel, times(1)).basicAck(anyLong(), anyBoolean());
+        assertThat(acks.getOutstanding(), equalTo(1));
+    }
+
+    @Test
+    public void testTagsStuckAboveGapAreAckedAtNextFlush() throws Exception {
+        Channel channel = mock(Channel.class);
+        when(channel.isOpen()).thenReturn(true);
+        ScheduledExecutorService timer = mock(ScheduledExecutorService.class);
+        AckTracker acks = new AckTracker(channel, 10, 20, timer);
+        for (long tag = 1; tag <= 4; tag++) {
+            acks.delivered(tag);
+        }
+
+        // tag 2 waits for redelivery
+        acks.ack(Arrays.asList(1L, 3L));
+        acks.flush();
+        verify(channel).basicAck(1L, true);
+        acks.ack(4L);
+        acks.flush();
+        verify(channel).basicAck(3L, false);
+        verify(channel, never()).basicAck(eq(4L), anyBoolean());
+        assertThat(acks.getOutstanding(), equalTo(2));
+    }
+
+    @Test
+    public void testDeliveriesAreRecordedWhileAckIsSent() throws Exception {
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch sent = new CountDownLatch(1);
+        Channel channel = mock(Channel.class);
+        when(channel.isOpen()).thenReturn(true);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Exception {
+                sending.countDown();
+                // e.g. a slow socket write
+                sent.await();
+                return null;
+            }
+        }).when(channel).basicAck(1L, true);
+        final AckTracker acks = new AckTracker(channel, 1, 20, mock(ScheduledExecutorService.class));
+        acks.setBatchSize(2);
+        acks.delivered(1L);
+        acks.ack(Arrays.asList(1L));
+
+        Thread flusher = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    acks.flush();
+                } catch (IOException e) {
+                    // verified below
+                }
+            }
+        };
+        flusher.start();
+        assertThat(sending.await(5, TimeUnit.SECONDS), equalTo(true));
+        // the consumer thread is not held up by the frame being written
+        acks.delivered(2L);
+        assertThat(acks.getOutstanding(), equalTo(1));
+        sent.countDown();
+        flusher.join(5000);
+        verify(channel).basicAck(1L, true);
+    }
+}
@@ -0,0 +1,44 @@
+package com.lockmarker.api.application.rabbitmq;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ * Unit tests on the AIMD delivery window
+ */
+public class AdaptiveWindowTest {
+
+    @Test
+    public void testFastFeedsGrowWindowUpToMax() {
+        AdaptiveWindow window = new AdaptiveWindow(1, 4, 100);
+        long now = 1000;
+        // roughly one slot per full window of good feeds
+        for (int i = 0; i < 6; i++) {
+            window.onSuccess(10, now++);
+        }
+        assertThat(window.getWindow(), equalTo(3));
+        window.onSuccess(10, now++);
+        assertThat(window.getWindow(), equalTo(4));
+
+        for (int i = 0; i < 100; i++) {
+            window.onSuccess(10, now++);
+        }
+        assertThat(window.getWindow(), equalTo(4));
+    }
+
+    @Test
+    public void testSlowOrFailedFeedsHalveWindowOncePerPeriod() {
+        AdaptiveWindow window = new AdaptiveWindow(8, 8, 100);
+
+        assertThat(window.onSuccess(500, 1000), equalTo(true));
+        assertThat(window.getWindow(), equalTo(4));
+        // the rest of the same burst does not shrink it again
+        assertThat(window.onFailure(1050), equalTo(false));
+        assertThat(window.getWindow(), equalTo(4));
+
+        assertThat(window.onFailure(1200), equalTo(true));
+        assertThat(window.getWindow(), equalTo(2));
+    }
+}
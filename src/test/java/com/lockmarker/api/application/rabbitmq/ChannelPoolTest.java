@@ -0,0 +1,111 @@
+package com.lockmarker.api.application.rabbitmq;
+
+import com.lockmarker.api.exceptions.InternalErrorException;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests on the pool of publisher and consumer channels
+ */
+public class ChannelPoolTest {
+    private Connection connection;
+    private ChannelPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        connection = mock(Connection.class);
+        when(connection.createChannel()).thenAnswer(new Answer<Channel>() {
+            @Override
+            public Channel answer(InvocationOnMock invocation) {
+                Channel channel = mock(Channel.class);
+                when(channel.isOpen()).thenReturn(true);
+                return channel;
+            }
+        });
+        pool = new ChannelPool(connection, 2, 50);
+    }
+
+    @Test
+    public void testReleasedChannelIsLeasedAgain() throws Exception {
+        Channel channel = pool.lease();
+        assertThat(pool.getLeasedCount(), equalTo(1));
+        pool.release(channel);
+        assertThat(pool.getLeasedCount(), equalTo(0));
+        assertThat(pool.getIdleCount(), equalTo(1));
+
+        assertThat(pool.lease(), sameInstance(channel));
+        verify(connection, times(1)).createChannel();
+    }
+
+    @Test
+    public void testLeaseFailsWhenPoolIsExhausted() throws Exception {
+        Channel first = pool.lease();
+        pool.lease();
+        try {
+            pool.lease();
+            throw new AssertionError("lease beyond the pool size succeeded");
+        } catch (InternalErrorException e) {
+            // expected
+        }
+        // a release frees a permit again
+        pool.release(first);
+        assertThat(pool.lease(), sameInstance(first));
+    }
+
+    @Test
+    public void testClosedChannelIsReplacedOnRelease() throws Exception {
+        Channel channel = pool.lease();
+        when(channel.isOpen()).thenReturn(false);
+        pool.release(channel);
+        assertThat(pool.getIdleCount(), equalTo(0));
+
+        Channel replacement = pool.lease();
+        assertThat(replacement, not(sameInstance(channel)));
+        verify(connection, times(2)).createChannel();
+    }
+
+    @Test
+    public void testClosedIdleChannelIsReplacedOnLease() throws Exception {
+        Channel channel = pool.lease();
+        pool.release(channel);
+        // the broker closes it while it sits in the pool
+        when(channel.isOpen()).thenReturn(false);
+
+        Channel replacement = pool.lease();
+        assertThat(replacement, not(sameInstance(channel)));
+        assertThat(pool.getIdleCount(), equalTo(0));
+        assertThat(pool.getLeasedCount(), equalTo(1));
+    }
+
+    @Test
+    public void testForeignChannelIsNotPooled() throws Exception {
+        Channel foreign = mock(Channel.class);
+        when(foreign.isOpen()).thenReturn(true);
+        pool.release(foreign);
+        assertThat(pool.getIdleCount(), equalTo(0));
+    }
+
+    @Test
+    public void testConsumerChannelsAreNotCountedAgainstThePool() throws Exception {
+        Channel consumer = pool.openConsumerChannel();
+        pool.lease();
+        pool.lease();
+        assertThat(pool.getConsumerCount(), equalTo(1));
+
+        pool.closeConsumerChannel(consumer);
+        assertThat(pool.getConsumerCount(), equalTo(0));
+        verify(consumer).close();
+    }
+}
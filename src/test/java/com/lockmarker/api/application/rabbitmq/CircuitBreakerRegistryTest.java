@@ -0,0 +1,40 @@
+package com.lockmarker.api.application.rabbitmq;
+
+import com.lockmarker.utils.HttpConnectionPool;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Unit tests on sharing and dropping the circuit breakers of endpoints
+ */
+public class CircuitBreakerRegistryTest {
+
+    @Test
+    public void testBreakerIsDroppedWithLastSubscriber() throws Exception {
+        CircuitBreakerRegistry registry = new CircuitBreakerRegistry(mock(HttpConnectionPool.class), 5, 1000, 60000);
+        try {
+            EndpointCircuitBreaker first = registry.acquire("http://localhost/feed");
+            assertThat(registry.acquire("http://localhost/feed"), sameInstance(first));
+            registry.acquire("http://localhost/other");
+            assertThat(registry.size(), equalTo(2));
+
+            registry.release("http://localhost/feed");
+            assertThat(registry.size(), equalTo(2));
+            registry.release("http://localhost/feed");
+            assertThat(registry.size(), equalTo(1));
+            // released more often than acquired
+            registry.release("http://localhost/feed");
+            assertThat(registry.size(), equalTo(1));
+
+            assertThat(registry.acquire("http://localhost/feed"), not(sameInstance(first)));
+        } finally {
+            registry.stop();
+        }
+    }
+}
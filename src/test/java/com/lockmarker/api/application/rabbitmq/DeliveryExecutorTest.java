@@ -0,0 +1,120 @@
+package com.lockmarker.api.application.rabbitmq;
+
+import com.lockmarker.api.application.policy.DeliveryPolicy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests on the per-subscriber delivery executor
+ */
+public class DeliveryExecutorTest {
+
+    @Test
+    public void testFeedsRunConcurrently() throws Exception {
+        DeliveryExecutor executor = new DeliveryExecutor("sub", new DeliveryPolicy(4, 4, false));
+        final CountDownLatch started = new CountDownLatch(4);
+        final CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 4; i++) {
+            executor.execute("topic", new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    await(release);
+                }
+            });
+        }
+
+        // all four block at once, so none waits for another to finish
+        assertThat(started.await(5, TimeUnit.SECONDS), equalTo(true));
+        assertThat(executor.getInFlight(), equalTo(4));
+        release.countDown();
+        executor.shutdown();
+    }
+
+    @Test
+    public void testOrderedDeliveryKeepsOrderPerKey() throws Exception {
+        DeliveryExecutor executor = new DeliveryExecutor("sub", new DeliveryPolicy(4, 16, true));
+        final List<Integer> fed = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(100);
+        for (int i = 0; i < 100; i++) {
+            final int n = i;
+            executor.execute("topic", new Runnable() {
+                @Override
+                public void run() {
+                    fed.add(n);
+                    done.countDown();
+                }
+            });
+        }
+
+        assertThat(done.await(5, TimeUnit.SECONDS), equalTo(true));
+        for (int i = 0; i < 100; i++) {
+            assertThat(fed.get(i), equalTo(i));
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    public void testHeldLaneWaitsForRelease() throws Exception {
+        DeliveryExecutor executor = new DeliveryExecutor("sub", new DeliveryPolicy(2, 16, true));
+        final List<String> fed = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicReference<Runnable> retry = new AtomicReference<Runnable>();
+        final CountDownLatch done = new CountDownLatch(1);
+        executor.execute("topic", new DeliveryExecutor.HeldTask() {
+            @Override
+            public void run(Runnable release) {
+                // failed, released by the retry later
+                retry.set(release);
+            }
+        });
+        executor.execute("topic", new Runnable() {
+            @Override
+            public void run() {
+                fed.add("second");
+                done.countDown();
+            }
+        });
+
+        assertThat(done.await(200, TimeUnit.MILLISECONDS), equalTo(false));
+        assertThat(fed.isEmpty(), equalTo(true));
+        retry.get().run();
+        assertThat(done.await(5, TimeUnit.SECONDS), equalTo(true));
+        executor.shutdown();
+    }
+
+    @Test
+    public void testRejectedAfterShutdown() throws Exception {
+        DeliveryExecutor executor = new DeliveryExecutor("sub", new DeliveryPolicy(2, 16, true));
+        executor.shutdown();
+        try {
+            executor.execute("topic", new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+            fail("expected RejectedExecutionException");
+        } catch (RejectedExecutionException e) {
+            assertThat(executor.getInFlight(), equalTo(0));
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.lockmarker.api.application.rabbitmq;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests on the per-endpoint circuit breaker
+ */
+public class EndpointCircuitBreakerTest {
+
+    @Test
+    public void testOpensAfterConsecutiveFailures() {
+        EndpointCircuitBreaker breaker = new EndpointCircuitBreaker("http://localhost/feed", 3);
+        EndpointCircuitBreaker.Listener listener = mock(EndpointCircuitBreaker.Listener.class);
+        breaker.addListener(listener);
+
+        breaker.recordFailure();
+        breaker.recordFailure();
+        // a success in between starts the count over
+        breaker.recordSuccess();
+        breaker.recordFailure();
+        breaker.recordFailure();
+        assertThat(breaker.isClosed(), equalTo(true));
+
+        assertThat(breaker.recordFailure(), equalTo(true));
+        assertThat(breaker.isClosed(), equalTo(false));
+        // further failures do not notify again
+        assertThat(breaker.recordFailure(), equalTo(false));
+        verify(listener, times(1)).onOpen(breaker);
+    }
+
+    @Test
+    public void testCloseResumesListeners() {
+        EndpointCircuitBreaker breaker = new EndpointCircuitBreaker("http://localhost/feed", 1);
+        EndpointCircuitBreaker.Listener listener = mock(EndpointCircuitBreaker.Listener.class);
+        breaker.addListener(listener);
+
+        breaker.recordFailure();
+        breaker.close();
+
+        assertThat(breaker.isClosed(), equalTo(true));
+        verify(listener).onClose(breaker);
+    }
+}
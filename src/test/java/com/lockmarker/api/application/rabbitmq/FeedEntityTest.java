@@ -0,0 +1,83 @@
+package com.lockmarker.api.application.rabbitmq;
+
+import com.lockmarker.api.application.model.Message;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ * Unit tests on streaming feed documents
+ */
+public class FeedEntityTest {
+
+    @Test
+    public void testTextBodyIsEscaped() throws Exception {
+        Message message = new Message("id-1", "DemoTopic", "say \"hi\"\n".getBytes("UTF-8"),
+                Message.TEXT_CONTENT_TYPE);
+
+        assertThat(write(new FeedEntity(message)),
+                equalTo("{\"messageId\":\"id-1\",\"topicName\":\"DemoTopic\",\"message\":\"say \\\"hi\\\"\\n\"}"));
+    }
+
+    @Test
+    public void testJsonBodiesAreWrittenRaw() throws Exception {
+        Message json = new Message("id-1", "DemoTopic", "{\"price\": 42}".getBytes("UTF-8"),
+                "application/json; charset=UTF-8");
+        Message text = new Message("id-2", "DemoTopic", "caf\u00e9".getBytes("ISO-8859-1"),
+                "text/plain; charset=ISO-8859-1");
+
+        assertThat(write(new FeedEntity(Arrays.asList(json, text))),
+                equalTo("[{\"messageId\":\"id-1\",\"topicName\":\"DemoTopic\",\"message\":{\"price\": 42}},"
+                        + "{\"messageId\":\"id-2\",\"topicName\":\"DemoTopic\",\"message\":\"caf\u00e9\"}]"));
+    }
+
+    @Test
+    public void testMalformedJsonBodyIsEscaped() throws Exception {
+        Message broken = new Message("id-1", "DemoTopic", "{\"price\": ".getBytes("UTF-8"), "application/json");
+        Message json = new Message("id-2", "DemoTopic", "[1]".getBytes("UTF-8"), "application/json");
+
+        assertThat(write(new FeedEntity(Arrays.asList(broken, json))),
+                equalTo("[{\"messageId\":\"id-1\",\"topicName\":\"DemoTopic\",\"message\":\"{\\\"price\\\": \"},"
+                        + "{\"messageId\":\"id-2\",\"topicName\":\"DemoTopic\",\"message\":[1]}]"));
+    }
+
+    @Test
+    public void testDirectBufferBodiesAreEscaped() throws Exception {
+        byte[] bytes = "say \"hi\"".getBytes("UTF-8");
+        // e.g. a slice of a mapped log segment
+        ByteBuffer segment = ByteBuffer.allocateDirect(bytes.length + 2);
+        segment.put((byte) 'x').put(bytes).put((byte) 'x');
+        segment.position(1).limit(1 + bytes.length);
+        Message message = new Message("id-1", "DemoTopic", segment.slice(), Message.TEXT_CONTENT_TYPE);
+        ByteBuffer shorter = ByteBuffer.allocateDirect(2);
+        shorter.put("ok".getBytes("UTF-8")).flip();
+        Message next = new Message("id-2", "DemoTopic", shorter, Message.TEXT_CONTENT_TYPE);
+
+        assertThat(write(new FeedEntity(Arrays.asList(message, next))),
+                equalTo("[{\"messageId\":\"id-1\",\"topicName\":\"DemoTopic\",\"message\":\"say \\\"hi\\\"\"},"
+                        + "{\"messageId\":\"id-2\",\"topicName\":\"DemoTopic\",\"message\":\"ok\"}]"));
+    }
+
+    @Test
+    public void testBinaryBodyIsBase64Encoded() throws Exception {
+        Message binary = new Message("id-1", "DemoTopic", new byte[] { (byte) 0xff, 0, (byte) 0xfe },
+                "application/octet-stream");
+        Message xml = new Message("id-2", "DemoTopic", "<a/>".getBytes("UTF-8"), "application/xml");
+
+        assertThat(write(new FeedEntity(Arrays.asList(binary, xml))),
+                equalTo("[{\"messageId\":\"id-1\",\"topicName\":\"DemoTopic\",\"encoding\":\"base64\",\"message\":\"/wD+\"},"
+                        + "{\"messageId\":\"id-2\",\"topicName\":\"DemoTopic\",\"message\":\"<a/>\"}]"));
+    }
+
+    private static String write(FeedEntity entity) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entity.writeTo(out);
+        return new String(out.toByteArray(), "UTF-8");
+    }
+}
@@ -0,0 +1,78 @@
+package com.lockmarker.api.application.rabbitmq;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests on the leases of messages pulled with a visibility timeout
+ */
+public class LeaseTableTest {
+
+    @Test
+    public void testAckSettlesLeaseOnce() throws Exception {
+        PullPrefetcher owner = mock(PullPrefetcher.class);
+        when(owner.settle(anyLong(), anyBoolean())).thenReturn(true);
+        LeaseTable leases = new LeaseTable(10);
+        try {
+            leases.lease("topic", "id-1", owner, 7L, 60000);
+            assertThat(leases.size(), equalTo(1));
+            assertThat(leases.available(), equalTo(9));
+
+            assertThat(leases.extend("topic", "id-1", 60000), equalTo(true));
+            assertThat(leases.ack("topic", "id-1"), equalTo(true));
+            assertThat(leases.ack("topic", "id-1"), equalTo(false));
+            verify(owner, times(1)).settle(7L, true);
+            assertThat(leases.size(), equalTo(0));
+        } finally {
+            leases.stop();
+        }
+    }
+
+    @Test
+    public void testExpiredLeaseIsRequeued() throws Exception {
+        PullPrefetcher owner = mock(PullPrefetcher.class);
+        LeaseTable leases = new LeaseTable(10);
+        try {
+            leases.lease("topic", "id-1", owner, 7L, 100);
+            leases.lease("topic", "id-2", owner, 8L, 60000);
+            // made visible again right away
+            assertThat(leases.extend("topic", "id-2", 0), equalTo(true));
+
+            long deadline = System.currentTimeMillis() + 2000;
+            while (leases.size() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertThat(leases.size(), equalTo(0));
+            verify(owner).settle(7L, false);
+            verify(owner).settle(8L, false);
+            assertThat(leases.extend("topic", "id-1", 60000), equalTo(false));
+            assertThat(leases.ack("topic", "id-2"), equalTo(false));
+        } finally {
+            leases.stop();
+        }
+    }
+
+    @Test
+    public void testReplacedLeaseIsSettled() throws Exception {
+        PullPrefetcher lost = mock(PullPrefetcher.class);
+        PullPrefetcher owner = mock(PullPrefetcher.class);
+        when(owner.settle(anyLong(), anyBoolean())).thenReturn(true);
+        LeaseTable leases = new LeaseTable(10);
+        try {
+            leases.lease("topic", "id-1", lost, 7L, 60000);
+            // pulled again after the broker requeued it with the channel of the first lease
+            leases.lease("topic", "id-1", owner, 3L, 60000);
+            verify(lost).settle(7L, false);
+            assertThat(leases.size(), equalTo(1));
+
+            assertThat(leases.ack("topic", "id-1"), equalTo(true));
+            verify(owner).settle(3L, true);
+            verify(lost, times(1)).settle(anyLong(), anyBoolean());
+        } finally {
+            leases.stop();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.lockmarker.api.application.rabbitmq;
+
+import com.lockmarker.api.exceptions.InternalErrorException;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests on the management API metadata cache
+ */
+public class MetadataCacheTest {
+
+    private static final Executor sameThread = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private MetadataCache.MetadataLoader loader;
+    private MetadataCache cache;
+
+    @Before
+    public void setUp() {
+        loader = mock(MetadataCache.MetadataLoader.class);
+        cache = new MetadataCache(loader, 60000, 60000, 100, sameThread);
+    }
+
+    @Test
+    public void testLookupsAreServedFromCache() {
+        when(loader.loadTopicSubscriptions("/", "DemoTopic")).thenReturn(Arrays.asList("sub-1"));
+
+        cache.getTopicSubscriptions("/", "DemoTopic");
+        assertThat(cache.getTopicSubscriptions("/", "DemoTopic"), equalTo((Collection<String>) Arrays.asList("sub-1")));
+        verify(loader, times(1)).loadTopicSubscriptions("/", "DemoTopic");
+    }
+
+    @Test
+    public void testSubscriptionChangeInvalidatesTopic() {
+        when(loader.loadTopicSubscriptions("/", "DemoTopic"))
+                .thenReturn(Arrays.asList("sub-1"))
+                .thenReturn(Arrays.asList("sub-1", "sub-2"));
+
+        cache.getTopicSubscriptions("/", "DemoTopic");
+        cache.invalidateSubscriptions("sub-2", Collections.singleton("DemoTopic"));
+
+        assertThat(cache.getTopicSubscriptions("/", "DemoTopic"), equalTo((Collection<String>) Arrays.asList("sub-1", "sub-2")));
+    }
+
+    @Test
+    public void testLoadRacingInvalidationIsNotServed() throws Exception {
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch mutated = new CountDownLatch(1);
+        when(loader.loadTopics("/")).thenAnswer(new Answer<Collection<String>>() {
+            @Override
+            public Collection<String> answer(InvocationOnMock invocation) throws Exception {
+                loading.countDown();
+                // read before the topic is created, returned after
+                mutated.await();
+                return Arrays.asList("a");
+            }
+        }).thenReturn(Arrays.asList("a", "b"));
+
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                cache.getTopics("/");
+            }
+        };
+        reader.start();
+        loading.await();
+        cache.invalidateTopic("/", "b");
+        mutated.countDown();
+        reader.join(5000);
+
+        assertThat(cache.getTopics("/"), equalTo((Collection<String>) Arrays.asList("a", "b")));
+        assertThat(cache.getTopics("/"), equalTo((Collection<String>) Arrays.asList("a", "b")));
+        verify(loader, times(2)).loadTopics("/");
+    }
+
+    @Test(expected = InternalErrorException.class)
+    public void testLoaderErrorsPassThrough() {
+        when(loader.loadTopics("/")).thenThrow(new InternalErrorException("Error listing topics."));
+        cache.getTopics("/");
+    }
+}
@@ -0,0 +1,61 @@
+package com.lockmarker.api.application.rabbitmq;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests on publisher confirm tracking
+ */
+public class PublisherConfirmTrackerTest {
+
+    @Test
+    public void testMultipleAckCompletesAllLowerSequenceNumbers() throws Exception {
+        PublisherConfirmTracker tracker = new PublisherConfirmTracker(10, 60000);
+        ListenableFuture<String> first = tracker.track(1, "m1");
+        ListenableFuture<String> second = tracker.track(2, "m2");
+        ListenableFuture<String> third = tracker.track(3, "m3");
+
+        tracker.handleAck(2, true);
+
+        assertThat("Test first confirmed", first.get(), equalTo("m1"));
+        assertThat("Test second confirmed", second.get(), equalTo("m2"));
+        assertThat("Test third still pending", third.isDone(), equalTo(false));
+        assertThat("Test outstanding count", tracker.getOutstanding(), equalTo(1));
+    }
+
+    @Test
+    public void testNackFailsFuture() throws Exception {
+        PublisherConfirmTracker tracker = new PublisherConfirmTracker(10, 60000);
+        ListenableFuture<String> confirm = tracker.track(1, "m1");
+
+        tracker.handleNack(1, false);
+
+        try {
+            confirm.get();
+            fail("Nacked message must not be confirmed");
+        } catch (ExecutionException e) {
+            assertThat("Test outstanding count", tracker.getOutstanding(), equalTo(0));
+        }
+    }
+
+    @Test
+    public void testExpireStopsAtFirstPublishInTime() throws Exception {
+        PublisherConfirmTracker tracker = new PublisherConfirmTracker(10, 1000);
+        ListenableFuture<String> overdue = tracker.track(1, "m1");
+
+        assertThat("Test nothing overdue yet", tracker.expire(System.currentTimeMillis()), equalTo(0));
+        assertThat("Test overdue publish expired", tracker.expire(System.currentTimeMillis() + 2000), equalTo(1));
+        assertThat("Test expired future done", overdue.isDone(), equalTo(true));
+
+        // a late ack for an expired publish is ignored
+        tracker.handleAck(1, false);
+        assertThat("Test outstanding count", tracker.getOutstanding(), equalTo(0));
+    }
+}
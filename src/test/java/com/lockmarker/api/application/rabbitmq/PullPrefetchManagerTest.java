@@ -0,0 +1,116 @@
+package com.lockmarker.api.application.rabbitmq;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Envelope;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests on the lifecycle of the prefetching consumers
+ */
+public class PullPrefetchManagerTest {
+    private ChannelPool channelPool;
+    private LeaseTable leases;
+    private PullPrefetchManager manager;
+
+    @Before
+    public void setUp() throws Exception {
+        channelPool = mock(ChannelPool.class);
+        when(channelPool.openConsumerChannel()).thenAnswer(new Answer<Channel>() {
+            @Override
+            public Channel answer(InvocationOnMock invocation) {
+                Channel channel = mock(Channel.class);
+                when(channel.isOpen()).thenReturn(true);
+                return channel;
+            }
+        });
+        leases = new LeaseTable(100);
+        // the reaper runs once a second whatever the timeout
+        manager = new PullPrefetchManager(channelPool, 2, 10, 2, new TombstoneRegistry(60000, 10, 100), leases);
+    }
+
+    @After
+    public void tearDown() {
+        manager.close();
+        leases.stop();
+    }
+
+    @Test
+    public void testNumberOfPrefetchersIsCapped() throws Exception {
+        manager.start("Topic1", "Topic1.p2p");
+        manager.start("Topic2", "Topic2.p2p");
+        manager.start("Topic3", "Topic3.p2p");
+        assertThat(manager.get("Topic1"), notNullValue());
+        assertThat(manager.get("Topic2"), notNullValue());
+        assertThat(manager.get("Topic3"), nullValue());
+        verify(channelPool, times(2)).openConsumerChannel();
+
+        // starting a running topic again opens nothing
+        manager.start("Topic1", "Topic1.p2p");
+        verify(channelPool, times(2)).openConsumerChannel();
+
+        manager.stop("Topic1");
+        manager.start("Topic3", "Topic3.p2p");
+        assertThat(manager.get("Topic3"), notNullValue());
+    }
+
+    @Test
+    public void testIdlePrefetcherIsReaped() throws Exception {
+        manager.start("Topic1", "Topic1.p2p");
+        PullPrefetcher prefetcher = manager.get("Topic1");
+
+        assertThat(wasClosed(prefetcher.getChannel(), 5000), equalTo(true));
+        assertThat(prefetcher.isOpen(), equalTo(false));
+        assertThat(manager.get("Topic1"), nullValue());
+    }
+
+    @Test
+    public void testPrefetcherWithBufferedMessagesIsKept() throws Exception {
+        manager.start("Topic1", "Topic1.p2p");
+        PullPrefetcher prefetcher = manager.get("Topic1");
+        BasicProperties properties = new BasicProperties.Builder().messageId("m1").contentType("text/plain").build();
+        prefetcher.handleDelivery("ctag", new Envelope(1, false, "Topic1", "#"), properties, new byte[0]);
+
+        assertThat(wasClosed(prefetcher.getChannel(), 2500), equalTo(false));
+        assertThat(manager.get("Topic1"), equalTo(prefetcher));
+    }
+
+    @Test
+    public void testClosedPrefetcherIsDropped() throws Exception {
+        manager.start("Topic1", "Topic1.p2p");
+        Channel channel = manager.get("Topic1").getChannel();
+        when(channel.isOpen()).thenReturn(false);
+
+        assertThat(manager.get("Topic1"), nullValue());
+        verify(channelPool).closeConsumerChannel(channel);
+        // the slot is free for a new consumer
+        manager.start("Topic1", "Topic1.p2p");
+        assertThat(manager.get("Topic1"), notNullValue());
+    }
+
+    private boolean wasClosed(Channel channel, long waitMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + waitMillis;
+        while (true) {
+            try {
+                verify(channelPool).closeConsumerChannel(channel);
+                return true;
+            } catch (AssertionError e) {
+                if (System.currentTimeMillis() > deadline) {
+                    return false;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+}
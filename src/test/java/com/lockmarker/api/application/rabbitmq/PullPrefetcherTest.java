@@ -0,0 +1,109 @@
+package com.lockmarker.api.application.rabbitmq;
+
+import com.lockmarker.api.application.model.Message;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Envelope;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests on the prefetching consumer behind pulls
+ */
+public class PullPrefetcherTest {
+    private Channel channel;
+    private LeaseTable leases;
+    private PullPrefetcher prefetcher;
+
+    @Before
+    public void setUp() throws Exception {
+        channel = mock(Channel.class);
+        when(channel.isOpen()).thenReturn(true);
+        leases = new LeaseTable(100);
+        prefetcher = new PullPrefetcher(channel, "DemoTopic", 2, new TombstoneRegistry(60000, 10, 100), leases);
+        prefetcher.start("DemoTopic.p2p");
+    }
+
+    @After
+    public void tearDown() {
+        leases.stop();
+    }
+
+    @Test
+    public void testQosIsSteppedWithLeases() throws Exception {
+        verify(channel).basicQos(2);
+        deliver(1, 2);
+        // the first lease takes a whole step of room on top of the prefetch
+        assertThat(prefetcher.drain(1, 0, 60000).size(), equalTo(1));
+        verify(channel).basicQos(4);
+        // the second one fits in the same step
+        assertThat(prefetcher.drain(1, 0, 60000).size(), equalTo(1));
+        verify(channel, times(2)).basicQos(anyInt());
+
+        deliver(3, 3);
+        assertThat(prefetcher.drain(1, 0, 60000).size(), equalTo(1));
+        verify(channel).basicQos(6);
+        assertThat(prefetcher.getLeased(), equalTo(3));
+
+        assertThat(leases.ack("DemoTopic", "m3"), equalTo(true));
+        verify(channel, times(2)).basicQos(4);
+        assertThat(leases.ack("DemoTopic", "m1"), equalTo(true));
+        assertThat(leases.ack("DemoTopic", "m2"), equalTo(true));
+        verify(channel, times(2)).basicQos(2);
+        verify(channel, times(5)).basicQos(anyInt());
+        assertThat(prefetcher.getLeased(), equalTo(0));
+    }
+
+    @Test
+    public void testAckedPullsLeaveQosAlone() throws Exception {
+        deliver(1, 2);
+        List<Message> messages = prefetcher.drain(10, 0, 0);
+        assertThat(messages.size(), equalTo(2));
+        verify(channel).basicAck(1L, false);
+        verify(channel).basicAck(2L, false);
+        verify(channel, times(1)).basicQos(anyInt());
+    }
+
+    private void deliver(long first, long last) throws Exception {
+        for (long tag = first; tag <= last; tag++) {
+            BasicProperties properties = new BasicProperties.Builder().messageId("m" + tag)
+                    .contentType("text/plain").build();
+            prefetcher.handleDelivery("ctag", new Envelope(tag, false, "DemoTopic", "#"), properties, new byte[0]);
+        }
+    }
+
+    @Test
+    public void testParkedPullIsWokenUpByClose() throws Exception {
+        final List<Message> drained = new ArrayList<Message>();
+        Thread pull = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    drained.addAll(prefetcher.drain(1, 60000, 0));
+                } catch (InterruptedException e) {
+                    // fails the join below
+                }
+            }
+        };
+        pull.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (prefetcher.getWaiters() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        prefetcher.close();
+        pull.join(5000);
+        assertThat(pull.isAlive(), equalTo(false));
+        assertThat(drained.size(), equalTo(0));
+        assertThat(prefetcher.isOpen(), equalTo(false));
+    }
+}
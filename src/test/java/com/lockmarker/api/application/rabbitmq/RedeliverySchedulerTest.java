@@ -0,0 +1,98 @@
+package com.lockmarker.api.application.rabbitmq;
+
+import com.lockmarker.api.application.model.Message;
+import com.lockmarker.api.application.policy.RedeliveryPolicy;
+
+import com.rabbitmq.client.Channel;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests on skipping the retries of deleted messages
+ */
+public class RedeliverySchedulerTest {
+    private Channel channel;
+    private SubscriptionFeeder feeder;
+    private TombstoneRegistry tombstones;
+    private RedeliveryScheduler scheduler;
+    private RedeliveryPolicy policy;
+
+    @Before
+    public void setUp() {
+        channel = mock(Channel.class);
+        when(channel.isOpen()).thenReturn(true);
+        feeder = mock(SubscriptionFeeder.class);
+        when(feeder.isAvailable()).thenReturn(true);
+        tombstones = new TombstoneRegistry(60000, 10, 100);
+        scheduler = new RedeliveryScheduler(1, mock(DeadLetterStore.class), tombstones);
+        policy = new RedeliveryPolicy();
+        policy.setInitialRetryInterval(200);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.stop();
+    }
+
+    @Test
+    public void testDeletedMessageIsAckedWithoutFeed() throws Exception {
+        Message message = new Message("id-1", "DemoTopic", "hello".getBytes());
+        tombstones.published("DemoTopic", "id-1");
+        assertThat(tombstones.delete("DemoTopic", "id-1"), equalTo(true));
+
+        CountDownLatch released = schedule(message, 5L);
+        assertThat(released.await(5, TimeUnit.SECONDS), equalTo(true));
+        verify(channel).basicAck(5L, false);
+        verify(feeder, never()).feed(any(Message.class));
+    }
+
+    @Test
+    public void testMessageDeletedBetweenRetriesIsNotFedAgain() throws Exception {
+        Message message = new Message("id-2", "DemoTopic", "hello".getBytes());
+        tombstones.published("DemoTopic", "id-2");
+        doThrow(new RuntimeException("Endpoint response code: 500")).when(feeder).feed(message);
+
+        CountDownLatch released = schedule(message, 6L);
+        // the first retry follows right away and fails too
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!wasFed(message) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(tombstones.delete("DemoTopic", "id-2"), equalTo(true));
+
+        assertThat(released.await(5, TimeUnit.SECONDS), equalTo(true));
+        verify(channel).basicAck(6L, false);
+        verify(feeder, times(1)).feed(message);
+    }
+
+    private boolean wasFed(Message message) {
+        try {
+            verify(feeder, atLeastOnce()).feed(message);
+            return true;
+        } catch (AssertionError e) {
+            return false;
+        }
+    }
+
+    private CountDownLatch schedule(Message message, long deliveryTag) {
+        final CountDownLatch released = new CountDownLatch(1);
+        AckTracker acks = new AckTracker(channel);
+        acks.delivered(deliveryTag);
+        scheduler.schedule(acks, deliveryTag, message, feeder, policy, new Runnable() {
+            @Override
+            public void run() {
+                released.countDown();
+            }
+        });
+        return released;
+    }
+}
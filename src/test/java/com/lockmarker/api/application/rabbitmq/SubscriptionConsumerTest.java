@@ -0,0 +1,131 @@
+package com.lockmarker.api.application.rabbitmq;
+
+import com.lockmarker.api.application.policy.DeliveryPolicy;
+import com.lockmarker.api.application.policy.RedeliveryPolicy;
+import com.lockmarker.utils.HttpConnectionPool;
+import com.lockmarker.utils.RecentKeyWindow;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpEntity;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests on suppressing broker redeliveries of messages already fed
+ */
+public class SubscriptionConsumerTest {
+    private HttpConnectionPool connections;
+    private SubscriptionFeeder feeder;
+    private SubscriptionConsumer.RecoveryListener recovery;
+
+    @Before
+    public void setUp() throws Exception {
+        connections = mock(HttpConnectionPool.class);
+        when(connections.put(anyString(), any(HttpEntity.class))).thenReturn(200);
+        feeder = new SubscriptionFeeder("sub", "sub-id", "http://localhost/feed", connections,
+                new EndpointCircuitBreaker("http://localhost/feed", 5),
+                new RecentKeyWindow<Boolean>(60000, 10, 100));
+        recovery = mock(SubscriptionConsumer.RecoveryListener.class);
+    }
+
+    @Test
+    public void testRedeliveryAfterLostChannelIsAckedWithoutFeed() throws Exception {
+        Channel lostChannel = openChannel();
+        SubscriptionConsumer lost = start(lostChannel);
+        lost.handleDelivery("ctag", new Envelope(1, false, "DemoTopic", "#"), properties("m1"), new byte[0]);
+        awaitAck(lostChannel, 1L);
+
+        // the ack never reached the broker
+        lost.handleShutdownSignal("ctag", new ShutdownSignalException(true, false, null, null));
+        verify(recovery).onChannelLost(lost);
+
+        Channel channel = openChannel();
+        SubscriptionConsumer consumer = start(channel);
+        consumer.handleDelivery("ctag", new Envelope(1, true, "DemoTopic", "#"), properties("m1"), new byte[0]);
+        verify(channel).basicAck(1L, false);
+        verify(connections, times(1)).put(anyString(), any(HttpEntity.class));
+        consumer.handleCancel("ctag");
+    }
+
+    @Test
+    public void testRedeliveryNeverFedIsFed() throws Exception {
+        Channel channel = openChannel();
+        SubscriptionConsumer consumer = start(channel);
+        // e.g. requeued while the circuit of the endpoint was open
+        consumer.handleDelivery("ctag", new Envelope(1, true, "DemoTopic", "#"), properties("m2"), new byte[0]);
+        awaitAck(channel, 1L);
+        verify(connections, times(1)).put(anyString(), any(HttpEntity.class));
+        consumer.handleCancel("ctag");
+        verify(recovery, never()).onChannelLost(any(SubscriptionConsumer.class));
+    }
+
+    @Test
+    public void testBatchOfStoppedSubscriberIsRequeued() throws Exception {
+        Channel channel = openChannel();
+        DeliveryPolicy policy = new DeliveryPolicy(1, 4, false);
+        policy.setBatchSize(2);
+        SubscriptionConsumer consumer = start(channel, policy);
+        // the subscriber queue is deleted, its executor stops
+        consumer.handleCancel("ctag");
+
+        consumer.handleDelivery("ctag", new Envelope(1, false, "DemoTopic", "#"), properties("m1"), new byte[0]);
+        consumer.handleDelivery("ctag", new Envelope(2, false, "DemoTopic", "#"), properties("m2"), new byte[0]);
+        verify(channel).basicReject(1L, true);
+        verify(channel).basicReject(2L, true);
+        verify(connections, never()).put(anyString(), any(HttpEntity.class));
+    }
+
+    private SubscriptionConsumer start(Channel channel) throws Exception {
+        return start(channel, new DeliveryPolicy(1, 4, false));
+    }
+
+    private SubscriptionConsumer start(Channel channel, DeliveryPolicy policy) throws Exception {
+        policy.setLatencyTarget(0);
+        policy.setAckBatchSize(1);
+        ScheduledExecutorService timer = mock(ScheduledExecutorService.class);
+        doReturn(mock(ScheduledFuture.class)).when(timer).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+        SubscriptionConsumer consumer = new SubscriptionConsumer(channel, feeder, mock(RedeliveryScheduler.class),
+                new RedeliveryPolicy(), policy, timer, new TombstoneRegistry(60000, 10, 100), recovery);
+        consumer.start("sub-id");
+        return consumer;
+    }
+
+    private static Channel openChannel() {
+        Channel channel = mock(Channel.class);
+        when(channel.isOpen()).thenReturn(true);
+        return channel;
+    }
+
+    private static BasicProperties properties(String messageId) {
+        Map<String, Object> headers = new HashMap<String, Object>();
+        headers.put("topic", "DemoTopic");
+        return new BasicProperties.Builder().messageId(messageId).contentType("text/plain").headers(headers).build();
+    }
+
+    private static void awaitAck(Channel channel, long deliveryTag) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (true) {
+            try {
+                verify(channel).basicAck(deliveryTag, false);
+                return;
+            } catch (AssertionError e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(10);
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.lockmarker.api.application.rabbitmq;
+
+import com.lockmarker.api.application.model.Message;
+import com.lockmarker.utils.HttpConnectionPool;
+
+import java.io.IOException;
+
+import org.apache.http.HttpEntity;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests on which failed feeds count against the circuit of an endpoint
+ */
+public class SubscriptionFeederTest {
+
+    @Test
+    public void testClientErrorsLeaveCircuitClosed() throws Exception {
+        HttpConnectionPool connections = mock(HttpConnectionPool.class);
+        when(connections.put(anyString(), any(HttpEntity.class))).thenReturn(400);
+        EndpointCircuitBreaker breaker = new EndpointCircuitBreaker("http://localhost/feed", 2);
+        SubscriptionFeeder feeder = new SubscriptionFeeder("sub", "sub-id", "http://localhost/feed", connections,
+                breaker, null);
+
+        for (int i = 0; i < 3; i++) {
+            feedAndFail(feeder);
+        }
+        assertThat(breaker.isClosed(), equalTo(true));
+    }
+
+    @Test
+    public void testServerAndTransportErrorsOpenCircuit() throws Exception {
+        HttpConnectionPool connections = mock(HttpConnectionPool.class);
+        when(connections.put(anyString(), any(HttpEntity.class)))
+                .thenReturn(503)
+                .thenThrow(new IOException("Connection refused"));
+        EndpointCircuitBreaker breaker = new EndpointCircuitBreaker("http://localhost/feed", 2);
+        SubscriptionFeeder feeder = new SubscriptionFeeder("sub", "sub-id", "http://localhost/feed", connections,
+                breaker, null);
+
+        feedAndFail(feeder);
+        assertThat(breaker.isClosed(), equalTo(true));
+        feedAndFail(feeder);
+        assertThat(breaker.isClosed(), equalTo(false));
+    }
+
+    private static void feedAndFail(SubscriptionFeeder feeder) {
+        try {
+            feeder.feed(new Message("id-1", "DemoTopic", "hello".getBytes()));
+        } catch (RuntimeException e) {
+            return;
+        }
+        throw new AssertionError("feed did not fail");
+    }
+}
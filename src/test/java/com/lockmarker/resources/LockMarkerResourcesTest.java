@@ -1,13 +1,22 @@
 package com.lockmarker.resources;
 
+import com.lockmarker.api.application.MessagingDispatcher;
+import com.lockmarker.api.application.model.Message;
+import com.lockmarker.api.exceptions.NotImplementedException;
+import com.sun.jersey.api.client.ClientResponse;
 import com.yammer.dropwizard.testing.ResourceTest;
 
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+
+import org.codehaus.jackson.node.ArrayNode;
 import org.codehaus.jackson.node.JsonNodeFactory;
 import org.codehaus.jackson.node.ObjectNode;
 import org.junit.Test;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.AdditionalMatchers.aryEq;
 import static org.mockito.Mockito.*;
 
 /**
@@ -16,7 +25,8 @@ import static org.mockito.Mockito.*;
 public class LockMarkerResourcesTest extends ResourceTest {
 
     private static final String serviceEndpoint = "/v1.0/";
-    private static final LockMarkerResource lockMarkerServer = new LockMarkerResource(); 
+    private static final MessagingDispatcher dispatcher = mock(MessagingDispatcher.class);
+    private static final LockMarkerResource lockMarkerServer = new LockMarkerResource(dispatcher); 
 
 
     @Override
@@ -37,4 +47,192 @@ public class LockMarkerResourcesTest extends ResourceTest {
                         .get(ObjectNode.class), equalTo(response));
     }
 
+    @Test
+    public void testSendRawMessage() throws Exception {
+        byte[] body = "{\"price\": 42}".getBytes("UTF-8");
+        when(dispatcher.sendMessage(eq("/"), eq("DemoTopic"), aryEq(body), anyString(), (String) isNull()))
+                .thenReturn("id-1");
+
+        ObjectNode response = JsonNodeFactory.instance.objectNode();
+        response.put("status", 200);
+        response.put("messageId", "id-1");
+
+        assertThat(
+                "Test raw send API",
+                client().resource(serviceEndpoint + "topic/DemoTopic/message")
+                        .type("application/json; charset=UTF-8").accept("application/json")
+                        .post(ObjectNode.class, new ByteArrayInputStream(body)), equalTo(response));
+    }
+
+    @Test
+    public void testSendMessageBatch() throws Exception {
+        when(dispatcher.sendMessages("/", "DemoTopic", Arrays.asList("first", "second")))
+                .thenReturn(Arrays.asList("id-1", "id-2"));
+
+        ObjectNode request = JsonNodeFactory.instance.objectNode();
+        ArrayNode messages = request.putArray("messages");
+        messages.add("first");
+        messages.add("second");
+
+        ObjectNode response = JsonNodeFactory.instance.objectNode();
+        response.put("status", 200);
+        ArrayNode messageIds = response.putArray("messageIds");
+        messageIds.add("id-1");
+        messageIds.add("id-2");
+
+        assertThat(
+                "Test batch send API",
+                client().resource(serviceEndpoint + "topic/DemoTopic/messages")
+                        .type("application/json").accept("application/json")
+                        .post(ObjectNode.class, request), equalTo(response));
+    }
+
+    @Test
+    public void testLongPollReceive() throws Exception {
+        when(dispatcher.pullMessages("/", "DemoTopic", 10, 5000L, 0L))
+                .thenReturn(Arrays.asList(new Message("id-1", "DemoTopic", "hello".getBytes())));
+
+        ObjectNode response = JsonNodeFactory.instance.objectNode();
+        response.put("status", 200);
+        ObjectNode message = response.putArray("messages").addObject();
+        message.put("messageId", "id-1");
+        message.put("topicName", "DemoTopic");
+        message.put("message", "hello");
+
+        assertThat(
+                "Test long-poll receive API",
+                client().resource(serviceEndpoint + "topic/DemoTopic/messages")
+                        .queryParam("max", "10").queryParam("waitMillis", "5000")
+                        .accept("application/json").get(ObjectNode.class), equalTo(response));
+    }
+
+    @Test
+    public void testLeasedReceive() throws Exception {
+        when(dispatcher.pullMessages("/", "DemoTopic", 1, 0L, 30000L))
+                .thenReturn(Arrays.asList(new Message("id-1", "DemoTopic", "hello".getBytes())));
+
+        ObjectNode response = JsonNodeFactory.instance.objectNode();
+        response.put("status", 200);
+        ObjectNode message = response.putArray("messages").addObject();
+        message.put("messageId", "id-1");
+        message.put("topicName", "DemoTopic");
+        message.put("message", "hello");
+
+        assertThat(
+                "Test leased receive API",
+                client().resource(serviceEndpoint + "topic/DemoTopic/messages")
+                        .queryParam("visibilityMillis", "30000")
+                        .accept("application/json").get(ObjectNode.class), equalTo(response));
+        assertThat(client().resource(serviceEndpoint + "topic/DemoTopic/messages")
+                .queryParam("visibilityMillis", "-1")
+                .accept("application/json").get(ClientResponse.class).getStatus(), equalTo(400));
+    }
+
+    @Test
+    public void testExtendLease() throws Exception {
+        when(dispatcher.extendLease("/", "DemoTopic", "id-1", 60000L)).thenReturn(true);
+        when(dispatcher.extendLease("/", "DemoTopic", "id-1", 0L)).thenReturn(true);
+
+        ObjectNode response = JsonNodeFactory.instance.objectNode();
+        response.put("status", 200);
+        response.put("messageId", "id-1");
+        response.put("visibilityMillis", 60000);
+
+        assertThat(
+                "Test extend lease API",
+                client().resource(serviceEndpoint + "topic/DemoTopic/message/id-1/lease")
+                        .queryParam("visibilityMillis", "60000")
+                        .accept("application/json").put(ObjectNode.class), equalTo(response));
+        // an explicit 0 releases the message
+        assertThat(client().resource(serviceEndpoint + "topic/DemoTopic/message/id-1/lease")
+                .queryParam("visibilityMillis", "0")
+                .accept("application/json").put(ClientResponse.class).getStatus(), equalTo(200));
+        verify(dispatcher).extendLease("/", "DemoTopic", "id-1", 0L);
+        // a missing one does not
+        assertThat(client().resource(serviceEndpoint + "topic/DemoTopic/message/id-1/lease")
+                .accept("application/json").put(ClientResponse.class).getStatus(), equalTo(400));
+        // expired, or never leased
+        assertThat(client().resource(serviceEndpoint + "topic/DemoTopic/message/id-unknown/lease")
+                .queryParam("visibilityMillis", "60000")
+                .accept("application/json").put(ClientResponse.class).getStatus(), equalTo(404));
+    }
+
+    @Test
+    public void testGetMessageById() throws Exception {
+        when(dispatcher.getMessage("/", "DemoTopic", "id-1"))
+                .thenReturn(new Message("id-1", "DemoTopic", "hello".getBytes()));
+
+        ObjectNode response = JsonNodeFactory.instance.objectNode();
+        response.put("status", 200);
+        response.put("messageId", "id-1");
+        response.put("topicName", "DemoTopic");
+        response.put("message", "hello");
+
+        assertThat(
+                "Test get message API",
+                client().resource(serviceEndpoint + "topic/DemoTopic/message/id-1")
+                        .accept("application/json").get(ObjectNode.class), equalTo(response));
+        assertThat(client().resource(serviceEndpoint + "topic/DemoTopic/message/id-unknown")
+                .accept("application/json").get(ClientResponse.class).getStatus(), equalTo(404));
+    }
+
+    @Test
+    public void testBinaryMessageIsBase64Encoded() throws Exception {
+        when(dispatcher.getMessage("/", "DemoTopic", "id-2")).thenReturn(
+                new Message("id-2", "DemoTopic", new byte[] { (byte) 0xff, 0, (byte) 0xfe }, "application/octet-stream"));
+
+        ObjectNode response = JsonNodeFactory.instance.objectNode();
+        response.put("status", 200);
+        response.put("messageId", "id-2");
+        response.put("topicName", "DemoTopic");
+        response.put("encoding", "base64");
+        response.put("message", "/wD+");
+
+        assertThat(
+                "Test get binary message API",
+                client().resource(serviceEndpoint + "topic/DemoTopic/message/id-2")
+                        .accept("application/json").get(ObjectNode.class), equalTo(response));
+    }
+
+    @Test
+    public void testGetMessageByIdNotSupported() throws Exception {
+        when(dispatcher.getMessage("/", "DemoTopic", "id-3")).thenThrow(new NotImplementedException("no lookup"));
+
+        assertThat(client().resource(serviceEndpoint + "topic/DemoTopic/message/id-3")
+                .accept("application/json").get(ClientResponse.class).getStatus(), equalTo(501));
+    }
+
+    @Test
+    public void testDeleteMessageById() throws Exception {
+        when(dispatcher.deleteMessage("/", "DemoTopic", "id-1")).thenReturn(true);
+
+        ObjectNode response = JsonNodeFactory.instance.objectNode();
+        response.put("status", 200);
+        response.put("messageId", "id-1");
+
+        assertThat(
+                "Test delete message API",
+                client().resource(serviceEndpoint + "topic/DemoTopic/message/id-1")
+                        .accept("application/json").delete(ObjectNode.class), equalTo(response));
+        // never published, or already deleted
+        assertThat(client().resource(serviceEndpoint + "topic/DemoTopic/message/id-unknown")
+                .accept("application/json").delete(ClientResponse.class).getStatus(), equalTo(404));
+    }
+
+    @Test
+    public void testReplayDeadLetters() throws Exception {
+        ObjectNode response = JsonNodeFactory.instance.objectNode();
+        response.put("status", 202);
+        response.put("subscriberId", "sub-1");
+        response.put("max", 500);
+        response.put("rate", 50);
+
+        assertThat(
+                "Test dead-letter replay API",
+                client().resource(serviceEndpoint + "subscriber/sub-1/deadletters/replay")
+                        .queryParam("max", "500").queryParam("rate", "50")
+                        .accept("application/json").post(ObjectNode.class), equalTo(response));
+        verify(dispatcher).replayDeadLetters("sub-1", 500L, 50);
+    }
+
 }
@@ -0,0 +1,72 @@
+package com.lockmarker.utils;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+
+/**
+ * Unit tests on the hashed timing wheel
+ */
+public class HashedTimingWheelTest {
+
+    private static final Executor sameThread = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private HashedTimingWheel wheel;
+
+    @Before
+    public void setUp() {
+        // a small wheel so that delays span several rounds
+        wheel = new HashedTimingWheel("test-wheel", 10, 4, sameThread);
+    }
+
+    @After
+    public void tearDown() {
+        wheel.stop();
+    }
+
+    @Test
+    public void testTimeoutFiresAfterDelay() throws Exception {
+        final CountDownLatch fired = new CountDownLatch(1);
+        long start = System.currentTimeMillis();
+        wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                fired.countDown();
+            }
+        }, 120);
+
+        assertThat("Test timeout fired", fired.await(2, TimeUnit.SECONDS), equalTo(true));
+        assertThat("Test timeout not early", System.currentTimeMillis() - start, greaterThanOrEqualTo(120L));
+        assertThat("Test nothing pending", wheel.getPending(), equalTo(0));
+    }
+
+    @Test
+    public void testCancelledTimeoutNeverFires() throws Exception {
+        final AtomicBoolean fired = new AtomicBoolean();
+        HashedTimingWheel.Timeout timeout = wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                fired.set(true);
+            }
+        }, 50);
+
+        assertThat("Test cancel succeeded", timeout.cancel(), equalTo(true));
+        Thread.sleep(150);
+        assertThat("Test cancelled timeout did not fire", fired.get(), equalTo(false));
+        assertThat("Test nothing pending", wheel.getPending(), equalTo(0));
+    }
+}
@@ -0,0 +1,125 @@
+package com.lockmarker.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+
+/**
+ * Unit tests on the pooled HTTP client, against a stub server on the loopback
+ * interface
+ */
+public class HttpConnectionPoolTest {
+    private HttpServer server;
+    private ExecutorService handlers;
+    private CountDownLatch slowEntered;
+    private CountDownLatch slowReleased;
+    private volatile int lastClientPort;
+    private HttpConnectionPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        slowEntered = new CountDownLatch(1);
+        slowReleased = new CountDownLatch(1);
+        server = HttpServer.create(new InetSocketAddress(0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream body = exchange.getRequestBody();
+                while (body.read() != -1) {
+                    // drain the request so the connection can be kept alive
+                }
+                lastClientPort = exchange.getRemoteAddress().getPort();
+                if (exchange.getRequestURI().getPath().equals("/slow")) {
+                    slowEntered.countDown();
+                    try {
+                        slowReleased.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+            }
+        });
+        handlers = Executors.newCachedThreadPool();
+        server.setExecutor(handlers);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        slowReleased.countDown();
+        if (pool != null) {
+            pool.shutdown();
+        }
+        server.stop(0);
+        handlers.shutdownNow();
+    }
+
+    @Test
+    public void testConnectionsPerHostAreCapped() throws Exception {
+        pool = new HttpConnectionPool(4, 1, 200, 5000, 60000);
+        Thread slow = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    pool.put(uri("localhost", "/slow"), "{}");
+                } catch (IOException e) {
+                    // the assertions below fail instead
+                }
+            }
+        };
+        slow.start();
+        assertThat(slowEntered.await(5, TimeUnit.SECONDS), equalTo(true));
+
+        // the only connection to the host is busy, so the request times out waiting for it
+        try {
+            pool.put(uri("localhost", "/fast"), "{}");
+            throw new AssertionError("second connection to the same host was opened");
+        } catch (ConnectionPoolTimeoutException e) {
+            // expected
+        }
+        // another host has its own connections
+        assertThat(pool.put(uri("127.0.0.1", "/fast"), "{}"), equalTo(200));
+
+        slowReleased.countDown();
+        slow.join(5000);
+        assertThat(pool.put(uri("localhost", "/fast"), "{}"), equalTo(200));
+    }
+
+    @Test
+    public void testIdleConnectionIsClosed() throws Exception {
+        pool = new HttpConnectionPool(4, 1, 1000, 5000, 10);
+        assertThat(pool.put(uri("127.0.0.1", "/fast"), "{}"), equalTo(200));
+        int firstPort = lastClientPort;
+        // kept alive and reused straight away
+        assertThat(pool.put(uri("127.0.0.1", "/fast"), "{}"), equalTo(200));
+        assertThat(lastClientPort, equalTo(firstPort));
+
+        // the evictor runs once a second whatever the timeout
+        Thread.sleep(2500);
+        assertThat(pool.put(uri("127.0.0.1", "/fast"), "{}"), equalTo(200));
+        assertThat(lastClientPort, not(equalTo(firstPort)));
+    }
+
+    private String uri(String host, String path) {
+        return "http://" + host + ":" + server.getAddress().getPort() + path;
+    }
+}
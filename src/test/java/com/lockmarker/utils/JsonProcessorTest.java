@@ -0,0 +1,47 @@
+package com.lockmarker.utils;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ * Unit tests on parsing management API responses
+ */
+public class JsonProcessorTest {
+
+    private static final String EXCHANGES = "["
+            + "{\"name\":\"\",\"type\":\"direct\",\"arguments\":{\"name\":\"nested\"}},"
+            + "{\"name\":\"amq.topic\",\"type\":\"topic\",\"arguments\":{}},"
+            + "{\"name\":\"DemoTopic\",\"type\":\"topic\",\"message_stats\":{\"publish\":3}},"
+            + "{\"name\":\"direct\",\"type\":\"direct\"},"
+            + "{\"type\":\"topic\",\"name\":\"OtherTopic\"}"
+            + "]";
+
+    @Test
+    public void testParseListFromStreamSkipsBuiltIns() {
+        Collection<String> topics = JsonProcessor.parseJsonList(
+                new ByteArrayInputStream(EXCHANGES.getBytes()), "name",
+                JsonProcessor.SkipMatcher.compile("direct", "amq.*"));
+
+        assertThat(topics, equalTo((Collection<String>) new HashSet<String>(Arrays.asList("DemoTopic", "OtherTopic"))));
+    }
+
+    @Test
+    public void testParseEntitiesFindsNestedFields() {
+        String queue = "{\"name\":\"sub-1\",\"arguments\":{\"subscriberName\":\"demo\","
+                + "\"endpoint\":\"http://localhost/feed\"},\"durable\":true}";
+
+        Map<String, String> properties = JsonProcessor.parseJsonEntities(
+                new ByteArrayInputStream(queue.getBytes()), Arrays.asList("subscriberName", "endpoint"));
+
+        assertThat(properties.get("subscriberName"), equalTo("demo"));
+        assertThat(properties.get("endpoint"), equalTo("http://localhost/feed"));
+    }
+}
@@ -0,0 +1,39 @@
+package com.lockmarker.utils;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+
+/**
+ * Unit tests on the bucketed recent-key window
+ */
+public class RecentKeyWindowTest {
+
+    @Test
+    public void testKeysAreRememberedForTheWindow() throws Exception {
+        RecentKeyWindow<String> window = new RecentKeyWindow<String>(1000, 10, 100);
+
+        assertThat(window.putIfAbsent("key", "id-1", 10000), nullValue());
+        assertThat(window.putIfAbsent("key", "id-2", 10500), equalTo("id-1"));
+        assertThat(window.get("key", 10999), equalTo("id-1"));
+        // the bucket of the key has left the window
+        assertThat(window.get("key", 11000), nullValue());
+        assertThat(window.size(), equalTo(0));
+    }
+
+    @Test
+    public void testOldestBucketIsDroppedWhenFull() throws Exception {
+        RecentKeyWindow<String> window = new RecentKeyWindow<String>(1000, 10, 2);
+        window.putIfAbsent("a", "1", 10000);
+        window.putIfAbsent("b", "2", 10100);
+        window.putIfAbsent("c", "3", 10200);
+
+        assertThat(window.get("a", 10200), nullValue());
+        assertThat(window.get("b", 10200), equalTo("2"));
+        assertThat(window.remove("c", "other"), equalTo(false));
+        assertThat(window.remove("c", "3"), equalTo(true));
+        assertThat(window.size(), equalTo(1));
+    }
+}
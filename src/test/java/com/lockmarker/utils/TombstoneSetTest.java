@@ -0,0 +1,43 @@
+package com.lockmarker.utils;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ * Unit tests on the expiring set of deleted message IDs
+ */
+public class TombstoneSetTest {
+
+    @Test
+    public void testTombstonesExpireWithTheirBucket() throws Exception {
+        TombstoneSet set = new TombstoneSet(1000, 10, 100);
+
+        assertThat(set.add("id-1", 10000), equalTo(true));
+        assertThat(set.add("id-1", 10500), equalTo(false));
+        assertThat(set.contains("id-1", 10999), equalTo(true));
+        assertThat(set.contains("id-2", 10999), equalTo(false));
+        // the bucket of the tombstone has left the window
+        assertThat(set.contains("id-1", 11000), equalTo(false));
+        assertThat(set.add("id-2", 11000), equalTo(true));
+        assertThat(set.size(), equalTo(1));
+    }
+
+    @Test
+    public void testBucketsGrowAndOldestIsDroppedWhenFull() throws Exception {
+        TombstoneSet set = new TombstoneSet(1000, 10, 150);
+        for (int i = 0; i < 100; i++) {
+            set.add("old-" + i, 10000);
+        }
+        for (int i = 0; i < 100; i++) {
+            set.add("new-" + i, 10100);
+        }
+
+        assertThat(set.contains("old-0", 10100), equalTo(false));
+        for (int i = 0; i < 100; i++) {
+            assertThat(set.contains("new-" + i, 10100), equalTo(true));
+        }
+        assertThat(set.size(), equalTo(100));
+    }
+}